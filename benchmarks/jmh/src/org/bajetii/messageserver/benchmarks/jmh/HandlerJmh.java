@@ -0,0 +1,116 @@
+package org.bajetii.messageserver.benchmarks.jmh;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.Handler;
+
+
+/**
+ * HandlerJmh is the JMH counterpart of BodyReadBenchmark and
+ * BodyWriteBenchmark; reading request bodies through
+ * Handler.readInputStream and writing response bodies through
+ * Handler.writeToOutputStream, at various sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class HandlerJmh {
+
+    @Param({"64", "1024", "65536", "1048576"})
+    public int size;
+
+    private Bodies bodies;
+    private byte[] read;
+    private byte[] written;
+
+    /**
+     * Bodies exposes the protected reading and writing methods of the
+     * Handler.
+     */
+    private static class Bodies extends Handler {
+
+        Bodies() {
+            super(new MessagingServer(30));
+        }
+
+        @Override
+        public void handle(HttpExchange ex) {}
+
+        String read(InputStream is) throws IOException {
+            return this.readInputStream(is);
+        }
+
+        void write(OutputStream os, byte[] bytes) throws IOException {
+            this.writeToOutputStream(os, bytes);
+        }
+    }
+
+    /**
+     * BlackholeOutputStream hands whatever is written to it to a Blackhole.
+     */
+    private static final class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            this.blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.blackhole.consume(b);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.bodies = new Bodies();
+
+        // a mix of ASCII and multi-byte UTF-8 characters:
+        char[] chars = new char[this.size];
+        Arrays.fill(chars, 'a');
+        for(int i = 0; i < chars.length; i += 8) {
+            chars[i] = 'é';
+        }
+        this.read = Arrays.copyOf(new String(chars).getBytes(StandardCharsets.UTF_8), this.size);
+
+        this.written = new byte[this.size];
+        Arrays.fill(this.written, (byte) 'a');
+    }
+
+    @Benchmark
+    public String readInputStream() throws IOException {
+        return this.bodies.read(new ByteArrayInputStream(this.read));
+    }
+
+    @Benchmark
+    public void writeToOutputStream(Blackhole blackhole) throws IOException {
+        this.bodies.write(new BlackholeOutputStream(blackhole), this.written);
+    }
+
+}
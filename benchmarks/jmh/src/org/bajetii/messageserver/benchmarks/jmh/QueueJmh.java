@@ -0,0 +1,111 @@
+package org.bajetii.messageserver.benchmarks.jmh;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+import org.bajetii.messageserver.server.queues.PersonalMessageQueue;
+import org.bajetii.messageserver.server.queues.RingBufferMessageQueue;
+import org.bajetii.messageserver.server.queues.TopicMessageQueue;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * QueueJmh is the JMH counterpart of QueueBenchmark; add/get pairs on the
+ * personal queues pre-filled to a given depth, and post/read pairs on a
+ * TopicMessageQueue read through a subscriber cursor per Thread.
+ * <p>
+ * The number of Threads is set on the command line; e.g. '-t 4'.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QueueJmh {
+
+    /**
+     * topicLifeMillis is how long the messages of the topic queue live for.
+     */
+    private static final long topicLifeMillis = 100;
+
+    /**
+     * Queues holds the queues shared by every Thread of a run.
+     */
+    @State(Scope.Benchmark)
+    public static class Queues {
+
+        @Param({"0", "1000"})
+        public int depth;
+
+        public final IMessage message = new StringMessage("benchmark message");
+
+        public IMessageQueue personal;
+        public IMessageQueue ring;
+        public TimerWheel timerWheel;
+        public TopicMessageQueue topic;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threads) {
+            this.personal = new PersonalMessageQueue(this.depth + threads.getThreadCount() + 1);
+            this.ring = new RingBufferMessageQueue(this.depth + threads.getThreadCount() + 1);
+            for(int i = 0; i < this.depth; i++) {
+                this.personal.addMessage(this.message);
+                this.ring.addMessage(this.message);
+            }
+
+            this.timerWheel = new TimerWheel(10);
+            this.topic = new TopicMessageQueue(this.timerWheel);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.timerWheel.stop();
+        }
+    }
+
+    /**
+     * Subscriber holds the name of a Thread's subscriber cursor.
+     */
+    @State(Scope.Thread)
+    public static class Subscriber {
+
+        public String name;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams thread) {
+            this.name = "subscriber-" + thread.getThreadIndex();
+        }
+    }
+
+    @Benchmark
+    public IMessage personalMessageQueue(Queues queues) {
+        queues.personal.addMessage(queues.message);
+        return queues.personal.getMessage();
+    }
+
+    @Benchmark
+    public IMessage ringBufferMessageQueue(Queues queues) {
+        queues.ring.addMessage(queues.message);
+        return queues.ring.getMessage();
+    }
+
+    @Benchmark
+    public IMessage[] topicMessageQueue(Queues queues, Subscriber subscriber) {
+        queues.topic.addMessage(new TopicMessage(queues.message, System.currentTimeMillis() + topicLifeMillis));
+        return queues.topic.getMessages(subscriber.name, 1);
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.bajetii.messageserver.benchmarks.jmh;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+
+
+/**
+ * RegistryJmh is the JMH counterpart of RegistryBenchmark; every Thread
+ * posting to and reading from its own set of people and topics of a shared
+ * MessagingServer, so that any loss of throughput as Threads are added stems
+ * from contention on the registry itself.
+ * <p>
+ * The number of Threads is set on the command line; e.g. '-t 64'.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RegistryJmh {
+
+    /**
+     * namesPerThread is the number of distinct people each Thread cycles over.
+     */
+    private static final int namesPerThread = 64;
+
+    /**
+     * message is the raw message posted.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        public MessagingServer server;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.server = new MessagingServer(30);
+        }
+    }
+
+    /**
+     * Names holds the people, topics and ids a Thread cycles over.
+     */
+    @State(Scope.Thread)
+    public static class Names {
+
+        public final String[] people = new String[namesPerThread];
+        public final String[] topics = new String[namesPerThread];
+        public final int[] ids = new int[namesPerThread];
+        public int cursor = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server, ThreadParams thread) {
+            for(int n = 0; n < namesPerThread; n++) {
+                this.people[n] = "person-" + thread.getThreadIndex() + "-" + n;
+                this.topics[n] = "topic-" + thread.getThreadIndex() + "-" + n;
+                this.ids[n] = server.server.resolvePersonal(this.people[n]);
+            }
+        }
+
+        public int next() {
+            return (this.cursor++ & Integer.MAX_VALUE) % namesPerThread;
+        }
+    }
+
+    @Benchmark
+    public IMessage[] personalByName(Server server, Names names) {
+        // a fresh String; as if parsed off a request:
+        String person = new String(names.people[names.next()]);
+
+        server.server.addPersonalMessage(person, new ByteBufferMessage(message));
+        return server.server.getRawPersonalMessages(person, 1);
+    }
+
+    @Benchmark
+    public IMessage[] personalById(Server server, Names names) {
+        int id = names.ids[names.next()];
+
+        server.server.addPersonalMessage(id, new ByteBufferMessage(message));
+        return server.server.getRawPersonalMessages(id, 1);
+    }
+
+    @Benchmark
+    public IMessage topic(Server server, Names names) {
+        String topic = names.topics[names.next()];
+
+        server.server.addTopicMessage(topic, new ByteBufferMessage(message), 30);
+        return server.server.getRawTopicMessage(topic);
+    }
+
+}
@@ -0,0 +1,234 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Benchmarks runs the suite of benchmarks; or compares two runs of it.
+ * <p>
+ * Usage:
+ *      Benchmarks                                  runs every benchmark.
+ *      Benchmarks Queue Registry ...               runs the named ones.
+ *      Benchmarks compare <baseline> <current> [%] compares two results files.
+ * Benchmarks are named after their class; with or without the 'Benchmark'
+ * suffix. The build runs them as 'gradle :benchmarks:bench' and compares
+ * results as 'gradle :benchmarks:compare'.
+ * <p>
+ * Running the suite with '-Dbench.results=<file>' records every result; so
+ * that a run before a change can be compared against one after it. Any
+ * benchmark whose throughput dropped, or whose allocation rate grew, by more
+ * than the given percentage (10 by default) is reported as a regression; and
+ * the comparison then exits with a status of 1.
+ * <p>
+ * The CSV results of the JMH module ('-rf csv') are compared just the same;
+ * their allocation rate being known when run with '-prof gc'.
+ */
+public final class Benchmarks {
+
+    /**
+     * Benchmark is the entry point of a single benchmark.
+     */
+    private interface Benchmark {
+        public void run(String[] args) throws Exception;
+    }
+
+    /**
+     * suite holds the benchmarks by name; in the order they are run in.
+     */
+    private static final LinkedHashMap<String, Benchmark> suite = new LinkedHashMap<String, Benchmark>();
+
+    static {
+        suite.put("Queue", (args) -> QueueBenchmark.main(args));
+        suite.put("Registry", (args) -> RegistryBenchmark.main(args));
+        suite.put("Shard", (args) -> ShardBenchmark.main(args));
+        suite.put("Cluster", (args) -> ClusterBenchmark.main(args));
+        suite.put("Replication", (args) -> ReplicationBenchmark.main(args));
+        suite.put("ReplicationProcess", (args) -> ReplicationProcessBenchmark.main(args));
+        suite.put("BodyRead", (args) -> BodyReadBenchmark.main(args));
+        suite.put("BodyWrite", (args) -> BodyWriteBenchmark.main(args));
+        suite.put("Expiry", (args) -> ExpiryBenchmark.main(args));
+        suite.put("Metrics", (args) -> MetricsBenchmark.main(args));
+        suite.put("Wal", (args) -> WalBenchmark.main(args));
+        suite.put("Snapshot", (args) -> SnapshotBenchmark.main(args));
+        suite.put("HttpTransport", (args) -> HttpTransportBenchmark.main(args));
+        suite.put("BinaryProtocol", (args) -> BinaryProtocolBenchmark.main(args));
+        suite.put("Logging", (args) -> LoggingBenchmark.main(args));
+        suite.put("SlowClient", (args) -> SlowClientBenchmark.main(args));
+    }
+
+    /**
+     * defaultThreshold is the default percentage past which a change is
+     * reported as a regression.
+     */
+    private static final double defaultThreshold = 10;
+
+    private Benchmarks() {}
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("compare")) {
+            if(args.length < 3) {
+                System.err.println("Usage: Benchmarks compare <baseline> <current> [threshold %]");
+                System.exit(2);
+            }
+
+            double threshold = (args.length > 3) ? Double.parseDouble(args[3]) : defaultThreshold;
+            System.exit(compare(args[1], args[2], threshold) ? 0 : 1);
+        }
+
+        String[] names = (args.length > 0) ? args : suite.keySet().toArray(new String[suite.size()]);
+
+        for(String name : names) {
+            if(lookup(name) == null) {
+                System.err.println("No such benchmark: " + name + "; expected one of " + suite.keySet() + ".");
+                System.exit(2);
+            }
+        }
+
+        for(String name : names) {
+            System.out.println("### " + name);
+            lookup(name).run(new String[0]);
+        }
+
+        // some benchmarks leave non-daemon pools behind:
+        System.exit(0);
+    }
+
+    /**
+     * lookup returns the benchmark of the given name; if any.
+     */
+    private static Benchmark lookup(String name) {
+        if(name.endsWith("Benchmark")) {
+            name = name.substring(0, name.length() - "Benchmark".length());
+        }
+
+        return suite.get(name);
+    }
+
+    /**
+     * compare prints out the change of every benchmark of the current results
+     * against the baseline.
+     * <p>
+     * @return  boolean whether no regression was found.
+     */
+    private static boolean compare(String baselineFile, String currentFile, double threshold) throws IOException {
+        Map<String, double[]> baseline = read(baselineFile);
+        Map<String, double[]> current = read(currentFile);
+        int regressions = 0;
+
+        for(Map.Entry<String, double[]> entry : current.entrySet()) {
+            double[] before = baseline.get(entry.getKey());
+            double[] after = entry.getValue();
+
+            if(before == null) {
+                System.out.println(String.format("%-60s %16s %,16.0f ops/s", entry.getKey(), "(new)", after[0]));
+                continue;
+            }
+
+            double change = (before[0] == 0) ? 0 : 100 * (after[0] - before[0]) / before[0];
+            boolean slower = change < -threshold;
+            boolean allocates = after[1] > before[1] * (1 + threshold / 100) + 1;
+
+            System.out.println(String.format("%-60s %,16.0f %,16.0f ops/s %+7.1f%% %,10.1f -> %,.1f B/op%s",
+                entry.getKey(), before[0], after[0], change, before[1], after[1],
+                (slower || allocates) ? "  REGRESSION" : ""));
+
+            if(slower || allocates) {
+                regressions++;
+            }
+        }
+
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%.");
+
+        return regressions == 0;
+    }
+
+    /**
+     * read reads a results file into the ops/s and B/op of every benchmark;
+     * keyed by name and number of Threads. The last result of a benchmark
+     * recorded more than once wins.
+     */
+    private static Map<String, double[]> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        if(!lines.isEmpty() && lines.get(0).startsWith(jmhHeader)) {
+            return readJmh(lines);
+        }
+
+        LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+
+        for(String line : lines) {
+            String[] fields = line.split("\t");
+            if(fields.length != 4) {
+                continue;
+            }
+
+            results.put(fields[0] + " threads=" + fields[1],
+                new double[] {Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+        }
+
+        return results;
+    }
+
+    /**
+     * jmhHeader is how the CSV results of JMH start.
+     */
+    private static final String jmhHeader = "\"Benchmark\",\"Mode\",\"Threads\"";
+
+    /**
+     * jmhAllocation is the secondary result of the gc profiler holding the
+     * allocation per operation.
+     */
+    private static final String jmhAllocation = "gc.alloc.rate.norm";
+
+    /**
+     * readJmh reads the CSV results of JMH into the score and B/op of every
+     * benchmark; keyed by name, parameters and number of Threads.
+     */
+    private static Map<String, double[]> readJmh(List<String> lines) {
+        LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+        String[] header = lines.get(0).split(",");
+
+        for(String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            if(fields.length != header.length) {
+                continue;
+            }
+
+            String name = unquote(fields[0]);
+            boolean allocation = name.endsWith(":" + jmhAllocation);
+            if(allocation) {
+                name = name.substring(0, name.lastIndexOf(':'));
+            } else if(name.indexOf(':') >= 0) {
+                // any other secondary result:
+                continue;
+            }
+
+            // Class.method, without the package:
+            int method = name.lastIndexOf('.');
+            StringBuilder key = new StringBuilder(name.substring(name.lastIndexOf('.', method - 1) + 1));
+            for(int i = 7; i < fields.length; i++) {
+                if(fields[i].isEmpty()) {
+                    continue;
+                }
+                key.append(' ').append(unquote(header[i]).substring("Param: ".length())).append('=').append(unquote(fields[i]));
+            }
+            key.append(" threads=").append(fields[2]);
+
+            double[] result = results.computeIfAbsent(key.toString(), (k) -> new double[2]);
+            result[allocation ? 1 : 0] = Double.parseDouble(fields[4]);
+        }
+
+        return results;
+    }
+
+    private static String unquote(String field) {
+        return field.startsWith("\"") ? field.substring(1, field.length() - 1) : field;
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.nio.charset.StandardCharsets;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.binary.BinaryHandler;
+import org.bajetii.messageserver.server.binary.BinaryTransport;
+import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.transport.NioHttpTransport;
+import org.bajetii.messageserver.server.transport.WorkerPools;
+
+
+/**
+ * BinaryProtocolBenchmark compares the binary protocol against HTTP (over the
+ * NioHttpTransport) for small messages over loopback.
+ * <p>
+ * Each client Thread holds a connection of either kind on which it posts a
+ * personal message and reads it back; and posts topic messages pipelined
+ * in groups. The binary protocol is also run with silent publishes followed
+ * by an ACK, and with batches.
+ */
+public class BinaryProtocolBenchmark {
+
+    /**
+     * port is the first port the benchmarked transports listen on.
+     */
+    private static final int port = 18991;
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {1, 8, 32};
+
+    /**
+     * pipelineDepth is the number of messages posted at once when pipelining.
+     */
+    private static final int pipelineDepth = 16;
+
+    /**
+     * message is the small message posted throughout.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int workers = 2 * Runtime.getRuntime().availableProcessors();
+        MessagingServer ms = new MessagingServer(30);
+
+        NioHttpTransport http = new NioHttpTransport(port, 1024, workers);
+        http.createContext("/bajetii/jmqp", new MainHandler(ms));
+        http.start();
+
+        BinaryTransport binary = new BinaryTransport(port + 1, 1024, new BinaryHandler(ms), WorkerPools.fixed(workers));
+        binary.start();
+
+        for(int threads : threadCounts) {
+            runHttp(threads);
+            runBinary(threads);
+        }
+
+        http.stop();
+        binary.stop();
+    }
+
+    /**
+     * runHttp benchmarks HTTP with the given number of client Threads.
+     */
+    private static void runHttp(int threads) throws Exception {
+        final LoopbackHttpClient[] clients = new LoopbackHttpClient[threads];
+        final byte[][] posts = new byte[threads][];
+        final byte[][] gets = new byte[threads][];
+        final byte[][] topicPosts = new byte[threads][];
+
+        for(int t = 0; t < threads; t++) {
+            clients[t] = new LoopbackHttpClient(port);
+            posts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp",
+                new String[] {"Type: Personal", "To: http-person-" + t}, message);
+            gets[t] = LoopbackHttpClient.request("GET", "/bajetii/jmqp",
+                new String[] {"Type: Personal", "To: http-person-" + t}, new byte[0]);
+            topicPosts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp",
+                new String[] {"Type: Topic", "To: http-topic-" + t, "Timeout: 1"}, message);
+        }
+
+        Harness.run("http post+get", threads, (t) -> {
+            clients[t].send(posts[t]);
+            clients[t].send(gets[t]);
+        });
+
+        Harness.run("http topic post x" + pipelineDepth + " pipelined", threads, (t) -> {
+            clients[t].pipeline(topicPosts[t], pipelineDepth);
+        });
+
+        for(LoopbackHttpClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * runBinary benchmarks the binary protocol with the given number of
+     * client Threads.
+     */
+    private static void runBinary(int threads) throws Exception {
+        final LoopbackBinaryClient[] clients = new LoopbackBinaryClient[threads];
+        final byte[] publish = LoopbackBinaryClient.publish(1, 0, 0, message);
+        final byte[] fetch = LoopbackBinaryClient.fetch(2, 0, 1);
+        final byte[] pipelined = LoopbackBinaryClient.repeat(LoopbackBinaryClient.publish(3, 1, 1, message), pipelineDepth);
+        final byte[] silent = LoopbackBinaryClient.concat(
+            LoopbackBinaryClient.repeat(LoopbackBinaryClient.publish(0, 1, 1, message), pipelineDepth),
+            LoopbackBinaryClient.ack(4));
+        final byte[] batch = LoopbackBinaryClient.batch(5, 1, 1, message, pipelineDepth);
+
+        for(int t = 0; t < threads; t++) {
+            clients[t] = new LoopbackBinaryClient(port + 1);
+            clients[t].send(LoopbackBinaryClient.concat(
+                LoopbackBinaryClient.intern(6, 0, false, "binary-person-" + t),
+                LoopbackBinaryClient.intern(7, 1, true, "binary-topic-" + t)), 2);
+        }
+
+        Harness.run("binary publish+fetch", threads, (t) -> {
+            clients[t].send(publish, 1);
+            clients[t].send(fetch, 1);
+        });
+
+        Harness.run("binary topic publish x" + pipelineDepth + " pipelined", threads, (t) -> {
+            clients[t].send(pipelined, pipelineDepth);
+        });
+
+        Harness.run("binary topic publish x" + pipelineDepth + " silent+ack", threads, (t) -> {
+            clients[t].send(silent, 1);
+        });
+
+        Harness.run("binary topic batch x" + pipelineDepth, threads, (t) -> {
+            clients[t].send(batch, 1);
+        });
+
+        for(LoopbackBinaryClient client : clients) {
+            client.close();
+        }
+    }
+
+}
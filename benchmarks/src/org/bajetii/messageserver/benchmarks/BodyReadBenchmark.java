@@ -0,0 +1,92 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.Handler;
+
+
+/**
+ * BodyReadBenchmark measures the throughput and allocation rate of reading
+ * request bodies of various sizes through Handler.readInputStream.
+ * <p>
+ * The original byte-at-a-time String concatenation is kept here for
+ * comparison; it is only run on the smaller sizes as it is quadratic.
+ */
+public class BodyReadBenchmark {
+
+    /**
+     * sizes is the list of body sizes to be benchmarked.
+     */
+    private static final int[] sizes = {1024, 64 * 1024, 1024 * 1024};
+
+    /**
+     * legacyMaxSize is the largest size the legacy reading is run for.
+     */
+    private static final int legacyMaxSize = 64 * 1024;
+
+    /**
+     * BodyReader exposes the protected reading method of the Handler.
+     */
+    private static class BodyReader extends Handler {
+
+        BodyReader() {
+            super(new MessagingServer(30));
+        }
+
+        @Override
+        public void handle(HttpExchange ex) {}
+
+        String read(InputStream is) throws IOException {
+            return this.readInputStream(is);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final BodyReader reader = new BodyReader();
+
+        for(int size : sizes) {
+            // a mix of ASCII and multi-byte UTF-8 characters:
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'a');
+            for(int i = 0; i < chars.length; i += 8) {
+                chars[i] = '\u00e9';
+            }
+            final byte[] body = Arrays.copyOf(new String(chars).getBytes(StandardCharsets.UTF_8), size);
+
+            Harness.run("readInputStream " + size + "B", 1, (t) -> {
+                reader.read(new ByteArrayInputStream(body));
+            });
+
+            if(size <= legacyMaxSize) {
+                Harness.run("legacy byte-by-byte " + size + "B", 1, (t) -> {
+                    legacyRead(new ByteArrayInputStream(body));
+                });
+            }
+        }
+    }
+
+    /**
+     * legacyRead is the original implementation of readInputStream.
+     */
+    private static String legacyRead(InputStream is) throws IOException {
+        int i;
+        String buff = "";
+
+        while((i = is.read()) != -1) {
+            buff = buff + (char) i;
+        }
+
+        is.close();
+
+        return buff;
+    }
+
+}
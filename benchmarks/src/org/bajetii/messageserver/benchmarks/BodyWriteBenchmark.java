@@ -0,0 +1,77 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.Handler;
+
+
+/**
+ * BodyWriteBenchmark measures the throughput and allocation rate of writing
+ * response bodies of various sizes through Handler.writeToOutputStream.
+ * <p>
+ * Bodies are written to an OutputStream which discards them; so that only
+ * the cost of the Handler itself is measured.
+ */
+public class BodyWriteBenchmark {
+
+    /**
+     * sizes is the list of body sizes to be benchmarked.
+     */
+    private static final int[] sizes = {64, 1024, 64 * 1024, 1024 * 1024};
+
+    /**
+     * BodyWriter exposes the protected writing method of the Handler.
+     */
+    private static class BodyWriter extends Handler {
+
+        BodyWriter() {
+            super(new MessagingServer(30));
+        }
+
+        @Override
+        public void handle(HttpExchange ex) {}
+
+        void write(OutputStream os, byte[] bytes) throws IOException {
+            this.writeToOutputStream(os, bytes);
+        }
+    }
+
+    /**
+     * NullOutputStream counts and discards whatever is written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        long written = 0;
+
+        @Override
+        public void write(int b) {
+            this.written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.written += len;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final BodyWriter writer = new BodyWriter();
+
+        for(int size : sizes) {
+            final byte[] body = new byte[size];
+            Arrays.fill(body, (byte) 'a');
+
+            final NullOutputStream out = new NullOutputStream();
+
+            Harness.run("writeToOutputStream " + size + "B", 1, (t) -> {
+                writer.write(out, body);
+            });
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.binary.BinaryHandler;
+import org.bajetii.messageserver.server.binary.BinaryTransport;
+import org.bajetii.messageserver.server.cluster.ClusterNode;
+import org.bajetii.messageserver.server.cluster.ClusteredMessagingServer;
+import org.bajetii.messageserver.server.cluster.HashRing;
+import org.bajetii.messageserver.server.cluster.PeerLink;
+import org.bajetii.messageserver.server.cluster.RoutingPolicy;
+import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.transport.NioHttpTransport;
+
+
+/**
+ * ClusterBenchmark measures the throughput of a cluster of 1, 2 and 4 nodes
+ * running on localhost; over HTTP, as clients would see it.
+ * <p>
+ * Every Thread posts to and reads from its own set of people; either through
+ * a node of its own regardless of who owns the people (most requests then
+ * being forwarded to their owner), or through the owner of every person, as
+ * clients following the 'Owner-Node' routing hints end up doing. All the
+ * nodes run within this one process; so the throughput can only grow with
+ * the number of nodes for as long as there are cores left for them.
+ */
+public class ClusterBenchmark {
+
+    /**
+     * port and clusterPort are the first ports the nodes listen on.
+     */
+    private static final int port = 19101;
+    private static final int clusterPort = 19201;
+
+    /**
+     * nodeCounts is the list of numbers of nodes.
+     */
+    private static final int[] nodeCounts = {1, 2, 4};
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {4, 16};
+
+    /**
+     * namesPerThread is the number of distinct people each Thread cycles over.
+     */
+    private static final int namesPerThread = 16;
+
+    /**
+     * message is the raw message posted throughout.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        for(int nodes : nodeCounts) {
+            run(nodes);
+        }
+    }
+
+    /**
+     * run starts a cluster of the given number of nodes and benchmarks it.
+     */
+    private static void run(int count) throws Exception {
+        StringBuilder specs = new StringBuilder();
+        for(int n = 0; n < count; n++) {
+            specs.append(n == 0 ? "" : ",").append("node-" + n + "@127.0.0.1:" + (port + n) + ":" + (clusterPort + n));
+        }
+
+        HashRing ring = new HashRing(ClusterNode.parseList(specs.toString()), HashRing.defaultVirtualNodes);
+        int workerCount = 2 * Runtime.getRuntime().availableProcessors();
+        ExecutorService[] workers = new ExecutorService[2 * count];
+        NioHttpTransport[] transports = new NioHttpTransport[count];
+        BinaryTransport[] clusterTransports = new BinaryTransport[count];
+        ClusteredMessagingServer[] servers = new ClusteredMessagingServer[count];
+
+        for(int n = 0; n < count; n++) {
+            MessagingServer local = new MessagingServer(30);
+            servers[n] = new ClusteredMessagingServer(local, ring, n, RoutingPolicy.FORWARD, PeerLink.defaultRequestTimeoutMillis);
+
+            // NOTE: the cluster ports get workers of their own; as forwarding
+            // workers wait on them:
+            workers[2 * n] = Executors.newFixedThreadPool(workerCount);
+            workers[2 * n + 1] = Executors.newFixedThreadPool(workerCount);
+
+            clusterTransports[n] = new BinaryTransport(clusterPort + n, 1024, new BinaryHandler(local), workers[2 * n + 1]);
+            clusterTransports[n].start();
+
+            transports[n] = new NioHttpTransport(port + n, 1024, workers[2 * n]);
+            transports[n].createContext("/bajetii/jmqp", new MainHandler(servers[n]));
+            transports[n].start();
+        }
+
+        for(int threads : threadCounts) {
+            final LoopbackHttpClient[][] clients = new LoopbackHttpClient[threads][count];
+            final byte[][][] posts = new byte[threads][namesPerThread][];
+            final byte[][][] gets = new byte[threads][namesPerThread][];
+            final int[][] owners = new int[threads][namesPerThread];
+
+            for(int t = 0; t < threads; t++) {
+                for(int n = 0; n < count; n++) {
+                    clients[t][n] = new LoopbackHttpClient(port + n);
+                }
+
+                for(int i = 0; i < namesPerThread; i++) {
+                    String[] headers = {"Type: Personal", "To: person-" + t + "-" + i};
+
+                    posts[t][i] = LoopbackHttpClient.request("POST", "/bajetii/jmqp", headers, message);
+                    gets[t][i] = LoopbackHttpClient.request("GET", "/bajetii/jmqp", headers, new byte[0]);
+                    owners[t][i] = ring.ownerOf("person-" + t + "-" + i);
+                }
+            }
+
+            final int[] cursors = new int[threads * 16];
+            final String label = count + (count == 1 ? " node" : " nodes");
+
+            Harness.run(label + " post+get forwarded", threads, (t) -> {
+                int i = cursors[t * 16]++ % namesPerThread;
+                LoopbackHttpClient client = clients[t][t % count];
+
+                client.send(posts[t][i]);
+                client.send(gets[t][i]);
+            });
+
+            Harness.run(label + " post+get routed", threads, (t) -> {
+                int i = cursors[t * 16]++ % namesPerThread;
+                LoopbackHttpClient client = clients[t][owners[t][i]];
+
+                client.send(posts[t][i]);
+                client.send(gets[t][i]);
+            });
+
+            for(LoopbackHttpClient[] threadClients : clients) {
+                for(LoopbackHttpClient client : threadClients) {
+                    client.close();
+                }
+            }
+        }
+
+        for(int n = 0; n < count; n++) {
+            transports[n].stop();
+            clusterTransports[n].stop();
+            servers[n].stop();
+        }
+        for(ExecutorService pool : workers) {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.TopicMessageQueue;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * ExpiryBenchmark measures the cost of sweeping a TopicMessageQueue for
+ * expired messages against the depth of the queue.
+ * <p>
+ * Three sweeps are measured at every depth:
+ *      - a cleanup which finds nothing to expire; the common case, which
+ *        should cost the same regardless of the depth.
+ *      - a linear scan over the deadlines of all the messages; which is what
+ *        cleanup used to cost every time, for reference.
+ *      - a cleanup which expires a tenth of the queue; reported per expired
+ *        message, which should only grow with the log of the depth.
+ * The queues are given a stopped TimerWheel; so that only the sweeps under
+ * measurement ever expire anything.
+ */
+public class ExpiryBenchmark {
+
+    /**
+     * depths is the list of depths of the swept queues.
+     */
+    private static final int[] depths = {1000, 10000, 100000, 1000000};
+
+    /**
+     * rounds is the number of queues the expiring cleanup is timed on.
+     */
+    private static final int rounds = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        TimerWheel timerWheel = new TimerWheel(100);
+        timerWheel.stop();
+
+        IMessage payload = new StringMessage("benchmark message");
+
+        for(int depth : depths) {
+            long later = System.currentTimeMillis() + 3600 * 1000;
+
+            final TopicMessageQueue queue = fill(timerWheel, payload, depth, 0, later);
+            Harness.run("cleanup nothing expired depth=" + depth, 1, (t) -> queue.cleanup());
+
+            final IMessage[] messages = queue.peekMessages();
+            final long[] sink = new long[1];
+            Harness.run("linear scan depth=" + depth, 1, (t) -> {
+                long now = System.currentTimeMillis();
+                long expired = 0;
+
+                for(IMessage message : messages) {
+                    if(((TopicMessage) message).getDeadline() < now) {
+                        expired++;
+                    }
+                }
+
+                sink[0] += expired;
+            });
+
+            long nanos = 0;
+            for(int round = 0; round < rounds; round++) {
+                TopicMessageQueue expiring = fill(timerWheel, payload, depth, depth / 10, later);
+
+                long start = System.nanoTime();
+                expiring.cleanup();
+                nanos += System.nanoTime() - start;
+            }
+
+            System.out.println(String.format("%-48s %,16.1f ns/expired message",
+                "cleanup 10% expired depth=" + depth, (double) nanos / rounds / (depth / 10)));
+        }
+    }
+
+    /**
+     * fill creates a queue of the given depth; the given number of messages
+     * (spread evenly throughout it) having already expired, and the rest
+     * expiring from the given moment on in ascending order.
+     */
+    private static TopicMessageQueue fill(TimerWheel timerWheel, IMessage payload, int depth, int expired, long later) {
+        TopicMessageQueue queue = new TopicMessageQueue(timerWheel);
+        int every = (expired == 0) ? Integer.MAX_VALUE : depth / expired;
+
+        for(int i = 0; i < depth; i++) {
+            long deadline = (i % every == 0) ? 1 : later + i;
+            queue.addMessage(new TopicMessage(payload, deadline));
+        }
+
+        return queue;
+    }
+
+}
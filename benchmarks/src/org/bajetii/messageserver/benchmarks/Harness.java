@@ -0,0 +1,184 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Harness is a minimal, dependency-free micro-benchmarking harness.
+ * <p>
+ * It runs a given operation in a tight loop on a number of Threads for a
+ * warmup period followed by a measurement period; and reports the resulting
+ * throughput alongside the number of bytes allocated per operation.
+ * It is nowhere near as rigorous as JMH; but requires nothing beyond the JDK
+ * and is good enough for comparing implementations against each other.
+ * <p>
+ * Setting the 'bench.results' system property to a file has every Result
+ * appended to it as a tab-separated line as well; name, Threads, ops/s and
+ * B/op, which Benchmarks compares against a baseline.
+ */
+public final class Harness {
+
+    /**
+     * warmupMillis and measureMillis are the default durations of the warmup
+     * and measurement periods; overridable through the 'bench.warmup' and
+     * 'bench.measure' system properties.
+     */
+    private static final long warmupMillis = Long.getLong("bench.warmup", 2000);
+    private static final long measureMillis = Long.getLong("bench.measure", 5000);
+
+    /**
+     * resultsFile is the file Results are appended to; if any.
+     */
+    private static final String resultsFile = System.getProperty("bench.results");
+
+    /**
+     * Operation represents a single benchmarked operation.
+     */
+    public interface Operation {
+
+        /**
+         * run performs the operation once.
+         * <p>
+         * @param   thread  the index of the Thread running the operation.
+         */
+        public void run(int thread) throws Exception;
+    }
+
+    /**
+     * Result holds the outcome of a benchmark run.
+     */
+    public static final class Result {
+
+        public final String name;
+        public final int threads;
+        public final long operations;
+        public final double opsPerSecond;
+        public final double bytesPerOp;
+
+        Result(String name, int threads, long operations, double opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.operations = operations;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s threads=%-3d %,16.0f ops/s %,12.1f B/op",
+                this.name, this.threads, this.opsPerSecond, this.bytesPerOp);
+        }
+    }
+
+    private Harness() {}
+
+    /**
+     * run runs the given Operation on the given number of Threads and prints
+     * out the Result.
+     * <p>
+     * @param   name        the name of the benchmark.
+     * @param   threads     the number of Threads running the operation.
+     * @param   operation   the benchmarked Operation.
+     * @return  Result      the measured outcome.
+     */
+    public static Result run(String name, int threads, Operation operation) throws InterruptedException {
+        final com.sun.management.ThreadMXBean mxBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        final AtomicLong operations = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        final Phase phase = new Phase();
+        Thread[] workers = new Thread[threads];
+
+        for(int t = 0; t < threads; t++) {
+            final int index = t;
+
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                long bytesBefore = 0;
+                boolean measuring = false;
+
+                started.countDown();
+                try {
+                    while(phase.value != Phase.finished) {
+                        if(!measuring && phase.value == Phase.measuring) {
+                            measuring = true;
+                            bytesBefore = mxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                        }
+
+                        operation.run(index);
+
+                        if(measuring) {
+                            count++;
+                        }
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+
+                operations.addAndGet(count);
+                allocated.addAndGet(mxBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore);
+                done.countDown();
+            }, "bench-" + name + "-" + t);
+
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        started.await();
+        Thread.sleep(warmupMillis);
+
+        phase.value = Phase.measuring;
+        long start = System.nanoTime();
+        Thread.sleep(measureMillis);
+        phase.value = Phase.finished;
+        long elapsed = System.nanoTime() - start;
+
+        done.await();
+
+        long ops = operations.get();
+        Result result = new Result(name, threads, ops,
+            ops * 1e9 / elapsed, (ops == 0) ? 0 : (double) allocated.get() / ops);
+
+        System.out.println(result);
+        record(result);
+
+        return result;
+    }
+
+    /**
+     * record appends the given Result to the results file; if one is set.
+     */
+    private static void record(Result result) {
+        if(resultsFile == null) {
+            return;
+        }
+
+        try(Writer out = new FileWriter(resultsFile, true)) {
+            out.write(result.name + "\t" + result.threads + "\t" + result.opsPerSecond + "\t" + result.bytesPerOp + "\n");
+        } catch(IOException e) {
+            throw new IllegalStateException("Could not record the result to " + resultsFile + ".", e);
+        }
+    }
+
+    /**
+     * Phase is the volatile marker of the phase a benchmark run is in.
+     */
+    private static final class Phase {
+        static final int warmup = 0;
+        static final int measuring = 1;
+        static final int finished = 2;
+
+        volatile int value = warmup;
+    }
+
+}
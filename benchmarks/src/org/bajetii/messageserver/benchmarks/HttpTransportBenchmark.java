@@ -0,0 +1,104 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.nio.charset.StandardCharsets;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.transport.ITransport;
+import org.bajetii.messageserver.server.transport.JdkHttpTransport;
+import org.bajetii.messageserver.server.transport.NioHttpTransport;
+
+
+/**
+ * HttpTransportBenchmark compares the request throughput of the JDK's
+ * HttpServer against the NioHttpTransport over loopback.
+ * <p>
+ * Each client Thread holds a keep-alive connection on which it posts a
+ * personal message and reads it back; and, for the pipelined runs, sends
+ * a number of requests at once before reading any of the responses.
+ * <p>
+ * The batch runs post a personal queue's worth of large messages, and read
+ * them back with a single query for all of them; so that the bodies
+ * dominate the cost.
+ */
+public class HttpTransportBenchmark {
+
+    /**
+     * port is the first port the benchmarked transports listen on.
+     */
+    private static final int port = 18989;
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {1, 8, 32};
+
+    /**
+     * pipelineDepth is the number of requests sent at once when pipelining.
+     */
+    private static final int pipelineDepth = 16;
+
+    /**
+     * largeMessageBytes is the size of the messages of the batch runs; with
+     * batchMessages being their number.
+     */
+    private static final int largeMessageBytes = 16 * 1024;
+    private static final int batchMessages = MessagingServer.defaultPersonalCapacity;
+
+    public static void main(String[] args) throws Exception {
+        int workers = 2 * Runtime.getRuntime().availableProcessors();
+
+        run("jdk", new JdkHttpTransport(port, 1024, workers), port);
+        run("nio", new NioHttpTransport(port + 1, 1024, workers), port + 1);
+    }
+
+    /**
+     * run starts the given transport and benchmarks it.
+     */
+    private static void run(String name, ITransport transport, int port) throws Exception {
+        transport.createContext("/bajetii/jmqp", new MainHandler(new MessagingServer(30)));
+        transport.start();
+
+        for(int threads : threadCounts) {
+            final LoopbackHttpClient[] clients = new LoopbackHttpClient[threads];
+            final byte[][] posts = new byte[threads][];
+            final byte[][] gets = new byte[threads][];
+            final byte[][] largePosts = new byte[threads][];
+            final byte[][] batchGets = new byte[threads][];
+
+            for(int t = 0; t < threads; t++) {
+                clients[t] = new LoopbackHttpClient(port);
+                posts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: person-" + t}, "benchmark message".getBytes(StandardCharsets.UTF_8));
+                gets[t] = LoopbackHttpClient.request("GET", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: person-" + t}, new byte[0]);
+                largePosts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: batch-" + t}, new byte[largeMessageBytes]);
+                batchGets[t] = LoopbackHttpClient.request("GET", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: batch-" + t, "Max-Messages: " + batchMessages}, new byte[0]);
+            }
+
+            Harness.run(name + " post+get", threads, (t) -> {
+                clients[t].send(posts[t]);
+                clients[t].send(gets[t]);
+            });
+
+            Harness.run(name + " get x" + pipelineDepth + " pipelined", threads, (t) -> {
+                clients[t].pipeline(gets[t], pipelineDepth);
+            });
+
+            Harness.run(name + " batch x" + batchMessages + " " + (largeMessageBytes / 1024) + "KiB", threads, (t) -> {
+                clients[t].pipeline(largePosts[t], batchMessages);
+                clients[t].send(batchGets[t]);
+            });
+
+            for(LoopbackHttpClient client : clients) {
+                client.close();
+            }
+        }
+
+        transport.stop();
+    }
+
+}
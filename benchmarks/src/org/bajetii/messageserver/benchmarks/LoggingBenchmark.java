@@ -0,0 +1,97 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.logging.AsyncAppender;
+import org.bajetii.messageserver.server.logging.ConsoleAppender;
+import org.bajetii.messageserver.server.logging.ILogAppender;
+import org.bajetii.messageserver.server.logging.Level;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.transport.NioHttpTransport;
+
+
+/**
+ * LoggingBenchmark measures what logging costs the request path.
+ * <p>
+ * The same server is benchmarked over loopback, as in HttpTransportBenchmark,
+ * whilst logging the way it used to (every event and payload written out
+ * synchronously on the handling Thread), with the same events handed over
+ * to an AsyncAppender instead, and at the default INFO Level. Events are
+ * written out to /dev/null; so that the console itself is left out.
+ * <p>
+ * The cost of a disabled log call, which should not allocate, is measured on
+ * its own.
+ */
+public class LoggingBenchmark {
+
+    /**
+     * port is the port the benchmarked server listens on.
+     */
+    private static final int port = 18999;
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {1, 8};
+
+    public static void main(String[] args) throws Exception {
+        PrintStream devNull = new PrintStream(new FileOutputStream("/dev/null"), false);
+
+        Logger.setLevel(Level.INFO);
+        final Logger logger = Logger.getLogger(LoggingBenchmark.class);
+        Harness.run("disabled trace with 2 fields", 1, (t) -> logger.trace("Benchmark.", "to", "person", "bytes", t));
+
+        NioHttpTransport transport = new NioHttpTransport(port, 1024, 2 * Runtime.getRuntime().availableProcessors());
+        transport.createContext("/bajetii/jmqp", new MainHandler(new MessagingServer(30)));
+        transport.start();
+
+        run("sync trace+payloads", new ConsoleAppender(devNull), Level.TRACE, true);
+        run("async trace+payloads", new AsyncAppender(devNull, 8192), Level.TRACE, true);
+        run("async info", new AsyncAppender(devNull, 8192), Level.INFO, false);
+
+        transport.stop();
+    }
+
+    /**
+     * run benchmarks the server logging through the given appender, at the
+     * given Level.
+     */
+    private static void run(String name, ILogAppender appender, Level level, boolean payloads) throws Exception {
+        Logger.setAppender(appender).close();
+        Logger.setLevel(level);
+        Logger.setPayloadLogging(payloads);
+
+        for(int threads : threadCounts) {
+            final LoopbackHttpClient[] clients = new LoopbackHttpClient[threads];
+            final byte[][] posts = new byte[threads][];
+            final byte[][] gets = new byte[threads][];
+
+            for(int t = 0; t < threads; t++) {
+                clients[t] = new LoopbackHttpClient(port);
+                posts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: person-" + t}, "benchmark message".getBytes(StandardCharsets.UTF_8));
+                gets[t] = LoopbackHttpClient.request("GET", "/bajetii/jmqp",
+                    new String[] {"Type: Personal", "To: person-" + t}, new byte[0]);
+            }
+
+            Harness.run(name + " post+get", threads, (t) -> {
+                clients[t].send(posts[t]);
+                clients[t].send(gets[t]);
+            });
+
+            for(LoopbackHttpClient client : clients) {
+                client.close();
+            }
+        }
+
+        if(appender instanceof AsyncAppender) {
+            System.out.println(String.format("%-48s %,d events dropped", name, ((AsyncAppender) appender).getDroppedCount()));
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bajetii.messageserver.server.binary.BinaryProtocol;
+
+
+/**
+ * LoopbackBinaryClient is a bare-bones blocking client of the binary protocol
+ * used for driving the server in benchmarks; the counterpart of the
+ * LoopbackHttpClient.
+ * <p>
+ * It writes pre-serialized frames as-is and skips over the responses; only
+ * reading their status.
+ */
+public class LoopbackBinaryClient implements AutoCloseable {
+
+    /**
+     * socket is the client's connection; with in and out being its streams.
+     */
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    /**
+     * A LoopbackBinaryClient is created provided the port on localhost it
+     * should connect to.
+     */
+    public LoopbackBinaryClient(int port) throws IOException {
+        this.socket = new Socket("127.0.0.1", port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 65536));
+        this.out = this.socket.getOutputStream();
+    }
+
+    /**
+     * intern serializes an INTERN of the given destination.
+     */
+    public static byte[] intern(int requestId, int id, boolean topic, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        return frame(BinaryProtocol.internOpcode, requestId, 4 + 1 + 2 + bytes.length)
+            .putInt(id)
+            .put(topic ? BinaryProtocol.topicType : BinaryProtocol.personalType)
+            .putShort((short) bytes.length)
+            .put(bytes)
+            .array();
+    }
+
+    /**
+     * publish serializes a PUBLISH of the given message.
+     */
+    public static byte[] publish(int requestId, int id, int timeout, byte[] message) {
+        return frame(BinaryProtocol.publishOpcode, requestId, 8 + message.length)
+            .putInt(id)
+            .putInt(timeout)
+            .put(message)
+            .array();
+    }
+
+    /**
+     * batch serializes a BATCH of the given message repeated the given number
+     * of times.
+     */
+    public static byte[] batch(int requestId, int id, int timeout, byte[] message, int count) {
+        ByteBuffer frame = frame(BinaryProtocol.batchOpcode, requestId, 4 + count * (12 + message.length)).putInt(count);
+
+        for(int i = 0; i < count; i++) {
+            frame.putInt(id).putInt(timeout).putInt(message.length).put(message);
+        }
+
+        return frame.array();
+    }
+
+    /**
+     * fetch serializes a FETCH of at most the given number of messages.
+     */
+    public static byte[] fetch(int requestId, int id, int maxMessages) {
+        return frame(BinaryProtocol.fetchOpcode, requestId, 12)
+            .putInt(id)
+            .putInt(maxMessages)
+            .putInt(0)
+            .array();
+    }
+
+    /**
+     * ack serializes an ACK.
+     */
+    public static byte[] ack(int requestId) {
+        return frame(BinaryProtocol.ackOpcode, requestId, 0).array();
+    }
+
+    /**
+     * send writes the given serialized frames and reads back the given number
+     * of responses.
+     * <p>
+     * @return  int the status of the last response.
+     */
+    public int send(byte[] frames, int responses) throws IOException {
+        this.out.write(frames);
+        this.out.flush();
+
+        int status = 0;
+        for(int i = 0; i < responses; i++) {
+            status = this.readResponse();
+        }
+
+        return status;
+    }
+
+    /**
+     * readResponse reads a single response frame.
+     * <p>
+     * @return  int the status of the response.
+     */
+    public int readResponse() throws IOException {
+        int length = this.in.readInt();
+        this.in.skipNBytes(5);
+        int status = this.in.readByte();
+        this.in.skipNBytes(length - 6);
+
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    /**
+     * repeat returns the given frames repeated the given number of times.
+     */
+    public static byte[] repeat(byte[] frames, int times) {
+        byte[] repeated = new byte[frames.length * times];
+        for(int i = 0; i < times; i++) {
+            System.arraycopy(frames, 0, repeated, i * frames.length, frames.length);
+        }
+
+        return repeated;
+    }
+
+    /**
+     * concat returns the given frames back to back.
+     */
+    public static byte[] concat(byte[]... frames) {
+        int length = 0;
+        for(byte[] frame : frames) {
+            length += frame.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for(byte[] frame : frames) {
+            buffer.put(frame);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * frame allocates a frame of the given body length; its header written.
+     */
+    private static ByteBuffer frame(byte opcode, int requestId, int bodyLength) {
+        ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.requestHeaderBytes + bodyLength);
+        frame.putInt(frame.capacity() - BinaryProtocol.lengthBytes).put(opcode).putInt(requestId);
+
+        return frame;
+    }
+
+}
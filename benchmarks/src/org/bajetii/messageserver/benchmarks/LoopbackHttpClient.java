@@ -0,0 +1,154 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * LoopbackHttpClient is a bare-bones blocking keep-alive HTTP/1.1 client used
+ * for driving the server in benchmarks.
+ * <p>
+ * It writes pre-serialized requests as-is and only parses as much of the
+ * responses as is needed for skipping over them; so that the client side
+ * accounts for as little of the measured time as possible.
+ */
+public class LoopbackHttpClient implements AutoCloseable {
+
+    /**
+     * socket is the client's connection; with in and out being its streams.
+     */
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * A LoopbackHttpClient is created provided the port on localhost it
+     * should connect to.
+     */
+    public LoopbackHttpClient(int port) throws IOException {
+        this.socket = new Socket("127.0.0.1", port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(this.socket.getInputStream(), 65536);
+        this.out = this.socket.getOutputStream();
+    }
+
+    /**
+     * request serializes a request with the given method, path, headers and
+     * body; for use with send().
+     * <p>
+     * @param   headers the header lines; each as "Name: value".
+     */
+    public static byte[] request(String method, String path, String[] headers, byte[] body) {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: localhost\r\n");
+
+        for(String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+
+        return request;
+    }
+
+    /**
+     * send writes the given serialized request and reads back the response.
+     * <p>
+     * @return  int the status code of the response.
+     */
+    public int send(byte[] request) throws IOException {
+        this.out.write(request);
+        this.out.flush();
+
+        return this.readResponse();
+    }
+
+    /**
+     * pipeline writes the given serialized request the given number of times
+     * in one go and then reads back all of the responses.
+     * <p>
+     * @return  int the status code of the last response.
+     */
+    public int pipeline(byte[] request, int depth) throws IOException {
+        byte[] batch = new byte[request.length * depth];
+        for(int i = 0; i < depth; i++) {
+            System.arraycopy(request, 0, batch, i * request.length, request.length);
+        }
+
+        this.out.write(batch);
+        this.out.flush();
+
+        int status = 0;
+        for(int i = 0; i < depth; i++) {
+            status = this.readResponse();
+        }
+
+        return status;
+    }
+
+    /**
+     * readResponse reads a single Content-Length delimited response.
+     * <p>
+     * @return  int the status code of the response.
+     */
+    public int readResponse() throws IOException {
+        String statusLine = this.readLine();
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long length = 0;
+
+        String line;
+        while(!(line = this.readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if(line.substring(0, colon).equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(line.substring(colon + 1).trim());
+            }
+        }
+
+        while(length > 0) {
+            long skipped = this.in.skip(length);
+            if(skipped <= 0) {
+                if(this.in.read() < 0) {
+                    throw new IOException("Connection closed mid-response.");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    /**
+     * readLine reads a single CRLF terminated line.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while((c = this.in.read()) != '\n') {
+            if(c < 0) {
+                throw new IOException("Connection closed mid-response.");
+            }
+            if(c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.toString();
+    }
+
+}
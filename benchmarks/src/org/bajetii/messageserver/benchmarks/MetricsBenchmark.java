@@ -0,0 +1,42 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.LatencyHistogram;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+
+
+/**
+ * MetricsBenchmark measures the cost of updating the metrics on the hot path;
+ * against a plain AtomicLong, for reference.
+ * <p>
+ * All the Threads update the very same metrics; which is the worst case for
+ * contention. None of the updates should allocate.
+ */
+public class MetricsBenchmark {
+
+    /**
+     * threadCounts is the list of numbers of Threads to be benchmarked.
+     */
+    private static final int[] threadCounts = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws InterruptedException {
+        MetricsRegistry registry = new MetricsRegistry();
+        final Counter counter = registry.counter("bench_total", "Benchmark counter.");
+        final LatencyHistogram histogram = registry.histogram("bench_seconds", "Benchmark histogram.");
+        final AtomicLong atomic = new AtomicLong();
+
+        for(int threads : threadCounts) {
+            Harness.run("AtomicLong increment", threads, (t) -> atomic.incrementAndGet());
+            Harness.run("Counter increment", threads, (t) -> counter.increment());
+            Harness.run("LatencyHistogram record", threads, (t) -> histogram.record(System.nanoTime() & 0xfffff));
+        }
+
+        long start = System.nanoTime();
+        String scraped = registry.scrape();
+        System.out.println(String.format("%-48s %,16d ns (%d bytes)", "scrape", System.nanoTime() - start, scraped.length()));
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+import org.bajetii.messageserver.server.queues.PersonalMessageQueue;
+import org.bajetii.messageserver.server.queues.RingBufferMessageQueue;
+import org.bajetii.messageserver.server.queues.TopicMessageQueue;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * QueueBenchmark compares the ArrayList-based PersonalMessageQueue against the
+ * lock-free RingBufferMessageQueue.
+ * <p>
+ * Every operation adds a message to a shared queue and pops one back out; the
+ * queues are pre-filled to a given depth beforehand, so the cost of popping
+ * off the head of a deep queue is accounted for as well.
+ * <p>
+ * The TopicMessageQueue is benchmarked alongside; every Thread posting a
+ * message and reading the next one past its own subscriber cursor. Its
+ * messages live for topicLifeMillis, so that the queue stays at a steady
+ * depth.
+ */
+public class QueueBenchmark {
+
+    /**
+     * depths is the list of depths the queues are pre-filled to.
+     */
+    private static final int[] depths = {0, 1000};
+
+    /**
+     * threadCounts is the list of numbers of Threads to be benchmarked.
+     */
+    private static final int[] threadCounts = {1, 2, 4, 8};
+
+    /**
+     * topicLifeMillis is how long the messages of the topic queue live for.
+     */
+    private static final long topicLifeMillis = 100;
+
+    /**
+     * QueueFactory creates fresh queues of the given capacity.
+     */
+    private interface QueueFactory {
+        public IMessageQueue create(int capacity);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        for(int depth : depths) {
+            for(int threads : threadCounts) {
+                run("PersonalMessageQueue depth=" + depth, threads, depth, (c) -> new PersonalMessageQueue(c));
+                run("RingBufferMessageQueue depth=" + depth, threads, depth, (c) -> new RingBufferMessageQueue(c));
+            }
+        }
+
+        TimerWheel timerWheel = new TimerWheel(10);
+        for(int threads : threadCounts) {
+            runTopic(threads, timerWheel);
+        }
+        timerWheel.stop();
+    }
+
+    /**
+     * run benchmarks add/get pairs on a freshly created and pre-filled queue.
+     */
+    private static void run(String name, int threads, int depth, QueueFactory factory) throws InterruptedException {
+        final IMessageQueue queue = factory.create(depth + threads + 1);
+        final IMessage message = new StringMessage("benchmark message");
+
+        for(int i = 0; i < depth; i++) {
+            queue.addMessage(message);
+        }
+
+        Harness.run(name, threads, (t) -> {
+            queue.addMessage(message);
+            queue.getMessage();
+        });
+    }
+
+    /**
+     * runTopic benchmarks post/read pairs on a fresh TopicMessageQueue.
+     */
+    private static void runTopic(int threads, TimerWheel timerWheel) throws InterruptedException {
+        final TopicMessageQueue queue = new TopicMessageQueue(timerWheel);
+        final IMessage payload = new StringMessage("benchmark message");
+        final String[] subscribers = new String[threads];
+
+        for(int t = 0; t < threads; t++) {
+            subscribers[t] = "subscriber-" + t;
+        }
+
+        Harness.run("TopicMessageQueue post+read", threads, (t) -> {
+            queue.addMessage(new TopicMessage(payload, System.currentTimeMillis() + topicLifeMillis));
+            queue.getMessages(subscribers[t], 1);
+        });
+    }
+
+}
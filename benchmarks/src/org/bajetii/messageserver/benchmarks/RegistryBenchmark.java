@@ -0,0 +1,88 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.nio.charset.StandardCharsets;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+
+
+/**
+ * RegistryBenchmark measures the MessagingServer's queue registry under a
+ * mixed per-user workload.
+ * <p>
+ * Every Thread posts to and reads from its own set of people and topics; so
+ * that any loss of throughput as Threads are added stems from contention on
+ * the registry itself rather than on the queues. People are addressed both
+ * by name and by their interned id.
+ */
+public class RegistryBenchmark {
+
+    /**
+     * threadCounts is the list of numbers of Threads to be benchmarked.
+     */
+    private static final int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+
+    /**
+     * namesPerThread is the number of distinct people each Thread cycles over.
+     */
+    private static final int namesPerThread = 64;
+
+    /**
+     * message is the raw message posted when comparing names against ids.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws InterruptedException {
+        for(int threads : threadCounts) {
+            final MessagingServer ms = new MessagingServer(30);
+            final String[][] names = new String[threads][namesPerThread];
+            final String[][] topics = new String[threads][namesPerThread];
+            final int[][] ids = new int[threads][namesPerThread];
+
+            for(int t = 0; t < threads; t++) {
+                for(int n = 0; n < namesPerThread; n++) {
+                    names[t][n] = "person-" + t + "-" + n;
+                    topics[t][n] = "topic-" + t + "-" + n;
+                    ids[t][n] = ms.resolvePersonal(names[t][n]);
+                }
+            }
+
+            final int[] cursors = new int[threads * 16];
+
+            Harness.run("MessagingServer personal add/get", threads, (t) -> {
+                int cursor = cursors[t * 16]++;
+                String name = names[t][cursor % namesPerThread];
+
+                ms.addPersonalMessage(name, "benchmark message");
+                ms.getPersonalMessage(name);
+            });
+
+            Harness.run("MessagingServer personal raw add/get by name", threads, (t) -> {
+                int cursor = cursors[t * 16]++;
+                // a fresh String; as if parsed off a request:
+                String name = new String(names[t][cursor % namesPerThread]);
+
+                ms.addPersonalMessage(name, new ByteBufferMessage(message));
+                ms.getRawPersonalMessages(name, 1);
+            });
+
+            Harness.run("MessagingServer personal raw add/get by id", threads, (t) -> {
+                int cursor = cursors[t * 16]++;
+                int id = ids[t][cursor % namesPerThread];
+
+                ms.addPersonalMessage(id, new ByteBufferMessage(message));
+                ms.getRawPersonalMessages(id, 1);
+            });
+
+            Harness.run("MessagingServer topic add/get", threads, (t) -> {
+                int cursor = cursors[t * 16]++;
+                String name = topics[t][cursor % namesPerThread];
+
+                ms.addTopicMessage(name, "benchmark message", 1);
+                ms.getTopicMessage(name);
+            });
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.util.Arrays;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.replication.ReplicationFollower;
+import org.bajetii.messageserver.server.replication.ReplicationLog;
+import org.bajetii.messageserver.server.replication.ReplicationMode;
+import org.bajetii.messageserver.server.replication.ReplicationServer;
+
+
+/**
+ * ReplicationBenchmark measures the throughput of a leader replicated to 0,
+ * 1 and 2 followers; both asynchronously and semi-synchronously.
+ * <p>
+ * Every operation posts a personal message straight to the leader's
+ * MessagingServer and pops it back; appending two records to its
+ * ReplicationLog. The followers run within this one process, over
+ * localhost; the lag they are left with once the run is over, and the time
+ * they take to catch up, are printed alongside the throughput. Asynchronous
+ * followers sharing the leader's cores may well fall behind its backlog; and
+ * get sent snapshots to catch up.
+ */
+public class ReplicationBenchmark {
+
+    /**
+     * port is the port the leader serves the followers on.
+     */
+    private static final int port = 19501;
+
+    /**
+     * payloadBytes is the size of the posted messages.
+     */
+    private static final int payloadBytes = 128;
+
+    /**
+     * followerCounts is the list of numbers of followers.
+     */
+    private static final int[] followerCounts = {0, 1, 2};
+
+    /**
+     * threadCounts is the list of numbers of Threads to be benchmarked.
+     */
+    private static final int[] threadCounts = {1, 4};
+
+    public static void main(String[] args) throws Exception {
+        byte[] bytes = new byte[payloadBytes];
+        Arrays.fill(bytes, (byte) 'x');
+        final IMessage message = new ByteBufferMessage(bytes);
+
+        for(ReplicationMode mode : ReplicationMode.values()) {
+            for(int followers : followerCounts) {
+                for(int threads : threadCounts) {
+                    run(mode, followers, threads, message);
+                }
+            }
+        }
+    }
+
+    /**
+     * run benchmarks posting to and popping off a fresh leader; replicated to
+     * the given number of followers.
+     */
+    private static void run(ReplicationMode mode, int count, int threads, IMessage message) throws Exception {
+        MessagingServer leader = new MessagingServer(30, new QueueCapacities(1024), MessagingServer.defaultTimerWheelTickMillis);
+        ReplicationLog log = new ReplicationLog(ReplicationLog.defaultBacklogRecords, mode,
+            ReplicationLog.defaultSemiSyncTimeoutMillis, leader.getMetrics());
+        leader.replicate(log);
+
+        ReplicationServer server = new ReplicationServer(port, leader, log, 0);
+        server.start();
+
+        ReplicationFollower[] followers = new ReplicationFollower[count];
+        for(int i = 0; i < count; i++) {
+            followers[i] = new ReplicationFollower("127.0.0.1", port, "bench-" + i, new MessagingServer(30));
+            followers[i].start();
+        }
+        for(ReplicationFollower follower : followers) {
+            while(follower.getNextSequence() == 0) {
+                Thread.sleep(10);
+            }
+        }
+
+        final String[] people = new String[threads];
+        for(int t = 0; t < threads; t++) {
+            people[t] = "person-" + t;
+        }
+
+        String label = "Replication " + mode + " " + count + (count == 1 ? " follower" : " followers");
+        Harness.run(label, threads, (t) -> {
+            leader.addPersonalMessage(people[t], message);
+            leader.getRawPersonalMessages(people[t], 1);
+        });
+
+        long head = log.getNextSequence();
+        long start = System.nanoTime();
+        long lag = 0;
+        for(ReplicationFollower follower : followers) {
+            lag = Math.max(lag, head - follower.getNextSequence());
+            while(follower.getNextSequence() < head) {
+                Thread.sleep(1);
+            }
+        }
+
+        if(count > 0) {
+            System.out.println(String.format("    %,d records; followers lagging by up to %,d records, caught up in %.1f ms",
+                head - 1, lag, (System.nanoTime() - start) / 1e6));
+        }
+
+        server.stop();
+        for(ReplicationFollower follower : followers) {
+            follower.stop();
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bajetii.messageserver.server.replication.ReplicationMode;
+
+
+/**
+ * ReplicationProcessBenchmark measures the throughput of a leader replicated
+ * to 0, 1 and 2 followers; with the leader and every follower running as a
+ * JVM of its own on localhost, as they would be deployed.
+ * <p>
+ * Each node is started as 'Main' on the classpath of this process, and
+ * configured by the 'jmqp.replication.*' system properties only. Every client
+ * Thread posts personal messages to the leader over HTTP and reads them back.
+ * Once the run is over, the lag of every follower and the time it takes to
+ * catch up are read off the nodes' metrics; as an operator would. Unlike
+ * ReplicationBenchmark, the followers then neither share the leader's heap
+ * nor its garbage collector; though they still share its cores.
+ */
+public class ReplicationProcessBenchmark {
+
+    /**
+     * port and replicationPort are the ports the leader listens on; the
+     * followers serving HTTP on the ports right after port.
+     */
+    private static final int port = 19401;
+    private static final int replicationPort = 19501;
+
+    /**
+     * followerCounts is the list of numbers of followers.
+     */
+    private static final int[] followerCounts = {0, 1, 2};
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {4};
+
+    /**
+     * startupMillis is how long the nodes are given to start up and connect.
+     */
+    private static final long startupMillis = 30000;
+
+    /**
+     * message is the raw message posted throughout.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * http is the client scraping the metrics of the nodes.
+     */
+    private static final HttpClient http = HttpClient.newHttpClient();
+
+    public static void main(String[] args) throws Exception {
+        for(ReplicationMode mode : ReplicationMode.values()) {
+            for(int followers : followerCounts) {
+                run(mode, followers);
+            }
+        }
+    }
+
+    /**
+     * run starts a leader and the given number of followers as processes of
+     * their own and benchmarks them.
+     */
+    private static void run(ReplicationMode mode, int count) throws Exception {
+        List<Process> processes = new ArrayList<>();
+
+        try {
+            processes.add(start(
+                "-Djmqp.port=" + port,
+                "-Djmqp.replication.port=" + replicationPort,
+                "-Djmqp.replication.mode=" + mode));
+            for(int i = 0; i < count; i++) {
+                processes.add(start(
+                    "-Djmqp.port=" + (port + 1 + i),
+                    "-Djmqp.replication.leader=127.0.0.1:" + replicationPort,
+                    "-Djmqp.replication.name=bench-" + i));
+            }
+
+            await(port, "jmqp_replication_records", 0);
+            for(int i = 0; i < count; i++) {
+                await(port + 1 + i, "jmqp_replication_connected", 1);
+            }
+
+            for(int threads : threadCounts) {
+                benchmark(mode, count, threads);
+            }
+        } finally {
+            for(Process process : processes) {
+                process.destroy();
+            }
+            for(Process process : processes) {
+                process.waitFor();
+            }
+        }
+    }
+
+    /**
+     * benchmark drives the running leader from the given number of Threads
+     * and then waits for its followers to catch up.
+     */
+    private static void benchmark(ReplicationMode mode, int count, int threads) throws Exception {
+        final LoopbackHttpClient[] clients = new LoopbackHttpClient[threads];
+        final byte[][] posts = new byte[threads][];
+        final byte[][] gets = new byte[threads][];
+
+        for(int t = 0; t < threads; t++) {
+            String[] headers = {"Type: Personal", "To: person-" + t};
+
+            clients[t] = new LoopbackHttpClient(port);
+            posts[t] = LoopbackHttpClient.request("POST", "/bajetii/jmqp", headers, message);
+            gets[t] = LoopbackHttpClient.request("GET", "/bajetii/jmqp", headers, new byte[0]);
+        }
+
+        String label = "Replication processes " + mode + " " + count + (count == 1 ? " follower" : " followers");
+        Harness.run(label, threads, (t) -> {
+            clients[t].send(posts[t]);
+            clients[t].send(gets[t]);
+        });
+
+        for(LoopbackHttpClient client : clients) {
+            client.close();
+        }
+
+        long head = (long) scrape(port, "jmqp_replication_records");
+        long start = System.nanoTime();
+        long lag = 0;
+        for(int i = 0; i < count; i++) {
+            lag = Math.max(lag, head + 1 - (long) scrape(port + 1 + i, "jmqp_replication_applied_sequence"));
+            await(port + 1 + i, "jmqp_replication_applied_sequence", head + 1);
+        }
+
+        if(count > 0) {
+            System.out.println(String.format("    %,d records; followers lagging by up to %,d records, caught up in %.1f ms",
+                head, lag, (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    /**
+     * start starts a node running 'Main' with the given system properties.
+     */
+    private static Process start(String... properties) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Djmqp.log.level=WARN");
+        command.addAll(Arrays.asList(properties));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("org.bajetii.messageserver.Main");
+
+        return new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    /**
+     * await waits for the given metric of the node on the given port to reach
+     * at least the given value.
+     * <p>
+     * @throws  IllegalStateException   if it did not within startupMillis.
+     */
+    private static void await(int port, String metric, double value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + startupMillis;
+
+        while(scrape(port, metric) < value) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The node on port " + port + " did not report " + metric + " >= " + value + ".");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * scrape returns the value of the given unlabelled metric of the node on
+     * the given port.
+     * <p>
+     * @return  double  the value; or -1 if the node is not up or lacks it.
+     */
+    private static double scrape(int port, String metric) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(
+            URI.create("http://127.0.0.1:" + port + "/bajetii/jmqp/admin/metrics")).build();
+
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+
+            for(String line : response.body().split("\n")) {
+                if(line.startsWith(metric + " ")) {
+                    return Double.parseDouble(line.substring(metric.length() + 1).trim());
+                }
+            }
+        } catch(IOException e) {
+            // not up yet:
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.shards.ShardedMessagingServer;
+import org.bajetii.messageserver.server.storage.FsyncPolicy;
+import org.bajetii.messageserver.server.storage.WriteAheadLog;
+
+
+/**
+ * ShardBenchmark measures how the throughput of the ShardedMessagingServer
+ * grows with its number of Shards; against a single, unsharded,
+ * MessagingServer.
+ * <p>
+ * Every Thread posts to and reads from its own set of people; and publishes
+ * batches of topic messages spread across many topics. As every Shard is run
+ * by a Thread of its own, the throughput can only grow for as long as there
+ * are cores left for the Shards on top of those of the client Threads.
+ * <p>
+ * Setting 'bench.wal' to an FsyncPolicy (e.g. 'always') makes every server
+ * durable; each Shard logging to a fresh directory under 'bench.walDir' (by
+ * default, the temporary directory).
+ */
+public class ShardBenchmark {
+
+    /**
+     * shardCounts is the list of numbers of Shards; 0 standing for the
+     * unsharded MessagingServer.
+     */
+    private static final int[] shardCounts = {0, 1, 2, 4, 8};
+
+    /**
+     * threadCounts is the list of numbers of client Threads.
+     */
+    private static final int[] threadCounts = {1, 4, 16};
+
+    /**
+     * namesPerThread is the number of distinct people each Thread cycles over.
+     */
+    private static final int namesPerThread = 64;
+
+    /**
+     * batchSize is the number of topic messages published at once.
+     */
+    private static final int batchSize = 32;
+
+    /**
+     * message is the raw message posted throughout.
+     */
+    private static final byte[] message = "benchmark message".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        for(int shards : shardCounts) {
+            for(int threads : threadCounts) {
+                run(shards, threads);
+            }
+        }
+    }
+
+    /**
+     * run benchmarks a server of the given number of Shards with the given
+     * number of client Threads.
+     */
+    private static void run(int shards, int threads) throws InterruptedException, IOException {
+        String wal = System.getProperty("bench.wal");
+        FsyncPolicy policy = (wal == null) ? null : FsyncPolicy.valueOf(wal.toUpperCase());
+
+        File[] directories = new File[Math.max(shards, 1)];
+        MessagingServer[] servers = create(policy, directories);
+        final IMessagingServer ms = (shards == 0) ? servers[0] : new ShardedMessagingServer(servers);
+        final String label = ((shards == 0) ? "unsharded" : shards + " shards") + ((wal == null) ? "" : " wal=" + wal);
+
+        final String[][] names = new String[threads][namesPerThread];
+        final String[][] topics = new String[threads][batchSize];
+        final int[] timeouts = new int[batchSize];
+
+        for(int t = 0; t < threads; t++) {
+            for(int n = 0; n < namesPerThread; n++) {
+                names[t][n] = "person-" + t + "-" + n;
+                ms.resolvePersonal(names[t][n]);
+            }
+            for(int n = 0; n < batchSize; n++) {
+                topics[t][n] = "topic-" + t + "-" + n;
+            }
+        }
+        for(int n = 0; n < batchSize; n++) {
+            timeouts[n] = 1;
+        }
+
+        final int[] cursors = new int[threads * 16];
+
+        Harness.run(label + " personal add/get", threads, (t) -> {
+            int cursor = cursors[t * 16]++;
+            String name = names[t][cursor % namesPerThread];
+
+            ms.addPersonalMessage(name, new ByteBufferMessage(message));
+            ms.getRawPersonalMessages(name, 1);
+        });
+
+        Harness.run(label + " topic batch x" + batchSize, threads, (t) -> {
+            IMessage[] messages = new IMessage[batchSize];
+            for(int i = 0; i < batchSize; i++) {
+                messages[i] = new ByteBufferMessage(message);
+            }
+
+            ms.addTopicMessages(topics[t], messages, timeouts);
+        });
+
+        if(ms instanceof ShardedMessagingServer) {
+            ((ShardedMessagingServer) ms).stop();
+        }
+
+        for(int i = 0; i < servers.length; i++) {
+            if(servers[i].getLog() != null) {
+                servers[i].getLog().close();
+                delete(directories[i]);
+            }
+        }
+    }
+
+    /**
+     * create creates a MessagingServer for each of the given directories,
+     * sharing a single MetricsRegistry; each logging to a fresh directory as
+     * per the given FsyncPolicy (stored in its place), unless it is null.
+     */
+    private static MessagingServer[] create(FsyncPolicy policy, File[] directories) throws IOException {
+        MetricsRegistry metrics = new MetricsRegistry();
+        QueueCapacities capacities = new QueueCapacities(MessagingServer.defaultPersonalCapacity);
+        File parent = new File(System.getProperty("bench.walDir", System.getProperty("java.io.tmpdir")));
+        MessagingServer[] servers = new MessagingServer[directories.length];
+
+        for(int i = 0; i < directories.length; i++) {
+            WriteAheadLog log = null;
+            if(policy != null) {
+                directories[i] = Files.createTempDirectory(parent.toPath(), "jmqp-shard-bench").toFile();
+                log = new WriteAheadLog(directories[i], WriteAheadLog.defaultSegmentBytes, policy, 10);
+            }
+
+            servers[i] = new MessagingServer(30, capacities, MessagingServer.defaultTimerWheelTickMillis, log, metrics,
+                "shard", Integer.toString(i));
+        }
+
+        return servers;
+    }
+
+    /**
+     * delete removes the given directory of a log and all its segments.
+     */
+    private static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+
+        if(files != null) {
+            for(File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        Files.deleteIfExists(directory.toPath());
+    }
+
+}
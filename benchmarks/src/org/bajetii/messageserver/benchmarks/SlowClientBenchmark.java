@@ -0,0 +1,136 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.transport.JdkHttpTransport;
+import org.bajetii.messageserver.server.transport.WorkerPools;
+
+
+/**
+ * SlowClientBenchmark measures how many slow clients can be served
+ * concurrently with and without the virtual Thread execution mode.
+ * <p>
+ * A number of clients open connections on the JdkHttpTransport, whose handlers
+ * do blocking stream I/O, and send only half of their request body before
+ * stalling. Whilst they are stalled; a probe client times a regular request.
+ * With a fixed pool of workers, every worker ends up blocked on a stalled
+ * client and the probe has to wait for the stall to end; whereas with virtual
+ * Threads every stalled client gets its own cheap Thread.
+ */
+public class SlowClientBenchmark {
+
+    /**
+     * port is the first port the benchmarked transports listen on.
+     */
+    private static final int port = 19989;
+
+    /**
+     * workers is the size of the fixed pool of platform Threads.
+     */
+    private static final int workers = 16;
+
+    /**
+     * stallMillis is for how long the slow clients stall mid-body.
+     */
+    private static final long stallMillis = 3000;
+
+    /**
+     * connectionCounts is the list of numbers of slow clients.
+     */
+    private static final int[] connectionCounts = {100, 1000, 5000};
+
+    public static void main(String[] args) throws Exception {
+        boolean virtual = WorkerPools.isVirtualSupported();
+        if(!virtual) {
+            System.out.println("NOTE: no virtual Threads on this JVM; only the fixed pool is benchmarked.");
+        }
+
+        int offset = 0;
+        for(int connections : connectionCounts) {
+            run("fixed(" + workers + ")", WorkerPools.fixed(workers), connections, port + offset++);
+            if(virtual) {
+                run("virtual", WorkerPools.virtual(), connections, port + offset++);
+            }
+        }
+    }
+
+    /**
+     * run stalls the given number of slow clients against a transport running
+     * on the given ExecutorService and times a probe request meanwhile.
+     */
+    private static void run(String mode, ExecutorService executor, int connections, int port) throws Exception {
+        final MainHandler mainHandler = new MainHandler(new MessagingServer(30));
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+
+        HttpHandler counting = (ex) -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                mainHandler.handle(ex);
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+
+        JdkHttpTransport transport = new JdkHttpTransport(port, 65536, executor);
+        transport.createContext("/bajetii/jmqp", counting);
+        transport.start();
+
+        String head = "POST /bajetii/jmqp HTTP/1.1\r\nHost: localhost\r\nType: Personal\r\nTo: slow\r\nContent-Length: 8\r\n\r\n";
+        byte[] firstHalf = (head + "slow").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] secondHalf = "body".getBytes(StandardCharsets.ISO_8859_1);
+
+        Socket[] sockets = new Socket[connections];
+        for(int i = 0; i < connections; i++) {
+            sockets[i] = new Socket("127.0.0.1", port);
+            sockets[i].getOutputStream().write(firstHalf);
+        }
+
+        // release the stalled clients in the background once the stall is up;
+        // the probe may well be stuck behind them until then:
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(stallMillis);
+                for(Socket socket : sockets) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(secondHalf);
+                    out.flush();
+                }
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        releaser.start();
+
+        // let the stalled requests reach the handlers before probing:
+        Thread.sleep(500);
+        int stalledPeak = peak.get();
+
+        long start = System.nanoTime();
+        try(LoopbackHttpClient probe = new LoopbackHttpClient(port)) {
+            probe.send(LoopbackHttpClient.request("GET", "/bajetii/jmqp",
+                new String[] {"Type: Personal", "To: probe"}, new byte[0]));
+        }
+        long probeMillis = (System.nanoTime() - start) / 1000000;
+
+        releaser.join();
+
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+        transport.stop();
+
+        System.out.println(String.format("%-12s slow clients=%-6d concurrently served=%-6d probe latency=%d ms",
+            mode, connections, stalledPeak, probeMillis));
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.storage.Snapshotter;
+
+
+/**
+ * SnapshotBenchmark measures how long it takes to snapshot a registry holding
+ * millions of messages, and to load it back into a fresh MessagingServer;
+ * which is what the restart-to-serving time boils down to.
+ * <p>
+ * The registry is made up of 'bench.queues' personal queues (100000 by
+ * default) of 10 messages of 'bench.payload' bytes (100 by default) each.
+ * Every snapshot and load is run a few times; the last one being reported
+ * so that the JIT has warmed up.
+ */
+public class SnapshotBenchmark {
+
+    /**
+     * messagesPerQueue is the number of messages in each queue; which is the
+     * capacity of the personal queues.
+     */
+    private static final int messagesPerQueue = 10;
+
+    /**
+     * rounds is the number of times the snapshot and load are run.
+     */
+    private static final int rounds = 3;
+
+    public static void main(String[] args) throws Exception {
+        int queues = Integer.getInteger("bench.queues", 100000);
+        int payloadBytes = Integer.getInteger("bench.payload", 100);
+
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+
+        MessagingServer server = new MessagingServer(30);
+        for(int q = 0; q < queues; q++) {
+            String name = "person-" + q;
+            for(int m = 0; m < messagesPerQueue; m++) {
+                server.addPersonalMessage(name, new ByteBufferMessage(payload));
+            }
+        }
+
+        File file = Files.createTempFile("jmqp-snapshot-bench", ".bin").toFile();
+        try {
+            Snapshotter snapshotter = new Snapshotter(server, file, Long.MAX_VALUE);
+            for(int i = 0; i < rounds; i++) {
+                snapshotter.snapshot();
+            }
+
+            System.out.println(String.format("snapshot: %,d messages; %,d bytes; %,d ms",
+                snapshotter.getLastSnapshotMessages(), snapshotter.getLastSnapshotBytes(), snapshotter.getLastSnapshotMillis()));
+
+            for(int i = 0; i < rounds; i++) {
+                Snapshotter loader = new Snapshotter(new MessagingServer(30), file, Long.MAX_VALUE);
+                loader.load();
+
+                if(i == rounds - 1) {
+                    System.out.println(String.format("load:     %,d messages; %,d ms on %d processors",
+                        loader.getLastLoadMessages(), loader.getLastLoadMillis(), Runtime.getRuntime().availableProcessors()));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+        }
+
+        System.exit(0);
+    }
+
+}
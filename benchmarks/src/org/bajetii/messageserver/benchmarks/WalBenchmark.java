@@ -0,0 +1,95 @@
+package org.bajetii.messageserver.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.storage.FsyncPolicy;
+import org.bajetii.messageserver.server.storage.LogMessage;
+import org.bajetii.messageserver.server.storage.WriteAheadLog;
+
+
+/**
+ * WalBenchmark measures the durable throughput of the WriteAheadLog under the
+ * various FsyncPolicies.
+ * <p>
+ * Every operation appends a personal message, waits for it to be durable as
+ * per the policy and acknowledges it; just like a message which is posted and
+ * later consumed. With ALWAYS, concurrent appenders share their fsyncs; the
+ * number of fsyncs per operation is thus printed alongside the throughput.
+ * The log is written to a fresh directory under 'bench.walDir' (by default,
+ * the temporary directory) for every run.
+ */
+public class WalBenchmark {
+
+    /**
+     * payloadBytes is the size of the appended messages.
+     */
+    private static final int payloadBytes = 128;
+
+    /**
+     * intervals is the list of fsync intervals the INTERVAL policy is run with.
+     */
+    private static final long[] intervals = {1, 10, 100};
+
+    /**
+     * threadCounts is the list of numbers of Threads to be benchmarked.
+     */
+    private static final int[] threadCounts = {1, 4, 16};
+
+    public static void main(String[] args) throws Exception {
+        byte[] bytes = new byte[payloadBytes];
+        Arrays.fill(bytes, (byte) 'x');
+        final IMessage message = new ByteBufferMessage(bytes);
+
+        for(int threads : threadCounts) {
+            run("always", threads, FsyncPolicy.ALWAYS, 0, message);
+            for(long interval : intervals) {
+                run("interval=" + interval + "ms", threads, FsyncPolicy.INTERVAL, interval, message);
+            }
+            run("never", threads, FsyncPolicy.NEVER, 0, message);
+        }
+    }
+
+    /**
+     * run benchmarks append/sync/acknowledge on a fresh log.
+     */
+    private static void run(String name, int threads, FsyncPolicy policy, long interval, IMessage message) throws Exception {
+        File parent = new File(System.getProperty("bench.walDir", System.getProperty("java.io.tmpdir")));
+        File directory = Files.createTempDirectory(parent.toPath(), "jmqp-wal-bench").toFile();
+
+        final WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.defaultSegmentBytes, policy, interval);
+
+        Harness.Result result = Harness.run("WriteAheadLog " + name, threads, (t) -> {
+            LogMessage logged = log.appendPersonal("bench", message);
+            log.sync(logged);
+            log.acknowledge(logged);
+        });
+
+        System.out.println(String.format("    %d fsyncs; %.4f fsyncs/op; %d segments left",
+            log.getSyncCount(), (double) log.getSyncCount() / Math.max(1, result.operations), log.getSegmentCount()));
+
+        log.close();
+        delete(directory);
+    }
+
+    /**
+     * delete removes the given directory of the log and all its segments.
+     */
+    private static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+
+        if(files != null) {
+            for(File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        Files.deleteIfExists(directory.toPath());
+    }
+
+}
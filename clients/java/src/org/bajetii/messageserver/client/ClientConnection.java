@@ -0,0 +1,395 @@
+package org.bajetii.messageserver.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientConnection is a single persistent (keep-alive) connection to the
+ * server; over which requests are pipelined.
+ * <p>
+ * Operations are queued up and written out by the connection's sender
+ * Thread; which takes all of those queued at once, writes them out back to
+ * back and flushes them with a single write. Posts of the same type queued
+ * up next to each other are coalesced into batches on the way; so that the
+ * busier the connection, the larger the batches, whereas a lone post is sent
+ * straight away.
+ * At most pipelineDepth requests are ever awaiting their response; the sender
+ * waiting for one to come back before writing any more.
+ * <p>
+ * Responses come back in the order the requests were written in; and are
+ * read by the connection's reader Thread, which completes their Operations.
+ * Callbacks attached to the futures of the client are thus run on the reader
+ * Thread; and should not block it.
+ * <p>
+ * Should the connection fail or be closed, all of its pending Operations are
+ * failed with the cause; none is ever retried.
+ */
+final class ClientConnection {
+
+	/**
+	 * bufferBytes is the size of the socket's buffered streams.
+	 */
+	private static final int bufferBytes = 64 * 1024;
+
+	/**
+	 * connectTimeoutMillis is the longest connecting may take.
+	 */
+	private static final int connectTimeoutMillis = 5000;
+
+	/**
+	 * maxBatchBytes is the largest size a batch is grown to.
+	 */
+	private static final int maxBatchBytes = 256 * 1024;
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final InputStream in;
+
+	/**
+	 * host and path are the 'Host' header and the path of the requests.
+	 */
+	private final String host;
+	private final String path;
+
+	/**
+	 * maxBatchMessages is the largest number of posts sent as one batch; 1
+	 * disabling batching.
+	 */
+	private final int maxBatchMessages;
+
+	/**
+	 * outgoing holds the Operations yet to be written out; and inflight those
+	 * written out and awaiting their response, in order. window bounds the
+	 * number of the latter.
+	 */
+	private final LinkedBlockingQueue<Operation> outgoing = new LinkedBlockingQueue<Operation>();
+	private final ConcurrentLinkedQueue<Operation> inflight = new ConcurrentLinkedQueue<Operation>();
+	private final Semaphore window;
+
+	/**
+	 * load is the number of operations submitted and not yet completed.
+	 */
+	private final AtomicInteger load = new AtomicInteger(0);
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private final Thread sender;
+	private final Thread reader;
+
+	/**
+	 * A ClientConnection is created connected to the given server; its
+	 * Threads being started straight away.
+	 *
+	 * @param host             the host of the server.
+	 * @param port             the port of the server.
+	 * @param path             the path all the requests are sent to.
+	 * @param pipelineDepth    the maximum number of requests in flight.
+	 * @param maxBatchMessages the maximum number of posts batched together.
+	 */
+	ClientConnection(String host, int port, String path, int pipelineDepth, int maxBatchMessages) throws IOException {
+		this.socket = new Socket();
+		this.socket.setTcpNoDelay(true);
+		this.socket.setKeepAlive(true);
+		this.socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+
+		this.out = new BufferedOutputStream(this.socket.getOutputStream(), bufferBytes);
+		this.in = new BufferedInputStream(this.socket.getInputStream(), bufferBytes);
+
+		this.host = host + ":" + port;
+		this.path = path;
+		this.maxBatchMessages = maxBatchMessages;
+		this.window = new Semaphore(pipelineDepth);
+
+		this.sender = new Thread(() -> this.send(), "jmqp-client-sender");
+		this.sender.setDaemon(true);
+		this.reader = new Thread(() -> this.receive(), "jmqp-client-reader");
+		this.reader.setDaemon(true);
+
+		this.sender.start();
+		this.reader.start();
+	}
+
+	/**
+	 * getLoad returns the number of operations submitted to the connection
+	 * and not yet completed.
+	 */
+	int getLoad() {
+		return this.load.get();
+	}
+
+	boolean isClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * submit queues up the given Operation to be sent; or fails it if the
+	 * connection is closed.
+	 */
+	void submit(Operation operation) {
+		this.load.addAndGet(operation.count());
+		this.outgoing.add(operation);
+
+		if (this.closed.get()) {
+			this.failPending(new IOException("The connection is closed."));
+		}
+	}
+
+	/**
+	 * close closes the connection; failing all its pending Operations.
+	 */
+	void close() {
+		this.close(new IOException("The connection is closed."));
+	}
+
+	private void close(IOException cause) {
+		if (this.closed.compareAndSet(false, true)) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// nothing to be done.
+			}
+
+			this.sender.interrupt();
+		}
+
+		this.failPending(cause);
+	}
+
+	/**
+	 * failPending fails all the Operations in flight and queued up.
+	 */
+	private void failPending(IOException cause) {
+		Operation operation;
+
+		while ((operation = this.inflight.poll()) != null) {
+			this.load.addAndGet(-operation.count());
+			operation.fail(cause);
+		}
+
+		while ((operation = this.outgoing.poll()) != null) {
+			this.load.addAndGet(-operation.count());
+			operation.fail(cause);
+		}
+	}
+
+	/**
+	 * send is the loop of the sender Thread.
+	 */
+	private void send() {
+		ArrayList<Operation> drained = new ArrayList<Operation>();
+		ArrayList<Operation.Post> batch = new ArrayList<Operation.Post>();
+
+		try {
+			while (!this.closed.get()) {
+				drained.add(this.outgoing.take());
+				this.outgoing.drainTo(drained);
+
+				for (int i = 0; i < drained.size(); i++) {
+					Operation operation = drained.get(i);
+
+					if (!(operation instanceof Operation.Post) || this.maxBatchMessages <= 1) {
+						this.write(operation);
+						continue;
+					}
+
+					// coalesce the posts of the same type following this one:
+					Operation.Post post = (Operation.Post) operation;
+					batch.add(post);
+					int bytes = post.body.length;
+
+					while (post.isBatchable() && batch.size() < this.maxBatchMessages && i + 1 < drained.size()
+							&& drained.get(i + 1) instanceof Operation.Post) {
+						Operation.Post next = (Operation.Post) drained.get(i + 1);
+						if (next.type != post.type || !next.isBatchable() || bytes + next.body.length > maxBatchBytes) {
+							break;
+						}
+
+						batch.add(next);
+						bytes += next.body.length;
+						i++;
+					}
+
+					this.write((batch.size() == 1) ? post : new Operation.Batch(batch));
+					batch.clear();
+				}
+
+				drained.clear();
+				this.out.flush();
+			}
+		} catch (InterruptedException e) {
+			// closed.
+		} catch (IOException e) {
+			this.close(e);
+		}
+
+		// those drained but not written out yet:
+		for (Operation operation : drained) {
+			operation.fail(new IOException("The connection is closed."));
+		}
+	}
+
+	/**
+	 * write writes out the given Operation once the window allows for it;
+	 * flushing what was written so far whilst waiting.
+	 */
+	private void write(Operation operation) throws IOException, InterruptedException {
+		if (!this.window.tryAcquire()) {
+			this.out.flush();
+			this.window.acquire();
+		}
+
+		this.inflight.add(operation);
+		operation.writeTo(this.out, this.host, this.path);
+
+		if (this.closed.get()) {
+			throw new IOException("The connection is closed.");
+		}
+	}
+
+	/**
+	 * receive is the loop of the reader Thread.
+	 */
+	private void receive() {
+		try {
+			while (true) {
+				Response response = this.readResponse();
+
+				Operation operation = this.inflight.poll();
+				if (operation == null) {
+					throw new IOException("Unsolicited response: " + response.getStatus());
+				}
+
+				this.window.release();
+				this.load.addAndGet(-operation.count());
+				operation.complete(response);
+
+				if ("close".equalsIgnoreCase(response.getHeader("Connection"))) {
+					this.close(new IOException("The connection was closed by the server."));
+					return;
+				}
+			}
+		} catch (IOException e) {
+			this.close(e);
+		}
+	}
+
+	/**
+	 * readResponse reads a whole response; skipping any interim (1xx) ones.
+	 */
+	private Response readResponse() throws IOException {
+		while (true) {
+			String statusLine = this.readLine();
+			String[] fields = statusLine.split(" ", 3);
+			if (fields.length < 2 || !fields[0].startsWith("HTTP/")) {
+				throw new IOException("Malformed status line: " + statusLine);
+			}
+
+			int status;
+			try {
+				status = Integer.parseInt(fields[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed status line: " + statusLine);
+			}
+
+			HashMap<String, String> headers = new HashMap<String, String>();
+			String line;
+			while (!(line = this.readLine()).isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+			}
+
+			if (status >= 100 && status < 200) {
+				continue;
+			}
+
+			byte[] body;
+			String length = headers.get("content-length");
+
+			if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				body = this.readChunked();
+			} else if (length != null) {
+				body = this.readFully(Integer.parseInt(length));
+			} else if (status == 204 || status == 304) {
+				body = new byte[0];
+			} else {
+				// delimited by the end of the connection:
+				body = this.in.readAllBytes();
+				headers.put("connection", "close");
+			}
+
+			return new Response(status, headers, body);
+		}
+	}
+
+	/**
+	 * readChunked reads a chunked body.
+	 */
+	private byte[] readChunked() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		while (true) {
+			String size = this.readLine();
+			int semicolon = size.indexOf(';');
+			int length = Integer.parseInt((semicolon < 0) ? size.trim() : size.substring(0, semicolon).trim(), 16);
+
+			if (length == 0) {
+				// skip the trailers:
+				while (!this.readLine().isEmpty()) {
+				}
+
+				return body.toByteArray();
+			}
+
+			body.write(this.readFully(length));
+			this.readLine();
+		}
+	}
+
+	private byte[] readFully(int length) throws IOException {
+		byte[] bytes = this.in.readNBytes(length);
+		if (bytes.length != length) {
+			throw new EOFException("The connection was closed amid a response.");
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * readLine reads a CRLF-terminated line of ISO-8859-1 text.
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+
+		while ((c = this.in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException("The connection was closed by the server.");
+			}
+
+			line.append((char) c);
+		}
+
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+
+		return line.toString();
+	}
+}
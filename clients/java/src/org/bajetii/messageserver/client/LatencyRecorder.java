@@ -0,0 +1,81 @@
+package org.bajetii.messageserver.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyRecorder records latencies in nanoseconds into log-linear buckets;
+ * each power of two being split into 32 linear buckets, so that percentiles
+ * are known within about 3%.
+ * <p>
+ * Recording is a single atomic increment; safe from any number of Threads.
+ */
+class LatencyRecorder {
+
+	private static final int subBucketBits = 5;
+	private static final int subBucketCount = 1 << subBucketBits;
+	private static final int maxExponent = 44;
+	private static final int bucketCount = (maxExponent - subBucketBits + 2) * subBucketCount;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+
+	void record(long nanos) {
+		this.buckets.incrementAndGet(index(Math.max(nanos, 0)));
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			count += this.buckets.get(i);
+		}
+
+		return count;
+	}
+
+	/**
+	 * getPercentile returns the latency which the given fraction of those
+	 * recorded do not exceed; 0 if none were.
+	 */
+	long getPercentile(double fraction) {
+		long total = this.getCount();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+
+		for (int i = 0; i < bucketCount; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+
+		return highestValue(bucketCount - 1);
+	}
+
+	private static int index(long value) {
+		if (value < subBucketCount) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > maxExponent) {
+			return bucketCount - 1;
+		}
+
+		int shift = exponent - subBucketBits;
+		return (shift + 1) * subBucketCount + (int) (value >>> shift) - subBucketCount;
+	}
+
+	private static long highestValue(int index) {
+		if (index < subBucketCount) {
+			return index;
+		}
+
+		int shift = index / subBucketCount - 1;
+		long lowest = (long) (subBucketCount + index % subBucketCount) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+}
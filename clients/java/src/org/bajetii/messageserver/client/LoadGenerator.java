@@ -0,0 +1,171 @@
+package org.bajetii.messageserver.client;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator drives a PooledMessagingClient as hard as it can; and
+ * reports the throughput and latency percentiles it sees end to end.
+ * <p>
+ * The load is closed-loop: a fixed number of operations are kept in flight,
+ * each one being followed by the next as soon as it completes. Operations are
+ * one of:
+ *     - 'post'      :: posting a message.
+ *     - 'fetch'     :: fetching a message; from queues filled upfront.
+ *     - 'roundtrip' :: posting a message and fetching it back.
+ * Destinations are cycled over; so that the load is spread across queues.
+ * Nothing is recorded during the warmup.
+ */
+public class LoadGenerator {
+
+	private final PooledMessagingClient client;
+	private final MessageType type;
+	private final String operation;
+	private final int concurrency;
+	private final String[] destinations;
+	private final byte[] message;
+	private final int timeout;
+
+	private final LatencyRecorder latencies = new LatencyRecorder();
+	private final AtomicLong operations = new AtomicLong(0);
+	private final AtomicLong errors = new AtomicLong(0);
+	private final AtomicLong next = new AtomicLong(0);
+
+	private volatile boolean measuring = false;
+	private volatile long deadline;
+	private CountDownLatch finished;
+
+	/**
+	 * A LoadGenerator is created provided the client to be driven and the
+	 * shape of the load.
+	 *
+	 * @param client       the PooledMessagingClient driven.
+	 * @param type         the MessageType of the messages.
+	 * @param operation    either 'post', 'fetch' or 'roundtrip'.
+	 * @param concurrency  the number of operations kept in flight.
+	 * @param destinations the number of distinct destinations.
+	 * @param messageBytes the size of the messages.
+	 * @param timeout      the timeout in seconds of topic messages.
+	 */
+	public LoadGenerator(PooledMessagingClient client, MessageType type, String operation, int concurrency,
+			int destinations, int messageBytes, int timeout) {
+		if (!operation.equals("post") && !operation.equals("fetch") && !operation.equals("roundtrip")) {
+			throw new IllegalArgumentException("The operation must be 'post', 'fetch' or 'roundtrip': " + operation);
+		}
+
+		this.client = client;
+		this.type = type;
+		this.operation = operation;
+		this.concurrency = concurrency;
+		this.destinations = new String[destinations];
+		for (int i = 0; i < destinations; i++) {
+			this.destinations[i] = "load-" + i;
+		}
+
+		this.message = new byte[messageBytes];
+		Arrays.fill(this.message, (byte) 'x');
+		this.timeout = timeout;
+	}
+
+	/**
+	 * run runs the load for the given warmup and measured durations; and
+	 * prints out the outcome.
+	 */
+	public void run(long warmupMillis, long measureMillis) throws InterruptedException {
+		if (this.operation.equals("fetch")) {
+			this.prefill();
+		}
+
+		this.finished = new CountDownLatch(this.concurrency);
+		this.deadline = Long.MAX_VALUE;
+
+		for (int i = 0; i < this.concurrency; i++) {
+			this.issue();
+		}
+
+		Thread.sleep(warmupMillis);
+		this.measuring = true;
+		long start = System.nanoTime();
+
+		Thread.sleep(measureMillis);
+		this.deadline = System.nanoTime();
+		this.measuring = false;
+		long elapsed = System.nanoTime() - start;
+
+		this.finished.await(10, TimeUnit.SECONDS);
+
+		long count = this.operations.get();
+		System.out.println(String.format("%s %s: concurrency=%d destinations=%d size=%dB",
+				this.type.getHeader(), this.operation, this.concurrency, this.destinations.length, this.message.length));
+		System.out.println(String.format("  %,d operations in %.1fs: %,.0f ops/s; %,d errors",
+				count, elapsed / 1e9, count * 1e9 / elapsed, this.errors.get()));
+		System.out.println(String.format("  latency (ms): p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+				this.latencies.getPercentile(0.5) / 1e6, this.latencies.getPercentile(0.9) / 1e6,
+				this.latencies.getPercentile(0.99) / 1e6, this.latencies.getPercentile(0.999) / 1e6,
+				this.latencies.getPercentile(1.0) / 1e6));
+	}
+
+	/**
+	 * issue starts the next operation of a chain; or ends the chain once
+	 * the deadline has passed.
+	 */
+	private void issue() {
+		if (System.nanoTime() >= this.deadline) {
+			this.finished.countDown();
+			return;
+		}
+
+		final long start = System.nanoTime();
+		String to = this.destinations[(int) (this.next.getAndIncrement() % this.destinations.length)];
+
+		this.start(to).whenComplete((result, failure) -> {
+			if (this.measuring) {
+				this.operations.incrementAndGet();
+				this.latencies.record(System.nanoTime() - start);
+				if (failure != null) {
+					this.errors.incrementAndGet();
+				}
+			}
+
+			if (failure != null) {
+				// off the completing Thread; failures may complete straight away:
+				ForkJoinPool.commonPool().execute(() -> this.issue());
+			} else {
+				this.issue();
+			}
+		});
+	}
+
+	/**
+	 * start starts a single operation for the given destination.
+	 */
+	private CompletableFuture<?> start(String to) {
+		switch (this.operation) {
+		case "post":
+			return this.client.post(this.type, to, this.message, this.timeout);
+		case "fetch":
+			return this.client.fetch(this.type, to, 1);
+		default:
+			return this.client.post(this.type, to, this.message, this.timeout)
+					.thenCompose((accepted) -> this.client.fetch(this.type, to, 1));
+		}
+	}
+
+	/**
+	 * prefill fills every queue with messages for the fetches.
+	 */
+	private void prefill() {
+		CompletableFuture<?>[] posts = new CompletableFuture<?>[this.destinations.length * 10];
+
+		for (int i = 0; i < posts.length; i++) {
+			posts[i] = this.client.post(this.type, this.destinations[i % this.destinations.length], this.message,
+					this.timeout);
+		}
+
+		CompletableFuture.allOf(posts).exceptionally((failure) -> null).join();
+	}
+}
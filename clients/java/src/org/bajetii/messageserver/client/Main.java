@@ -21,28 +21,21 @@ public class Main {
 				"Body request. Anything for the POST/PUT request and user_name/topic_name for GET request");
 		options.addOption("h", "help", false, "Display help menu");
 
-		MessagingClient client = new MessagingClient();
-		Map<String, String> headers = new HashMap<String, String>();
-
-		 String[] args1 = new String[] {
-				 "--url=http://192.168.137.1:8989/bajetii/jmqp",
-				 "--method=POST",
-				 "--type=Personal",
-				 "--destination=iony",
-		 		 "--body='Iony are mere'" };
-
-		String[] args2 = new String[] {
-				"--url=http://192.168.137.1:8989/bajetii/jmqp",
-				"--method=GET",
-				"--type=Personal",
-				"--body=iony" };
-		
-		String[] args3 = new String[] {
-				"--help" };
+		options.addOption("L", "load", true,
+				"Generate load instead of sending a single request; either 'post', 'fetch' or 'roundtrip'");
+		options.addOption("c", "concurrency", true, "Load: the number of requests kept in flight (default 64)");
+		options.addOption(null, "connections", true, "The number of pooled connections (default 4)");
+		options.addOption(null, "pipeline", true, "The maximum number of requests in flight per connection (default 64)");
+		options.addOption(null, "batch", true, "The maximum number of posts sent as one batch; 1 disables batching (default 64)");
+		options.addOption(null, "duration", true, "Load: the number of seconds measured (default 10)");
+		options.addOption(null, "warmup", true, "Load: the number of seconds of warmup (default 2)");
+		options.addOption(null, "size", true, "Load: the size in bytes of the messages (default 64)");
+		options.addOption(null, "destinations", true, "Load: the number of distinct destinations (default 100)");
 
+		Map<String, String> headers = new HashMap<String, String>();
 
 		try {
-			CommandLine line = parser.parse(options, args2);
+			CommandLine line = parser.parse(options, args);
 
 			if (line.hasOption('h')) {
 				HelpFormatter f = new HelpFormatter();
@@ -50,10 +43,6 @@ public class Main {
 				System.exit(0);
 			}
 
-			if (!line.hasOption("body")) {
-				throw new ParseException("Missing parameter 'body'");
-			}
-
 			if (!line.hasOption("url")) {
 				throw new ParseException("Missing parameter 'url'");
 			}
@@ -62,6 +51,31 @@ public class Main {
 					&& !line.getOptionValue("type").equalsIgnoreCase("Personal"))) {
 				throw new ParseException("Invalid parameter 'type'");
 			}
+
+			PooledMessagingClient client = new PooledMessagingClient(line.getOptionValue("url"),
+					intOption(line, "connections", PooledMessagingClient.defaultConnections),
+					intOption(line, "pipeline", PooledMessagingClient.defaultPipelineDepth),
+					intOption(line, "batch", PooledMessagingClient.defaultMaxBatchMessages));
+
+			if (line.hasOption("load")) {
+				LoadGenerator generator = new LoadGenerator(client, MessageType.fromString(line.getOptionValue("type")),
+						line.getOptionValue("load"), intOption(line, "concurrency", 64),
+						intOption(line, "destinations", 100), intOption(line, "size", 64), intOption(line, "Timeout", 30));
+
+				try {
+					generator.run(intOption(line, "warmup", 2) * 1000L, intOption(line, "duration", 10) * 1000L);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				client.close();
+				System.exit(0);
+			}
+
+			if (!line.hasOption("body")) {
+				throw new ParseException("Missing parameter 'body'");
+			}
+
 			headers.put("Type", line.getOptionValue("type"));
 
 			if (!line.hasOption("method") || (!line.getOptionValue("method").equals("GET")
@@ -92,13 +106,31 @@ public class Main {
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				client.close();
 			}
 
-		} catch (ParseException e) {
+		} catch (ParseException | IllegalArgumentException e) {
 			System.out.println("ERROR: " + e.getMessage());
 			System.exit(1);
 		}
 
 		System.exit(0);
 	}
+
+	/**
+	 * intOption returns the value of the given integer option; or the given
+	 * default if it was not provided.
+	 */
+	private static int intOption(CommandLine line, String name, int defaultValue) throws ParseException {
+		if (!line.hasOption(name)) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(line.getOptionValue(name));
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid parameter '" + name + "'");
+		}
+	}
 }
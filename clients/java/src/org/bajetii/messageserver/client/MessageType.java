@@ -0,0 +1,39 @@
+package org.bajetii.messageserver.client;
+
+/**
+ * MessageType is the Enum of the types of messages; as sent in the 'Type'
+ * header.
+ */
+public enum MessageType {
+
+	PERSONAL("Personal"), TOPIC("Topic");
+
+	/**
+	 * header is the value of the 'Type' header of the type.
+	 */
+	private final String header;
+
+	private MessageType(String header) {
+		this.header = header;
+	}
+
+	public String getHeader() {
+		return this.header;
+	}
+
+	/**
+	 * fromString returns the MessageType of the given (case-insensitive)
+	 * name.
+	 *
+	 * @throws IllegalArgumentException if there is no such MessageType.
+	 */
+	public static MessageType fromString(String name) {
+		for (MessageType type : MessageType.values()) {
+			if (type.header.equalsIgnoreCase(name)) {
+				return type;
+			}
+		}
+
+		throw new IllegalArgumentException("'Type' must be either 'Topic' or 'Personal': " + name);
+	}
+}
@@ -8,6 +8,13 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Map;
 
+/**
+ * MessagingClient opens a fresh connection for every request and blocks until
+ * it is done; truncating bodies to their low bytes on the way out.
+ *
+ * @deprecated use the PooledMessagingClient instead.
+ */
+@Deprecated
 public class MessagingClient implements IMessagingClient {
 
 	@Override
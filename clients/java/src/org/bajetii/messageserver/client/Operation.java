@@ -0,0 +1,248 @@
+package org.bajetii.messageserver.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.bajetii.messageserver.client.exceptions.MessagingClientException;
+
+/**
+ * Operation is a single request sent over a ClientConnection; alongside what
+ * to do with its response.
+ * <p>
+ * Operations are completed exactly once; either with the Response of the
+ * server, or with the failure of their connection. Completing an Operation
+ * which is already done does nothing.
+ */
+abstract class Operation {
+
+	/**
+	 * count returns the number of operations submitted which this one
+	 * stands for.
+	 */
+	int count() {
+		return 1;
+	}
+
+	/**
+	 * writeTo writes out the request; without flushing it.
+	 */
+	abstract void writeTo(OutputStream out, String host, String path) throws IOException;
+
+	abstract void complete(Response response);
+
+	abstract void fail(Throwable cause);
+
+	/**
+	 * writeHead writes out the request line and headers of a request.
+	 * <p>
+	 * Header values are written out as UTF-8; which the server reads back as
+	 * ISO-8859-1, consistently for every request.
+	 */
+	static void writeHead(OutputStream out, String method, String host, String path,
+			Map<String, String> headers, int length) throws IOException {
+		StringBuilder head = new StringBuilder(128);
+
+		head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(host).append("\r\n");
+		head.append("Content-Length: ").append(length).append("\r\n");
+
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Exchange is a raw request; completed with whatever Response it gets.
+	 */
+	static final class Exchange extends Operation {
+
+		private final String method;
+		private final Map<String, String> headers;
+		private final byte[] body;
+		final CompletableFuture<Response> future = new CompletableFuture<Response>();
+
+		Exchange(String method, Map<String, String> headers, byte[] body) {
+			this.method = method;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		@Override
+		void writeTo(OutputStream out, String host, String path) throws IOException {
+			writeHead(out, this.method, host, path, this.headers, this.body.length);
+			out.write(this.body);
+		}
+
+		@Override
+		void complete(Response response) {
+			this.future.complete(response);
+		}
+
+		@Override
+		void fail(Throwable cause) {
+			this.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Post is a single message posted; completed with whether it was
+	 * accepted (202) or rejected for the inbox being full (406).
+	 * <p>
+	 * Posts of the same type queued up behind each other on a connection may
+	 * be sent as a single Batch; unless they are too large, or their
+	 * destination cannot be framed within a batch.
+	 */
+	static final class Post extends Operation {
+
+		/**
+		 * maxBatchedBytes is the size of the largest message ever batched.
+		 */
+		static final int maxBatchedBytes = 16 * 1024;
+
+		final MessageType type;
+		final String to;
+		final byte[] body;
+		final int timeout;
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+		Post(MessageType type, String to, byte[] body, int timeout) {
+			this.type = type;
+			this.to = to;
+			this.body = body;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * isBatchable returns whether the post may be sent within a Batch;
+		 * batch frames holding their destination as a space-separated field,
+		 * only plain ASCII names are.
+		 */
+		boolean isBatchable() {
+			if (this.body.length > maxBatchedBytes || this.to.isEmpty()) {
+				return false;
+			}
+
+			for (int i = 0; i < this.to.length(); i++) {
+				char c = this.to.charAt(i);
+				if (c <= ' ' || c >= 0x7f) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		void writeTo(OutputStream out, String host, String path) throws IOException {
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			headers.put("Type", this.type.getHeader());
+			headers.put("To", this.to);
+			if (this.type == MessageType.TOPIC) {
+				headers.put("Timeout", Integer.toString(this.timeout));
+			}
+
+			writeHead(out, "POST", host, path, headers, this.body.length);
+			out.write(this.body);
+		}
+
+		@Override
+		void complete(Response response) {
+			if (response.getStatus() == 202) {
+				this.future.complete(Boolean.TRUE);
+			} else if (response.getStatus() == 406) {
+				this.future.complete(Boolean.FALSE);
+			} else {
+				this.future.completeExceptionally(new MessagingClientException(response));
+			}
+		}
+
+		@Override
+		void fail(Throwable cause) {
+			this.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Batch is a number of Posts of the same type sent as a single request;
+	 * each being completed with its own status out of the response.
+	 */
+	static final class Batch extends Operation {
+
+		private final Post[] posts;
+
+		Batch(List<Post> posts) {
+			this.posts = posts.toArray(new Post[posts.size()]);
+		}
+
+		@Override
+		int count() {
+			return this.posts.length;
+		}
+
+		@Override
+		void writeTo(OutputStream out, String host, String path) throws IOException {
+			byte[][] frames = new byte[this.posts.length][];
+			int length = 0;
+
+			for (int i = 0; i < this.posts.length; i++) {
+				Post post = this.posts[i];
+				String frame = post.body.length + " " + post.to
+						+ ((post.type == MessageType.TOPIC) ? " " + post.timeout : "") + "\n";
+
+				frames[i] = frame.getBytes(StandardCharsets.US_ASCII);
+				length += frames[i].length + post.body.length + 1;
+			}
+
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			headers.put("Type", this.posts[0].type.getHeader());
+			headers.put("Message-Count", Integer.toString(this.posts.length));
+
+			writeHead(out, "POST", host, path, headers, length);
+			for (int i = 0; i < this.posts.length; i++) {
+				out.write(frames[i]);
+				out.write(this.posts[i].body);
+				out.write('\n');
+			}
+		}
+
+		/**
+		 * complete completes every Post with its status; the body of an
+		 * accepted batch ending with one status character per message.
+		 */
+		@Override
+		void complete(Response response) {
+			byte[] body = response.getBody();
+
+			if (response.getStatus() != 202 || body.length < this.posts.length) {
+				this.fail(new MessagingClientException(response));
+				return;
+			}
+
+			int offset = body.length - this.posts.length;
+			for (int i = 0; i < this.posts.length; i++) {
+				if (body[offset + i] == 'A') {
+					this.posts[i].future.complete(Boolean.TRUE);
+				} else if (body[offset + i] == 'F') {
+					this.posts[i].future.complete(Boolean.FALSE);
+				} else {
+					this.posts[i].future.completeExceptionally(new MessagingClientException(response));
+				}
+			}
+		}
+
+		@Override
+		void fail(Throwable cause) {
+			for (Post post : this.posts) {
+				post.future.completeExceptionally(cause);
+			}
+		}
+	}
+}
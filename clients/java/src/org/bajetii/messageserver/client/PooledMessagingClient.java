@@ -0,0 +1,325 @@
+package org.bajetii.messageserver.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.client.exceptions.MessagingClientException;
+
+/**
+ * PooledMessagingClient is an asynchronous client of the messaging server;
+ * which keeps a pool of persistent connections to it and pipelines requests
+ * over them.
+ * <p>
+ * Every request returns a CompletableFuture straight away; completed once the
+ * response is in, on the reader Thread of its connection. Posts to the same
+ * destination always go through the same connection, so that they reach the
+ * server in the order they were made; small posts queued up on a busy
+ * connection being sent as batches. Other requests go through the least
+ * loaded connection.
+ * <p>
+ * Connections are opened upon first use, and reopened upon the next request
+ * should they fail; the requests pending on a failed connection are failed
+ * with it, and never retried.
+ * <p>
+ * Message bodies are sent and returned as raw bytes; Strings being encoded
+ * as UTF-8.
+ */
+public class PooledMessagingClient implements IMessagingClient, AutoCloseable {
+
+	public static final int defaultConnections = 4;
+	public static final int defaultPipelineDepth = 64;
+	public static final int defaultMaxBatchMessages = 64;
+
+	/**
+	 * url is the URL of the server; with host, port and path its parts.
+	 */
+	private final String url;
+	private final String host;
+	private final int port;
+	private final String path;
+
+	private final int pipelineDepth;
+	private final int maxBatchMessages;
+
+	/**
+	 * connections holds the pooled connections; null until opened. lock
+	 * guards their (re)opening.
+	 */
+	private final ClientConnection[] connections;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private volatile boolean closed = false;
+
+	public PooledMessagingClient(String url) {
+		this(url, defaultConnections, defaultPipelineDepth, defaultMaxBatchMessages);
+	}
+
+	/**
+	 * A PooledMessagingClient is created provided the URL of the server and
+	 * the shape of its pool; no connection being opened until needed.
+	 *
+	 * @param url              the URL of the server; e.g.
+	 *                         'http://localhost:8989/bajetii/jmqp'.
+	 * @param connections      the number of pooled connections.
+	 * @param pipelineDepth    the maximum number of requests in flight on a
+	 *                         connection.
+	 * @param maxBatchMessages the maximum number of posts sent as one batch;
+	 *                         1 disabling batching.
+	 */
+	public PooledMessagingClient(String url, int connections, int pipelineDepth, int maxBatchMessages) {
+		URI uri = URI.create(url);
+		if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+			throw new IllegalArgumentException("Only plain 'http://host[:port]/path' URLs are supported: " + url);
+		}
+
+		if (connections <= 0 || pipelineDepth <= 0 || maxBatchMessages <= 0) {
+			throw new IllegalArgumentException("The pool must have positive dimensions.");
+		}
+
+		this.url = url;
+		this.host = uri.getHost();
+		this.port = (uri.getPort() == -1) ? 80 : uri.getPort();
+		this.path = (uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath();
+
+		this.pipelineDepth = pipelineDepth;
+		this.maxBatchMessages = maxBatchMessages;
+		this.connections = new ClientConnection[connections];
+	}
+
+	/**
+	 * send sends a raw request with the given headers and body.
+	 *
+	 * @return CompletableFuture<Response> completed with the Response of the
+	 *         server, whatever its status.
+	 */
+	public CompletableFuture<Response> send(String method, Map<String, String> headers, byte[] body) {
+		Operation.Exchange exchange = new Operation.Exchange(method, headers, body);
+		this.submit(this.leastLoaded(), exchange);
+
+		return exchange.future;
+	}
+
+	/**
+	 * post posts the given message.
+	 *
+	 * @param type    the MessageType of the message.
+	 * @param to      the person or topic the message is for.
+	 * @param message the message; sent as-is.
+	 * @param timeout the number of seconds a topic message lives for; unused
+	 *                for personal messages.
+	 * @return CompletableFuture<Boolean> completed with true once the message
+	 *         is accepted; or false if the person's inbox was full.
+	 */
+	public CompletableFuture<Boolean> post(MessageType type, String to, byte[] message, int timeout) {
+		Operation.Post post = new Operation.Post(type, to, message, timeout);
+		this.submit(Math.floorMod(to.hashCode(), this.connections.length), post);
+
+		return post.future;
+	}
+
+	public CompletableFuture<Boolean> post(MessageType type, String to, String message, int timeout) {
+		return this.post(type, to, message.getBytes(StandardCharsets.UTF_8), timeout);
+	}
+
+	/**
+	 * fetch fetches at most the given number of messages.
+	 *
+	 * @return CompletableFuture<byte[][]> completed with the messages; none
+	 *         if the queue is empty or does not exist.
+	 */
+	public CompletableFuture<byte[][]> fetch(MessageType type, String to, int maxMessages) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Type", type.getHeader());
+		headers.put("To", to);
+		headers.put("Max-Messages", Integer.toString(maxMessages));
+
+		return this.send("GET", headers, new byte[0]).thenApply((response) -> {
+			if (response.getStatus() == 404) {
+				return new byte[0][];
+			}
+
+			if (response.getStatus() != 200) {
+				throw new MessagingClientException(response);
+			}
+
+			return unframe(response);
+		});
+	}
+
+	/**
+	 * getMessage fetches a single message and prints it out; the 'To'
+	 * header defaulting to the given body, as with MessagingClient.
+	 *
+	 * @throws IllegalArgumentException if the URL is not that of the client.
+	 */
+	@Override
+	public void getMessage(Map<String, String> headers, String body, String url) throws IOException {
+		this.checkUrl(url);
+
+		Map<String, String> request = new LinkedHashMap<String, String>(headers);
+		if (!request.containsKey("To")) {
+			request.put("To", body);
+		}
+
+		Response response = this.await(this.send("GET", request, new byte[0]));
+		System.out.println("Response code received: " + response.getStatus());
+		System.out.println(response.getBodyAsString());
+	}
+
+	/**
+	 * postMessage posts the given body as UTF-8 and prints out the response.
+	 *
+	 * @throws IllegalArgumentException if the URL is not that of the client.
+	 */
+	@Override
+	public void postMessage(Map<String, String> headers, String body, String url) throws IOException {
+		this.checkUrl(url);
+
+		Response response = this.await(this.send("POST", headers, body.getBytes(StandardCharsets.UTF_8)));
+		System.out.println("Response code received: " + response.getStatus());
+		System.out.println(response.getBodyAsString());
+	}
+
+	/**
+	 * close closes all the connections; failing whatever is still pending.
+	 */
+	@Override
+	public void close() {
+		this.lock.lock();
+		try {
+			this.closed = true;
+
+			for (ClientConnection connection : this.connections) {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * leastLoaded returns the index of the connection with the fewest
+	 * operations pending; unopened ones counting as idle.
+	 */
+	private int leastLoaded() {
+		int best = 0;
+		int bestLoad = Integer.MAX_VALUE;
+
+		for (int i = 0; i < this.connections.length; i++) {
+			ClientConnection connection = this.connections[i];
+			int load = (connection == null || connection.isClosed()) ? 0 : connection.getLoad();
+
+			if (load < bestLoad) {
+				best = i;
+				bestLoad = load;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * submit submits the given Operation on the connection of the given
+	 * index; opening it first if need be, or failing the Operation if it
+	 * cannot be.
+	 */
+	private void submit(int index, Operation operation) {
+		ClientConnection connection = this.connections[index];
+
+		if (connection == null || connection.isClosed()) {
+			this.lock.lock();
+			try {
+				if (this.closed) {
+					operation.fail(new IOException("The client is closed."));
+					return;
+				}
+
+				connection = this.connections[index];
+				if (connection == null || connection.isClosed()) {
+					connection = new ClientConnection(this.host, this.port, this.path, this.pipelineDepth, this.maxBatchMessages);
+					this.connections[index] = connection;
+				}
+			} catch (IOException e) {
+				operation.fail(e);
+				return;
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		connection.submit(operation);
+	}
+
+	private void checkUrl(String url) {
+		if (!this.url.equals(url)) {
+			throw new IllegalArgumentException("This client sends to " + this.url + "; not to " + url + ".");
+		}
+	}
+
+	/**
+	 * await waits for the given future; unwrapping its failure.
+	 */
+	private <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted whilst waiting for the response.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * unframe splits the body of a batched response into its messages; every
+	 * one framed as its length, a newline, its bytes and another newline. A
+	 * response holding a single unframed message is returned as is.
+	 */
+	static byte[][] unframe(Response response) {
+		byte[] body = response.getBody();
+
+		if (response.getHeader("Message-Count") == null) {
+			return new byte[][] { body };
+		}
+
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		int position = 0;
+
+		while (position < body.length) {
+			int eol = position;
+			int length = 0;
+			while (eol < body.length && body[eol] != '\n') {
+				length = length * 10 + (body[eol] - '0');
+				eol++;
+			}
+
+			if (eol + 1 + length > body.length) {
+				throw new MessagingClientException(response);
+			}
+
+			byte[] message = new byte[length];
+			System.arraycopy(body, eol + 1, message, 0, length);
+			messages.add(message);
+
+			position = eol + 1 + length + 1;
+		}
+
+		return messages.toArray(new byte[messages.size()][]);
+	}
+}
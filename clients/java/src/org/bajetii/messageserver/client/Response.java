@@ -0,0 +1,53 @@
+package org.bajetii.messageserver.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Response is a response of the server; its status, headers and raw body.
+ * <p>
+ * Header names are case-insensitive. The body is kept as the bytes it was
+ * sent as; getBodyAsString decoding them as UTF-8.
+ */
+public class Response {
+
+	private final int status;
+	private final Map<String, String> headers;
+	private final byte[] body;
+
+	public Response(int status, Map<String, String> headers, byte[] body) {
+		this.status = status;
+		this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		this.headers.putAll(headers);
+		this.body = body;
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * getHeader returns the value of the given header; or null if absent.
+	 */
+	public String getHeader(String name) {
+		return this.headers.get(name);
+	}
+
+	public Map<String, String> getHeaders() {
+		return this.headers;
+	}
+
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	public String getBodyAsString() {
+		return new String(this.body, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return this.status + " " + this.getBodyAsString();
+	}
+}
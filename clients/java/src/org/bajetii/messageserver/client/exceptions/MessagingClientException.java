@@ -0,0 +1,24 @@
+package org.bajetii.messageserver.client.exceptions;
+
+import org.bajetii.messageserver.client.Response;
+
+/**
+ * MessagingClientException is thrown (or a future completed with it) when the
+ * server answers a request with an unexpected status.
+ */
+public class MessagingClientException extends RuntimeException {
+
+	/**
+	 * response is the Response of the server.
+	 */
+	private final Response response;
+
+	public MessagingClientException(Response response) {
+		super("Unexpected response: " + response);
+		this.response = response;
+	}
+
+	public Response getResponse() {
+		return this.response;
+	}
+}
@@ -1,35 +1,460 @@
 package org.bajetii.messageserver;
 
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-
-import com.sun.net.httpserver.HttpServer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.bajetii.messageserver.server.IMessagingServer;
 import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.binary.BinaryHandler;
+import org.bajetii.messageserver.server.binary.BinaryProtocol;
+import org.bajetii.messageserver.server.binary.BinaryTransport;
+import org.bajetii.messageserver.server.cluster.ClusterNode;
+import org.bajetii.messageserver.server.cluster.ClusteredMessagingServer;
+import org.bajetii.messageserver.server.cluster.HashRing;
+import org.bajetii.messageserver.server.cluster.PeerLink;
+import org.bajetii.messageserver.server.cluster.RoutingPolicy;
+import org.bajetii.messageserver.server.config.Configuration;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.config.exceptions.ConfigurationException;
+import org.bajetii.messageserver.server.handlers.AdminHandler;
+import org.bajetii.messageserver.server.handlers.Handler;
 import org.bajetii.messageserver.server.handlers.MainHandler;
+import org.bajetii.messageserver.server.logging.AsyncAppender;
+import org.bajetii.messageserver.server.logging.Level;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.replication.ReplicaMessagingServer;
+import org.bajetii.messageserver.server.replication.ReplicationFollower;
+import org.bajetii.messageserver.server.replication.ReplicationLog;
+import org.bajetii.messageserver.server.replication.ReplicationMode;
+import org.bajetii.messageserver.server.replication.ReplicationServer;
+import org.bajetii.messageserver.server.shards.ShardedMessagingServer;
+import org.bajetii.messageserver.server.storage.FsyncPolicy;
+import org.bajetii.messageserver.server.storage.Snapshotter;
+import org.bajetii.messageserver.server.storage.WriteAheadLog;
+import org.bajetii.messageserver.server.transport.ITransport;
+import org.bajetii.messageserver.server.transport.JdkHttpTransport;
+import org.bajetii.messageserver.server.transport.NioHttpTransport;
+import org.bajetii.messageserver.server.transport.WorkerPools;
 
 public class Main {
 
     /**
-     * main here starts a server running on port 8989 and listens and handles
-     * incoming requests.
+     * logger is the Logger of the Main.
+     */
+    private static final Logger logger = Logger.getLogger(Main.class);
+
+    /**
+     * main here starts a server listening on 'jmqp.port' (8989 by default)
+     * and handles incoming requests.
+     * <p>
+     * Every setting is read through a Configuration; from the system
+     * properties, the environment (e.g. JMQP_PORT), or the properties file
+     * named by 'jmqp.config', in that order of precedence.
+     * <p>
+     * The transport can be chosen through 'jmqp.transport'; either 'nio' (the
+     * default) or 'jdk'. The number of worker Threads and the connection
+     * backlog can be set through 'jmqp.workers' and 'jmqp.backlog'
+     * respectively. Setting 'jmqp.virtualThreads' to true runs every exchange
+     * on its own virtual Thread instead of on the pool of workers; which is
+     * refused on JVMs older than Java 21, lest the server fall back to a
+     * Thread per connection without saying so. The maximum
+     * size of a message body can be set through 'jmqp.maxBodyBytes'.
+     * <p>
+     * Setting 'jmqp.shards' to more than 0 partitions the queues across as
+     * many shards; each served by an event loop Thread of its own (see
+     * ShardedMessagingServer). A durable sharded server keeps the log of
+     * every shard in a subdirectory, and the snapshot of every shard in a
+     * file, of its own; named after the number of shards, which must thus
+     * stay the same across restarts for the messages to be recovered.
+     * <p>
+     * Setting 'jmqp.cluster.nodes' makes the server a node of a cluster
+     * partitioning the queues between its nodes by consistent hashing (see
+     * ClusteredMessagingServer). It lists every node of the cluster, the same
+     * on all of them, as comma separated 'name@host:port:clusterPort';
+     * 'jmqp.cluster.self' naming this one, whose port is the default of
+     * 'jmqp.port'. Every node serves its own queues to the others over the
+     * binary protocol on its clusterPort. Operations on the queues of other
+     * nodes are forwarded to them, or redirected to them if
+     * 'jmqp.cluster.routing' is 'redirect'; forwarded operations waiting for
+     * up to 'jmqp.cluster.requestTimeoutMillis'. Every node is placed on the
+     * hash ring 'jmqp.cluster.virtualNodes' times.
+     * <p>
+     * Setting 'jmqp.replication.port' has the server replicate its queues to
+     * the followers connecting to the given port (see ReplicationServer);
+     * the writes waiting for one of them if 'jmqp.replication.mode' is
+     * 'semi-sync' rather than 'async' (the default), for up to
+     * 'jmqp.replication.semiSyncTimeoutMillis'. The last
+     * 'jmqp.replication.backlogRecords' records are kept for followers which
+     * fall behind or reconnect; past them, a follower is sent a snapshot.
+     * Setting 'jmqp.replication.leader' to the 'host:port' of a leader's
+     * replication port makes the server a read-only follower of it instead
+     * (see ReplicaMessagingServer), which goes by 'jmqp.replication.name'
+     * and serves the reads of topics; redirecting everything else to the
+     * leader until promoted through '/bajetii/jmqp/admin/promote', upon which
+     * it serves followers of its own on 'jmqp.replication.port' if set.
+     * Replication is not supported alongside shards; and a follower cannot
+     * be a node of a cluster.
+     * <p>
+     * Setting 'jmqp.binary.port' has the server also speak its native binary
+     * protocol (see BinaryProtocol) on the given port; on the same pool of
+     * workers, and within the same limit on the size of messages.
+     * <p>
+     * Topic messages live for at most 'jmqp.topic.maxTimeoutSeconds' (30 by
+     * default); and get expired at a resolution of 'jmqp.topic.expiryTickMillis'.
+     * Personal queues hold 'jmqp.queue.capacity' messages each (10 by
+     * default); 'jmqp.queue.capacity.name.<name>' and
+     * 'jmqp.queue.capacity.prefix.<prefix>' setting the capacity of a single
+     * queue, respectively of those whose names start with the prefix. The
+     * capacities can be changed at runtime through the admin handler mounted
+     * on '/bajetii/jmqp/admin'; alongside the metrics of the server, in the
+     * Prometheus text format, on '/bajetii/jmqp/admin/metrics'. The depths
+     * of the 'jmqp.metrics.maxQueueSeries' deepest queues are exported
+     * individually.
+     * <p>
+     * Streaming subscriptions write out their messages on a pool of
+     * 'jmqp.stream.threads' Threads if set; or otherwise on virtual Threads
+     * where available, and on a cached pool of platform Threads if not.
+     * Their send buffers are of 'jmqp.stream.bufferBytes' each.
+     * <p>
+     * Setting 'jmqp.wal.dir' makes the server durable; with its messages
+     * logged within the given directory and recovered from it upon startup.
+     * The log is tuned through 'jmqp.wal.segmentBytes', 'jmqp.wal.fsync'
+     * (either 'always' (the default), 'interval' or 'never') and
+     * 'jmqp.wal.fsyncIntervalMillis'.
+     * <p>
+     * Alternatively; setting 'jmqp.snapshot.file' has the queues snapshotted
+     * to the given file every 'jmqp.snapshot.intervalMillis' and upon
+     * shutdown, and loaded back from it upon startup.
+     * <p>
+     * The server logs at 'jmqp.log.level' (INFO by default) to System.out;
+     * through an AsyncAppender holding up to 'jmqp.log.bufferSize' pending
+     * events, so that requests never wait on the console. The payloads of
+     * messages are only ever logged, at DEBUG, if 'jmqp.log.payloads' is set.
      */
     public static void main(String args[]) {
-        // NOTE: hardcoded timeout !!!
-        MessagingServer ms = new MessagingServer(30);
+        Configuration config = Configuration.load();
+
+        Logger.setLevel(Level.fromString(config.getString("jmqp.log.level", "INFO")));
+        Logger.setPayloadLogging(config.getBoolean("jmqp.log.payloads", false));
+
+        final AsyncAppender appender = new AsyncAppender(System.out, config.getInt("jmqp.log.bufferSize", 8192));
+        Logger.setAppender(appender).close();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> appender.close(), "jmqp-log-close"));
+
+        String walDirectory = config.getString("jmqp.wal.dir", null);
+        String snapshotFile = config.getString("jmqp.snapshot.file", null);
+
+        HashRing ring = null;
+        int self = -1;
+        String clusterNodes = config.getString("jmqp.cluster.nodes", null);
+        if(clusterNodes != null) {
+            ring = new HashRing(ClusterNode.parseList(clusterNodes),
+                config.getInt("jmqp.cluster.virtualNodes", HashRing.defaultVirtualNodes));
+            self = ring.indexOf(config.getString("jmqp.cluster.self", ""));
+
+            if(self < 0) {
+                throw new ConfigurationException("'jmqp.cluster.self' must name one of the 'jmqp.cluster.nodes'.");
+            }
+        }
 
-        HttpServer server;
+        int shards = config.getInt("jmqp.shards", 0);
+        int port = config.getInt("jmqp.port", (ring != null) ? ring.getNodes()[self].getPort() : 8989);
+        int binaryPort = config.getInt("jmqp.binary.port", 0);
+        int replicationPort = config.getInt("jmqp.replication.port", 0);
+        String replicationLeader = config.getString("jmqp.replication.leader", null);
+        String transportName = config.getString("jmqp.transport", "nio");
+        int workers = config.getInt("jmqp.workers", 2 * Runtime.getRuntime().availableProcessors());
+        int backlog = config.getInt("jmqp.backlog", 1024);
+        long maxBodyBytes = config.getLong("jmqp.maxBodyBytes", Handler.defaultMaxBodyBytes);
+
+        int maxTopicTimeout = config.getInt("jmqp.topic.maxTimeoutSeconds", 30);
+        long expiryTickMillis = config.getLong("jmqp.topic.expiryTickMillis", MessagingServer.defaultTimerWheelTickMillis);
+        QueueCapacities capacities = QueueCapacities.fromConfiguration(config, "jmqp.queue.capacity", MessagingServer.defaultPersonalCapacity);
+
+        int streamThreads = config.getInt("jmqp.stream.threads", 0);
+        long streamBufferBytes = config.getLong("jmqp.stream.bufferBytes", Handler.defaultStreamBufferBytes);
+
+        if(shards > 0 && (replicationPort > 0 || replicationLeader != null)) {
+            throw new ConfigurationException("Replication is not supported alongside 'jmqp.shards'.");
+        }
+        if(ring != null && replicationLeader != null) {
+            throw new ConfigurationException("A follower ('jmqp.replication.leader') cannot be a node of a cluster.");
+        }
+
+        ExecutorService executor = config.getBoolean("jmqp.virtualThreads", false)
+            ? WorkerPools.virtual()
+            : WorkerPools.fixed(workers);
+
+        ExecutorService streamExecutor;
+        if(streamThreads > 0) {
+            streamExecutor = Executors.newFixedThreadPool(streamThreads);
+        } else if(WorkerPools.isVirtualSupported()) {
+            streamExecutor = WorkerPools.virtual();
+        } else {
+            streamExecutor = Executors.newCachedThreadPool();
+        }
+
+        ITransport transport;
+        ReplicaMessagingServer replica = null;
         try {
-            // NOTE: hardcoded PORT !!!
-            server = HttpServer.create(new InetSocketAddress(8989), 100);
-            server.createContext("/bajetii/jmqp", new MainHandler(ms));
-            server.setExecutor(null);
-            server.start();
+            IMessagingServer ms;
+            if(shards > 0) {
+                MetricsRegistry metrics = new MetricsRegistry();
+                MessagingServer[] servers = new MessagingServer[shards];
+                String suffix = "-of-" + shards;
+
+                if(walDirectory != null) {
+                    warnOtherShardCounts(new File(walDirectory), suffix);
+                }
 
-            System.out.println("Messaging server started. Listening on 8989.");
-        } catch (IOException e) {
-            e.printStackTrace();
+                for(int i = 0; i < shards; i++) {
+                    String shard = Integer.toString(i);
+                    WriteAheadLog log = null;
+                    if(walDirectory != null) {
+                        log = openLog(config, new File(walDirectory, "shard-" + shard + suffix));
+                    }
+
+                    servers[i] = new MessagingServer(maxTopicTimeout, capacities, expiryTickMillis, log, metrics, "shard", shard);
+
+                    if(snapshotFile != null && walDirectory == null) {
+                        startSnapshotter(config, servers[i], new File(snapshotFile + ".shard-" + shard + suffix), "shard", shard);
+                    }
+                }
+
+                // long polls are completed on the workers; not the loops:
+                ShardedMessagingServer sharded = new ShardedMessagingServer(servers);
+                sharded.setCompletionExecutor(executor);
+                ms = sharded;
+                logger.info("Sharded the queues.", "shards", shards);
+            } else {
+                MessagingServer server;
+                if(walDirectory != null) {
+                    server = new MessagingServer(maxTopicTimeout, capacities, expiryTickMillis, openLog(config, new File(walDirectory)));
+                } else {
+                    server = new MessagingServer(maxTopicTimeout, capacities, expiryTickMillis);
+
+                    if(snapshotFile != null) {
+                        startSnapshotter(config, server, new File(snapshotFile));
+                    }
+                }
+
+                ms = server;
+                if(replicationLeader != null) {
+                    replica = startFollower(config, server, replicationLeader, replicationPort, port);
+                    ms = replica;
+                } else if(replicationPort > 0) {
+                    startReplication(config, server, replicationPort, port);
+                }
+            }
+            ms.setMaxQueueSeries(config.getInt("jmqp.metrics.maxQueueSeries", MessagingServer.defaultMaxQueueSeries));
+            ms.getMetrics().gauge("jmqp_log_events_dropped", "Log events dropped for the log buffer being full.",
+                () -> appender.getDroppedCount());
+
+            if(ring != null) {
+                ms = startCluster(config, ms, ring, self, backlog, maxBodyBytes, workers);
+            }
+
+            if(snapshotFile != null && walDirectory != null) {
+                logger.warn("Snapshots are disabled as the write-ahead log already makes the server durable.");
+            }
+
+            if(transportName.equalsIgnoreCase("jdk")) {
+                transport = new JdkHttpTransport(port, backlog, executor);
+            } else {
+                NioHttpTransport nioTransport = new NioHttpTransport(port, backlog, executor);
+                nioTransport.setMaxBodyBytes(maxBodyBytes);
+                transport = nioTransport;
+            }
+
+            MainHandler mainHandler = new MainHandler(ms);
+            mainHandler.setMaxBodyBytes(maxBodyBytes);
+            mainHandler.setStreaming(streamExecutor, streamBufferBytes);
+            transport.createContext("/bajetii/jmqp", mainHandler);
+            AdminHandler adminHandler = new AdminHandler(ms);
+            adminHandler.setReplica(replica);
+            transport.createContext("/bajetii/jmqp/admin", adminHandler);
+            transport.start();
+
+            logger.info("Messaging server started.", "transport", transportName, "port", port);
+
+            if(binaryPort > 0) {
+                BinaryTransport binaryTransport = new BinaryTransport(binaryPort, backlog, new BinaryHandler(ms), executor);
+                // a frame may hold a whole message on top of its header:
+                binaryTransport.setMaxFrameBytes((int) Math.min(maxBodyBytes + 2 * BinaryProtocol.requestHeaderBytes,
+                    Integer.MAX_VALUE));
+                binaryTransport.start();
+
+                ms.getMetrics().gauge("jmqp_binary_connections", "Open connections of the binary protocol.",
+                    () -> binaryTransport.getConnectionCount());
+                logger.info("Binary protocol started.", "port", binaryPort);
+            }
+        } catch(IOException e) {
+            logger.error("Could not start the messaging server.", e);
         }
     }
+
+    /**
+     * startCluster serves the given server's queues to the other nodes of the
+     * given HashRing on the cluster port of the node of the given index; and
+     * returns the ClusteredMessagingServer of the node.
+     * <p>
+     * The cluster port is served by a pool of workers of its own: those of
+     * the HTTP server wait for the operations they forward, and two nodes
+     * forwarding to each other would otherwise end up with all their workers
+     * waiting on one another.
+     */
+    private static ClusteredMessagingServer startCluster(Configuration config, IMessagingServer local, HashRing ring, int self,
+            int backlog, long maxBodyBytes, int workers) throws IOException {
+        ClusterNode node = ring.getNodes()[self];
+
+        ClusteredMessagingServer clustered = new ClusteredMessagingServer(local, ring, self,
+            RoutingPolicy.fromString(config.getString("jmqp.cluster.routing", "forward")),
+            config.getLong("jmqp.cluster.requestTimeoutMillis", PeerLink.defaultRequestTimeoutMillis));
+
+        BinaryTransport clusterTransport = new BinaryTransport(node.getClusterPort(), backlog, new BinaryHandler(local),
+            WorkerPools.fixed(workers));
+        // a forwarded batch holds the messages of a whole body; each with a
+        // header of its own:
+        clusterTransport.setMaxFrameBytes((int) Math.min(4 * maxBodyBytes + 2 * BinaryProtocol.requestHeaderBytes,
+            Integer.MAX_VALUE));
+        clusterTransport.start();
+
+        local.getMetrics().gauge("jmqp_cluster_connections", "Open connections from the other nodes of the cluster.",
+            () -> clusterTransport.getConnectionCount());
+        logger.info("Joined the cluster.", "node", node, "nodes", ring.size());
+        logger.info("Owning a share of the hash ring.", "share", String.format("%.3f", ring.getShare(self)));
+
+        return clustered;
+    }
+
+    /**
+     * startReplication has the given server replicated to the followers
+     * connecting to the given port; handing them the given HTTP port of the
+     * server, for them to redirect writes to.
+     */
+    private static ReplicationServer startReplication(Configuration config, MessagingServer server, int replicationPort,
+            int httpPort) throws IOException {
+        ReplicationLog log = new ReplicationLog(
+            config.getInt("jmqp.replication.backlogRecords", ReplicationLog.defaultBacklogRecords),
+            ReplicationMode.fromString(config.getString("jmqp.replication.mode", "async")),
+            config.getLong("jmqp.replication.semiSyncTimeoutMillis", ReplicationLog.defaultSemiSyncTimeoutMillis),
+            server.getMetrics());
+        server.replicate(log);
+
+        ReplicationServer replicationServer = new ReplicationServer(replicationPort, server, log, httpPort);
+        replicationServer.start();
+
+        server.getMetrics().gauge("jmqp_replication_sessions", "Open connections from followers.",
+            () -> replicationServer.getSessionCount());
+        logger.info("Serving followers.", "port", replicationPort, "mode", log.getMode());
+
+        return replicationServer;
+    }
+
+    /**
+     * startFollower has the given server follow the leader of the given
+     * 'host:port'; and returns the ReplicaMessagingServer of the follower.
+     * Upon promotion; the server serves followers of its own on the given
+     * replication port, if any.
+     * <p>
+     * @throws  ConfigurationException if the leader's address is invalid.
+     */
+    private static ReplicaMessagingServer startFollower(Configuration config, MessagingServer server, String leader,
+            int replicationPort, int httpPort) {
+        int colon = leader.lastIndexOf(':');
+        int leaderPort;
+        try {
+            leaderPort = Integer.parseInt(leader.substring(colon + 1));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("The leader must be given as 'host:port': '" + leader + "'.", e);
+        }
+        if(colon <= 0) {
+            throw new ConfigurationException("The leader must be given as 'host:port': '" + leader + "'.");
+        }
+
+        String name = config.getString("jmqp.replication.name", "node-" + httpPort);
+        ReplicationFollower follower = new ReplicationFollower(leader.substring(0, colon), leaderPort, name, server);
+
+        ReplicaMessagingServer replica = new ReplicaMessagingServer(server, follower, () -> {
+            if(replicationPort <= 0) {
+                return;
+            }
+
+            try {
+                startReplication(config, server, replicationPort, httpPort);
+            } catch(IOException e) {
+                logger.error("Could not serve followers after promotion.", e);
+            }
+        });
+
+        follower.start();
+        logger.info("Following a leader.", "leader", leader, "name", name);
+
+        return replica;
+    }
+
+    /**
+     * openLog opens the WriteAheadLog within the given directory; as set up
+     * through the given Configuration.
+     */
+    private static WriteAheadLog openLog(Configuration config, File directory) throws IOException {
+        return new WriteAheadLog(
+            directory,
+            config.getLong("jmqp.wal.segmentBytes", WriteAheadLog.defaultSegmentBytes),
+            FsyncPolicy.fromString(config.getString("jmqp.wal.fsync", "always")),
+            config.getLong("jmqp.wal.fsyncIntervalMillis", 10));
+    }
+
+    /**
+     * warnOtherShardCounts warns about the logs of shards left within the
+     * given directory by a server with another number of shards; as their
+     * messages are not recovered.
+     */
+    private static void warnOtherShardCounts(File directory, String suffix) {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        for(File file : files) {
+            if(file.getName().startsWith("shard-") && !file.getName().endsWith(suffix)) {
+                logger.warn("Ignoring the log of a shard of another number of shards.", "directory", file.getPath());
+            }
+        }
+    }
+
+    /**
+     * startSnapshotter loads the given MessagingServer from the given snapshot
+     * file and has it snapshotted periodically and upon shutdown; its metrics
+     * being registered under the given labels.
+     */
+    private static void startSnapshotter(Configuration config, MessagingServer server, File file, String... labels) throws IOException {
+        final Snapshotter snapshotter = new Snapshotter(server, file, config.getLong("jmqp.snapshot.intervalMillis", 60 * 1000));
+
+        snapshotter.load();
+        snapshotter.start();
+
+        server.getMetrics().gauge("jmqp_snapshots", "Snapshots taken since startup.",
+            () -> snapshotter.getSnapshotCount(), labels);
+        server.getMetrics().gauge("jmqp_snapshot_last_duration_seconds", "Time taken by the last snapshot.",
+            () -> snapshotter.getLastSnapshotMillis() / 1e3, labels);
+        server.getMetrics().gauge("jmqp_snapshot_last_bytes", "Size of the last snapshot.",
+            () -> snapshotter.getLastSnapshotBytes(), labels);
+        server.getMetrics().gauge("jmqp_snapshot_last_messages", "Messages in the last snapshot.",
+            () -> snapshotter.getLastSnapshotMessages(), labels);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            snapshotter.stop();
+            try {
+                snapshotter.snapshot();
+                logger.info("Final snapshot taken.", "file", file.getPath(), "messages", snapshotter.getLastSnapshotMessages());
+            } catch(IOException e) {
+                logger.error("Taking the final snapshot failed.", e);
+            }
+        }, "jmqp-final-snapshot"));
+    }
 }
@@ -0,0 +1,282 @@
+package org.bajetii.messageserver.server;
+
+
+import java.util.function.Consumer;
+
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * IMessagingServer represents all the operations the handlers carry out on a
+ * messaging server; be it a single MessagingServer, or several of them each
+ * owning a share of the queues (see ShardedMessagingServer).
+ * <p>
+ * People and topics are addressed either by name or by the numeric id they
+ * resolve to; ids remaining valid for as long as the server runs. All the
+ * operations are thread-safe.
+ */
+public interface IMessagingServer {
+
+    /**
+     * getMetrics returns the MetricsRegistry of the server; which other parts
+     * of the server register their own metrics with.
+     */
+    public MetricsRegistry getMetrics();
+
+    /**
+     * setMaxQueueSeries sets the number of the deepest queues (of each type)
+     * whose depths are exported individually.
+     */
+    public void setMaxQueueSeries(int maxQueueSeries);
+
+    /**
+     * getTimerWheel returns a TimerWheel of the server; which the handlers
+     * may schedule their own timeouts on.
+     */
+    public TimerWheel getTimerWheel();
+
+    /**
+     * getPersonalCapacities returns the QueueCapacities deciding the capacity
+     * of the personal queues; changes to which only apply to existing queues
+     * once they are resized.
+     */
+    public QueueCapacities getPersonalCapacities();
+
+    /**
+     * resizePersonalQueues resizes all the personal queues whose capacity no
+     * longer matches the one set for them.
+     * <p>
+     * @return  int     the number of queues which were resized.
+     */
+    public int resizePersonalQueues();
+
+    /**
+     * resolvePersonal returns the id of the given person; creating the
+     * person's queue first if need be.
+     */
+    public int resolvePersonal(String person);
+
+    /**
+     * resolveTopic returns the id of the given topic; creating the topic's
+     * queue first if need be.
+     */
+    public int resolveTopic(String topic);
+
+    /**
+     * getPersonalName returns the name of the person of the given id; or null
+     * if there is none.
+     */
+    public String getPersonalName(int id);
+
+    /**
+     * getTopicName returns the name of the topic of the given id; or null if
+     * there is none.
+     */
+    public String getTopicName(int id);
+
+    /**
+     * addPersonalMessage adds the given IMessage to the queue of the given
+     * person; creating it if need be.
+     * <p>
+     * @throws  MessageQueueFullException   if the queue is at maximum capacity
+     */
+    public void addPersonalMessage(String person, IMessage message);
+
+    /**
+     * addPersonalMessage adds the given IMessage to the queue of the person
+     * of the given id.
+     * <p>
+     * @throws  MessageQueueFullException   if the queue is at maximum capacity
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    public void addPersonalMessage(int id, IMessage message);
+
+    /**
+     * addTopicMessage adds the given IMessage to the queue of the given topic
+     * for the given number of seconds; creating it if need be.
+     */
+    public void addTopicMessage(String topic, IMessage message, int timeout);
+
+    /**
+     * addTopicMessage adds the given IMessage to the queue of the topic of
+     * the given id for the given number of seconds.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    public void addTopicMessage(int id, IMessage message, int timeout);
+
+    /**
+     * addPersonalMessages adds a batch of IMessages to the queues of their
+     * respective recipients.
+     * <p>
+     * @return  boolean[]   whether each of the messages was accepted.
+     */
+    public boolean[] addPersonalMessages(String[] people, IMessage[] messages);
+
+    /**
+     * addTopicMessages adds a batch of IMessages to the queues of their
+     * respective topics; each for its own timeout.
+     */
+    public void addTopicMessages(String[] topics, IMessage[] messages, int[] timeouts);
+
+    /**
+     * getRawPersonalMessage pops the first IMessage off the queue of the
+     * given person.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException
+     * @throws  MessageQueueEmptyException
+     */
+    public IMessage getRawPersonalMessage(String person);
+
+    /**
+     * getRawPersonalMessages pops at most the given number of IMessages off
+     * the queue of the given person.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException
+     */
+    public IMessage[] getRawPersonalMessages(String person, int maxMessages);
+
+    /**
+     * getRawPersonalMessages pops at most the given number of IMessages off
+     * the queue of the person of the given id.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException
+     */
+    public IMessage[] getRawPersonalMessages(int id, int maxMessages);
+
+    /**
+     * getRawTopicMessage returns the first IMessage of the queue of the given
+     * topic.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     * @throws  MessageQueueEmptyException
+     */
+    public IMessage getRawTopicMessage(String topic);
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the given topic.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     */
+    public IMessage[] getRawTopicMessages(String topic, int maxMessages);
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     */
+    public IMessage[] getRawTopicMessages(int id, int maxMessages);
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the given topic which the given subscriber has not read
+     * yet.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     */
+    public IMessage[] getRawTopicMessages(String topic, String subscriber, int maxMessages);
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id which the given subscriber has
+     * not read yet.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     */
+    public IMessage[] getRawTopicMessages(int id, String subscriber, int maxMessages);
+
+    /**
+     * awaitPersonalMessages pops at most the given number of IMessages off the
+     * queue of the given person; waiting for up to the given number of
+     * milliseconds for some to arrive if there are none. The messages (none
+     * if the wait is over) are handed to the given Consumer; possibly before
+     * this method returns.
+     */
+    public void awaitPersonalMessages(String person, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * awaitPersonalMessages is awaitPersonalMessages for the person of the
+     * given id.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    public void awaitPersonalMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue of the given topic; waiting for up to the given number of
+     * milliseconds for some to arrive if there are none.
+     */
+    public void awaitTopicMessages(String topic, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * awaitTopicMessages is awaitTopicMessages for the topic of the given id.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    public void awaitTopicMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue of the given topic which the given subscriber has not read
+     * yet; waiting for up to the given number of milliseconds for some to
+     * arrive if there are none.
+     */
+    public void awaitTopicMessages(String topic, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * awaitTopicMessages is awaitTopicMessages for the given subscriber of
+     * the topic of the given id.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    public void awaitTopicMessages(int id, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete);
+
+    /**
+     * checkPersonalSubscription checks that the messages of the given person
+     * may be streamed off this server; before any of the stream is sent out,
+     * as subscribePersonal may only fail once the response is under way.
+     * <p>
+     * @throws  MisroutedException if another node of the cluster owns the
+     *          person's queue.
+     * @throws  ReadOnlyReplicaException if the server is a read-only
+     *          follower.
+     */
+    public void checkPersonalSubscription(String person);
+
+    /**
+     * checkTopicSubscription checks that the messages of the given topic may
+     * be streamed off this server; before any of the stream is sent out.
+     * <p>
+     * @throws  MisroutedException if another node of the cluster owns the
+     *          topic's queue.
+     */
+    public void checkTopicSubscription(String topic);
+
+    /**
+     * subscribePersonal has the messages of the given person pushed to the
+     * given IMessageSink as they arrive.
+     * <p>
+     * @return  MessageSubscription the subscription; to be cancelled once the
+     *                              sink is done with.
+     */
+    public MessageSubscription subscribePersonal(String person, IMessageSink sink);
+
+    /**
+     * subscribeTopic has the messages of the given topic pushed to the given
+     * IMessageSink as they arrive; read from the cursor of the given
+     * subscriber, or only those to come if it is null.
+     * <p>
+     * @return  MessageSubscription the subscription; to be cancelled once the
+     *                              sink is done with.
+     */
+    public MessageSubscription subscribeTopic(String topic, String subscriber, IMessageSink sink);
+
+}
@@ -2,25 +2,88 @@ package org.bajetii.messageserver.server;
 
 
 import java.util.HashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.destinations.Destination;
+import org.bajetii.messageserver.server.destinations.DestinationTable;
 import org.bajetii.messageserver.server.exceptions.MessageServerPersonNotFoundException;
 import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
+import org.bajetii.messageserver.server.logging.Logger;
 import org.bajetii.messageserver.server.messages.IMessage;
 import org.bajetii.messageserver.server.messages.StringMessage;
 import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.metrics.PrometheusWriter;
 import org.bajetii.messageserver.server.queues.IMessageQueue;
-import org.bajetii.messageserver.server.queues.PersonalMessageQueue;
+import org.bajetii.messageserver.server.queues.IMessageListener;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.queues.MessageWaiter;
+import org.bajetii.messageserver.server.queues.RingBufferMessageQueue;
 import org.bajetii.messageserver.server.queues.TopicMessageQueue;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+import org.bajetii.messageserver.server.replication.ReplicatedMessage;
+import org.bajetii.messageserver.server.replication.ReplicationLog;
+import org.bajetii.messageserver.server.storage.LogMessage;
+import org.bajetii.messageserver.server.storage.LogRecord;
+import org.bajetii.messageserver.server.storage.WriteAheadLog;
+import org.bajetii.messageserver.server.timers.TimerWheel;
 
 
 /**
  * MessagingServer is the class of the main messaging server.
  * <p>
- * All of the hazardous methods performed by the server are performed under the
- * protection of their respective monitor locks.
+ * The queues are kept in concurrent registries (DestinationTables); looking
+ * a queue up never blocks, and creating one is done atomically, so requests
+ * for unrelated people and topics never contend with one another. All
+ * further thread-safety is the responsibility of the queues themselves.
+ * <p>
+ * Every person and topic is interned into a numeric id upon creation of its
+ * queue; by which it may be addressed from then on, for as long as the
+ * server runs. Operations addressed by id skip hashing names altogether;
+ * and those addressed by name look the destination up once, holding on to
+ * it (queue, listeners and all) for the rest of the operation.
+ * <p>
+ * A MessagingServer may optionally be durable; in which case every message
+ * is appended to a WriteAheadLog (and synced as per its FsyncPolicy) before
+ * being accepted, the queues holding the messages as they reside within the
+ * log. Consumed personal messages are acknowledged in the log; and all the
+ * messages left in the log are recovered into the queues upon startup.
+ * <p>
+ * The capacity of every personal queue is decided by the QueueCapacities of
+ * the server; which may be changed at runtime. A queue's capacity is changed
+ * in place so long as it fits the slots of its ring buffer. Past them, a
+ * larger queue is swapped in for it and its messages moved over; producers
+ * which raced the swap and added to the old queue notice it right after
+ * adding, and move their message over too.
+ * <p>
+ * The server keeps its metrics in a MetricsRegistry: the messages enqueued,
+ * dequeued and rejected are counted as they go, whereas the depths of the
+ * queues, the expired messages and the state of the TimerWheel and log are
+ * only looked at upon scraping. A MessagingServer which is one of the Shards
+ * of a ShardedMessagingServer shares its MetricsRegistry with the other ones;
+ * its own metrics being told apart by their labels.
+ * <p>
+ * A MessagingServer may also be replicated to followers; in which case every
+ * message is added to its queue through the ReplicationLog, and every
+ * personal message leaving its queue is recorded there as removed. The
+ * writes of a SEMI_SYNC log wait for a follower to have received them before
+ * returning; after the WriteAheadLog was synced, if any.
  */
-public class MessagingServer {
+public class MessagingServer implements IMessagingServer {
+
+    /**
+     * logger is the Logger of the MessagingServer.
+     */
+    private static final Logger logger = Logger.getLogger(MessagingServer.class);
 
     /**
      * maxServerTimeout is the maximum timeout in Seconds that
@@ -32,36 +95,168 @@ public class MessagingServer {
     private int maxServerTimeout;
 
     /**
-     * personalQueuesLock is the Lock which guards access to the
-     * map of personal queues.
+     * personalDestinations is a concurrent association between the String
+     * names (and ids) of people which use the messaging server an their
+     * respective queue.
+     */
+    private DestinationTable<RingBufferMessageQueue> personalDestinations = new DestinationTable<RingBufferMessageQueue>(
+        (n) -> new RingBufferMessageQueue(this.personalCapacities.getCapacity(n)));
+
+    /**
+     * defaultPersonalCapacity is the default capacity of the personal queues.
+     */
+    public static final int defaultPersonalCapacity = 10;
+
+    /**
+     * personalCapacities decides the capacity of every personal queue.
+     */
+    private QueueCapacities personalCapacities;
+
+    /**
+     * topicDestinations is a concurrent mapping between the String titles
+     * (and ids) of topics and the the messaging queue associated to that
+     * respective topic.
+     * <p>
+     * The Destinations of both also hold the IMessageListeners (the
+     * MessageWaiters and MessageSubscriptions) parked on their queue.
+     */
+    private DestinationTable<TopicMessageQueue> topicDestinations = new DestinationTable<TopicMessageQueue>(
+        (t) -> new TopicMessageQueue(this.timerWheel));
+
+    /**
+     * anonymousSubscribers counts the subscriptions to topics made without a
+     * subscriber name; so that each of them gets a cursor of its own.
+     */
+    private AtomicLong anonymousSubscribers = new AtomicLong(0);
+
+    /**
+     * defaultTimerWheelTickMillis is the default resolution in milliseconds at
+     * which topic messages get expired.
+     */
+    public static final long defaultTimerWheelTickMillis = 100;
+
+    /**
+     * timerWheel is the single TimerWheel shared by all the topic queues on
+     * the server for expiring their messages.
+     */
+    private TimerWheel timerWheel;
+
+    /**
+     * log is the WriteAheadLog of a durable server; or null.
+     */
+    private WriteAheadLog log = null;
+
+    /**
+     * replication is the ReplicationLog of a replicated server; or null.
+     */
+    private volatile ReplicationLog replication = null;
+
+    /**
+     * metrics is the MetricsRegistry of the server; with labels being the
+     * names and values of the labels added to all of the server's own
+     * metrics (e.g. the shard it is), alternately.
      */
-    private ReentrantLock personalQueuesLock = new ReentrantLock();
+    private final MetricsRegistry metrics;
+    private final String[] labels;
 
     /**
-     * personalQueues is a simple association between the String names of
-     * people which use the messaging server an their respective queue.
+     * personalEnqueued, topicEnqueued, personalDequeued and topicDequeued
+     * count the messages added to and read off the queues; a topic message
+     * being dequeued every time it is delivered to a reader.
+     * personalRejected counts those rejected by full personal queues.
      */
-    private HashMap<String, IMessageQueue> personalQueues = new HashMap<String, IMessageQueue>();
+    private final Counter personalEnqueued;
+    private final Counter topicEnqueued;
+    private final Counter personalDequeued;
+    private final Counter topicDequeued;
+    private final Counter personalRejected;
 
     /**
-     * topicQueuesLock is the Lock which guards access to the
-     * map of topic queues.
+     * defaultMaxQueueSeries is the default number of queues whose depths are
+     * exported individually.
      */
-    private ReentrantLock topicQueuesLock = new ReentrantLock();
+    public static final int defaultMaxQueueSeries = 100;
 
     /**
-     * topicQueues is a simple mapping between the String titles of topics and
-     * the the messaging queue associated to that respective topic.
+     * maxQueueSeries is the number of the deepest queues (of each type) whose
+     * depths are exported individually; so that servers with many queues do
+     * not export as many series.
      */
-    private HashMap<String, IMessageQueue> topicQueues = new HashMap<String, IMessageQueue>();
+    private volatile int maxQueueSeries = defaultMaxQueueSeries;
 
 
     /**
-     * A messaging server is created given...
-     * TODO: maxTimeout, port
+     * A messaging server is created given the maximum timeout in seconds of
+     * its topic messages; with the default capacities and expiry resolution.
      */
     public MessagingServer(int maxServerTimeout) {
+        this(maxServerTimeout, new QueueCapacities(defaultPersonalCapacity), defaultTimerWheelTickMillis);
+    }
+
+    /**
+     * A messaging server is created given the maximum timeout in seconds of
+     * its topic messages, the QueueCapacities of its personal queues and the
+     * resolution in milliseconds at which its topic messages get expired.
+     */
+    public MessagingServer(int maxServerTimeout, QueueCapacities personalCapacities, long timerWheelTickMillis) {
+        this(maxServerTimeout, personalCapacities, timerWheelTickMillis, null, new MetricsRegistry());
+    }
+
+    /**
+     * A durable messaging server is created given the WriteAheadLog its
+     * messages are to be appended to; the messages recovered from the log
+     * being put back into their queues straight away.
+     */
+    public MessagingServer(int maxServerTimeout, WriteAheadLog log) {
+        this(maxServerTimeout, new QueueCapacities(defaultPersonalCapacity), defaultTimerWheelTickMillis, log);
+    }
+
+    /**
+     * A durable messaging server is created given the WriteAheadLog its
+     * messages are to be appended to; alongside the rest of its settings.
+     */
+    public MessagingServer(int maxServerTimeout, QueueCapacities personalCapacities, long timerWheelTickMillis, WriteAheadLog log) {
+        this(maxServerTimeout, personalCapacities, timerWheelTickMillis, log, new MetricsRegistry());
+    }
+
+    /**
+     * A messaging server is created given all of its settings; alongside the
+     * MetricsRegistry its metrics are to be registered with, and the labels
+     * to be added to them. Several servers may thus share a single registry;
+     * each under labels of its own.
+     * <p>
+     * @param   maxServerTimeout        the maximum timeout of topic messages.
+     * @param   personalCapacities      the QueueCapacities of the personal queues.
+     * @param   timerWheelTickMillis    the resolution of the expiry of topic messages.
+     * @param   log                     the WriteAheadLog of a durable server; or null.
+     * @param   metrics                 the MetricsRegistry of the server.
+     * @param   labels                  the names and values of the labels; alternately.
+     */
+    public MessagingServer(int maxServerTimeout, QueueCapacities personalCapacities, long timerWheelTickMillis, WriteAheadLog log,
+            MetricsRegistry metrics, String... labels) {
         this.maxServerTimeout = maxServerTimeout;
+        this.personalCapacities = personalCapacities;
+        this.timerWheel = new TimerWheel(timerWheelTickMillis);
+        this.metrics = metrics;
+        this.labels = labels.clone();
+
+        this.personalEnqueued = this.metrics.counter("jmqp_messages_enqueued_total",
+            "Messages added to the queues.", this.labelled("type", "personal"));
+        this.topicEnqueued = this.metrics.counter("jmqp_messages_enqueued_total",
+            "Messages added to the queues.", this.labelled("type", "topic"));
+        this.personalDequeued = this.metrics.counter("jmqp_messages_dequeued_total",
+            "Messages read off the queues; popped for personal ones, delivered to a reader for topics.", this.labelled("type", "personal"));
+        this.topicDequeued = this.metrics.counter("jmqp_messages_dequeued_total",
+            "Messages read off the queues; popped for personal ones, delivered to a reader for topics.", this.labelled("type", "topic"));
+        this.personalRejected = this.metrics.counter("jmqp_messages_rejected_total",
+            "Messages rejected for their queue being full.", this.labelled("type", "personal"));
+
+        this.metrics.register((writer) -> this.collect(writer));
+
+        if(log != null) {
+            this.log = log;
+            this.recover();
+        }
     }
 
     /**
@@ -76,26 +271,183 @@ public class MessagingServer {
     }
 
     /**
-     * addPersonalQueue creates a new entry in the personalQueues HashMap
-     * with the given name and an empty PersonalMessageQueue.
+     * getMetrics returns the MetricsRegistry of this server; which other
+     * parts of the server register their own metrics with.
+     */
+    @Override
+    public MetricsRegistry getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * setMaxQueueSeries sets the number of the deepest queues (of each type)
+     * whose depths are exported individually.
+     */
+    @Override
+    public void setMaxQueueSeries(int maxQueueSeries) {
+        this.maxQueueSeries = maxQueueSeries;
+    }
+
+    /**
+     * getTimerWheel returns the TimerWheel expiring the topic messages on
+     * this server; mainly so its metrics may be inspected.
+     */
+    @Override
+    public TimerWheel getTimerWheel() {
+        return this.timerWheel;
+    }
+
+    /**
+     * getPersonalCapacities returns the QueueCapacities deciding the capacity
+     * of the personal queues; changes to which only apply to existing queues
+     * once they are resized.
+     */
+    @Override
+    public QueueCapacities getPersonalCapacities() {
+        return this.personalCapacities;
+    }
+
+    /**
+     * addPersonalQueue atomically creates a new entry in the personal
+     * registry with the given name and an empty lock-free
+     * RingBufferMessageQueue of the capacity set for it; unless one already
+     * exists.
+     * <p>
+     *
+     * @param   name            the name of the person the new MessagingQueue is for.
+     * @return  IMessageQueue   the (possibly pre-existing) queue of the person.
+     */
+    public IMessageQueue addPersonalQueue(String name) {
+        return this.personalDestinations.intern(name).getQueue();
+    }
+
+    /**
+     * resolvePersonal returns the id of the given person; creating the
+     * person's queue first if need be, just like posting to it would.
+     * <p>
+     * @param   person  the name of the person.
+     * @return  int     the id the person may be addressed by from now on.
+     */
+    @Override
+    public int resolvePersonal(String person) {
+        return this.personalDestinations.intern(person).getId();
+    }
+
+    /**
+     * resolveTopic returns the id of the given topic; creating the topic's
+     * queue first if need be.
+     * <p>
+     * @param   topic   the name of the topic.
+     * @return  int     the id the topic may be addressed by from now on.
+     */
+    @Override
+    public int resolveTopic(String topic) {
+        return this.topicDestinations.intern(topic).getId();
+    }
+
+    /**
+     * getPersonalName returns the interned name of the person of the given
+     * id; or null if there is none.
+     * <p>
+     * Looking the person up by the returned String instance, rather than by
+     * an equal one, spares comparing their characters.
+     */
+    @Override
+    public String getPersonalName(int id) {
+        Destination<RingBufferMessageQueue> destination = this.personalDestinations.get(id);
+
+        return (destination == null) ? null : destination.getName();
+    }
+
+    /**
+     * getTopicName returns the interned name of the topic of the given id; or
+     * null if there is none.
+     */
+    @Override
+    public String getTopicName(int id) {
+        Destination<TopicMessageQueue> destination = this.topicDestinations.get(id);
+
+        return (destination == null) ? null : destination.getName();
+    }
+
+    /**
+     * resizePersonalQueues resizes all the personal queues whose capacity no
+     * longer matches the one set for them.
+     * <p>
+     * @return  int     the number of queues which were resized.
+     */
+    @Override
+    public int resizePersonalQueues() {
+        int resized = 0;
+
+        for(Destination<RingBufferMessageQueue> destination : this.personalDestinations.values()) {
+            if(this.resizePersonalQueue(destination)) {
+                resized++;
+            }
+        }
+
+        return resized;
+    }
+
+    /**
+     * resizePersonalQueue resizes the queue of the given person if its
+     * capacity no longer matches the one set for it.
      * <p>
+     * Shrinking a queue drops none of its messages; new ones are rejected
+     * until enough have been read. A queue grown past its slots is replaced
+     * by one with room for the new capacity on top of the old one; so that
+     * the messages moved over always fit. These are swapped in first and
+     * moved over afterwards; messages added in the meantime may thus be read
+     * before some of the older ones.
      *
-     * @param   name    the name of the person the new MessagingQueue is for.
+     * @param   person  the name of the person.
+     * @return  boolean whether the queue was resized.
+     */
+    public boolean resizePersonalQueue(String person) {
+        Destination<RingBufferMessageQueue> destination = this.personalDestinations.get(person);
+        if(destination == null) {
+            return false;
+        }
+
+        return this.resizePersonalQueue(destination);
+    }
+
+    /**
+     * resizePersonalQueue resizes the queue of the given Destination if its
+     * capacity no longer matches the one set for it.
      */
-    public void addPersonalQueue(String name) {
-        this.personalQueuesLock.lock();
-        this.personalQueues.put(name, new PersonalMessageQueue(10)); // NOTE
-        this.personalQueuesLock.unlock();
+    private boolean resizePersonalQueue(Destination<RingBufferMessageQueue> destination) {
+        RingBufferMessageQueue queue = destination.getQueue();
+
+        int capacity = this.personalCapacities.getCapacity(destination.getName());
+        if(capacity == queue.getCapacity()) {
+            return false;
+        }
+
+        if(queue.setCapacity(capacity)) {
+            this.signal(destination);
+            return true;
+        }
+
+        RingBufferMessageQueue resized = new RingBufferMessageQueue(capacity, capacity + queue.getSlots());
+        if(!destination.replaceQueue(queue, resized)) {
+            // resized concurrently:
+            return false;
+        }
+
+        this.migrate(destination, queue, resized);
+        return true;
     }
 
     /**
-     * addTopicQueue creates a new entry in the topicQueues HashMap with
-     * the given name and an empty TopicMessageQueue.
+     * addTopicQueue atomically creates a new entry in the topic registry with
+     * the given name and an empty TopicMessageQueue; unless one already exists.
+     * <p>
+     * @param   topic           the name of the topic the new MessagingQueue is for.
+     * @return  TopicMessageQueue   the (possibly pre-existing) queue of the topic.
      */
-    public void addTopicQueue(String topic) {
-        this.topicQueuesLock.lock();
-        this.topicQueues.put(topic, new TopicMessageQueue(5)); // NOTE
-        this.topicQueuesLock.unlock();
+    public TopicMessageQueue addTopicQueue(String topic) {
+        return this.topicDestinations.intern(topic).getQueue();
     }
 
     /**
@@ -108,11 +460,86 @@ public class MessagingServer {
      * @param   message String contents of the message to be sent.
      */
     public void addPersonalMessage(String person, String message) {
-        if(this.personalQueues.get(person) == null) {
-            this.addPersonalQueue(person);
+        this.addPersonalMessage(person, new StringMessage(message));
+    }
+
+    /**
+     * addPersonalMessage adds the given IMessage inside the queue of the
+     * specified person's name for later reading.
+     * <p>
+     * The IMessage is stored as-is; so raw ByteBufferMessages are served back
+     * without ever being transcoded.
+     *
+     * @param   person  String name of the recipient of the message.
+     * @param   message IMessage to be sent.
+     */
+    @Override
+    public void addPersonalMessage(String person, IMessage message) {
+        this.awaitDurable(this.postPersonalMessage(person, message));
+    }
+
+    /**
+     * addPersonalMessage adds the given IMessage inside the queue of the
+     * person of the given id.
+     *
+     * @param   id      int id of the recipient of the message.
+     * @param   message IMessage to be sent.
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    @Override
+    public void addPersonalMessage(int id, IMessage message) {
+        this.awaitDurable(this.postPersonalMessage(id, message));
+    }
+
+    /**
+     * postPersonalMessage adds the given IMessage inside the queue of the
+     * specified person's name; without waiting for it to be durable.
+     * <p>
+     * The message is readable straight away; and durable once awaitDurable
+     * returns with the LogMessage returned, which may be waited for on
+     * another Thread than the one the message was posted on.
+     *
+     * @param   person      String name of the recipient of the message.
+     * @param   message     IMessage to be sent.
+     * @return  LogMessage  the message as logged; or null if the server is
+     *                      not durable.
+     */
+    public LogMessage postPersonalMessage(String person, IMessage message) {
+        return this.postPersonalMessage(this.personalDestinations.intern(person), message);
+    }
+
+    /**
+     * postPersonalMessage adds the given IMessage inside the queue of the
+     * person of the given id; without waiting for it to be durable.
+     *
+     * @param   id          int id of the recipient of the message.
+     * @param   message     IMessage to be sent.
+     * @return  LogMessage  the message as logged; or null if the server is
+     *                      not durable.
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    public LogMessage postPersonalMessage(int id, IMessage message) {
+        return this.postPersonalMessage(this.getPersonalDestination(id), message);
+    }
+
+    /**
+     * postPersonalMessage is the helper method which adds the given IMessage
+     * inside the queue of the given Destination.
+     */
+    private LogMessage postPersonalMessage(Destination<RingBufferMessageQueue> destination, IMessage message) {
+        RingBufferMessageQueue queue = destination.getQueue();
+        LogMessage logged = null;
+
+        if(this.log != null) {
+            logged = this.log.appendPersonal(destination.getName(), message);
+            message = logged;
         }
 
-        this.personalQueues.get(person).addMessage(new StringMessage(message));
+        this.enqueuePersonal(destination, queue, message);
+        this.signal(destination);
+        this.sync();
+
+        return logged;
     }
 
      /**
@@ -129,19 +556,259 @@ public class MessagingServer {
      * @param   timeout int representing the timeout of the message.
      */
     public void addTopicMessage(String topic, String message, int timeout) {
+        this.addTopicMessage(topic, new StringMessage(message), timeout);
+    }
+
+    /**
+     * addTopicMessage adds the given IMessage inside the queue of the
+     * specified topic's name for later reading.
+     * <p>
+     * The IMessage is wrapped as the payload of a TopicMessage as-is.
+     *
+     * @param   topic   String name of the topic for the message.
+     * @param   message IMessage to be sent.
+     * @param   timeout int representing the timeout of the message.
+     */
+    @Override
+    public void addTopicMessage(String topic, IMessage message, int timeout) {
+        this.awaitDurable(this.postTopicMessage(topic, message, timeout));
+    }
+
+    /**
+     * addTopicMessage adds the given IMessage inside the queue of the topic of
+     * the given id.
+     *
+     * @param   id      int id of the topic for the message.
+     * @param   message IMessage to be sent.
+     * @param   timeout int representing the timeout of the message.
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    @Override
+    public void addTopicMessage(int id, IMessage message, int timeout) {
+        this.awaitDurable(this.postTopicMessage(id, message, timeout));
+    }
+
+    /**
+     * postTopicMessage adds the given IMessage inside the queue of the
+     * specified topic's name; without waiting for it to be durable.
+     *
+     * @param   topic       String name of the topic for the message.
+     * @param   message     IMessage to be sent.
+     * @param   timeout     int representing the timeout of the message.
+     * @return  LogMessage  the message as logged; or null if the server is
+     *                      not durable.
+     */
+    public LogMessage postTopicMessage(String topic, IMessage message, int timeout) {
+        return this.postTopicMessage(this.topicDestinations.intern(topic), message, timeout);
+    }
+
+    /**
+     * postTopicMessage adds the given IMessage inside the queue of the topic
+     * of the given id; without waiting for it to be durable.
+     *
+     * @param   id          int id of the topic for the message.
+     * @param   message     IMessage to be sent.
+     * @param   timeout     int representing the timeout of the message.
+     * @return  LogMessage  the message as logged; or null if the server is
+     *                      not durable.
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    public LogMessage postTopicMessage(int id, IMessage message, int timeout) {
+        return this.postTopicMessage(this.getTopicDestination(id), message, timeout);
+    }
+
+    /**
+     * postTopicMessage is the helper method which adds the given IMessage
+     * inside the queue of the given Destination.
+     */
+    private LogMessage postTopicMessage(Destination<TopicMessageQueue> destination, IMessage message, int timeout) {
         // first; choose the smaller limit between the one set on the server
         // and the one that came with the message.
         // NOTE: LOLs @ ternary operator.
         int tout = (this.maxServerTimeout < timeout) ? this.maxServerTimeout : timeout;
+        long deadline = System.currentTimeMillis() + 1000L * tout;
+        LogMessage logged = null;
+
+        if(this.log != null) {
+            logged = this.log.appendTopic(destination.getName(), message, deadline);
+            message = logged;
+        }
+
+        this.enqueueTopic(destination, message, deadline);
+        this.topicEnqueued.increment();
+        this.signal(destination);
+        this.sync();
+
+        return logged;
+    }
+
+    /**
+     * addPersonalMessages adds a batch of IMessages to the queues of their
+     * respective recipients.
+     * <p>
+     * Each distinct recipient's queue is looked up (or created) only once for
+     * the whole batch. A full queue only rejects the messages which did not
+     * fit; the rest of the batch is added regardless.
+     *
+     * @param   people      String names of the recipients of each message.
+     * @param   messages    IMessages to be sent.
+     * @return  boolean[]   whether each of the messages was accepted.
+     */
+    @Override
+    public boolean[] addPersonalMessages(String[] people, IMessage[] messages) {
+        boolean[] accepted = new boolean[messages.length];
+        this.awaitDurable(this.postPersonalMessages(people, messages, accepted));
+
+        return accepted;
+    }
+
+    /**
+     * postPersonalMessages adds a batch of IMessages to the queues of their
+     * respective recipients; without waiting for them to be durable.
+     *
+     * @param   people      String names of the recipients of each message.
+     * @param   messages    IMessages to be sent.
+     * @param   accepted    boolean[] filled with whether each of the messages
+     *                      was accepted.
+     * @return  LogMessage  the last message of the batch as logged; or null
+     *                      if the server is not durable.
+     */
+    public LogMessage postPersonalMessages(String[] people, IMessage[] messages, boolean[] accepted) {
+        HashMap<String, Destination<RingBufferMessageQueue>> destinations = new HashMap<String, Destination<RingBufferMessageQueue>>();
+        LogMessage last = null;
+
+        // the whole batch is appended to the log; to be synced in one go:
+        if(this.log != null && messages.length > 0) {
+            IMessage[] logged = new IMessage[messages.length];
+            for(int i = 0; i < messages.length; i++) {
+                logged[i] = this.log.appendPersonal(people[i], messages[i]);
+            }
+            last = (LogMessage) logged[messages.length - 1];
+            messages = logged;
+        }
+
+        for(int i = 0; i < messages.length; i++) {
+            Destination<RingBufferMessageQueue> destination = destinations.get(people[i]);
+            if(destination == null) {
+                destination = this.personalDestinations.intern(people[i]);
+                destinations.put(people[i], destination);
+            }
+
+            try {
+                this.enqueuePersonal(destination, destination.getQueue(), messages[i]);
+                accepted[i] = true;
+            } catch(MessageQueueFullException e) {
+                accepted[i] = false;
+            }
+        }
+
+        for(Destination<RingBufferMessageQueue> destination : destinations.values()) {
+            this.signal(destination);
+        }
+        this.sync();
+
+        return last;
+    }
+
+    /**
+     * addTopicMessages adds a batch of IMessages to the queues of their
+     * respective topics.
+     * <p>
+     * Each distinct topic's queue is looked up (or created) only once for the
+     * whole batch; and every timeout is clamped to the server's maximum just
+     * like with addTopicMessage.
+     *
+     * @param   topics      String names of the topics of each message.
+     * @param   messages    IMessages to be sent.
+     * @param   timeouts    int timeouts of each message.
+     */
+    @Override
+    public void addTopicMessages(String[] topics, IMessage[] messages, int[] timeouts) {
+        this.awaitDurable(this.postTopicMessages(topics, messages, timeouts));
+    }
+
+    /**
+     * postTopicMessages adds a batch of IMessages to the queues of their
+     * respective topics; without waiting for them to be durable.
+     *
+     * @param   topics      String names of the topics of each message.
+     * @param   messages    IMessages to be sent.
+     * @param   timeouts    int timeouts of each message.
+     * @return  LogMessage  the last message of the batch as logged; or null
+     *                      if the server is not durable.
+     */
+    public LogMessage postTopicMessages(String[] topics, IMessage[] messages, int[] timeouts) {
+        long now = System.currentTimeMillis();
+        long[] deadlines = new long[messages.length];
+
+        for(int i = 0; i < messages.length; i++) {
+            int tout = (this.maxServerTimeout < timeouts[i]) ? this.maxServerTimeout : timeouts[i];
+            deadlines[i] = now + 1000L * tout;
+        }
+
+        return this.postTopicMessages(topics, messages, deadlines);
+    }
+
+    /**
+     * addTopicMessages adds a batch of IMessages to the queues of their
+     * respective topics; by the given deadlines, as they are (e.g. those the
+     * messages have on the leader being followed).
+     *
+     * @param   topics      String names of the topics of each message.
+     * @param   messages    IMessages to be sent.
+     * @param   deadlines   long deadlines of each message; in milliseconds
+     *                      since the epoch.
+     */
+    public void addTopicMessages(String[] topics, IMessage[] messages, long[] deadlines) {
+        this.awaitDurable(this.postTopicMessages(topics, messages, deadlines));
+    }
+
+    /**
+     * postTopicMessages is the helper method which adds a batch of IMessages
+     * to the queues of their respective topics by the given deadlines.
+     */
+    private LogMessage postTopicMessages(String[] topics, IMessage[] messages, long[] deadlines) {
+        HashMap<String, Destination<TopicMessageQueue>> destinations = new HashMap<String, Destination<TopicMessageQueue>>();
+        LogMessage last = null;
+
+        // the whole batch is appended to the log; to be synced in one go:
+        if(this.log != null && messages.length > 0) {
+            IMessage[] logged = new IMessage[messages.length];
+            for(int i = 0; i < messages.length; i++) {
+                logged[i] = this.log.appendTopic(topics[i], messages[i], deadlines[i]);
+            }
+            last = (LogMessage) logged[messages.length - 1];
+            messages = logged;
+        }
+
+        for(int i = 0; i < messages.length; i++) {
+            Destination<TopicMessageQueue> destination = destinations.get(topics[i]);
+            if(destination == null) {
+                destination = this.topicDestinations.intern(topics[i]);
+                destinations.put(topics[i], destination);
+            }
+
+            this.enqueueTopic(destination, messages[i], deadlines[i]);
+        }
+        this.topicEnqueued.add(messages.length);
+
+        for(Destination<TopicMessageQueue> destination : destinations.values()) {
+            this.signal(destination);
+        }
+        this.sync();
+
+        return last;
+    }
 
-        this.topicQueuesLock.lock();
-        if(this.topicQueues.get(topic) == null) {
-            this.addTopicQueue(topic);
+    /**
+     * awaitDurable waits for the given message returned by one of the post
+     * methods to be durable as per the FsyncPolicy of the log; along with
+     * every message logged before it. A null message is durable already.
+     */
+    public void awaitDurable(LogMessage logged) {
+        if(logged != null) {
+            this.log.sync(logged);
         }
-        this.topicQueues.get(topic).addMessage(
-            new TopicMessage(message, tout)
-        );
-        this.topicQueuesLock.unlock();
     }
 
     /**
@@ -152,13 +819,22 @@ public class MessagingServer {
      * @return  String  the first String message in the person's message queue.
      */
     public String getPersonalMessage(String person) {
-        this.personalQueuesLock.lock();
-        if(this.personalQueues.get(person) == null) {
-            throw new MessageServerPersonNotFoundException(person);
-        }
+        return this.getRawPersonalMessage(person).getStringValue();
+    }
 
-        String message = this.personalQueues.get(person).getMessage().getStringValue();
-        this.personalQueuesLock.unlock();
+    /**
+     * getRawPersonalMessage returns the first IMessage from the queue for the
+     * specified recipient's name; without decoding it.
+     * <p>
+     * @param   person      the name of the person requesting a message.
+     * @return  IMessage    the first IMessage in the person's message queue.
+     */
+    @Override
+    public IMessage getRawPersonalMessage(String person) {
+        IMessage message = this.getPersonalQueue(person).getMessage();
+
+        this.acknowledge(message);
+        this.personalDequeued.increment();
 
         return message;
     }
@@ -171,39 +847,70 @@ public class MessagingServer {
      * @return  String[]    the list of all the messages on the server.
      */
     public String[] getPersonalMessages(String person) {
-        this.personalQueuesLock.lock();
-        if(this.personalQueues.get(person) == null) {
-            throw new MessageServerPersonNotFoundException(person);
-        }
-
-        IMessage[] messages = this.personalQueues.get(person).getMessages();
+        IMessage[] messages = this.consume(this.getPersonalQueue(person).getMessages());
         String[] result = new String[messages.length];
 
         int i;
         for(i = 0; i < messages.length; i++) {
             result[i] = messages[i].getStringValue();
         }
-        this.personalQueuesLock.unlock();
 
         return result;
     }
 
     /**
-     * getTopicMessage returns the first message from the queue under
-     * the specified topic.
+     * getRawPersonalMessages pops at most the given number of IMessages off
+     * the queue for the specified recipient's name; without decoding them.
      * <p>
-     * @param   topic   the name of the topic requesting a message.
-     * @return  String  the first String message in the topic's queue.
-     * @throws  MessageServerTopicNotFoundException
+     * @param   person      the name of the person requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the popped IMessages; possibly none.
+     * @throws  MessageServerPersonNotFoundException
      */
-    public String getTopicMessage(String topic) {
-        this.topicQueuesLock.lock();
-        if(this.topicQueues.get(topic) == null) {
-            throw new MessageServerTopicNotFoundException(topic);
-        }
+    @Override
+    public IMessage[] getRawPersonalMessages(String person, int maxMessages) {
+        return this.consume(this.getPersonalQueue(person).getMessages(maxMessages));
+    }
+
+    /**
+     * getRawPersonalMessages pops at most the given number of IMessages off
+     * the queue of the person of the given id.
+     * <p>
+     * @param   id          the id of the person requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the popped IMessages; possibly none.
+     * @throws  MessageServerPersonNotFoundException
+     */
+    @Override
+    public IMessage[] getRawPersonalMessages(int id, int maxMessages) {
+        return this.consume(this.getPersonalDestination(id).getQueue().getMessages(maxMessages));
+    }
+
+    /**
+     * getTopicMessage returns the first message from the queue under
+     * the specified topic.
+     * <p>
+     * @param   topic   the name of the topic requesting a message.
+     * @return  String  the first String message in the topic's queue.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    public String getTopicMessage(String topic) {
+        return this.getRawTopicMessage(topic).getStringValue();
+    }
+
+    /**
+     * getRawTopicMessage returns the first IMessage from the queue under the
+     * specified topic; without decoding it.
+     * <p>
+     * @param   topic       the name of the topic requesting a message.
+     * @return  IMessage    the first IMessage in the topic's queue.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    @Override
+    public IMessage getRawTopicMessage(String topic) {
+        IMessage message = this.getTopicQueue(topic).getMessage();
 
-        String message = this.topicQueues.get(topic).getMessage().getStringValue();
-        this.topicQueuesLock.unlock();
+        this.topicDequeued.increment();
 
         return message;
     }
@@ -216,21 +923,753 @@ public class MessagingServer {
      * @return  String[]    the list of all the messages on the server.
      */
     public String[] getTopicMessages(String topic) {
-        this.topicQueuesLock.lock();
-        if(this.topicQueues.get(topic) == null) {
-            throw new MessageServerTopicNotFoundException(topic);
-        }
-
-        IMessage[] messages = this.topicQueues.get(topic).getMessages();
+        IMessage[] messages = this.deliver(this.getTopicQueue(topic).getMessages());
         String[] result = new String[messages.length];
 
         int i;
         for(i = 0; i < messages.length; i++) {
             result[i] = messages[i].getStringValue();
         }
-        this.topicQueuesLock.unlock();
 
         return result;
     }
 
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue under the specified topic; without decoding them.
+     * <p>
+     * @param   topic       the name of the topic requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the first IMessages in the topic's queue.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, int maxMessages) {
+        return this.deliver(this.getTopicQueue(topic).getMessages(maxMessages));
+    }
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id.
+     * <p>
+     * @param   id          the id of the topic requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the first IMessages in the topic's queue.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    @Override
+    public IMessage[] getRawTopicMessages(int id, int maxMessages) {
+        return this.deliver(this.getTopicDestination(id).getQueue().getMessages(maxMessages));
+    }
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue under the specified topic which the given subscriber has not
+     * read yet; advancing its cursor past them.
+     * <p>
+     * @param   topic       the name of the topic requesting the messages.
+     * @param   subscriber  the name of the subscriber reading the topic.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the next IMessages for the subscriber; if any.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, String subscriber, int maxMessages) {
+        return this.deliver(this.getTopicQueue(topic).getMessages(subscriber, maxMessages));
+    }
+
+    /**
+     * getRawTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id which the given subscriber has
+     * not read yet; advancing its cursor past them.
+     * <p>
+     * @param   id          the id of the topic requesting the messages.
+     * @param   subscriber  the name of the subscriber reading the topic.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @return  IMessage[]  the next IMessages for the subscriber; if any.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    @Override
+    public IMessage[] getRawTopicMessages(int id, String subscriber, int maxMessages) {
+        return this.deliver(this.getTopicDestination(id).getQueue().getMessages(subscriber, maxMessages));
+    }
+
+    /**
+     * awaitPersonalMessages pops at most the given number of IMessages off the
+     * queue for the specified recipient's name; waiting for up to the given
+     * number of milliseconds for some to arrive if there are none.
+     * <p>
+     * No Thread is held whilst waiting: the given callback is called either
+     * straight away, or later on from the Thread which added the messages, or
+     * from the TimerWheel's once the wait is over. If the person does not have
+     * a queue yet; one will be created for him to wait on.
+     *
+     * @param   person      the name of the person requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @param   waitMillis  the maximum number of milliseconds to wait for.
+     * @param   complete    the callback to be called exactly once with the
+     *                      popped IMessages; or none if the wait is over.
+     */
+    @Override
+    public void awaitPersonalMessages(String person, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitPersonalMessages(this.personalDestinations.intern(person), maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * awaitPersonalMessages pops at most the given number of IMessages off the
+     * queue of the person of the given id; waiting for up to the given number
+     * of milliseconds for some to arrive if there are none.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    @Override
+    public void awaitPersonalMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitPersonalMessages(this.getPersonalDestination(id), maxMessages, waitMillis, complete);
+    }
+
+    private void awaitPersonalMessages(Destination<RingBufferMessageQueue> destination, int maxMessages, long waitMillis,
+            Consumer<IMessage[]> complete) {
+        // NOTE: the queue is looked up on every take; as it may be resized:
+        this.await(destination, () -> this.consume(destination.getQueue().getMessages(maxMessages)), waitMillis, complete);
+    }
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue under the specified topic; waiting for up to the given number
+     * of milliseconds for some to arrive if there are none.
+     * <p>
+     * Just like awaitPersonalMessages; no Thread is held whilst waiting. All
+     * the waiters on a topic get to see a message which arrives.
+     *
+     * @param   topic       the name of the topic requesting the messages.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @param   waitMillis  the maximum number of milliseconds to wait for.
+     * @param   complete    the callback to be called exactly once with the
+     *                      IMessages; or none if the wait is over.
+     */
+    @Override
+    public void awaitTopicMessages(String topic, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitTopicMessages(this.topicDestinations.intern(topic), null, maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id; waiting for up to the given
+     * number of milliseconds for some to arrive if there are none.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    @Override
+    public void awaitTopicMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitTopicMessages(this.getTopicDestination(id), null, maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue under the specified topic which the given subscriber has not
+     * read yet; waiting for up to the given number of milliseconds for some to
+     * arrive if there are none.
+     * <p>
+     * The subscriber's cursor is only advanced past the messages it is
+     * actually completed with.
+     *
+     * @param   topic       the name of the topic requesting the messages.
+     * @param   subscriber  the name of the subscriber reading the topic.
+     * @param   maxMessages the maximum number of messages to be returned.
+     * @param   waitMillis  the maximum number of milliseconds to wait for.
+     * @param   complete    the callback to be called exactly once with the
+     *                      IMessages; or none if the wait is over.
+     */
+    @Override
+    public void awaitTopicMessages(String topic, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitTopicMessages(this.topicDestinations.intern(topic), subscriber, maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * awaitTopicMessages returns at most the given number of IMessages from
+     * the queue of the topic of the given id which the given subscriber has
+     * not read yet; waiting for up to the given number of milliseconds for
+     * some to arrive if there are none.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    @Override
+    public void awaitTopicMessages(int id, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.awaitTopicMessages(this.getTopicDestination(id), subscriber, maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * awaitTopicMessages is the helper method awaiting the messages of the
+     * given Destination; past the cursor of the given subscriber, if not null.
+     */
+    private void awaitTopicMessages(Destination<TopicMessageQueue> destination, String subscriber, int maxMessages, long waitMillis,
+            Consumer<IMessage[]> complete) {
+        TopicMessageQueue queue = destination.getQueue();
+
+        if(subscriber != null) {
+            this.await(destination, () -> this.deliver(queue.getMessages(subscriber, maxMessages)), waitMillis, complete);
+        } else {
+            this.await(destination, () -> this.deliver(queue.getMessages(maxMessages)), waitMillis, complete);
+        }
+    }
+
+    /**
+     * await is the helper method which completes the given callback with the
+     * messages taken straight away; or otherwise parks a MessageWaiter for
+     * them on the listeners of the given Destination.
+     */
+    private void await(Destination<?> destination, Supplier<IMessage[]> take, long waitMillis, Consumer<IMessage[]> complete) {
+        IMessage[] messages = take.get();
+
+        if(messages.length > 0 || waitMillis <= 0) {
+            complete.accept(messages);
+            return;
+        }
+
+        ConcurrentLinkedQueue<IMessageListener> parked = destination.listeners();
+        MessageWaiter waiter = new MessageWaiter(take, complete);
+
+        parked.add(waiter);
+        waiter.setTimeout(this.timerWheel.schedule(System.currentTimeMillis() + waitMillis, () -> {
+            waiter.expire();
+            parked.remove(waiter);
+        }));
+
+        // poke once more in case a message arrived before the waiter was parked:
+        waiter.poke();
+
+        if(waiter.isDone()) {
+            parked.remove(waiter);
+        }
+    }
+
+    /**
+     * checkPersonalSubscription does nothing; as every person may be
+     * subscribed to.
+     */
+    @Override
+    public void checkPersonalSubscription(String person) {
+    }
+
+    /**
+     * checkTopicSubscription does nothing; as every topic may be subscribed
+     * to.
+     */
+    @Override
+    public void checkTopicSubscription(String topic) {
+    }
+
+    /**
+     * subscribePersonal has the messages of the specified person pushed to
+     * the given IMessageSink as they arrive; popping them off the queue only
+     * as fast as the sink takes them.
+     * <p>
+     * If the person does not have a queue yet; one will be created for him.
+     * The messages already in the queue are delivered straight away.
+     *
+     * @param   person              the name of the person subscribing.
+     * @param   sink                the IMessageSink messages are pushed to.
+     * @return  MessageSubscription the subscription; to be cancelled once the
+     *                              sink is done with.
+     */
+    @Override
+    public MessageSubscription subscribePersonal(String person, IMessageSink sink) {
+        Destination<RingBufferMessageQueue> destination = this.personalDestinations.intern(person);
+
+        return this.subscribe(destination,
+            (max) -> this.consume(destination.getQueue().getMessages(max)), sink, () -> {});
+    }
+
+    /**
+     * subscribeTopic has the messages of the specified topic pushed to the
+     * given IMessageSink as they arrive.
+     * <p>
+     * A named subscriber reads from its cursor; so that it picks up where it
+     * left off. Without a name (null), the subscription only gets the
+     * messages to come; through a cursor of its own which is dropped once
+     * the subscription is cancelled.
+     *
+     * @param   topic               the name of the topic subscribed to.
+     * @param   subscriber          the name of the subscriber; or null.
+     * @param   sink                the IMessageSink messages are pushed to.
+     * @return  MessageSubscription the subscription; to be cancelled once the
+     *                              sink is done with.
+     */
+    @Override
+    public MessageSubscription subscribeTopic(String topic, String subscriber, IMessageSink sink) {
+        Destination<TopicMessageQueue> destination = this.topicDestinations.intern(topic);
+        TopicMessageQueue queue = destination.getQueue();
+
+        if(subscriber != null) {
+            return this.subscribe(destination,
+                (max) -> this.deliver(queue.getMessages(subscriber, max)), sink, () -> {});
+        }
+
+        // NOTE: the NUL character cannot come in through a header; so there
+        // is no clashing with the names of actual subscribers:
+        String anonymous = "\0stream-" + this.anonymousSubscribers.incrementAndGet();
+        queue.seekToEnd(anonymous);
+
+        return this.subscribe(destination,
+            (max) -> this.deliver(queue.getMessages(anonymous, max)), sink, () -> queue.removeSubscriber(anonymous));
+    }
+
+    /**
+     * subscribe is the helper method which parks a new MessageSubscription on
+     * the listeners of the given Destination; and has it deliver whatever is
+     * already there.
+     */
+    private MessageSubscription subscribe(Destination<?> destination, IntFunction<IMessage[]> take, IMessageSink sink,
+            Runnable onCancel) {
+        ConcurrentLinkedQueue<IMessageListener> parked = destination.listeners();
+
+        MessageSubscription[] subscription = new MessageSubscription[1];
+        subscription[0] = new MessageSubscription(take, sink, () -> {
+            parked.remove(subscription[0]);
+            onCancel.run();
+        });
+
+        parked.add(subscription[0]);
+        subscription[0].poke();
+
+        return subscription[0];
+    }
+
+    /**
+     * signal pokes all the IMessageListeners parked on the given Destination
+     * after messages were added to its queue; dropping those which are done.
+     */
+    private void signal(Destination<?> destination) {
+        ConcurrentLinkedQueue<IMessageListener> parked = destination.getListeners();
+
+        if(parked == null || parked.isEmpty()) {
+            return;
+        }
+
+        for(IMessageListener listener : parked) {
+            if(!listener.isDone()) {
+                listener.poke();
+            }
+
+            if(listener.isDone()) {
+                parked.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * getPersonalQueues returns a read-only view of the registry of personal
+     * queues; mainly so that it may be snapshotted.
+     */
+    public Map<String, IMessageQueue> getPersonalQueues() {
+        return this.personalDestinations.asQueueMap();
+    }
+
+    /**
+     * getTopicQueues returns a read-only view of the registry of topic queues.
+     */
+    public Map<String, IMessageQueue> getTopicQueues() {
+        return this.topicDestinations.asQueueMap();
+    }
+
+    /**
+     * getLog returns the WriteAheadLog of a durable server; or null.
+     */
+    public WriteAheadLog getLog() {
+        return this.log;
+    }
+
+    /**
+     * replicate has the server replicated through the given ReplicationLog
+     * from now on.
+     * <p>
+     * The personal messages already in the queues (e.g. those recovered from
+     * the WriteAheadLog) are popped and added back through the log; so that
+     * their removal may be replicated too. The topic messages are left as
+     * they are; and make it to the followers through their snapshots.
+     * It is meant to be called before the server is serving any requests.
+     */
+    public void replicate(ReplicationLog replication) {
+        int adopted = 0;
+
+        this.replication = replication;
+
+        for(Destination<RingBufferMessageQueue> destination : this.personalDestinations.values()) {
+            RingBufferMessageQueue queue = destination.getQueue();
+
+            for(IMessage message : queue.getMessages()) {
+                try {
+                    replication.appendPersonal(destination.getName(), message, queue, destination.appendLock());
+                    adopted++;
+                } catch(MessageQueueFullException e) {
+                    // NOTE: only a concurrent write could have filled it up:
+                    this.acknowledge(message);
+                }
+            }
+        }
+
+        logger.info("Replicating the server.", "mode", replication.getMode(), "personal", adopted);
+    }
+
+    /**
+     * getReplicationLog returns the ReplicationLog of a replicated server; or
+     * null.
+     */
+    public ReplicationLog getReplicationLog() {
+        return this.replication;
+    }
+
+    /**
+     * recover puts all the messages recovered from the WriteAheadLog back into
+     * their respective queues.
+     */
+    private void recover() {
+        int count = 0;
+
+        for(LogRecord record : this.log.recover()) {
+            if(record.isTopic()) {
+                this.addTopicQueue(record.getName()).addMessage(new TopicMessage(record.getMessage(), record.getDeadline()));
+                this.topicEnqueued.increment();
+            } else {
+                Destination<RingBufferMessageQueue> destination = this.personalDestinations.intern(record.getName());
+                try {
+                    this.enqueuePersonal(destination, destination.getQueue(), record.getMessage());
+                } catch(MessageQueueFullException e) {
+                    continue;
+                }
+            }
+
+            count++;
+        }
+
+        logger.info("Recovered messages from the log.", "count", count);
+    }
+
+    /**
+     * enqueuePersonal adds the given message to the given personal queue
+     * (through the ReplicationLog of a replicated server); and acknowledges
+     * it straight away in the log if the queue is full, so that the rejected
+     * message is not recovered later on.
+     * <p>
+     * Should the queue have been resized meanwhile; the message is moved over
+     * to the queue which replaced it.
+     *
+     * @throws  MessageQueueFullException   if the queue is at maximum capacity
+     */
+    private void enqueuePersonal(Destination<RingBufferMessageQueue> destination, RingBufferMessageQueue queue, IMessage message) {
+        ReplicationLog replication = this.replication;
+
+        try {
+            if(replication != null) {
+                replication.appendPersonal(destination.getName(), message, queue, destination.appendLock());
+            } else {
+                queue.addMessage(message);
+            }
+        } catch(MessageQueueFullException e) {
+            this.acknowledge(message);
+            this.personalRejected.increment();
+            throw e;
+        }
+
+        this.personalEnqueued.increment();
+
+        RingBufferMessageQueue current = destination.getQueue();
+        if(current != queue) {
+            this.migrate(destination, queue, current);
+        }
+    }
+
+    /**
+     * migrate moves all the messages of the given personal queue over to the
+     * one which replaced it; regardless of its capacity, as they were already
+     * accepted.
+     * <p>
+     * Messages which do not fit any of its slots are dropped and acknowledged;
+     * which takes more producers racing the swap than the old queue had slots.
+     */
+    private void migrate(Destination<RingBufferMessageQueue> destination, RingBufferMessageQueue from, RingBufferMessageQueue to) {
+        int dropped = 0;
+
+        IMessage[] messages;
+        while((messages = from.getMessages(64)).length > 0) {
+            for(IMessage message : messages) {
+                if(!to.transferMessage(message)) {
+                    this.acknowledge(message);
+                    dropped++;
+                }
+            }
+        }
+
+        if(dropped > 0) {
+            logger.warn("Dropped messages resizing a personal queue.", "person", destination.getName(), "dropped", dropped);
+        }
+
+        this.signal(destination);
+    }
+
+    /**
+     * acknowledge acknowledges the given consumed personal message in the
+     * WriteAheadLog of a durable server; and records its removal in the
+     * ReplicationLog of a replicated one.
+     */
+    private void acknowledge(IMessage message) {
+        ReplicationLog replication = this.replication;
+
+        if(replication != null) {
+            replication.appendRemoval(message);
+        }
+
+        this.acknowledgeLogged(message);
+    }
+
+    /**
+     * acknowledge acknowledges all the given consumed personal messages;
+     * returning them for convenience.
+     */
+    private IMessage[] acknowledge(IMessage[] messages) {
+        ReplicationLog replication = this.replication;
+
+        if(replication != null) {
+            replication.appendRemovals(messages);
+        }
+
+        for(IMessage message : messages) {
+            this.acknowledgeLogged(message);
+        }
+
+        return messages;
+    }
+
+    /**
+     * acknowledgeLogged acknowledges the given consumed personal message in
+     * the WriteAheadLog of a durable server; looking past the
+     * ReplicatedMessage it may be wrapped into.
+     */
+    private void acknowledgeLogged(IMessage message) {
+        if(message instanceof ReplicatedMessage) {
+            message = ((ReplicatedMessage) message).getPayload();
+        }
+
+        if(this.log != null && message instanceof LogMessage) {
+            this.log.acknowledge((LogMessage) message);
+        }
+    }
+
+    /**
+     * enqueueTopic adds the given message to the given topic queue, by the
+     * given deadline; through the ReplicationLog of a replicated server.
+     */
+    private void enqueueTopic(Destination<TopicMessageQueue> destination, IMessage message, long deadline) {
+        ReplicationLog replication = this.replication;
+
+        if(replication != null) {
+            replication.appendTopic(destination.getName(), message, deadline, destination.getQueue(), destination.appendLock());
+        } else {
+            destination.getQueue().addMessage(new TopicMessage(message, deadline));
+        }
+    }
+
+    /**
+     * sync waits for a follower to have received the messages added so far;
+     * if the server is replicated semi-synchronously.
+     */
+    private void sync() {
+        ReplicationLog replication = this.replication;
+
+        if(replication != null) {
+            replication.sync();
+        }
+    }
+
+    /**
+     * consume acknowledges and counts all the given personal messages popped
+     * off their queue; returning them for convenience.
+     */
+    private IMessage[] consume(IMessage[] messages) {
+        this.acknowledge(messages);
+        this.personalDequeued.add(messages.length);
+
+        return messages;
+    }
+
+    /**
+     * deliver counts all the given topic messages delivered to a reader;
+     * returning them for convenience.
+     */
+    private IMessage[] deliver(IMessage[] messages) {
+        this.topicDequeued.add(messages.length);
+
+        return messages;
+    }
+
+    /**
+     * collect writes out the metrics which are only computed upon scraping:
+     * the number and depths of the queues, the expired messages and the
+     * state of the TimerWheel and of the log.
+     * <p>
+     * Only the maxQueueSeries deepest queues of each type get a series of
+     * their own; all of them counting towards the totals.
+     */
+    private void collect(PrometheusWriter writer) {
+        int maxSeries = this.maxQueueSeries;
+
+        PriorityQueue<Object[]> deepestPersonal = new PriorityQueue<Object[]>((a, b) -> Integer.compare((int) a[1], (int) b[1]));
+        long personalDepth = 0;
+        for(Destination<RingBufferMessageQueue> destination : this.personalDestinations.values()) {
+            int depth = destination.getQueue().size();
+
+            personalDepth += depth;
+            this.keepDeepest(deepestPersonal, maxSeries, destination.getName(), depth);
+        }
+
+        PriorityQueue<Object[]> deepestTopic = new PriorityQueue<Object[]>((a, b) -> Integer.compare((int) a[1], (int) b[1]));
+        long topicDepth = 0;
+        long expired = 0;
+        for(Destination<TopicMessageQueue> destination : this.topicDestinations.values()) {
+            TopicMessageQueue queue = destination.getQueue();
+            int depth = queue.size();
+
+            topicDepth += depth;
+            expired += queue.getExpiredCount();
+            this.keepDeepest(deepestTopic, maxSeries, destination.getName(), depth);
+        }
+
+        writer.family("jmqp_queues", "Number of queues.", "gauge");
+        writer.sample("jmqp_queues", this.personalDestinations.size(), this.labelled("type", "personal"));
+        writer.sample("jmqp_queues", this.topicDestinations.size(), this.labelled("type", "topic"));
+
+        writer.family("jmqp_queued_messages", "Messages currently held by all the queues.", "gauge");
+        writer.sample("jmqp_queued_messages", personalDepth, this.labelled("type", "personal"));
+        writer.sample("jmqp_queued_messages", topicDepth, this.labelled("type", "topic"));
+
+        writer.family("jmqp_queue_depth", "Messages currently held by each of the deepest queues.", "gauge");
+        for(Object[] queue : deepestPersonal) {
+            writer.sample("jmqp_queue_depth", (int) queue[1], this.labelled("type", "personal", "queue", (String) queue[0]));
+        }
+        for(Object[] queue : deepestTopic) {
+            writer.sample("jmqp_queue_depth", (int) queue[1], this.labelled("type", "topic", "queue", (String) queue[0]));
+        }
+
+        writer.family("jmqp_messages_expired_total", "Topic messages expired.", "counter");
+        writer.sample("jmqp_messages_expired_total", expired, this.labelled("type", "topic"));
+
+        writer.family("jmqp_timer_tasks_total", "Tasks run by the TimerWheel.", "counter");
+        writer.sample("jmqp_timer_tasks_total", this.timerWheel.getExpiredCount(), this.labelled());
+        writer.family("jmqp_timer_lag_seconds", "How late the last tick of the TimerWheel was.", "gauge");
+        writer.sample("jmqp_timer_lag_seconds", this.timerWheel.getLastLagMillis() / 1e3, this.labelled());
+        writer.family("jmqp_timer_max_lag_seconds", "How late the worst tick of the TimerWheel was.", "gauge");
+        writer.sample("jmqp_timer_max_lag_seconds", this.timerWheel.getMaxLagMillis() / 1e3, this.labelled());
+
+        if(this.log != null) {
+            writer.family("jmqp_wal_syncs_total", "Times the write-ahead log was forced to disk.", "counter");
+            writer.sample("jmqp_wal_syncs_total", this.log.getSyncCount(), this.labelled());
+            writer.family("jmqp_wal_written_bytes", "Offset past the last record of the write-ahead log.", "gauge");
+            writer.sample("jmqp_wal_written_bytes", this.log.getWrittenOffset(), this.labelled());
+            writer.family("jmqp_wal_unsynced_bytes", "Bytes of the write-ahead log not yet on disk.", "gauge");
+            writer.sample("jmqp_wal_unsynced_bytes", this.log.getWrittenOffset() - this.log.getSyncedOffset(), this.labelled());
+            writer.family("jmqp_wal_segments", "Live segments of the write-ahead log.", "gauge");
+            writer.sample("jmqp_wal_segments", this.log.getSegmentCount(), this.labelled());
+        }
+    }
+
+    /**
+     * labelled returns the given labels followed by those of the server.
+     */
+    private String[] labelled(String... labels) {
+        if(this.labels.length == 0) {
+            return labels;
+        }
+
+        String[] all = new String[labels.length + this.labels.length];
+        System.arraycopy(labels, 0, all, 0, labels.length);
+        System.arraycopy(this.labels, 0, all, labels.length, this.labels.length);
+
+        return all;
+    }
+
+    /**
+     * keepDeepest keeps the given queue among the given number of deepest
+     * ones; the shallowest of which is at the head of the given heap.
+     */
+    private void keepDeepest(PriorityQueue<Object[]> deepest, int max, String name, int depth) {
+        if(max <= 0 || depth == 0) {
+            return;
+        }
+
+        if(deepest.size() < max) {
+            deepest.add(new Object[] {name, depth});
+        } else if((int) deepest.peek()[1] < depth) {
+            deepest.poll();
+            deepest.add(new Object[] {name, depth});
+        }
+    }
+
+    /**
+     * getPersonalQueue is a helper method which looks up the queue of the
+     * given person.
+     * <p>
+     * @param   person          the name of the person.
+     * @return  IMessageQueue   the queue of the person.
+     * @throws  MessageServerPersonNotFoundException
+     */
+    private IMessageQueue getPersonalQueue(String person) {
+        Destination<RingBufferMessageQueue> destination = this.personalDestinations.get(person);
+
+        if(destination == null) {
+            throw new MessageServerPersonNotFoundException(person);
+        }
+
+        return destination.getQueue();
+    }
+
+    /**
+     * getPersonalDestination is a helper method which looks up the
+     * Destination of the person of the given id.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException
+     */
+    private Destination<RingBufferMessageQueue> getPersonalDestination(int id) {
+        Destination<RingBufferMessageQueue> destination = this.personalDestinations.get(id);
+
+        if(destination == null) {
+            throw new MessageServerPersonNotFoundException("#" + id);
+        }
+
+        return destination;
+    }
+
+    /**
+     * getTopicQueue is a helper method which looks up the queue of the
+     * given topic.
+     * <p>
+     * @param   topic           the name of the topic.
+     * @return  TopicMessageQueue   the queue of the topic.
+     * @throws  MessageServerTopicNotFoundException
+     */
+    private TopicMessageQueue getTopicQueue(String topic) {
+        Destination<TopicMessageQueue> destination = this.topicDestinations.get(topic);
+
+        if(destination == null) {
+            throw new MessageServerTopicNotFoundException(topic);
+        }
+
+        return destination.getQueue();
+    }
+
+    /**
+     * getTopicDestination is a helper method which looks up the Destination
+     * of the topic of the given id.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException
+     */
+    private Destination<TopicMessageQueue> getTopicDestination(int id) {
+        Destination<TopicMessageQueue> destination = this.topicDestinations.get(id);
+
+        if(destination == null) {
+            throw new MessageServerTopicNotFoundException("#" + id);
+        }
+
+        return destination;
+    }
+
 }
@@ -0,0 +1,398 @@
+package org.bajetii.messageserver.server.binary;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+
+/**
+ * BinaryConnection holds the state of a single connection of the
+ * BinaryTransport.
+ * <p>
+ * All of its methods are called on the transport's selector Thread; save for
+ * those used by the BinaryHandler (the interned destinations and the tallies
+ * of silent requests), and respond() and send(), which hand the responses
+ * over to the selector Thread.
+ * <p>
+ * Every complete frame received is handed over to the handler as soon as the
+ * previous burst of frames has been handled; one burst at a time, so that
+ * the requests are applied in the order they were sent in. Reading off the
+ * socket is paused whilst a burst is being handled and plenty more is
+ * buffered, or whilst the client is not reading its responses.
+ */
+class BinaryConnection {
+
+    /**
+     * initialBufferSize is the initial size of the input buffer.
+     */
+    private static final int initialBufferSize = 8192;
+
+    /**
+     * maxBufferedBytes is the number of bytes buffered whilst a burst is
+     * being handled; beyond which reading off the socket is paused.
+     */
+    private static final int maxBufferedBytes = 1024 * 1024;
+
+    /**
+     * outboundHighWaterBytes is the number of bytes which may be pending on
+     * the connection; beyond which reading off the socket is paused.
+     */
+    private static final long outboundHighWaterBytes = 1024 * 1024;
+
+    /**
+     * transport is the BinaryTransport the connection belongs to.
+     */
+    private final BinaryTransport transport;
+
+    /**
+     * channel is the SocketChannel of the connection; with key being its
+     * registration on the transport's Selector.
+     */
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    /**
+     * in is the input buffer; holding unhandled bytes between inStart and
+     * inEnd.
+     */
+    private byte[] in = new byte[initialBufferSize];
+    private int inStart = 0;
+    private int inEnd = 0;
+
+    /**
+     * inFlight marks whether a burst of frames is currently being handled.
+     */
+    private boolean inFlight = false;
+
+    /**
+     * outbound holds the buffers which have yet to be written to the socket;
+     * outboundBytes being their size.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+    private long outboundBytes = 0;
+
+    /**
+     * closing marks that no further frames are to be read and that the
+     * connection should be closed once all responses are written out.
+     */
+    private boolean closing = false;
+
+    /**
+     * closed marks whether the connection was closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * destinations holds the destinations interned on the connection; by id.
+     * It is only ever accessed by the handler; one burst at a time.
+     */
+    private BinaryDestination[] destinations = new BinaryDestination[16];
+
+    /**
+     * accepted and rejected count the silent requests applied since the last
+     * ACK; and are, like destinations, only accessed by the handler.
+     */
+    private int accepted = 0;
+    private int rejected = 0;
+
+    /**
+     * A BinaryConnection is created provided the transport it belongs to and
+     * its freshly accepted SocketChannel.
+     */
+    BinaryConnection(BinaryTransport transport, SocketChannel channel) {
+        this.transport = transport;
+        this.channel = channel;
+    }
+
+    /**
+     * setKey sets the SelectionKey of the connection's registration.
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * bind binds the given id to the given destination.
+     */
+    void bind(int id, BinaryDestination destination) {
+        if(id >= this.destinations.length) {
+            this.destinations = Arrays.copyOf(this.destinations,
+                Math.min(Math.max(2 * this.destinations.length, id + 1), BinaryProtocol.maxDestinations));
+        }
+
+        this.destinations[id] = destination;
+    }
+
+    /**
+     * getDestination returns the destination bound to the given id; or null
+     * if there is none.
+     */
+    BinaryDestination getDestination(int id) {
+        if(id < 0 || id >= this.destinations.length) {
+            return null;
+        }
+
+        return this.destinations[id];
+    }
+
+    /**
+     * tally counts the outcome of a silent request.
+     */
+    void tally(boolean accepted) {
+        if(accepted) {
+            this.accepted++;
+        } else {
+            this.rejected++;
+        }
+    }
+
+    int getAccepted() {
+        return this.accepted;
+    }
+
+    int getRejected() {
+        return this.rejected;
+    }
+
+    void resetTallies() {
+        this.accepted = 0;
+        this.rejected = 0;
+    }
+
+    /**
+     * onReadable reads whatever is available off the socket; and hands over
+     * the complete frames within if possible.
+     */
+    void onReadable() throws IOException {
+        if(this.inEnd == this.in.length) {
+            this.makeRoom();
+        }
+
+        int read = this.channel.read(ByteBuffer.wrap(this.in, this.inEnd, this.in.length - this.inEnd));
+        if(read < 0) {
+            this.close();
+            return;
+        }
+        this.inEnd += read;
+
+        this.dispatchNext();
+        this.flush();
+    }
+
+    /**
+     * onWritable writes out as much of the pending output as possible.
+     */
+    void onWritable() throws IOException {
+        this.flush();
+    }
+
+    /**
+     * respond hands the responses to a burst of frames over to the selector
+     * Thread; it may be called from any Thread.
+     */
+    void respond(ByteBuffer responses) {
+        this.transport.runOnSelector(() -> {
+            if(!this.channel.isOpen()) {
+                return;
+            }
+
+            this.enqueue(responses);
+            this.inFlight = false;
+
+            try {
+                this.dispatchNext();
+                this.flush();
+            } catch(IOException e) {
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * send hands a response sent on its own over to the selector Thread; it
+     * may be called from any Thread.
+     */
+    void send(ByteBuffer response) {
+        this.transport.runOnSelector(() -> {
+            if(!this.channel.isOpen()) {
+                return;
+            }
+
+            this.enqueue(response);
+
+            try {
+                this.flush();
+            } catch(IOException e) {
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * close closes the connection straight away.
+     */
+    void close() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        if(this.key != null) {
+            this.key.cancel();
+        }
+
+        try {
+            this.channel.close();
+        } catch(IOException e) {
+            // nothing to be done.
+        }
+
+        this.transport.closed(this);
+    }
+
+    /**
+     * dispatchNext hands all the complete frames buffered over to the
+     * handler; unless a burst is already being handled.
+     * <p>
+     * A frame whose length is out of bounds cannot be skipped over; it is
+     * answered with a TOO_LARGE (or MALFORMED) status once all the frames
+     * ahead of it are handled, and the connection closed.
+     */
+    private void dispatchNext() {
+        if(this.inFlight || this.closing) {
+            return;
+        }
+
+        int position = this.inStart;
+        byte badStatus = BinaryProtocol.statusOk;
+
+        while(this.inEnd - position >= BinaryProtocol.lengthBytes) {
+            int length = this.getInt(position);
+
+            if(length < BinaryProtocol.requestHeaderBytes - BinaryProtocol.lengthBytes) {
+                badStatus = BinaryProtocol.statusMalformed;
+                break;
+            }
+            if(length > this.transport.getMaxFrameBytes()) {
+                badStatus = BinaryProtocol.statusTooLarge;
+                break;
+            }
+
+            int end = position + BinaryProtocol.lengthBytes + length;
+            if(end > this.inEnd || end < 0) {
+                // make room for the whole of the frame:
+                if(end - this.inStart > this.in.length) {
+                    byte[] grown = new byte[end - this.inStart];
+                    System.arraycopy(this.in, this.inStart, grown, 0, this.inEnd - this.inStart);
+                    this.inEnd -= this.inStart;
+                    position -= this.inStart;
+                    this.inStart = 0;
+                    this.in = grown;
+                }
+                break;
+            }
+
+            position = end;
+        }
+
+        if(position > this.inStart) {
+            byte[] frames = Arrays.copyOfRange(this.in, this.inStart, position);
+            this.inStart = position;
+
+            if(this.inStart == this.inEnd) {
+                this.inStart = 0;
+                this.inEnd = 0;
+            }
+
+            this.inFlight = true;
+            this.transport.dispatch(this, frames);
+            return;
+        }
+
+        if(badStatus != BinaryProtocol.statusOk) {
+            byte opcode = (this.inEnd - position > BinaryProtocol.lengthBytes) ? this.in[position + BinaryProtocol.lengthBytes] : 0;
+            int requestId = (this.inEnd - position >= BinaryProtocol.requestHeaderBytes)
+                ? this.getInt(position + BinaryProtocol.lengthBytes + 1)
+                : 0;
+
+            FrameWriter out = new FrameWriter(BinaryProtocol.responseHeaderBytes);
+            out.respond(opcode, requestId, badStatus);
+            this.enqueue(out.toByteBuffer());
+            this.closing = true;
+        }
+    }
+
+    /**
+     * flush writes out as much of the pending output as the socket accepts;
+     * updating the connection's interest set accordingly.
+     */
+    private void flush() throws IOException {
+        while(!this.outbound.isEmpty()) {
+            ByteBuffer buffer = this.outbound.peek();
+
+            this.outboundBytes -= this.channel.write(buffer);
+            if(buffer.hasRemaining()) {
+                break;
+            }
+
+            this.outbound.poll();
+        }
+
+        if(this.outbound.isEmpty() && this.closing && !this.inFlight) {
+            this.close();
+            return;
+        }
+
+        int ops = 0;
+        if(!this.closing && this.outboundBytes <= outboundHighWaterBytes
+                && !(this.inFlight && this.inEnd - this.inStart >= maxBufferedBytes)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if(!this.outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        if(this.key.isValid()) {
+            this.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * enqueue adds the given buffer to the pending output; unless it is empty.
+     */
+    private void enqueue(ByteBuffer buffer) {
+        if(!buffer.hasRemaining()) {
+            return;
+        }
+
+        this.outboundBytes += buffer.remaining();
+        this.outbound.add(buffer);
+    }
+
+    /**
+     * makeRoom compacts the input buffer; or grows it if it is full of a
+     * single partially received frame.
+     */
+    private void makeRoom() {
+        if(this.inStart > 0) {
+            System.arraycopy(this.in, this.inStart, this.in, 0, this.inEnd - this.inStart);
+            this.inEnd -= this.inStart;
+            this.inStart = 0;
+        } else {
+            this.in = Arrays.copyOf(this.in, this.in.length * 2);
+        }
+    }
+
+    /**
+     * getInt returns the big-endian int buffered at the given index.
+     */
+    private int getInt(int index) {
+        return ((this.in[index] & 0xff) << 24) | ((this.in[index + 1] & 0xff) << 16)
+            | ((this.in[index + 2] & 0xff) << 8) | (this.in[index + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,41 @@
+package org.bajetii.messageserver.server.binary;
+
+
+/**
+ * BinaryDestination is a destination interned on a BinaryConnection; a person
+ * or a topic, along with the name of the subscriber reading the topic, if any.
+ * <p>
+ * It holds on to the id of the destination within the MessagingServer; so
+ * that requests on the connection address its queue without looking its
+ * name up.
+ */
+final class BinaryDestination {
+
+    /**
+     * topic marks whether the destination is a topic rather than a person.
+     */
+    final boolean topic;
+
+    /**
+     * id is the id of the person or topic within the MessagingServer.
+     */
+    final int id;
+
+    /**
+     * name is the interned name of the person or topic.
+     */
+    final String name;
+
+    /**
+     * subscriber is the name under which the topic is read; or null.
+     */
+    final String subscriber;
+
+    BinaryDestination(boolean topic, int id, String name, String subscriber) {
+        this.topic = topic;
+        this.id = id;
+        this.name = name;
+        this.subscriber = subscriber;
+    }
+
+}
@@ -0,0 +1,551 @@
+package org.bajetii.messageserver.server.binary;
+
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.cluster.exceptions.MisroutedException;
+import org.bajetii.messageserver.server.cluster.exceptions.PartialBatchException;
+import org.bajetii.messageserver.server.exceptions.MessageServerPersonNotFoundException;
+import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+import org.bajetii.messageserver.server.replication.exceptions.ReadOnlyReplicaException;
+
+
+/**
+ * BinaryHandler carries out the requests of the binary protocol (see
+ * BinaryProtocol) on the MessagingServer; the very operations the HTTP
+ * MessageHandler and QueryHandler map to.
+ * <p>
+ * It is handed all the complete request frames received on a connection at
+ * once; and answers them with all of their responses at once. Only waiting
+ * FETCHes are answered later on; on their own.
+ * <p>
+ * Message bodies are copied out of the request frames; so that a single
+ * message left unread does not keep a whole burst of frames in memory.
+ */
+public class BinaryHandler {
+
+    /**
+     * logger is the Logger of the BinaryHandler.
+     */
+    private static final Logger logger = Logger.getLogger(BinaryHandler.class);
+
+    /**
+     * batchEntryHeaderBytes is the size of the header of a single message of
+     * a BATCH; its id, timeout and length.
+     */
+    private static final int batchEntryHeaderBytes = 12;
+
+    /**
+     * messagingServer is the MessagingServer the requests are carried out on.
+     */
+    private final IMessagingServer messagingServer;
+
+    /**
+     * frames counts the request frames handled; with malformed counting those
+     * answered as malformed, unknown or unsupported.
+     */
+    private final Counter frames;
+    private final Counter malformed;
+
+    /**
+     * A BinaryHandler is created provided the MessagingServer it represents.
+     */
+    public BinaryHandler(IMessagingServer ms) {
+        this.messagingServer = ms;
+        this.frames = ms.getMetrics().counter("jmqp_binary_frames_total", "Binary protocol request frames handled.");
+        this.malformed = ms.getMetrics().counter("jmqp_binary_frames_rejected_total",
+            "Binary protocol request frames rejected as malformed, unknown or unsupported.");
+    }
+
+    /**
+     * handle carries out all the request frames within the given bytes; in
+     * order.
+     * <p>
+     * @param   connection  the BinaryConnection the frames were received on.
+     * @param   bytes       the complete frames; back to back.
+     * @return  FrameWriter holding the responses; possibly none.
+     */
+    FrameWriter handle(BinaryConnection connection, byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        FrameWriter out = new FrameWriter();
+
+        while(in.remaining() >= BinaryProtocol.requestHeaderBytes) {
+            int end = in.position() + BinaryProtocol.lengthBytes + in.getInt();
+            byte opcode = in.get();
+            int requestId = in.getInt();
+
+            in.limit(end);
+            this.frames.increment();
+
+            try {
+                this.handleFrame(connection, opcode, requestId, in, out);
+            } catch(BufferUnderflowException | IllegalArgumentException e) {
+                this.reject(connection, opcode, requestId, BinaryProtocol.statusMalformed, out);
+            } catch(MisroutedException e) {
+                this.moved(connection, opcode, requestId, e, out);
+            } catch(ReadOnlyReplicaException e) {
+                this.readOnly(connection, opcode, requestId, e, out);
+            } catch(RuntimeException e) {
+                logger.error("Handling a binary request failed.", e);
+                this.reply(connection, opcode, requestId, BinaryProtocol.statusError, out);
+            }
+
+            in.limit(bytes.length).position(end);
+        }
+
+        return out;
+    }
+
+    /**
+     * handleFrame carries out a single request frame; whose body lies between
+     * the position and limit of the given ByteBuffer.
+     */
+    private void handleFrame(BinaryConnection connection, byte opcode, int requestId, ByteBuffer in, FrameWriter out) {
+        switch(opcode) {
+            case BinaryProtocol.internOpcode:
+                this.intern(connection, requestId, in, out);
+                break;
+            case BinaryProtocol.publishOpcode:
+                this.publish(connection, requestId, in, out);
+                break;
+            case BinaryProtocol.batchOpcode:
+                this.batch(connection, requestId, in, out);
+                break;
+            case BinaryProtocol.fetchOpcode:
+                this.fetch(connection, requestId, in, out);
+                break;
+            case BinaryProtocol.ackOpcode:
+                out.begin(opcode, requestId, BinaryProtocol.statusOk)
+                    .putInt(connection.getAccepted())
+                    .putInt(connection.getRejected())
+                    .end();
+                connection.resetTallies();
+                break;
+            default:
+                this.reject(connection, opcode, requestId, BinaryProtocol.statusUnsupported, out);
+                break;
+        }
+    }
+
+    /**
+     * intern binds an id of the connection to the destination in the body;
+     * creating the destination if need be, and responding with its id within
+     * the MessagingServer.
+     */
+    private void intern(BinaryConnection connection, int requestId, ByteBuffer in, FrameWriter out) {
+        int id = in.getInt();
+        byte type = in.get();
+        int nameLength = in.getShort() & 0xffff;
+
+        if(id < 0 || id >= BinaryProtocol.maxDestinations || nameLength == 0 || nameLength > in.remaining()
+                || (type != BinaryProtocol.personalType && type != BinaryProtocol.topicType)) {
+            this.reject(connection, BinaryProtocol.internOpcode, requestId, BinaryProtocol.statusMalformed, out);
+            return;
+        }
+
+        int nameEnd = in.position() + nameLength;
+        String name = decode(in.duplicate().limit(nameEnd));
+        String subscriber = null;
+
+        in.position(nameEnd);
+        if(in.hasRemaining() && type == BinaryProtocol.topicType) {
+            subscriber = decode(in);
+        }
+
+        boolean topic = type == BinaryProtocol.topicType;
+        int serverId = topic ? this.messagingServer.resolveTopic(name) : this.messagingServer.resolvePersonal(name);
+        String interned = topic ? this.messagingServer.getTopicName(serverId) : this.messagingServer.getPersonalName(serverId);
+
+        logger.trace("Interning a destination.", "id", id, "serverId", serverId);
+        connection.bind(id, new BinaryDestination(topic, serverId, interned, subscriber));
+
+        if(requestId == BinaryProtocol.silentRequestId) {
+            connection.tally(true);
+        } else {
+            out.begin(BinaryProtocol.internOpcode, requestId, BinaryProtocol.statusOk)
+                .putInt(serverId)
+                .end();
+        }
+    }
+
+    /**
+     * publish adds the message in the body to the queue of its destination.
+     */
+    private void publish(BinaryConnection connection, int requestId, ByteBuffer in, FrameWriter out) {
+        BinaryDestination destination = connection.getDestination(in.getInt());
+        int timeout = in.getInt();
+
+        byte status;
+        if(destination == null) {
+            status = BinaryProtocol.statusUnknownDestination;
+        } else if(destination.topic && timeout < 0) {
+            status = BinaryProtocol.statusMalformed;
+        } else {
+            byte[] bytes = new byte[in.remaining()];
+            in.get(bytes);
+
+            status = this.add(destination, new ByteBufferMessage(bytes), timeout);
+        }
+
+        this.reply(connection, BinaryProtocol.publishOpcode, requestId, status, out);
+    }
+
+    /**
+     * add adds the given message to the queue of the given destination.
+     * <p>
+     * @return  byte    the status of the addition.
+     */
+    private byte add(BinaryDestination destination, IMessage message, int timeout) {
+        if(destination.topic) {
+            this.messagingServer.addTopicMessage(destination.id, message, timeout);
+            return BinaryProtocol.statusOk;
+        }
+
+        try {
+            this.messagingServer.addPersonalMessage(destination.id, message);
+            return BinaryProtocol.statusOk;
+        } catch(MessageQueueFullException e) {
+            return BinaryProtocol.statusFull;
+        }
+    }
+
+    /**
+     * batch adds all the messages in the body to the queues of their
+     * destinations; the whole batch being parsed before any of it is added.
+     * <p>
+     * Personal and topic messages are added as two batches; so that every
+     * distinct queue is only looked up once, and the write-ahead log (if any)
+     * only synced once per batch, just like with HTTP batches.
+     */
+    private void batch(BinaryConnection connection, int requestId, ByteBuffer in, FrameWriter out) {
+        int count = in.getInt();
+
+        if(count <= 0 || count > in.remaining() / batchEntryHeaderBytes) {
+            this.reject(connection, BinaryProtocol.batchOpcode, requestId, BinaryProtocol.statusMalformed, out);
+            return;
+        }
+
+        BinaryDestination[] destinations = new BinaryDestination[count];
+        IMessage[] messages = new IMessage[count];
+        int[] timeouts = new int[count];
+        byte[] statuses = new byte[count];
+        int personal = 0;
+        int topic = 0;
+
+        for(int i = 0; i < count; i++) {
+            destinations[i] = connection.getDestination(in.getInt());
+            timeouts[i] = in.getInt();
+
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining()) {
+                this.reject(connection, BinaryProtocol.batchOpcode, requestId, BinaryProtocol.statusMalformed, out);
+                return;
+            }
+
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            messages[i] = new ByteBufferMessage(bytes);
+
+            if(destinations[i] == null) {
+                statuses[i] = BinaryProtocol.statusUnknownDestination;
+            } else if(destinations[i].topic && timeouts[i] < 0) {
+                statuses[i] = BinaryProtocol.statusMalformed;
+            } else if(destinations[i].topic) {
+                topic++;
+            } else {
+                personal++;
+            }
+        }
+
+        if(in.hasRemaining()) {
+            this.reject(connection, BinaryProtocol.batchOpcode, requestId, BinaryProtocol.statusMalformed, out);
+            return;
+        }
+
+        logger.trace("Adding a binary batch of messages.", "count", count);
+
+        if(personal > 0) {
+            int[] indices = this.select(destinations, statuses, false, personal);
+            String[] people = new String[personal];
+            IMessage[] selected = new IMessage[personal];
+
+            for(int i = 0; i < personal; i++) {
+                people[i] = destinations[indices[i]].name;
+                selected[i] = messages[indices[i]];
+            }
+
+            boolean[] accepted;
+            boolean[] failed = null;
+            try {
+                accepted = this.messagingServer.addPersonalMessages(people, selected);
+            } catch(PartialBatchException e) {
+                logger.warn("Part of a binary batch failed.", e);
+
+                accepted = e.getAccepted();
+                failed = e.getFailed();
+            }
+
+            for(int i = 0; i < personal; i++) {
+                if(failed != null && failed[i]) {
+                    statuses[indices[i]] = BinaryProtocol.statusError;
+                } else {
+                    statuses[indices[i]] = accepted[i] ? BinaryProtocol.statusOk : BinaryProtocol.statusFull;
+                }
+            }
+        }
+
+        if(topic > 0) {
+            int[] indices = this.select(destinations, statuses, true, topic);
+            String[] topics = new String[topic];
+            IMessage[] selected = new IMessage[topic];
+            int[] selectedTimeouts = new int[topic];
+
+            for(int i = 0; i < topic; i++) {
+                topics[i] = destinations[indices[i]].name;
+                selected[i] = messages[indices[i]];
+                selectedTimeouts[i] = timeouts[indices[i]];
+            }
+
+            boolean[] failed = null;
+            try {
+                this.messagingServer.addTopicMessages(topics, selected, selectedTimeouts);
+            } catch(PartialBatchException e) {
+                logger.warn("Part of a binary batch failed.", e);
+
+                failed = e.getFailed();
+            }
+
+            for(int i = 0; i < topic; i++) {
+                statuses[indices[i]] = (failed != null && failed[i]) ? BinaryProtocol.statusError : BinaryProtocol.statusOk;
+            }
+        }
+
+        if(requestId == BinaryProtocol.silentRequestId) {
+            for(byte status : statuses) {
+                connection.tally(status == BinaryProtocol.statusOk);
+            }
+            return;
+        }
+
+        out.begin(BinaryProtocol.batchOpcode, requestId, BinaryProtocol.statusOk).putInt(count);
+        for(byte status : statuses) {
+            out.put(status);
+        }
+        out.end();
+    }
+
+    /**
+     * select returns the indices of the given number of valid messages of a
+     * batch which are for persons, or for topics.
+     */
+    private int[] select(BinaryDestination[] destinations, byte[] statuses, boolean topic, int count) {
+        int[] indices = new int[count];
+        int n = 0;
+
+        for(int i = 0; i < destinations.length; i++) {
+            if(destinations[i] != null && destinations[i].topic == topic && statuses[i] == BinaryProtocol.statusOk) {
+                indices[n++] = i;
+            }
+        }
+
+        return indices;
+    }
+
+    /**
+     * fetch takes at most the requested number of messages off the queue of
+     * the destination; waiting for some to arrive if so requested.
+     */
+    private void fetch(BinaryConnection connection, int requestId, ByteBuffer in, FrameWriter out) {
+        BinaryDestination destination = connection.getDestination(in.getInt());
+        int maxMessages = in.getInt();
+        long waitMillis = Math.min(in.getInt() & 0xffffffffL, BinaryProtocol.maxWaitMillis);
+
+        if(destination == null) {
+            this.reject(connection, BinaryProtocol.fetchOpcode, requestId, BinaryProtocol.statusUnknownDestination, out);
+            return;
+        }
+
+        if(maxMessages <= 0) {
+            this.reject(connection, BinaryProtocol.fetchOpcode, requestId, BinaryProtocol.statusMalformed, out);
+            return;
+        }
+
+        if(waitMillis > 0) {
+            PendingFetch pending = new PendingFetch(connection, requestId);
+
+            if(destination.topic && destination.subscriber != null) {
+                this.messagingServer.awaitTopicMessages(destination.id, destination.subscriber, maxMessages, waitMillis, pending);
+            } else if(destination.topic) {
+                this.messagingServer.awaitTopicMessages(destination.id, maxMessages, waitMillis, pending);
+            } else {
+                this.messagingServer.awaitPersonalMessages(destination.id, maxMessages, waitMillis, pending);
+            }
+
+            pending.returned(out);
+            return;
+        }
+
+        IMessage[] messages;
+        try {
+            if(destination.topic && destination.subscriber != null) {
+                messages = this.messagingServer.getRawTopicMessages(destination.id, destination.subscriber, maxMessages);
+            } else if(destination.topic) {
+                messages = this.messagingServer.getRawTopicMessages(destination.id, maxMessages);
+            } else {
+                messages = this.messagingServer.getRawPersonalMessages(destination.id, maxMessages);
+            }
+        } catch(MessageServerTopicNotFoundException | MessageServerPersonNotFoundException e) {
+            out.respond(BinaryProtocol.fetchOpcode, requestId, BinaryProtocol.statusNotFound);
+            return;
+        }
+
+        writeMessages(requestId, messages, out);
+    }
+
+    /**
+     * writeMessages writes the response to a FETCH holding the given messages.
+     */
+    private static void writeMessages(int requestId, IMessage[] messages, FrameWriter out) {
+        out.begin(BinaryProtocol.fetchOpcode, requestId, BinaryProtocol.statusOk).putInt(messages.length);
+
+        for(IMessage message : messages) {
+            ByteBuffer bytes = message.getByteValue();
+            out.putInt(bytes.remaining()).put(bytes);
+        }
+
+        out.end();
+    }
+
+    /**
+     * reply writes the bodiless response of the given status; or tallies the
+     * outcome of a silent request.
+     */
+    private void reply(BinaryConnection connection, byte opcode, int requestId, byte status, FrameWriter out) {
+        if(requestId == BinaryProtocol.silentRequestId && opcode != BinaryProtocol.fetchOpcode
+                && opcode != BinaryProtocol.ackOpcode) {
+            connection.tally(status == BinaryProtocol.statusOk);
+            return;
+        }
+
+        out.respond(opcode, requestId, status);
+    }
+
+    /**
+     * moved replies to a request for a destination owned by another node of
+     * the cluster; naming the owner.
+     */
+    private void moved(BinaryConnection connection, byte opcode, int requestId, MisroutedException e, FrameWriter out) {
+        if(requestId == BinaryProtocol.silentRequestId && opcode != BinaryProtocol.fetchOpcode) {
+            connection.tally(false);
+            return;
+        }
+
+        out.begin(opcode, requestId, BinaryProtocol.statusMoved)
+            .put(ByteBuffer.wrap(e.getOwner().toString().getBytes(StandardCharsets.UTF_8)))
+            .end();
+    }
+
+    /**
+     * readOnly replies to a request refused by a read-only follower; naming
+     * its leader, if known.
+     */
+    private void readOnly(BinaryConnection connection, byte opcode, int requestId, ReadOnlyReplicaException e, FrameWriter out) {
+        if(requestId == BinaryProtocol.silentRequestId && opcode != BinaryProtocol.fetchOpcode) {
+            connection.tally(false);
+            return;
+        }
+
+        String leader = (e.getLeader() == null) ? "" : e.getLeader();
+        out.begin(opcode, requestId, BinaryProtocol.statusReadOnly)
+            .put(ByteBuffer.wrap(leader.getBytes(StandardCharsets.UTF_8)))
+            .end();
+    }
+
+    /**
+     * reject replies to a request which could not be carried out at all.
+     */
+    private void reject(BinaryConnection connection, byte opcode, int requestId, byte status, FrameWriter out) {
+        this.malformed.increment();
+        logger.trace("Rejected a binary request.", "opcode", opcode, "status", status);
+        this.reply(connection, opcode, requestId, status, out);
+    }
+
+    /**
+     * decode decodes the remaining bytes of the given ByteBuffer as UTF-8.
+     * <p>
+     * @throws  IllegalArgumentException if they are not valid UTF-8.
+     */
+    private static String decode(ByteBuffer bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(bytes)
+                .toString();
+        } catch(CharacterCodingException e) {
+            throw new IllegalArgumentException("Invalid UTF-8.", e);
+        }
+    }
+
+    /**
+     * PendingFetch is the callback of a waiting FETCH.
+     * <p>
+     * Should it be completed before the await call returns; its messages are
+     * written along with the other responses of the burst. Otherwise they are
+     * sent on their own; from whichever Thread completed it.
+     */
+    private static final class PendingFetch implements Consumer<IMessage[]> {
+
+        private final BinaryConnection connection;
+        private final int requestId;
+
+        private boolean returned = false;
+        private IMessage[] early = null;
+
+        PendingFetch(BinaryConnection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void accept(IMessage[] messages) {
+            synchronized(this) {
+                if(!this.returned) {
+                    this.early = messages;
+                    return;
+                }
+            }
+
+            FrameWriter out = new FrameWriter();
+            writeMessages(this.requestId, messages, out);
+            this.connection.send(out.toByteBuffer());
+        }
+
+        /**
+         * returned marks that the await call returned; writing the messages
+         * to the given FrameWriter if they already came in.
+         */
+        void returned(FrameWriter out) {
+            synchronized(this) {
+                this.returned = true;
+
+                if(this.early != null) {
+                    writeMessages(this.requestId, this.early, out);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.bajetii.messageserver.server.binary;
+
+
+/**
+ * BinaryProtocol holds the constants of the native binary protocol of the
+ * server; spoken over raw TCP by the BinaryTransport, alongside HTTP.
+ * <p>
+ * ### !!!  Frame Composition:
+ *          Every request and every response is a single frame; all integers
+ *          being big-endian, and unsigned 32 bits wide unless noted:
+ *              request  :: <length> <opcode:8> <requestId> <body>
+ *              response :: <length> <opcode:8> <requestId> <status:8> <body>
+ *          where the length counts the bytes following it. A response
+ *          carries the opcode and requestId of its request; responses are
+ *          multiplexed by requestId, and may come back in any order (e.g. a
+ *          waiting FETCH does not hold back the requests after it). Requests
+ *          are however applied in the order they were sent in.
+ *
+ *          Destinations are interned per connection: an INTERN binds an id of
+ *          the client's choosing to a destination; which every later request
+ *          refers to by that id alone. An INTERN may thus be sent right ahead
+ *          of the requests using it, without waiting for its response.
+ *          Interning creates the destination's queue if need be; and binds
+ *          the id to the queue itself, so that requests never look its name
+ *          up again.
+ *
+ *          Opcodes and their bodies:
+ *              - INTERN  (0x01) :: <id> <type:8> <nameLength:16> <name>[<subscriber>]
+ *                                  type is 0 for Personal and 1 for Topic; the
+ *                                  name and the optional subscriber (topics
+ *                                  only; the rest of the frame) are UTF-8.
+ *                                  responded to with the <serverId> of the
+ *                                  destination; the same as the 'To-Id' of
+ *                                  HTTP requests.
+ *              - PUBLISH (0x02) :: <id> <timeout> <message>
+ *                                  the timeout is in seconds, and only used
+ *                                  for topics; the message is the rest of
+ *                                  the frame, as raw bytes.
+ *              - BATCH   (0x03) :: <count> (<id> <timeout> <length> <message>)*
+ *                                  responded to with <count> and one status
+ *                                  byte per message, in order; ERROR for
+ *                                  those whose node of the cluster failed.
+ *              - FETCH   (0x04) :: <id> <maxMessages> <waitMillis>
+ *                                  responded to with <count> and every
+ *                                  message as (<length> <message>). Waiting
+ *                                  on an inexistent queue creates it.
+ *              - ACK     (0x05) :: (empty)
+ *                                  responded to with the <accepted> and
+ *                                  <rejected> counts of the silent requests
+ *                                  applied since the previous ACK.
+ *          INTERN, PUBLISH and BATCH requests with a requestId of 0 are
+ *          silent: they get no response, their outcome only being counted
+ *          towards the next ACK's. Streams of silent publishes acknowledged
+ *          every now and then thus cost a single response.
+ *
+ *          Statuses:
+ *              - OK      (0) :: the request was carried out
+ *              - FULL    (1) :: the person's inbox was full
+ *              - NOT_FOUND (2) :: the fetched queue does not exist
+ *              - UNKNOWN_DESTINATION (3) :: the id was never interned
+ *              - MALFORMED (4) :: the body of the request is malformed
+ *              - TOO_LARGE (5) :: the frame exceeds the maximum size; the
+ *                                 connection is closed right after
+ *              - UNSUPPORTED (6) :: the opcode is unknown
+ *              - ERROR   (7) :: the request failed on the server's end
+ *              - MOVED   (8) :: another node of the cluster owns the
+ *                               destination; the body being the UTF-8
+ *                               'name@host:port:clusterPort' of the owner,
+ *                               whose clusterPort serves its own
+ *                               destinations over this very protocol
+ *              - READ_ONLY (9) :: the server is a read-only follower, which
+ *                                 only serves the fetches of topics; the
+ *                                 body being the UTF-8 'http://host:port'
+ *                                 of its leader, or empty if not known yet
+ * ### !!!
+ */
+public final class BinaryProtocol {
+
+    /**
+     * The opcodes of the requests:
+     */
+    public static final byte internOpcode = 0x01;
+    public static final byte publishOpcode = 0x02;
+    public static final byte batchOpcode = 0x03;
+    public static final byte fetchOpcode = 0x04;
+    public static final byte ackOpcode = 0x05;
+
+    /**
+     * The statuses of the responses:
+     */
+    public static final byte statusOk = 0;
+    public static final byte statusFull = 1;
+    public static final byte statusNotFound = 2;
+    public static final byte statusUnknownDestination = 3;
+    public static final byte statusMalformed = 4;
+    public static final byte statusTooLarge = 5;
+    public static final byte statusUnsupported = 6;
+    public static final byte statusError = 7;
+    public static final byte statusMoved = 8;
+    public static final byte statusReadOnly = 9;
+
+    /**
+     * The types of the destinations:
+     */
+    public static final byte personalType = 0;
+    public static final byte topicType = 1;
+
+    /**
+     * silentRequestId is the requestId of requests which get no response.
+     */
+    public static final int silentRequestId = 0;
+
+    /**
+     * lengthBytes is the size of the length prefixing every frame; with
+     * requestHeaderBytes and responseHeaderBytes being the sizes of the whole
+     * header of requests and responses respectively.
+     */
+    public static final int lengthBytes = 4;
+    public static final int requestHeaderBytes = lengthBytes + 1 + 4;
+    public static final int responseHeaderBytes = requestHeaderBytes + 1;
+
+    /**
+     * maxDestinations is the maximum number of destinations interned on a
+     * single connection; ids range from 0 to maxDestinations - 1.
+     */
+    public static final int maxDestinations = 64 * 1024;
+
+    /**
+     * maxWaitMillis is the longest a FETCH may be kept waiting.
+     */
+    public static final long maxWaitMillis = 60 * 1000;
+
+    private BinaryProtocol() {}
+
+}
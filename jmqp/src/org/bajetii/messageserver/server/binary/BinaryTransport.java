@@ -0,0 +1,271 @@
+package org.bajetii.messageserver.server.binary;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bajetii.messageserver.server.logging.Logger;
+
+
+/**
+ * BinaryTransport serves the native binary protocol of the server (see
+ * BinaryProtocol) over raw TCP; on a port of its own, alongside HTTP.
+ * <p>
+ * Just like the NioHttpTransport; a single selector Thread accepts
+ * connections, reads frames and writes out responses, all without ever
+ * blocking. The frames received are handed to the BinaryHandler on a pool of
+ * worker Threads; all those received on a connection at once being handled
+ * together, and all of their responses written out together.
+ */
+public class BinaryTransport {
+
+    /**
+     * logger is the Logger of the BinaryTransports.
+     */
+    private static final Logger logger = Logger.getLogger(BinaryTransport.class);
+
+    /**
+     * defaultMaxFrameBytes is the default maximum size of a request frame.
+     */
+    public static final int defaultMaxFrameBytes = 16 * 1024 * 1024;
+
+    /**
+     * port and backlog are the port listened on and the maximum number of
+     * pending connections.
+     */
+    private final int port;
+    private final int backlog;
+
+    /**
+     * maxFrameBytes is the maximum size of a request frame; past which the
+     * connection is closed.
+     */
+    private int maxFrameBytes = defaultMaxFrameBytes;
+
+    /**
+     * handler is the BinaryHandler the frames are handed to; and executor the
+     * pool of worker Threads running it.
+     */
+    private final BinaryHandler handler;
+    private final ExecutorService executor;
+
+    /**
+     * selector and serverChannel are the Selector and listening channel of
+     * the transport; with selectorThread being the Thread driving them.
+     */
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+
+    /**
+     * tasks holds the Runnables posted by other Threads which are to be run
+     * on the selector Thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * connections is the number of open connections.
+     */
+    private final AtomicInteger connections = new AtomicInteger(0);
+
+    /**
+     * running marks whether the selector Thread should keep on going.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * A BinaryTransport is created provided the port it should listen on, the
+     * backlog of its listening socket, the BinaryHandler of the frames and
+     * the ExecutorService it should be run on.
+     * <p>
+     * @param   port        the port to be listened on.
+     * @param   backlog     the maximum number of pending connections.
+     * @param   handler     the BinaryHandler of the frames.
+     * @param   executor    the ExecutorService running the handler.
+     */
+    public BinaryTransport(int port, int backlog, BinaryHandler handler, ExecutorService executor) {
+        this.port = port;
+        this.backlog = backlog;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    /**
+     * setMaxFrameBytes sets the maximum size of a request frame.
+     */
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * getMaxFrameBytes returns the maximum size of a request frame.
+     */
+    int getMaxFrameBytes() {
+        return this.maxFrameBytes;
+    }
+
+    /**
+     * getConnectionCount returns the number of open connections.
+     */
+    public int getConnectionCount() {
+        return this.connections.get();
+    }
+
+    /**
+     * start starts listening and serving.
+     */
+    public void start() throws IOException {
+        this.selector = Selector.open();
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.bind(new InetSocketAddress(this.port), this.backlog);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        this.running = true;
+        this.selectorThread = new Thread(() -> this.run(), "jmqp-binary-selector");
+        this.selectorThread.start();
+    }
+
+    /**
+     * stop stops serving; closing all the connections.
+     */
+    public void stop() {
+        this.running = false;
+
+        if(this.selector != null) {
+            this.selector.wakeup();
+        }
+
+        this.executor.shutdown();
+    }
+
+    /**
+     * runOnSelector posts the given task to be run on the selector Thread.
+     */
+    void runOnSelector(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * dispatch hands the given burst of frames received on the given
+     * connection over to the handler on the worker pool.
+     */
+    void dispatch(BinaryConnection connection, byte[] frames) {
+        this.executor.execute(() -> {
+            FrameWriter responses;
+
+            try {
+                responses = this.handler.handle(connection, frames);
+            } catch(Exception e) {
+                logger.error("Handling binary frames failed.", e);
+                this.runOnSelector(() -> connection.close());
+                return;
+            }
+
+            connection.respond(responses.toByteBuffer());
+        });
+    }
+
+    /**
+     * closed is called back by a connection once it is closed.
+     */
+    void closed(BinaryConnection connection) {
+        this.connections.decrementAndGet();
+    }
+
+    /**
+     * run is the main loop of the selector Thread.
+     */
+    private void run() {
+        while(this.running) {
+            try {
+                this.selector.select();
+            } catch(IOException e) {
+                logger.error("Selecting failed; stopping the binary selector.", e);
+                break;
+            }
+
+            Runnable task;
+            while((task = this.tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if(!key.isValid()) {
+                    continue;
+                }
+
+                if(key.isAcceptable()) {
+                    this.accept();
+                    continue;
+                }
+
+                BinaryConnection connection = (BinaryConnection) key.attachment();
+                try {
+                    if(key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch(IOException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        for(SelectionKey key : this.selector.keys()) {
+            if(key.attachment() instanceof BinaryConnection) {
+                ((BinaryConnection) key.attachment()).close();
+                continue;
+            }
+
+            try {
+                key.channel().close();
+            } catch(IOException e) {
+                // nothing to be done.
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch(IOException e) {
+            logger.warn("Could not close the binary selector.", e);
+        }
+    }
+
+    /**
+     * accept accepts all pending connections and registers them for reading.
+     */
+    private void accept() {
+        SocketChannel channel;
+
+        try {
+            while((channel = this.serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                BinaryConnection connection = new BinaryConnection(this, channel);
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+                this.connections.incrementAndGet();
+            }
+        } catch(IOException e) {
+            logger.warn("Accepting binary connections failed.", e);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.bajetii.messageserver.server.binary;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * FrameWriter serializes response frames back to back into a single growing
+ * ByteBuffer; so that all the responses to a burst of requests are written
+ * out to the socket at once.
+ * <p>
+ * A frame is started with begin(), filled in with the put methods and ended
+ * with end(); which fills in its length.
+ */
+class FrameWriter {
+
+    /**
+     * initialBufferSize is the initial size of the buffer.
+     */
+    private static final int initialBufferSize = 1024;
+
+    /**
+     * buffer holds the frames written so far; with frameStart being the
+     * position of the frame being written.
+     */
+    private ByteBuffer buffer;
+    private int frameStart = -1;
+
+    FrameWriter() {
+        this(initialBufferSize);
+    }
+
+    /**
+     * A FrameWriter can also be created provided the number of bytes it is
+     * expected to hold.
+     */
+    FrameWriter(int expectedBytes) {
+        this.buffer = ByteBuffer.allocate(Math.max(expectedBytes, BinaryProtocol.responseHeaderBytes));
+    }
+
+    /**
+     * begin starts a response frame with the given opcode, requestId and
+     * status.
+     */
+    FrameWriter begin(byte opcode, int requestId, byte status) {
+        this.ensure(BinaryProtocol.responseHeaderBytes);
+
+        this.frameStart = this.buffer.position();
+        this.buffer.putInt(0).put(opcode).putInt(requestId).put(status);
+
+        return this;
+    }
+
+    FrameWriter putInt(int value) {
+        this.ensure(4);
+        this.buffer.putInt(value);
+
+        return this;
+    }
+
+    FrameWriter put(byte value) {
+        this.ensure(1);
+        this.buffer.put(value);
+
+        return this;
+    }
+
+    /**
+     * put copies the remaining bytes of the given ByteBuffer; without
+     * altering its position.
+     */
+    FrameWriter put(ByteBuffer bytes) {
+        this.ensure(bytes.remaining());
+        this.buffer.put(bytes.duplicate());
+
+        return this;
+    }
+
+    /**
+     * end ends the frame being written; filling in its length.
+     */
+    void end() {
+        this.buffer.putInt(this.frameStart, this.buffer.position() - this.frameStart - BinaryProtocol.lengthBytes);
+        this.frameStart = -1;
+    }
+
+    /**
+     * respond writes a whole response frame of the given status; without a
+     * body.
+     */
+    void respond(byte opcode, int requestId, byte status) {
+        this.begin(opcode, requestId, status).end();
+    }
+
+    boolean isEmpty() {
+        return this.buffer.position() == 0;
+    }
+
+    /**
+     * toByteBuffer returns the frames written; ready to be written out.
+     */
+    ByteBuffer toByteBuffer() {
+        return this.buffer.duplicate().flip();
+    }
+
+    /**
+     * ensure grows the buffer so that it has room for the given number of
+     * bytes.
+     */
+    private void ensure(int bytes) {
+        if(this.buffer.remaining() >= bytes) {
+            return;
+        }
+
+        int capacity = this.buffer.capacity();
+        while(capacity - this.buffer.position() < bytes) {
+            capacity *= 2;
+        }
+
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        this.buffer.flip();
+        grown.put(this.buffer);
+        this.buffer = grown;
+    }
+
+}
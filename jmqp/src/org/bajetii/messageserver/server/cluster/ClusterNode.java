@@ -0,0 +1,117 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import java.util.ArrayList;
+
+import org.bajetii.messageserver.server.config.exceptions.ConfigurationException;
+
+
+/**
+ * ClusterNode represents a single node of a cluster of servers; as listed in
+ * the static membership of the cluster.
+ * <p>
+ * A node is spelled out as 'name@host:port:clusterPort'; port being the one
+ * it serves HTTP on, and clusterPort the one it serves its own queues on over
+ * the binary protocol, for the other nodes to forward operations to.
+ */
+public final class ClusterNode {
+
+    /**
+     * name is the name of the node; unique within the cluster, and the only
+     * thing its position on the HashRing depends on.
+     */
+    private final String name;
+
+    /**
+     * host, port and clusterPort are the address of the node.
+     */
+    private final String host;
+    private final int port;
+    private final int clusterPort;
+
+    public ClusterNode(String name, String host, int port, int clusterPort) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * parse parses a single node out of its 'name@host:port:clusterPort'
+     * spelling.
+     * <p>
+     * @throws  ConfigurationException if the spelling is invalid.
+     */
+    public static ClusterNode parse(String spec) {
+        String value = spec.trim();
+        int at = value.indexOf('@');
+        String[] address = value.substring(at + 1).split(":");
+
+        if(at <= 0 || address.length != 3 || address[0].isEmpty()) {
+            throw new ConfigurationException("A cluster node must be given as 'name@host:port:clusterPort': '" + spec + "'.");
+        }
+
+        try {
+            return new ClusterNode(value.substring(0, at), address[0],
+                Integer.parseInt(address[1]), Integer.parseInt(address[2]));
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("Could not parse the ports of cluster node '" + spec + "'.", e);
+        }
+    }
+
+    /**
+     * parseList parses the comma separated list of nodes making a cluster.
+     * <p>
+     * @throws  ConfigurationException if any node is invalid, or two share a
+     *          name.
+     */
+    public static ClusterNode[] parseList(String specs) {
+        ArrayList<ClusterNode> nodes = new ArrayList<ClusterNode>();
+
+        for(String spec : specs.split(",")) {
+            if(spec.isBlank()) {
+                continue;
+            }
+
+            ClusterNode node = ClusterNode.parse(spec);
+            for(ClusterNode other : nodes) {
+                if(other.name.equals(node.name)) {
+                    throw new ConfigurationException("Cluster node '" + node.name + "' is listed twice.");
+                }
+            }
+
+            nodes.add(node);
+        }
+
+        return nodes.toArray(new ClusterNode[nodes.size()]);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public int getClusterPort() {
+        return this.clusterPort;
+    }
+
+    /**
+     * getHttpAddress returns the base URL of the node's HTTP server.
+     */
+    public String getHttpAddress() {
+        return "http://" + this.host + ":" + this.port;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "@" + this.host + ":" + this.port + ":" + this.clusterPort;
+    }
+
+}
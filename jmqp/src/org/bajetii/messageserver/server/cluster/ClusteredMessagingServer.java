@@ -0,0 +1,908 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.binary.BinaryProtocol;
+import org.bajetii.messageserver.server.cluster.exceptions.MisroutedException;
+import org.bajetii.messageserver.server.cluster.exceptions.PartialBatchException;
+import org.bajetii.messageserver.server.cluster.exceptions.PeerUnavailableException;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.exceptions.MessageServerPersonNotFoundException;
+import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * ClusteredMessagingServer is a single node of a cluster of servers; which
+ * partition the queues between them.
+ * <p>
+ * People and topics are assigned to the nodes by consistent hashing of their
+ * names (see HashRing); every node computing the same assignment out of the
+ * same static list of nodes. Operations on the queues a node owns are carried
+ * out on its local server (be it a MessagingServer or a
+ * ShardedMessagingServer). Those on the queues of another node are, as per
+ * the RoutingPolicy, either forwarded to the owner over a PeerLink, or
+ * refused with a MisroutedException naming the owner; for the handlers to
+ * redirect the client to it. Streaming subscriptions are always redirected,
+ * as the links do not stream.
+ * <p>
+ * Batches are split by node; the share of every other node being forwarded
+ * to it before the local share is added, and all of them waited for
+ * afterwards. A batch holding any message to be redirected is refused as a
+ * whole; before any of it is added. A batch some share of which failed
+ * (its node being unavailable, say) while another was added is reported
+ * message by message with a PartialBatchException; so that the client
+ * retries only the messages which failed.
+ * <p>
+ * The id of a person or topic is the id it has on its owner, times the number
+ * of nodes, plus the index of its owner; so that ids are resolved to their
+ * owner without any lookup. A node only knows the names of the ids of other
+ * nodes it resolved itself; operations on any other id of another node being
+ * redirected to the owner.
+ */
+public class ClusteredMessagingServer implements IMessagingServer {
+
+    /**
+     * local is the server holding the queues the node owns.
+     */
+    private final IMessagingServer local;
+
+    /**
+     * ring assigns the people and topics to the nodes; with self being the
+     * index of this node.
+     */
+    private final HashRing ring;
+    private final ClusterNode[] nodes;
+    private final int self;
+
+    /**
+     * routing is what is done with the operations on the queues of other
+     * nodes; with links holding the PeerLink to every other node (and null
+     * for this one).
+     */
+    private final RoutingPolicy routing;
+    private final PeerLink[] links;
+
+    /**
+     * requestTimeoutMillis is the time forwarded operations wait for their
+     * outcome; on top of the time they asked the owner to wait, if any.
+     */
+    private final long requestTimeoutMillis;
+
+    /**
+     * remotePeople and remoteTopics hold the names of the ids of other nodes
+     * resolved by this one.
+     */
+    private final ConcurrentHashMap<Integer, String> remotePeople = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentHashMap<Integer, String> remoteTopics = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * forwarded and redirected count the operations forwarded, respectively
+     * redirected, to every node.
+     */
+    private final Counter[] forwarded;
+    private final Counter[] redirected;
+
+    /**
+     * A ClusteredMessagingServer is created provided the server holding the
+     * queues the node owns, the HashRing of the cluster and the index of the
+     * node within it, what to do with operations on the queues of other
+     * nodes, and the time operations forwarded to them wait for their
+     * outcome.
+     * <p>
+     * Its metrics are registered with those of the local server.
+     */
+    public ClusteredMessagingServer(IMessagingServer local, HashRing ring, int self, RoutingPolicy routing,
+            long requestTimeoutMillis) {
+        if(self < 0 || self >= ring.size()) {
+            throw new IllegalArgumentException("The node is not part of the cluster: " + self);
+        }
+
+        this.local = local;
+        this.ring = ring;
+        this.nodes = ring.getNodes();
+        this.self = self;
+        this.routing = routing;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.links = new PeerLink[this.nodes.length];
+        this.forwarded = new Counter[this.nodes.length];
+        this.redirected = new Counter[this.nodes.length];
+
+        MetricsRegistry metrics = local.getMetrics();
+        for(int i = 0; i < this.nodes.length; i++) {
+            final int node = i;
+            String name = this.nodes[i].getName();
+
+            metrics.gauge("jmqp_cluster_ring_share", "Share of the hash ring owned by each node of the cluster.",
+                () -> ring.getShare(node), "node", name);
+
+            if(i == self) {
+                continue;
+            }
+
+            PeerLink link = new PeerLink(this.nodes[i], requestTimeoutMillis, local.getTimerWheel());
+            this.links[i] = link;
+            this.forwarded[i] = metrics.counter("jmqp_cluster_forwarded_total",
+                "Operations forwarded to each other node of the cluster.", "node", name);
+            this.redirected[i] = metrics.counter("jmqp_cluster_redirected_total",
+                "Operations redirected to each other node of the cluster.", "node", name);
+            metrics.gauge("jmqp_cluster_peer_connected", "Whether the link to each other node of the cluster is up.",
+                () -> link.isConnected() ? 1 : 0, "node", name);
+        }
+    }
+
+    /**
+     * getLocal returns the server holding the queues the node owns.
+     */
+    public IMessagingServer getLocal() {
+        return this.local;
+    }
+
+    /**
+     * getNode returns the ClusterNode of this node.
+     */
+    public ClusterNode getNode() {
+        return this.nodes[this.self];
+    }
+
+    /**
+     * checkOwned checks that the person or topic of the given name is owned
+     * by this node.
+     * <p>
+     * @throws  MisroutedException if it is owned by another node.
+     */
+    private void checkOwned(String name) {
+        int owner = this.ring.ownerOf(name);
+        if(owner != this.self) {
+            throw this.redirect(owner);
+        }
+    }
+
+    /**
+     * stop closes the links to the other nodes.
+     */
+    public void stop() {
+        for(PeerLink link : this.links) {
+            if(link != null) {
+                link.close();
+            }
+        }
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return this.local.getMetrics();
+    }
+
+    @Override
+    public void setMaxQueueSeries(int maxQueueSeries) {
+        this.local.setMaxQueueSeries(maxQueueSeries);
+    }
+
+    @Override
+    public TimerWheel getTimerWheel() {
+        return this.local.getTimerWheel();
+    }
+
+    /**
+     * getPersonalCapacities returns the capacities of the node's own personal
+     * queues; every node being configured on its own.
+     */
+    @Override
+    public QueueCapacities getPersonalCapacities() {
+        return this.local.getPersonalCapacities();
+    }
+
+    /**
+     * resizePersonalQueues resizes the node's own personal queues.
+     */
+    @Override
+    public int resizePersonalQueues() {
+        return this.local.resizePersonalQueues();
+    }
+
+    @Override
+    public int resolvePersonal(String person) {
+        int owner = this.ring.ownerOf(person);
+        PeerLink link = this.route(owner);
+
+        if(link == null) {
+            return this.globalId(owner, this.local.resolvePersonal(person));
+        }
+
+        int id = this.globalId(owner, link.intern(false, person));
+        this.remotePeople.put(id, person);
+
+        return id;
+    }
+
+    @Override
+    public int resolveTopic(String topic) {
+        int owner = this.ring.ownerOf(topic);
+        PeerLink link = this.route(owner);
+
+        if(link == null) {
+            return this.globalId(owner, this.local.resolveTopic(topic));
+        }
+
+        int id = this.globalId(owner, link.intern(true, topic));
+        this.remoteTopics.put(id, topic);
+
+        return id;
+    }
+
+    /**
+     * getPersonalName returns the name of the person of the given id.
+     * <p>
+     * @throws  MisroutedException if the id is of another node, and was not
+     *          resolved by this one.
+     */
+    @Override
+    public String getPersonalName(int id) {
+        if(id < 0) {
+            return null;
+        }
+
+        int owner = id % this.nodes.length;
+        if(owner == this.self) {
+            return this.local.getPersonalName(this.localId(id));
+        }
+
+        String name = this.remotePeople.get(id);
+        if(name == null) {
+            throw this.redirect(owner);
+        }
+
+        return name;
+    }
+
+    /**
+     * getTopicName returns the name of the topic of the given id.
+     * <p>
+     * @throws  MisroutedException if the id is of another node, and was not
+     *          resolved by this one.
+     */
+    @Override
+    public String getTopicName(int id) {
+        if(id < 0) {
+            return null;
+        }
+
+        int owner = id % this.nodes.length;
+        if(owner == this.self) {
+            return this.local.getTopicName(this.localId(id));
+        }
+
+        String name = this.remoteTopics.get(id);
+        if(name == null) {
+            throw this.redirect(owner);
+        }
+
+        return name;
+    }
+
+    @Override
+    public void addPersonalMessage(String person, IMessage message) {
+        PeerLink link = this.route(this.ring.ownerOf(person));
+
+        if(link == null) {
+            this.local.addPersonalMessage(person, message);
+            return;
+        }
+
+        byte status = link.await(link.publish(false, person, message, 0), 0).get();
+        if(status == BinaryProtocol.statusFull) {
+            throw new MessageQueueFullException();
+        }
+
+        this.check(link, status);
+    }
+
+    @Override
+    public void addPersonalMessage(int id, IMessage message) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            this.local.addPersonalMessage(this.localId(id), message);
+            return;
+        }
+
+        this.addPersonalMessage(this.personalName(id), message);
+    }
+
+    @Override
+    public void addTopicMessage(String topic, IMessage message, int timeout) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            this.local.addTopicMessage(topic, message, timeout);
+            return;
+        }
+
+        this.check(link, link.await(link.publish(true, topic, message, timeout), 0).get());
+    }
+
+    @Override
+    public void addTopicMessage(int id, IMessage message, int timeout) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            this.local.addTopicMessage(this.localId(id), message, timeout);
+            return;
+        }
+
+        this.addTopicMessage(this.topicName(id), message, timeout);
+    }
+
+    /**
+     * addPersonalMessages splits the batch by node; the share of every other
+     * node being forwarded to it while the local share is added.
+     * <p>
+     * @throws  PartialBatchException if the share of some node failed while
+     *          that of another was added.
+     */
+    @Override
+    public boolean[] addPersonalMessages(String[] people, IMessage[] messages) {
+        int[][] indices = this.split(people);
+        ArrayList<CompletableFuture<ByteBuffer>> responses = this.forward(indices, false, people, messages, null);
+
+        boolean[] accepted = new boolean[messages.length];
+        boolean[] failed = new boolean[messages.length];
+        RuntimeException failure = null;
+        boolean added = false;
+
+        for(int n = 0; n < this.nodes.length; n++) {
+            int[] share = indices[n];
+            if(share.length == 0) {
+                continue;
+            }
+
+            boolean[] shareAccepted;
+            try {
+                if(n == this.self) {
+                    shareAccepted = this.local.addPersonalMessages(select(people, share), select(messages, share));
+                } else {
+                    shareAccepted = this.readStatuses(this.links[n], responses.get(n));
+                }
+            } catch(RuntimeException e) {
+                failure = (failure == null) ? e : failure;
+                for(int i : share) {
+                    failed[i] = true;
+                }
+                continue;
+            }
+
+            added = true;
+            for(int i = 0; i < share.length; i++) {
+                accepted[share[i]] = shareAccepted[i];
+            }
+        }
+
+        this.checkBatch(failure, added, accepted, failed);
+        return accepted;
+    }
+
+    /**
+     * addTopicMessages splits the batch by node; the share of every other node
+     * being forwarded to it while the local share is added.
+     * <p>
+     * @throws  PartialBatchException if the share of some node failed while
+     *          that of another was added.
+     */
+    @Override
+    public void addTopicMessages(String[] topics, IMessage[] messages, int[] timeouts) {
+        int[][] indices = this.split(topics);
+        ArrayList<CompletableFuture<ByteBuffer>> responses = this.forward(indices, true, topics, messages, timeouts);
+
+        boolean[] accepted = new boolean[messages.length];
+        boolean[] failed = new boolean[messages.length];
+        RuntimeException failure = null;
+        boolean added = false;
+
+        for(int n = 0; n < this.nodes.length; n++) {
+            int[] share = indices[n];
+            if(share.length == 0) {
+                continue;
+            }
+
+            try {
+                if(n == this.self) {
+                    this.local.addTopicMessages(select(topics, share), select(messages, share), select(timeouts, share));
+                } else {
+                    this.readStatuses(this.links[n], responses.get(n));
+                }
+            } catch(RuntimeException e) {
+                failure = (failure == null) ? e : failure;
+                for(int i : share) {
+                    failed[i] = true;
+                }
+                continue;
+            }
+
+            added = true;
+            for(int i : share) {
+                accepted[i] = true;
+            }
+        }
+
+        this.checkBatch(failure, added, accepted, failed);
+    }
+
+    /**
+     * checkBatch checks the outcome of a batch split by node.
+     * <p>
+     * @param   failure     the failure of the first share which failed; if any.
+     * @param   added       whether the share of any node was added.
+     * @param   accepted    whether each message was added.
+     * @param   failed      whether the share of each message failed.
+     * @throws  RuntimeException the failure itself; if no share was added, the
+     *          batch thus failing as a whole.
+     * @throws  PartialBatchException if some share failed while another was
+     *          added.
+     */
+    private void checkBatch(RuntimeException failure, boolean added, boolean[] accepted, boolean[] failed) {
+        if(failure == null) {
+            return;
+        }
+
+        if(!added) {
+            throw failure;
+        }
+
+        throw new PartialBatchException(accepted, failed, failure);
+    }
+
+    @Override
+    public IMessage getRawPersonalMessage(String person) {
+        PeerLink link = this.route(this.ring.ownerOf(person));
+
+        if(link == null) {
+            return this.local.getRawPersonalMessage(person);
+        }
+
+        IMessage[] messages = this.fetch(link, false, person, null, 1);
+        if(messages.length == 0) {
+            throw new MessageQueueEmptyException();
+        }
+
+        return messages[0];
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(String person, int maxMessages) {
+        PeerLink link = this.route(this.ring.ownerOf(person));
+
+        if(link == null) {
+            return this.local.getRawPersonalMessages(person, maxMessages);
+        }
+
+        return this.fetch(link, false, person, null, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(int id, int maxMessages) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            return this.local.getRawPersonalMessages(this.localId(id), maxMessages);
+        }
+
+        return this.getRawPersonalMessages(this.personalName(id), maxMessages);
+    }
+
+    @Override
+    public IMessage getRawTopicMessage(String topic) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            return this.local.getRawTopicMessage(topic);
+        }
+
+        IMessage[] messages = this.fetch(link, true, topic, null, 1);
+        if(messages.length == 0) {
+            throw new MessageQueueEmptyException();
+        }
+
+        return messages[0];
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, int maxMessages) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            return this.local.getRawTopicMessages(topic, maxMessages);
+        }
+
+        return this.fetch(link, true, topic, null, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, int maxMessages) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            return this.local.getRawTopicMessages(this.localId(id), maxMessages);
+        }
+
+        return this.getRawTopicMessages(this.topicName(id), maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, String subscriber, int maxMessages) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            return this.local.getRawTopicMessages(topic, subscriber, maxMessages);
+        }
+
+        return this.fetch(link, true, topic, subscriber, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, String subscriber, int maxMessages) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            return this.local.getRawTopicMessages(this.localId(id), subscriber, maxMessages);
+        }
+
+        return this.getRawTopicMessages(this.topicName(id), subscriber, maxMessages);
+    }
+
+    @Override
+    public void awaitPersonalMessages(String person, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        PeerLink link = this.route(this.ring.ownerOf(person));
+
+        if(link == null) {
+            this.local.awaitPersonalMessages(person, maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.await(link, false, person, null, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitPersonalMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            this.local.awaitPersonalMessages(this.localId(id), maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.awaitPersonalMessages(this.personalName(id), maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            this.local.awaitTopicMessages(topic, maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.await(link, true, topic, null, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            this.local.awaitTopicMessages(this.localId(id), maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.awaitTopicMessages(this.topicName(id), maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        PeerLink link = this.route(this.ring.ownerOf(topic));
+
+        if(link == null) {
+            this.local.awaitTopicMessages(topic, subscriber, maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.await(link, true, topic, subscriber, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        if(id >= 0 && id % this.nodes.length == this.self) {
+            this.local.awaitTopicMessages(this.localId(id), subscriber, maxMessages, waitMillis, complete);
+            return;
+        }
+
+        this.awaitTopicMessages(this.topicName(id), subscriber, maxMessages, waitMillis, complete);
+    }
+
+    /**
+     * checkPersonalSubscription checks that the person is owned by this node;
+     * as subscriptions are never forwarded.
+     * <p>
+     * @throws  MisroutedException if the person is owned by another node.
+     */
+    @Override
+    public void checkPersonalSubscription(String person) {
+        this.checkOwned(person);
+        this.local.checkPersonalSubscription(person);
+    }
+
+    /**
+     * checkTopicSubscription checks that the topic is owned by this node; as
+     * subscriptions are never forwarded.
+     * <p>
+     * @throws  MisroutedException if the topic is owned by another node.
+     */
+    @Override
+    public void checkTopicSubscription(String topic) {
+        this.checkOwned(topic);
+        this.local.checkTopicSubscription(topic);
+    }
+
+    /**
+     * subscribePersonal subscribes to the node's own personal queues only.
+     * <p>
+     * @throws  MisroutedException if the person is owned by another node.
+     */
+    @Override
+    public MessageSubscription subscribePersonal(String person, IMessageSink sink) {
+        this.checkOwned(person);
+
+        return this.local.subscribePersonal(person, sink);
+    }
+
+    /**
+     * subscribeTopic subscribes to the node's own topic queues only.
+     * <p>
+     * @throws  MisroutedException if the topic is owned by another node.
+     */
+    @Override
+    public MessageSubscription subscribeTopic(String topic, String subscriber, IMessageSink sink) {
+        this.checkOwned(topic);
+
+        return this.local.subscribeTopic(topic, subscriber, sink);
+    }
+
+    /**
+     * route returns the PeerLink operations on the queues of the given node
+     * are forwarded over; or null if the node is this one.
+     * <p>
+     * @throws  MisroutedException if such operations are redirected.
+     */
+    private PeerLink route(int owner) {
+        if(owner == this.self) {
+            return null;
+        }
+
+        if(this.routing == RoutingPolicy.REDIRECT) {
+            throw this.redirect(owner);
+        }
+
+        this.forwarded[owner].increment();
+        return this.links[owner];
+    }
+
+    /**
+     * redirect returns the MisroutedException redirecting an operation to
+     * the given node.
+     */
+    private MisroutedException redirect(int owner) {
+        this.redirected[owner].increment();
+
+        return new MisroutedException(this.nodes[owner]);
+    }
+
+    /**
+     * forward forwards the shares of the given batch owned by other nodes;
+     * returning their pending responses by node, failed for the nodes which
+     * are unavailable. Nothing is forwarded if any share is to be
+     * redirected.
+     */
+    private ArrayList<CompletableFuture<ByteBuffer>> forward(int[][] indices, boolean topic, String[] names, IMessage[] messages,
+            int[] timeouts) {
+        ArrayList<CompletableFuture<ByteBuffer>> responses = new ArrayList<CompletableFuture<ByteBuffer>>(this.nodes.length);
+        PeerLink[] links = new PeerLink[this.nodes.length];
+
+        for(int n = 0; n < this.nodes.length; n++) {
+            if(indices[n].length > 0) {
+                links[n] = this.route(n);
+            }
+        }
+
+        for(int n = 0; n < this.nodes.length; n++) {
+            if(links[n] == null) {
+                responses.add(null);
+                continue;
+            }
+
+            // a share which could not be sent fails on its own; rather than
+            // the shares sent ahead of it being left unaccounted for:
+            int[] share = indices[n];
+            try {
+                responses.add(links[n].batch(topic, select(names, share), select(messages, share),
+                    topic ? select(timeouts, share) : null));
+            } catch(PeerUnavailableException e) {
+                responses.add(CompletableFuture.failedFuture(e));
+            }
+        }
+
+        return responses;
+    }
+
+    /**
+     * readStatuses waits for the response to a forwarded batch; returning
+     * whether each of its messages was accepted.
+     */
+    private boolean[] readStatuses(PeerLink link, CompletableFuture<ByteBuffer> response) {
+        ByteBuffer frame = link.await(response, 0);
+        this.check(link, frame.get());
+
+        boolean[] accepted = new boolean[frame.getInt()];
+        for(int i = 0; i < accepted.length; i++) {
+            accepted[i] = frame.get() == BinaryProtocol.statusOk;
+        }
+
+        return accepted;
+    }
+
+    /**
+     * fetch forwards the fetching of at most the given number of messages off
+     * the given queue; and waits for them.
+     */
+    private IMessage[] fetch(PeerLink link, boolean topic, String name, String subscriber, int maxMessages) {
+        if(maxMessages <= 0) {
+            return new IMessage[0];
+        }
+
+        ByteBuffer frame = link.await(link.fetch(topic, name, subscriber, maxMessages, 0), 0);
+        byte status = frame.get();
+
+        if(status == BinaryProtocol.statusNotFound && topic) {
+            throw new MessageServerTopicNotFoundException(name);
+        } else if(status == BinaryProtocol.statusNotFound) {
+            throw new MessageServerPersonNotFoundException(name);
+        }
+
+        this.check(link, status);
+        return PeerLink.readMessages(frame);
+    }
+
+    /**
+     * await forwards the fetching of at most the given number of messages off
+     * the given queue; the messages (none if the link failed) being handed
+     * to the given Consumer once the owner responds.
+     */
+    private void await(PeerLink link, boolean topic, String name, String subscriber, int maxMessages, long waitMillis,
+            Consumer<IMessage[]> complete) {
+        link.fetch(topic, name, subscriber, maxMessages, waitMillis)
+            .orTimeout(waitMillis + this.requestTimeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((frame, failure) -> {
+                if(failure == null && frame.get() == BinaryProtocol.statusOk) {
+                    complete.accept(PeerLink.readMessages(frame));
+                } else {
+                    complete.accept(new IMessage[0]);
+                }
+            });
+    }
+
+    /**
+     * check checks that the given status of a forwarded operation is OK.
+     * <p>
+     * @throws  PeerUnavailableException if it is not.
+     */
+    private void check(PeerLink link, byte status) {
+        if(status != BinaryProtocol.statusOk) {
+            throw new PeerUnavailableException(link.getPeer(), "the operation failed with status " + status + ".");
+        }
+    }
+
+    /**
+     * personalName returns the name of the person of the given id.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    private String personalName(int id) {
+        String name = this.getPersonalName(id);
+        if(name == null) {
+            throw new MessageServerPersonNotFoundException("#" + id);
+        }
+
+        return name;
+    }
+
+    /**
+     * topicName returns the name of the topic of the given id.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    private String topicName(int id) {
+        String name = this.getTopicName(id);
+        if(name == null) {
+            throw new MessageServerTopicNotFoundException("#" + id);
+        }
+
+        return name;
+    }
+
+    /**
+     * localId returns the id the person or topic of the given id has on its
+     * owner.
+     */
+    private int localId(int id) {
+        return id / this.nodes.length;
+    }
+
+    /**
+     * globalId returns the id of the person or topic of the given id on the
+     * given node.
+     */
+    private int globalId(int owner, int localId) {
+        if(localId > (Integer.MAX_VALUE - owner) / this.nodes.length) {
+            throw new IllegalStateException("Ran out of ids: " + localId);
+        }
+
+        return localId * this.nodes.length + owner;
+    }
+
+    /**
+     * split returns the indices of the given names owned by every node; in
+     * order.
+     */
+    private int[][] split(String[] names) {
+        int[] counts = new int[this.nodes.length];
+        int[] owners = new int[names.length];
+
+        for(int i = 0; i < names.length; i++) {
+            owners[i] = this.ring.ownerOf(names[i]);
+            counts[owners[i]]++;
+        }
+
+        int[][] indices = new int[this.nodes.length][];
+        for(int n = 0; n < this.nodes.length; n++) {
+            indices[n] = new int[counts[n]];
+            counts[n] = 0;
+        }
+
+        for(int i = 0; i < names.length; i++) {
+            indices[owners[i]][counts[owners[i]]++] = i;
+        }
+
+        return indices;
+    }
+
+    /**
+     * select returns the given elements of the given array; in order.
+     */
+    private static String[] select(String[] values, int[] indices) {
+        String[] selected = new String[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+
+        return selected;
+    }
+
+    private static IMessage[] select(IMessage[] values, int[] indices) {
+        IMessage[] selected = new IMessage[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+
+        return selected;
+    }
+
+    private static int[] select(int[] values, int[] indices) {
+        int[] selected = new int[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+
+        return selected;
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * HashRing partitions the people and topics of a cluster across its nodes
+ * by consistent hashing.
+ * <p>
+ * Every node is placed on a ring of 64-bit hashes at many points (its virtual
+ * nodes); each the hash of the node's name and the index of the point. A name
+ * is owned by the node of the first point at or past the name's own hash, the
+ * ring wrapping around. As the points only depend on the names of the nodes,
+ * every node computes the very same ring out of the same membership; and a
+ * node joining or leaving only moves the names adjacent to its own points,
+ * about 1/n of them, rather than reshuffling them all. The more virtual
+ * nodes, the more evenly the names are spread.
+ * <p>
+ * The ring is immutable; its points being held as two parallel sorted arrays
+ * and looked up by binary search, so that finding the owner of a name costs
+ * a hash and about log2(nodes * virtualNodes) comparisons.
+ */
+public final class HashRing {
+
+    /**
+     * defaultVirtualNodes is the default number of points of every node.
+     */
+    public static final int defaultVirtualNodes = 128;
+
+    /**
+     * nodes holds the nodes of the ring; in the order they were given in.
+     */
+    private final ClusterNode[] nodes;
+
+    /**
+     * points holds the points of the ring in ascending order; with owners
+     * holding the index of the node of every point.
+     */
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * A HashRing is created provided the nodes of the cluster and the number
+     * of points of every node.
+     */
+    public HashRing(ClusterNode[] nodes, int virtualNodes) {
+        if(nodes.length == 0 || virtualNodes <= 0) {
+            throw new IllegalArgumentException("A hash ring needs at least one node and one point per node.");
+        }
+
+        this.nodes = nodes.clone();
+
+        int count = nodes.length * virtualNodes;
+        long[][] pairs = new long[count][];
+        for(int n = 0; n < nodes.length; n++) {
+            for(int v = 0; v < virtualNodes; v++) {
+                pairs[n * virtualNodes + v] = new long[] {hash(nodes[n].getName() + "#" + v), n};
+            }
+        }
+
+        // NOTE: ties (however unlikely) go to the node of the smaller name; so
+        // that the ring does not depend on the order the nodes are listed in:
+        Arrays.sort(pairs, Comparator.<long[]>comparingLong((pair) -> pair[0])
+            .thenComparing((pair) -> nodes[(int) pair[1]].getName()));
+
+        this.points = new long[count];
+        this.owners = new int[count];
+        for(int i = 0; i < count; i++) {
+            this.points[i] = pairs[i][0];
+            this.owners[i] = (int) pairs[i][1];
+        }
+    }
+
+    /**
+     * getNodes returns the nodes of the ring.
+     */
+    public ClusterNode[] getNodes() {
+        return this.nodes.clone();
+    }
+
+    /**
+     * size returns the number of nodes of the ring.
+     */
+    public int size() {
+        return this.nodes.length;
+    }
+
+    /**
+     * indexOf returns the index of the node of the given name; or -1 if there
+     * is none.
+     */
+    public int indexOf(String name) {
+        for(int i = 0; i < this.nodes.length; i++) {
+            if(this.nodes[i].getName().equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * ownerOf returns the index of the node owning the person or topic of the
+     * given name.
+     */
+    public int ownerOf(String name) {
+        int index = Arrays.binarySearch(this.points, hash(name));
+        if(index < 0) {
+            index = -index - 1;
+        }
+
+        return this.owners[index == this.points.length ? 0 : index];
+    }
+
+    /**
+     * getShare returns the share of the ring owned by the node of the given
+     * index; between 0 and 1.
+     */
+    public double getShare(int node) {
+        if(this.points.length == 1) {
+            return (this.owners[0] == node) ? 1 : 0;
+        }
+
+        double share = 0;
+
+        for(int i = 0; i < this.points.length; i++) {
+            if(this.owners[i] != node) {
+                continue;
+            }
+
+            // the arc from the previous point, as an unsigned 64-bit length:
+            long arc = this.points[i] - this.points[(i == 0 ? this.points.length : i) - 1];
+            share += (arc >= 0 ? arc : arc + 0x1p64) / 0x1p64;
+        }
+
+        return share;
+    }
+
+    /**
+     * hash returns the 64-bit hash of the given name; the FNV-1a hash of its
+     * characters, with the final mix of MurmurHash3 spreading it over all the
+     * bits, as names often only differ in their last few characters.
+     */
+    public static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+
+        return hash;
+    }
+
+}
@@ -0,0 +1,656 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.server.binary.BinaryProtocol;
+import org.bajetii.messageserver.server.cluster.exceptions.MisroutedException;
+import org.bajetii.messageserver.server.cluster.exceptions.PeerUnavailableException;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * PeerLink is the connection of a node of the cluster to another one (its
+ * peer); over which operations on the peer's queues are forwarded to it.
+ * <p>
+ * It speaks the binary protocol (see BinaryProtocol) to the peer's cluster
+ * port; which serves the peer's own queues, and never forwards anything any
+ * further. All the Threads forwarding to the peer share the one connection:
+ * requests are written under a lock and their responses matched back by
+ * requestId on the link's reader Thread, so that the requests of many
+ * Threads are pipelined rather than waiting on one another. Destinations
+ * are interned on the connection upon their first use; the INTERN being
+ * written right ahead of the request using it.
+ * <p>
+ * A connection only holds so many destinations (maxDestinations). Once a
+ * request would intern past them, the connection is retired: the request
+ * and those after it go out over a fresh one with a table of its own, and
+ * the retired one is closed as soon as its last response came back.
+ * <p>
+ * Requests are sent as they are asked for; their responses being handed
+ * back as CompletableFutures holding the response frame, positioned at its
+ * status. Should the connection fail, every request waiting on it fails with
+ * a PeerUnavailableException; and the next request reconnects, though no
+ * sooner than reconnectDelayMillis after the failure, so that a node which is
+ * down is not hammered with connection attempts.
+ * <p>
+ * A write may take no longer than a request waits for its response: the
+ * watchdog, run on the TimerWheel every watchdogMillis, closes a connection
+ * whose write is stuck past that (e.g. on a peer which stopped reading);
+ * which fails the write, rather than having it hold the lock, and every
+ * Thread forwarding to the peer, for good. A request whose response does
+ * not come in time is forgotten by the connection altogether.
+ */
+public class PeerLink {
+
+    /**
+     * logger is the Logger of the PeerLink.
+     */
+    private static final Logger logger = Logger.getLogger(PeerLink.class);
+
+    /**
+     * defaultRequestTimeoutMillis is the default time a request waits for
+     * its response; on top of the time it asked the peer to wait, if any.
+     */
+    public static final long defaultRequestTimeoutMillis = 10 * 1000;
+
+    /**
+     * connectTimeoutMillis is the time a connection attempt may take.
+     */
+    private static final int connectTimeoutMillis = 1000;
+
+    /**
+     * reconnectDelayMillis is the time after a failure during which requests
+     * fail straight away rather than reconnecting.
+     */
+    private static final long reconnectDelayMillis = 1000;
+
+    /**
+     * watchdogMillis is the period of the watchdog checking the writes.
+     */
+    private static final long watchdogMillis = 250;
+
+    /**
+     * bufferBytes is the size of the buffers of the connection's streams.
+     */
+    private static final int bufferBytes = 64 * 1024;
+
+    /**
+     * peer is the ClusterNode the link connects to.
+     */
+    private final ClusterNode peer;
+
+    /**
+     * requestTimeoutMillis is the time a request waits for its response.
+     */
+    private final long requestTimeoutMillis;
+
+    /**
+     * timerWheel is the TimerWheel the watchdog is run on.
+     */
+    private final TimerWheel timerWheel;
+
+    /**
+     * lock guards the writing of requests, and (re)connecting.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * connection is the current Connection to the peer; or null if there is
+     * none, with failedAt being the time the last one failed.
+     */
+    private volatile Connection connection = null;
+    private volatile long failedAt = 0;
+
+    /**
+     * A PeerLink is created provided the peer it connects to, the time its
+     * requests wait for their responses and the TimerWheel its watchdog is
+     * run on; without connecting straight away.
+     */
+    public PeerLink(ClusterNode peer, long requestTimeoutMillis, TimerWheel timerWheel) {
+        this.peer = peer;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.timerWheel = timerWheel;
+    }
+
+    public ClusterNode getPeer() {
+        return this.peer;
+    }
+
+    /**
+     * isConnected returns whether the link is currently connected.
+     */
+    public boolean isConnected() {
+        return this.connection != null;
+    }
+
+    /**
+     * intern returns the id the given destination has on the peer; interning
+     * it if the connection has not yet.
+     */
+    public int intern(boolean topic, String name) {
+        CompletableFuture<Integer> serverId = this.send(1, (connection) -> {
+            return connection.intern(topic, name, null).serverId;
+        });
+
+        try {
+            return serverId.get(this.requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch(ExecutionException e) {
+            throw this.unwrap(e);
+        } catch(TimeoutException | InterruptedException e) {
+            throw new PeerUnavailableException(this.peer, "no response within " + this.requestTimeoutMillis + "ms.");
+        }
+    }
+
+    /**
+     * publish forwards a single message to the given destination; with the
+     * given timeout in seconds if it is a topic.
+     */
+    public CompletableFuture<ByteBuffer> publish(boolean topic, String name, IMessage message, int timeout) {
+        return this.send(1, (connection) -> {
+            int id = connection.intern(topic, name, null).id;
+            CompletableFuture<ByteBuffer> response = connection.begin(BinaryProtocol.publishOpcode, 8 + message.getByteLength());
+
+            connection.out.writeInt(id);
+            connection.out.writeInt(timeout);
+            message.writeTo(connection.out);
+
+            return response;
+        });
+    }
+
+    /**
+     * batch forwards a batch of messages to the given destinations; which are
+     * either all topics or all people. The timeouts are only read for topics.
+     */
+    public CompletableFuture<ByteBuffer> batch(boolean topic, String[] names, IMessage[] messages, int[] timeouts) {
+        return this.send(names.length, (connection) -> {
+            int[] ids = new int[names.length];
+            int bodyLength = 4;
+
+            for(int i = 0; i < names.length; i++) {
+                ids[i] = connection.intern(topic, names[i], null).id;
+                bodyLength += 12 + messages[i].getByteLength();
+            }
+
+            CompletableFuture<ByteBuffer> response = connection.begin(BinaryProtocol.batchOpcode, bodyLength);
+            connection.out.writeInt(names.length);
+            for(int i = 0; i < names.length; i++) {
+                connection.out.writeInt(ids[i]);
+                connection.out.writeInt(topic ? timeouts[i] : 0);
+                connection.out.writeInt(messages[i].getByteLength());
+                messages[i].writeTo(connection.out);
+            }
+
+            return response;
+        });
+    }
+
+    /**
+     * fetch forwards the fetching of at most the given number of messages
+     * off the given destination; waiting for up to the given number of
+     * milliseconds for some to arrive.
+     */
+    public CompletableFuture<ByteBuffer> fetch(boolean topic, String name, String subscriber, int maxMessages, long waitMillis) {
+        return this.send(1, (connection) -> {
+            int id = connection.intern(topic, name, subscriber).id;
+            CompletableFuture<ByteBuffer> response = connection.begin(BinaryProtocol.fetchOpcode, 12);
+
+            connection.out.writeInt(id);
+            connection.out.writeInt(maxMessages);
+            connection.out.writeInt((int) Math.min(waitMillis, BinaryProtocol.maxWaitMillis));
+
+            return response;
+        });
+    }
+
+    /**
+     * await waits for the given response; for up to the time requests wait,
+     * plus the given number of milliseconds the peer was asked to wait for.
+     * <p>
+     * A response which does not come in time is failed; and thus forgotten
+     * by its connection.
+     *
+     * @return  ByteBuffer  the response frame; positioned at its status.
+     * @throws  PeerUnavailableException if there was no response in time.
+     */
+    public ByteBuffer await(CompletableFuture<ByteBuffer> response, long waitMillis) {
+        try {
+            return response.get(this.requestTimeoutMillis + waitMillis, TimeUnit.MILLISECONDS);
+        } catch(ExecutionException e) {
+            throw this.unwrap(e);
+        } catch(TimeoutException | InterruptedException e) {
+            PeerUnavailableException failure = new PeerUnavailableException(this.peer, "no response within "
+                + (this.requestTimeoutMillis + waitMillis) + "ms.");
+            response.completeExceptionally(failure);
+
+            throw failure;
+        }
+    }
+
+    /**
+     * readMessages reads the messages out of the body of the response to a
+     * FETCH; copying them out of the frame.
+     */
+    public static IMessage[] readMessages(ByteBuffer body) {
+        IMessage[] messages = new IMessage[body.getInt()];
+
+        for(int i = 0; i < messages.length; i++) {
+            byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            messages[i] = new ByteBufferMessage(bytes);
+        }
+
+        return messages;
+    }
+
+    /**
+     * close closes the connection, if any; failing the requests waiting on
+     * it. The next request reconnects.
+     */
+    public void close() {
+        Connection connection = this.connection;
+
+        if(connection != null && connection.close()) {
+            this.failed(connection, new IOException("The link was closed."));
+        }
+    }
+
+    /**
+     * IRequest writes a request to a Connection.
+     */
+    @FunctionalInterface
+    private interface IRequest<T> {
+
+        public T write(Connection connection) throws IOException;
+    }
+
+    /**
+     * send writes the given request, which may intern up to the given number
+     * of destinations, to the connection; connecting first if need be, or
+     * recycling the connection if its table of destinations cannot hold them.
+     * <p>
+     * @throws  PeerUnavailableException if the peer could not be written to.
+     */
+    private <T> T send(int destinations, IRequest<T> request) {
+        Connection connection = null;
+
+        this.lock.lock();
+        try {
+            connection = this.connect();
+            if(connection.interned.size() + destinations > BinaryProtocol.maxDestinations) {
+                connection = this.recycle(connection);
+            }
+
+            connection.writingSince = System.currentTimeMillis();
+            T response = request.write(connection);
+            connection.out.flush();
+
+            return response;
+        } catch(IOException e) {
+            this.fail(connection, e);
+            throw new PeerUnavailableException(this.peer, e);
+        } finally {
+            if(connection != null) {
+                connection.writingSince = 0;
+            }
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * connect returns the current Connection; connecting anew if there is
+     * none. It is only ever called with the lock held.
+     */
+    private Connection connect() {
+        Connection connection = this.connection;
+        if(connection != null) {
+            return connection;
+        }
+
+        if(System.currentTimeMillis() - this.failedAt < reconnectDelayMillis) {
+            throw new PeerUnavailableException(this.peer, "the last attempt failed less than "
+                + reconnectDelayMillis + "ms ago.");
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(this.peer.getHost(), this.peer.getClusterPort()), connectTimeoutMillis);
+
+            connection = new Connection(socket);
+        } catch(IOException e) {
+            this.failedAt = System.currentTimeMillis();
+            try {
+                socket.close();
+            } catch(IOException closing) {
+            }
+
+            throw new PeerUnavailableException(this.peer, e);
+        }
+
+        logger.info("Connected to a cluster node.", "node", this.peer.getName(), "port", this.peer.getClusterPort());
+        this.connection = connection;
+        connection.reader.start();
+        this.watch(connection);
+
+        return connection;
+    }
+
+    /**
+     * watch is the watchdog of the given Connection; failing it if a write
+     * has been under way for longer than a request waits for its response,
+     * and checking again in watchdogMillis otherwise. It stops once the
+     * Connection is closed.
+     */
+    private void watch(Connection connection) {
+        if(connection.closed.get()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long since = connection.writingSince;
+        if(since != 0 && now - since > this.requestTimeoutMillis) {
+            this.fail(connection, new IOException("A write took longer than " + this.requestTimeoutMillis + "ms."));
+            return;
+        }
+
+        this.timerWheel.schedule(now + watchdogMillis, () -> this.watch(connection));
+    }
+
+    /**
+     * recycle retires the given Connection, whose table of destinations is
+     * full; and returns a fresh one. It is only ever called with the lock
+     * held.
+     */
+    private Connection recycle(Connection connection) {
+        logger.info("Recycling the connection to a cluster node; its destinations ran out.", "node", this.peer.getName(),
+            "destinations", connection.interned.size());
+
+        this.connection = null;
+        connection.retire();
+
+        return this.connect();
+    }
+
+    /**
+     * getPendingCount returns the number of requests waiting on the current
+     * connection for their responses.
+     */
+    int getPendingCount() {
+        Connection connection = this.connection;
+
+        return (connection == null) ? 0 : connection.pending.size();
+    }
+
+    /**
+     * fail closes the given Connection, if it was not already; and fails the
+     * requests waiting on it.
+     */
+    private void fail(Connection connection, Exception cause) {
+        if(connection == null || !connection.close()) {
+            return;
+        }
+
+        logger.warn("Lost the connection to a cluster node.", "node", this.peer.getName(), "reason", cause.toString());
+        this.failed(connection, cause);
+    }
+
+    /**
+     * failed forgets the given Connection, which was just closed; and fails
+     * the requests waiting on it.
+     */
+    private void failed(Connection connection, Exception cause) {
+        this.lock.lock();
+        try {
+            if(this.connection == connection) {
+                this.connection = null;
+                this.failedAt = System.currentTimeMillis();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        PeerUnavailableException failure = new PeerUnavailableException(this.peer, cause);
+        for(Integer requestId : connection.pending.keySet()) {
+            CompletableFuture<ByteBuffer> response = connection.pending.remove(requestId);
+            if(response != null) {
+                response.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * unwrap returns what failed the given ExecutionException; as a
+     * RuntimeException.
+     */
+    private RuntimeException unwrap(ExecutionException e) {
+        if(e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+
+        return new PeerUnavailableException(this.peer, e.getCause());
+    }
+
+    /**
+     * Interned is a destination interned on a Connection; along with its id
+     * on the peer, once the peer responded.
+     */
+    private static final class Interned {
+
+        private final int id;
+        private final CompletableFuture<Integer> serverId;
+
+        Interned(int id, CompletableFuture<Integer> serverId) {
+            this.id = id;
+            this.serverId = serverId;
+        }
+
+    }
+
+    /**
+     * Connection is a single connection to the peer; with the requests still
+     * waiting on it, and the destinations interned on it.
+     */
+    private final class Connection {
+
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final Thread reader;
+
+        /**
+         * pending holds the responses still to come; by requestId.
+         */
+        private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+
+        /**
+         * interned holds the destinations interned so far; with lastRequestId
+         * being the last requestId used. Both are guarded by the lock.
+         */
+        private final HashMap<String, Interned> interned = new HashMap<String, Interned>();
+        private int lastRequestId = BinaryProtocol.silentRequestId;
+
+        /**
+         * retired marks whether the connection was retired; no longer taking
+         * any requests, and closing once the last response came back.
+         */
+        private volatile boolean retired = false;
+
+        /**
+         * writingSince is the moment the write under way started at; or 0 if
+         * there is none.
+         */
+        private volatile long writingSince = 0;
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferBytes));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferBytes));
+
+            this.reader = new Thread(() -> this.read(), "jmqp-peer-" + PeerLink.this.peer.getName());
+            this.reader.setDaemon(true);
+        }
+
+        /**
+         * intern returns the given destination as interned on the connection;
+         * writing its INTERN if it was not yet.
+         * <p>
+         * @throws  MisroutedException if the connection already holds as many
+         *          destinations as the protocol allows; which only happens to
+         *          a batch of more distinct destinations than that, the link
+         *          recycling the connection otherwise.
+         */
+        Interned intern(boolean topic, String name, String subscriber) throws IOException {
+            String key = (topic ? "t:" : "p:") + name + (subscriber == null ? "" : "\n" + subscriber);
+
+            Interned interned = this.interned.get(key);
+            if(interned != null) {
+                return interned;
+            }
+
+            if(this.interned.size() >= BinaryProtocol.maxDestinations) {
+                throw new MisroutedException(PeerLink.this.peer);
+            }
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] subscriberBytes = (subscriber == null) ? new byte[0] : subscriber.getBytes(StandardCharsets.UTF_8);
+            if(nameBytes.length > 0xffff) {
+                throw new IllegalArgumentException("The name is too long to be interned: " + nameBytes.length + " bytes.");
+            }
+
+            int id = this.interned.size();
+            CompletableFuture<ByteBuffer> response = this.begin(BinaryProtocol.internOpcode,
+                4 + 1 + 2 + nameBytes.length + subscriberBytes.length);
+
+            this.out.writeInt(id);
+            this.out.writeByte(topic ? BinaryProtocol.topicType : BinaryProtocol.personalType);
+            this.out.writeShort(nameBytes.length);
+            this.out.write(nameBytes);
+            this.out.write(subscriberBytes);
+
+            interned = new Interned(id, response.thenApply((frame) -> {
+                byte status = frame.get();
+                if(status != BinaryProtocol.statusOk) {
+                    throw new PeerUnavailableException(PeerLink.this.peer, "interning failed with status " + status + ".");
+                }
+
+                return frame.getInt();
+            }));
+            this.interned.put(key, interned);
+
+            return interned;
+        }
+
+        /**
+         * begin writes the header of a request of the given body length; and
+         * registers its pending response.
+         */
+        CompletableFuture<ByteBuffer> begin(byte opcode, int bodyLength) throws IOException {
+            if(++this.lastRequestId == BinaryProtocol.silentRequestId) {
+                ++this.lastRequestId;
+            }
+
+            int requestId = this.lastRequestId;
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+            this.pending.put(requestId, response);
+
+            // a response failed by its waiter (e.g. for not coming in time)
+            // is not to be waited for any longer:
+            response.whenComplete((frame, failure) -> {
+                if(failure != null && this.pending.remove(requestId, response)) {
+                    this.drained();
+                }
+            });
+
+            this.out.writeInt(BinaryProtocol.requestHeaderBytes - BinaryProtocol.lengthBytes + bodyLength);
+            this.out.writeByte(opcode);
+            this.out.writeInt(requestId);
+
+            return response;
+        }
+
+        /**
+         * read reads the responses off the connection, for as long as it
+         * lasts; completing the pending response of each.
+         */
+        private void read() {
+            try {
+                while(true) {
+                    byte[] frame = new byte[this.in.readInt()];
+                    this.in.readFully(frame);
+
+                    ByteBuffer response = ByteBuffer.wrap(frame);
+                    response.get();
+
+                    CompletableFuture<ByteBuffer> pending = this.pending.remove(response.getInt());
+                    if(pending != null) {
+                        pending.complete(response);
+                    }
+                    this.drained();
+                }
+            } catch(IOException | RuntimeException e) {
+                PeerLink.this.fail(this, e);
+            }
+        }
+
+        /**
+         * retire marks the connection as retired; closing it straight away if
+         * no response is to come.
+         */
+        void retire() {
+            this.retired = true;
+            this.drained();
+        }
+
+        /**
+         * drained closes the connection if it was retired and no response is
+         * to come anymore.
+         */
+        private void drained() {
+            if(this.retired && this.pending.isEmpty()) {
+                this.close();
+            }
+        }
+
+        /**
+         * close closes the socket; returning whether it was still open.
+         */
+        boolean close() {
+            if(!this.closed.compareAndSet(false, true)) {
+                return false;
+            }
+
+            try {
+                this.socket.close();
+            } catch(IOException e) {
+            }
+
+            return true;
+        }
+
+    }
+
+}
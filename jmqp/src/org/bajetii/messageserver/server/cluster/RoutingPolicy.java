@@ -0,0 +1,49 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+/**
+ * RoutingPolicy is the Enum representing what a node of a cluster does with
+ * the operations on queues owned by another node.
+ */
+public enum RoutingPolicy {
+
+    /**
+     * FORWARD carries them out on the owner on behalf of the client; over a
+     * PeerLink. REDIRECT has the client retry them on the owner itself; the
+     * response naming it.
+     */
+    FORWARD("forward"), REDIRECT("redirect");
+
+    /**
+     * value is the stored String value of the RoutingPolicy.
+     */
+    private final String value;
+
+    /**
+     * A RoutingPolicy can be constructed from the String representations of
+     * its allowed values.
+     */
+    private RoutingPolicy(String value) {
+        this.value = value;
+    }
+
+    /**
+     * fromString returns the RoutingPolicy with the given String value.
+     * <p>
+     * @throws  IllegalArgumentException if there is no such RoutingPolicy.
+     */
+    public static RoutingPolicy fromString(String value) {
+        for(RoutingPolicy policy : RoutingPolicy.values()) {
+            if(policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown routing policy: " + value);
+    }
+
+    @Override
+    public String toString() {
+        return this.value;
+    }
+}
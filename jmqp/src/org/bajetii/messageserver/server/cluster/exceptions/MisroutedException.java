@@ -0,0 +1,30 @@
+package org.bajetii.messageserver.server.cluster.exceptions;
+
+
+import org.bajetii.messageserver.server.cluster.ClusterNode;
+
+
+/**
+ * MisroutedException is thrown whenever an operation concerns a queue owned
+ * by another node of the cluster; and is not forwarded to it. The client is
+ * then to be redirected to the owner.
+ * <p>
+ * It extends RuntimeException to avoid Java's amazing checked exceptions.
+ */
+public class MisroutedException extends RuntimeException {
+
+    /**
+     * owner is the ClusterNode owning the queue.
+     */
+    private final ClusterNode owner;
+
+    public MisroutedException(ClusterNode owner) {
+        super("The queue is owned by cluster node '" + owner.getName() + "'.");
+        this.owner = owner;
+    }
+
+    public ClusterNode getOwner() {
+        return this.owner;
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.bajetii.messageserver.server.cluster.exceptions;
+
+
+/**
+ * PartialBatchException is thrown whenever a batch of messages split across
+ * the nodes of the cluster was only added in part; the share of some node
+ * having failed, while that of another was added. The outcome of every
+ * message is then to be reported to the client; so that it retries only
+ * those which failed, instead of duplicating the others.
+ * <p>
+ * It extends RuntimeException to avoid Java's amazing checked exceptions.
+ */
+public class PartialBatchException extends RuntimeException {
+
+    /**
+     * accepted holds whether each message of the batch was added; and failed
+     * whether its share of the batch failed, the message possibly not having
+     * been added (or having been, if its owner failed to answer in time).
+     */
+    private final boolean[] accepted;
+    private final boolean[] failed;
+
+    public PartialBatchException(boolean[] accepted, boolean[] failed, Throwable cause) {
+        super("Part of the batch failed: " + cause.getMessage(), cause);
+        this.accepted = accepted;
+        this.failed = failed;
+    }
+
+    public boolean[] getAccepted() {
+        return this.accepted;
+    }
+
+    public boolean[] getFailed() {
+        return this.failed;
+    }
+
+}
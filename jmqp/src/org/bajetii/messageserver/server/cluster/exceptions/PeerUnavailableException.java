@@ -0,0 +1,35 @@
+package org.bajetii.messageserver.server.cluster.exceptions;
+
+
+import org.bajetii.messageserver.server.cluster.ClusterNode;
+
+
+/**
+ * PeerUnavailableException is thrown whenever an operation forwarded to
+ * another node of the cluster could not be carried out; the node being
+ * unreachable, or not answering in time.
+ * <p>
+ * It extends RuntimeException to avoid Java's amazing checked exceptions.
+ */
+public class PeerUnavailableException extends RuntimeException {
+
+    /**
+     * peer is the ClusterNode which was unavailable.
+     */
+    private final ClusterNode peer;
+
+    public PeerUnavailableException(ClusterNode peer, String message) {
+        super("Cluster node '" + peer.getName() + "' is unavailable: " + message);
+        this.peer = peer;
+    }
+
+    public PeerUnavailableException(ClusterNode peer, Throwable cause) {
+        super("Cluster node '" + peer.getName() + "' is unavailable: " + cause, cause);
+        this.peer = peer;
+    }
+
+    public ClusterNode getPeer() {
+        return this.peer;
+    }
+
+}
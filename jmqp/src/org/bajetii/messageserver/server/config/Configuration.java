@@ -0,0 +1,189 @@
+package org.bajetii.messageserver.server.config;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.bajetii.messageserver.server.config.exceptions.ConfigurationException;
+
+
+/**
+ * Configuration is the read-only set of settings the server is started with.
+ * <p>
+ * Settings are named like system properties ('jmqp.port'); and are looked up,
+ * in order of precedence, among:
+ *      - the system properties; e.g. -Djmqp.port=9000
+ *      - the environment; the name being upper-cased with its dots turned
+ *        into underscores, e.g. JMQP_PORT=9000
+ *      - the properties file given through 'jmqp.config' (or JMQP_CONFIG);
+ *        if any.
+ *      - the default given upon lookup.
+ * Values which cannot be parsed as the kind asked for are reported through a
+ * ConfigurationException rather than silently replaced by the default.
+ */
+public class Configuration {
+
+    /**
+     * configKey is the setting naming the properties file to be loaded.
+     */
+    public static final String configKey = "jmqp.config";
+
+    /**
+     * system, environment and file are the three layers of settings; from
+     * highest to lowest precedence.
+     */
+    private final Properties system;
+    private final Map<String, String> environment;
+    private final Properties file;
+
+    /**
+     * A Configuration is created provided its three layers of settings.
+     * <p>
+     * @param   system      the settings taking precedence over all others.
+     * @param   environment the environment variables.
+     * @param   file        the settings read from a properties file.
+     */
+    public Configuration(Properties system, Map<String, String> environment, Properties file) {
+        this.system = system;
+        this.environment = environment;
+        this.file = file;
+    }
+
+    /**
+     * load creates the Configuration of this process; out of its system
+     * properties, its environment and the properties file they name.
+     * <p>
+     * @throws  ConfigurationException  if the named file cannot be read.
+     */
+    public static Configuration load() {
+        Properties system = System.getProperties();
+        Map<String, String> environment = System.getenv();
+
+        Configuration bootstrap = new Configuration(system, environment, new Properties());
+        String path = bootstrap.getString(configKey, null);
+
+        Properties file = new Properties();
+        if(path != null) {
+            try(InputStream is = new FileInputStream(new File(path))) {
+                file.load(is);
+            } catch(IOException e) {
+                throw new ConfigurationException("Could not read configuration file '" + path + "'.", e);
+            }
+        }
+
+        return new Configuration(system, environment, file);
+    }
+
+    /**
+     * getString returns the value of the given setting; or the given default
+     * if it is not set anywhere.
+     * <p>
+     * @param   key             the name of the setting.
+     * @param   defaultValue    the value returned if the setting is not set.
+     */
+    public String getString(String key, String defaultValue) {
+        String value = this.system.getProperty(key);
+
+        if(value == null) {
+            value = this.environment.get(environmentName(key));
+        }
+        if(value == null) {
+            value = this.file.getProperty(key);
+        }
+
+        return (value == null) ? defaultValue : value.trim();
+    }
+
+    /**
+     * getInt returns the value of the given setting as an int.
+     * <p>
+     * @throws  ConfigurationException  if the value is not an integer.
+     */
+    public int getInt(String key, int defaultValue) {
+        long value = this.getLong(key, defaultValue);
+
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ConfigurationException("Setting '" + key + "' is out of range: " + value + ".");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * getLong returns the value of the given setting as a long.
+     * <p>
+     * @throws  ConfigurationException  if the value is not an integer.
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = this.getString(key, null);
+
+        if(value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            throw new ConfigurationException("Setting '" + key + "' must be an integer: '" + value + "'.", e);
+        }
+    }
+
+    /**
+     * getBoolean returns the value of the given setting as a boolean.
+     * <p>
+     * @throws  ConfigurationException  if the value is neither 'true' nor
+     *          'false'.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = this.getString(key, null);
+
+        if(value == null || value.isEmpty()) {
+            return defaultValue;
+        } else if(value.equalsIgnoreCase("true")) {
+            return true;
+        } else if(value.equalsIgnoreCase("false")) {
+            return false;
+        }
+
+        throw new ConfigurationException("Setting '" + key + "' must be either 'true' or 'false': '" + value + "'.");
+    }
+
+    /**
+     * getSubset returns all the settings whose names start with the given
+     * prefix; keyed by the rest of their names.
+     * <p>
+     * Only the system properties and the file are looked at; as environment
+     * variable names cannot hold the names of queues faithfully.
+     *
+     * @param   prefix              the prefix of the names of the settings.
+     * @return  Map<String, String> the matching settings, sorted by name.
+     */
+    public Map<String, String> getSubset(String prefix) {
+        TreeMap<String, String> subset = new TreeMap<String, String>();
+
+        for(Properties layer : new Properties[] {this.file, this.system}) {
+            for(String key : layer.stringPropertyNames()) {
+                if(key.startsWith(prefix) && key.length() > prefix.length()) {
+                    subset.put(key.substring(prefix.length()), layer.getProperty(key).trim());
+                }
+            }
+        }
+
+        return Collections.unmodifiableMap(subset);
+    }
+
+    /**
+     * environmentName returns the name of the environment variable which
+     * holds the given setting.
+     */
+    static String environmentName(String key) {
+        return key.toUpperCase().replace('.', '_');
+    }
+
+}
@@ -0,0 +1,233 @@
+package org.bajetii.messageserver.server.config;
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bajetii.messageserver.server.config.exceptions.ConfigurationException;
+
+
+/**
+ * QueueCapacities holds the rules deciding the capacity of every personal
+ * queue; which may be changed at runtime.
+ * <p>
+ * The capacity of a queue is, in order of precedence:
+ *      - the one set for its exact name; if any.
+ *      - the one set for the longest prefix of its name; if any.
+ *      - the default capacity.
+ * Looking a capacity up never blocks: the exact names are kept in a
+ * concurrent map, and the prefixes in an array (longest first) which is
+ * replaced whole whenever they change.
+ */
+public class QueueCapacities {
+
+    /**
+     * defaultCapacity is the capacity of the queues no rule applies to.
+     */
+    private volatile int defaultCapacity;
+
+    /**
+     * names maps the exact names of queues to their capacities.
+     */
+    private final ConcurrentHashMap<String, Integer> names = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * prefixes holds the prefix rules; longest first. It is only ever
+     * replaced whole, under the lock of this object.
+     */
+    private volatile PrefixRule[] prefixes = new PrefixRule[0];
+
+    /**
+     * PrefixRule is a single prefix and its capacity.
+     */
+    private static final class PrefixRule {
+        final String prefix;
+        final int capacity;
+
+        PrefixRule(String prefix, int capacity) {
+            this.prefix = prefix;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * QueueCapacities are created provided the default capacity.
+     * <p>
+     * @param   defaultCapacity the capacity of the queues no rule applies to.
+     */
+    public QueueCapacities(int defaultCapacity) {
+        this.setDefaultCapacity(defaultCapacity);
+    }
+
+    /**
+     * fromConfiguration creates the QueueCapacities described by the given
+     * Configuration.
+     * <p>
+     * The default capacity is read from the setting of the given name; with
+     * the rules for exact names and prefixes from the settings of the given
+     * name followed by '.name.' and '.prefix.' and the queue name (or
+     * prefix) itself. E.g. 'jmqp.queue.capacity.prefix.hot-=10000'.
+     *
+     * @param   config          the Configuration to be read.
+     * @param   key             the name of the default capacity setting.
+     * @param   defaultCapacity the default capacity if it is not set.
+     * @throws  ConfigurationException  if any of the capacities is invalid.
+     */
+    public static QueueCapacities fromConfiguration(Configuration config, String key, int defaultCapacity) {
+        QueueCapacities capacities = new QueueCapacities(config.getInt(key, defaultCapacity));
+
+        for(Map.Entry<String, String> rule : config.getSubset(key + ".name.").entrySet()) {
+            capacities.setCapacity(rule.getKey(), parse(key + ".name." + rule.getKey(), rule.getValue()));
+        }
+        for(Map.Entry<String, String> rule : config.getSubset(key + ".prefix.").entrySet()) {
+            capacities.setPrefixCapacity(rule.getKey(), parse(key + ".prefix." + rule.getKey(), rule.getValue()));
+        }
+
+        return capacities;
+    }
+
+    /**
+     * getCapacity returns the capacity of the queue of the given name.
+     */
+    public int getCapacity(String name) {
+        Integer capacity = this.names.get(name);
+        if(capacity != null) {
+            return capacity;
+        }
+
+        for(PrefixRule rule : this.prefixes) {
+            if(name.startsWith(rule.prefix)) {
+                return rule.capacity;
+            }
+        }
+
+        return this.defaultCapacity;
+    }
+
+    /**
+     * getDefaultCapacity returns the capacity of the queues no rule applies
+     * to.
+     */
+    public int getDefaultCapacity() {
+        return this.defaultCapacity;
+    }
+
+    /**
+     * setDefaultCapacity sets the capacity of the queues no rule applies to.
+     * <p>
+     * @throws  IllegalArgumentException    if the capacity is not positive.
+     */
+    public void setDefaultCapacity(int capacity) {
+        this.defaultCapacity = check(capacity);
+    }
+
+    /**
+     * setCapacity sets the capacity of the queue of the given exact name.
+     * <p>
+     * @throws  IllegalArgumentException    if the capacity is not positive.
+     */
+    public void setCapacity(String name, int capacity) {
+        this.names.put(name, check(capacity));
+    }
+
+    /**
+     * removeCapacity removes the rule for the given exact name.
+     * <p>
+     * @return  boolean whether there was such a rule.
+     */
+    public boolean removeCapacity(String name) {
+        return this.names.remove(name) != null;
+    }
+
+    /**
+     * setPrefixCapacity sets the capacity of the queues whose names start
+     * with the given prefix; unless a longer prefix or their exact name has
+     * a rule of its own.
+     * <p>
+     * @throws  IllegalArgumentException    if the capacity is not positive.
+     */
+    public synchronized void setPrefixCapacity(String prefix, int capacity) {
+        TreeMap<String, Integer> rules = this.getPrefixCapacities();
+        rules.put(prefix, check(capacity));
+
+        this.setPrefixes(rules);
+    }
+
+    /**
+     * removePrefixCapacity removes the rule for the given prefix.
+     * <p>
+     * @return  boolean whether there was such a rule.
+     */
+    public synchronized boolean removePrefixCapacity(String prefix) {
+        TreeMap<String, Integer> rules = this.getPrefixCapacities();
+        if(rules.remove(prefix) == null) {
+            return false;
+        }
+
+        this.setPrefixes(rules);
+        return true;
+    }
+
+    /**
+     * getCapacities returns a copy of the rules for exact names; sorted by
+     * name.
+     */
+    public TreeMap<String, Integer> getCapacities() {
+        return new TreeMap<String, Integer>(this.names);
+    }
+
+    /**
+     * getPrefixCapacities returns a copy of the rules for prefixes; sorted by
+     * prefix.
+     */
+    public TreeMap<String, Integer> getPrefixCapacities() {
+        TreeMap<String, Integer> rules = new TreeMap<String, Integer>();
+
+        for(PrefixRule rule : this.prefixes) {
+            rules.put(rule.prefix, rule.capacity);
+        }
+
+        return rules;
+    }
+
+    /**
+     * setPrefixes replaces the array of prefix rules by the given ones; sorted
+     * longest first, so that the first match is the most specific one.
+     */
+    private void setPrefixes(TreeMap<String, Integer> rules) {
+        PrefixRule[] prefixes = new PrefixRule[rules.size()];
+
+        int i = 0;
+        for(Map.Entry<String, Integer> rule : rules.entrySet()) {
+            prefixes[i++] = new PrefixRule(rule.getKey(), rule.getValue());
+        }
+
+        Arrays.sort(prefixes, (a, b) -> b.prefix.length() - a.prefix.length());
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * check makes sure the given capacity is positive.
+     */
+    private static int check(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+
+        return capacity;
+    }
+
+    /**
+     * parse parses the capacity held by the given setting.
+     */
+    private static int parse(String key, String value) {
+        try {
+            return check(Integer.parseInt(value));
+        } catch(IllegalArgumentException e) {
+            throw new ConfigurationException("Setting '" + key + "' must be a positive integer: '" + value + "'.", e);
+        }
+    }
+
+}
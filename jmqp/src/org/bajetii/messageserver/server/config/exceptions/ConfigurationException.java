@@ -0,0 +1,21 @@
+package org.bajetii.messageserver.server.config.exceptions;
+
+
+/**
+ * ConfigurationException is thrown whenever a configuration file cannot be
+ * read, or a setting holds a value which is not of the expected kind.
+ * <p>
+ * It extends RuntimeException; as a misconfigured server is better off
+ * failing upon startup than carrying on with a guess.
+ */
+public class ConfigurationException extends RuntimeException {
+
+    public ConfigurationException(String message) {
+        super(message);
+    }
+
+    public ConfigurationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.bajetii.messageserver.server.destinations;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.server.queues.IMessageListener;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+
+
+/**
+ * Destination is a person or topic known to the server; its interned name
+ * and numeric id, its queue, and the IMessageListeners parked on the queue.
+ * <p>
+ * A Destination is never removed once interned; so that its id remains valid
+ * for as long as the server runs. Its queue may however be swapped for
+ * another one (e.g. upon a resize); which is why it is always read through
+ * getQueue() rather than held on to.
+ */
+public final class Destination<Q extends IMessageQueue> {
+
+    /**
+     * id is the numeric id of the destination; unique among those of its
+     * DestinationTable.
+     */
+    private final int id;
+
+    /**
+     * name is the interned name of the destination. Looking a destination up
+     * with this very String instance skips comparing its characters.
+     */
+    private final String name;
+
+    /**
+     * queue is the current queue of the destination.
+     */
+    private volatile Q queue;
+
+    /**
+     * listeners holds the IMessageListeners parked on the queue; it is only
+     * created once something listens, so that idle destinations stay small.
+     */
+    private volatile ConcurrentLinkedQueue<IMessageListener> listeners = null;
+
+    /**
+     * appendLock orders the messages added to the queue with their records in
+     * a ReplicationLog; it is only created once the server is replicated, for
+     * the same reason.
+     */
+    private volatile ReentrantLock appendLock = null;
+
+    Destination(int id, String name, Q queue) {
+        this.id = id;
+        this.name = name;
+        this.queue = queue;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public Q getQueue() {
+        return this.queue;
+    }
+
+    /**
+     * replaceQueue swaps in the given queue; provided the current one is still
+     * the expected one.
+     * <p>
+     * @return  boolean whether the queue was swapped.
+     */
+    public synchronized boolean replaceQueue(Q expected, Q replacement) {
+        if(this.queue != expected) {
+            return false;
+        }
+
+        this.queue = replacement;
+        return true;
+    }
+
+    /**
+     * getListeners returns the IMessageListeners parked on the queue; or null
+     * if nothing ever listened.
+     */
+    public ConcurrentLinkedQueue<IMessageListener> getListeners() {
+        return this.listeners;
+    }
+
+    /**
+     * listeners returns the IMessageListeners parked on the queue; creating
+     * them if need be.
+     */
+    public ConcurrentLinkedQueue<IMessageListener> listeners() {
+        ConcurrentLinkedQueue<IMessageListener> parked = this.listeners;
+
+        if(parked == null) {
+            synchronized(this) {
+                parked = this.listeners;
+                if(parked == null) {
+                    parked = new ConcurrentLinkedQueue<IMessageListener>();
+                    this.listeners = parked;
+                }
+            }
+        }
+
+        return parked;
+    }
+
+    /**
+     * appendLock returns the Lock messages are added to the queue under, when
+     * the server is replicated; creating it if need be.
+     */
+    public ReentrantLock appendLock() {
+        ReentrantLock lock = this.appendLock;
+
+        if(lock == null) {
+            synchronized(this) {
+                lock = this.appendLock;
+                if(lock == null) {
+                    lock = new ReentrantLock();
+                    this.appendLock = lock;
+                }
+            }
+        }
+
+        return lock;
+    }
+
+}
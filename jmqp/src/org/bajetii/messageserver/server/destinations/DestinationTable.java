@@ -0,0 +1,206 @@
+package org.bajetii.messageserver.server.destinations;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+
+
+/**
+ * DestinationTable interns the names of destinations (people or topics) into
+ * compact numeric ids; and holds their Destinations both by name and by id.
+ * <p>
+ * Ids are handed out sequentially from 0; so that the Destinations are held
+ * by id within a plain array, and looking one up by id is a single read.
+ * Looking one up by name is a single hash lookup; which, given the interned
+ * name returned by the Destination, never compares the characters of names.
+ * <p>
+ * Interning a name creates its Destination, along with its queue, atomically;
+ * lookups never block. Destinations are never removed.
+ */
+public class DestinationTable<Q extends IMessageQueue> {
+
+    /**
+     * initialCapacity is the initial number of ids the table has room for.
+     */
+    private static final int initialCapacity = 1024;
+
+    /**
+     * byName holds the Destinations by name.
+     */
+    private final ConcurrentHashMap<String, Destination<Q>> byName = new ConcurrentHashMap<String, Destination<Q>>();
+
+    /**
+     * byId holds the Destinations by id; the first size slots being in use.
+     * It is grown, and written to, under lock; and read without.
+     */
+    private volatile AtomicReferenceArray<Destination<Q>> byId = new AtomicReferenceArray<Destination<Q>>(initialCapacity);
+    private int size = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * queueFactory creates the queue of a newly interned destination.
+     */
+    private final Function<String, Q> queueFactory;
+
+    /**
+     * A DestinationTable is created provided the factory of the queues of
+     * the destinations; given their name.
+     */
+    public DestinationTable(Function<String, Q> queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * intern returns the Destination of the given name; creating it if need
+     * be.
+     */
+    public Destination<Q> intern(String name) {
+        Destination<Q> destination = this.byName.get(name);
+
+        if(destination == null) {
+            destination = this.byName.computeIfAbsent(name, (n) -> this.create(n));
+        }
+
+        return destination;
+    }
+
+    /**
+     * get returns the Destination of the given name; or null if there is none.
+     */
+    public Destination<Q> get(String name) {
+        return this.byName.get(name);
+    }
+
+    /**
+     * get returns the Destination of the given id; or null if there is none.
+     */
+    public Destination<Q> get(int id) {
+        AtomicReferenceArray<Destination<Q>> table = this.byId;
+
+        if(id < 0 || id >= table.length()) {
+            return null;
+        }
+
+        return table.get(id);
+    }
+
+    /**
+     * size returns the number of Destinations.
+     */
+    public int size() {
+        return this.byName.size();
+    }
+
+    /**
+     * values returns a view of all the Destinations; in no particular order.
+     */
+    public Collection<Destination<Q>> values() {
+        return this.byName.values();
+    }
+
+    /**
+     * asQueueMap returns a read-only view of the queues of all the
+     * Destinations by name.
+     */
+    public Map<String, IMessageQueue> asQueueMap() {
+        return new QueueMap();
+    }
+
+    /**
+     * create creates the Destination of the given name under the next id.
+     */
+    private Destination<Q> create(String name) {
+        this.lock.lock();
+        try {
+            AtomicReferenceArray<Destination<Q>> table = this.byId;
+
+            if(this.size == table.length()) {
+                AtomicReferenceArray<Destination<Q>> grown = new AtomicReferenceArray<Destination<Q>>(2 * table.length());
+                for(int i = 0; i < this.size; i++) {
+                    grown.set(i, table.get(i));
+                }
+
+                this.byId = grown;
+                table = grown;
+            }
+
+            Destination<Q> destination = new Destination<Q>(this.size, name, this.queueFactory.apply(name));
+            table.set(this.size, destination);
+            this.size++;
+
+            return destination;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * QueueMap is the read-only view of the queues of the Destinations by
+     * name.
+     */
+    private final class QueueMap extends AbstractMap<String, IMessageQueue> {
+
+        @Override
+        public IMessageQueue get(Object name) {
+            Destination<Q> destination = DestinationTable.this.byName.get(name);
+
+            return (destination == null) ? null : destination.getQueue();
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return DestinationTable.this.byName.containsKey(name);
+        }
+
+        @Override
+        public int size() {
+            return DestinationTable.this.byName.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, IMessageQueue>> entrySet() {
+            return new AbstractSet<Map.Entry<String, IMessageQueue>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, IMessageQueue>> iterator() {
+                    Iterator<Destination<Q>> destinations = DestinationTable.this.byName.values().iterator();
+
+                    return new Iterator<Map.Entry<String, IMessageQueue>>() {
+
+                        @Override
+                        public boolean hasNext() {
+                            return destinations.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, IMessageQueue> next() {
+                            Destination<Q> destination = destinations.next();
+
+                            return new AbstractMap.SimpleImmutableEntry<String, IMessageQueue>(
+                                destination.getName(), destination.getQueue());
+                        }
+
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return DestinationTable.this.byName.size();
+                }
+
+            };
+        }
+
+    }
+
+}
@@ -0,0 +1,228 @@
+package org.bajetii.messageserver.server.handlers;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.metrics.PrometheusWriter;
+import org.bajetii.messageserver.server.replication.ReplicaMessagingServer;
+
+
+/**
+ * AdminHandler is the httpserver.HttpHandler implementation which deals with
+ * inspecting and tuning a running server.
+ * <p>
+ * ### !!!  Admin Request Composition:
+ *          '/metrics'  :: GET the metrics of the server; in the Prometheus
+ *                         text format.
+ *          '/capacity' :: the capacities of the personal queues.
+ *              - GET lists the default capacity and every rule; one per
+ *                line, as 'default <capacity>', 'prefix <prefix> <capacity>'
+ *                or 'name <name> <capacity>'.
+ *              - PUT sets a capacity given the 'Capacity' header; for the
+ *                queue named in the 'Name' header, for those whose names
+ *                start with the 'Prefix' header, or as the default without
+ *                either. The existing queues it applies to are resized
+ *                straight away.
+ *              - DELETE removes the rule for the 'Name' or 'Prefix' header;
+ *                resizing the queues it applied to.
+ *          '/promote'  :: POST promotes a read-only follower to a leader; once
+ *                         its leader is gone. It stops following, puts the
+ *                         personal messages it replicated back into their
+ *                         queues, and accepts every request from then on.
+ *
+ *          Admin Response Composition:
+ *              - 400 BadRequest for bad header composition.
+ *              - 404 NotFound for unknown paths, or rules to be removed; or
+ *                for promoting a server which is not a follower.
+ *              - 200 OK if ok; alongside a descriptive message.
+ * ### !!!
+ */
+public class AdminHandler extends Handler {
+
+    /**
+     * replica is the ReplicaMessagingServer of the server; if it is a
+     * follower, or null.
+     */
+    private ReplicaMessagingServer replica = null;
+
+    /**
+     * An AdminHandler is created provided the MessagingServer it administers.
+     */
+    public AdminHandler(IMessagingServer ms) {
+        super(ms);
+    }
+
+    /**
+     * setReplica sets the ReplicaMessagingServer of a server which is a
+     * follower; for it to be promoted.
+     */
+    public void setReplica(ReplicaMessagingServer replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * handle dispatches the request onto the handling of the resource it was
+     * made to; the last segment of its path, so that the handler may be
+     * mounted anywhere.
+     * <p>
+     * @param   ex      HttpExchange object to be operated on
+     */
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath();
+        path = path.substring(path.lastIndexOf('/'));
+
+        if(path.equals("/capacity")) {
+            this.handleCapacity(ex);
+        } else if(path.equals("/metrics")) {
+            this.handleMetrics(ex);
+        } else if(path.equals("/promote")) {
+            this.handlePromote(ex);
+        } else {
+            this.errorMissingResource(ex, "No such admin resource: '" + path + "'.");
+        }
+    }
+
+    /**
+     * handleMetrics responds with the scraped metrics of the server.
+     * <p>
+     * The body is written out straight away; rather than through respond,
+     * which would echo it onto the console on every scrape.
+     */
+    private void handleMetrics(HttpExchange ex) throws IOException {
+        if(!ex.getRequestMethod().equalsIgnoreCase("GET")) {
+            this.error(ex, 400, "400 : BadRequest :: Method is not supported: " + ex.getRequestMethod());
+            return;
+        }
+
+        byte[] bytes = this.messagingServer.getMetrics().scrape().getBytes(StandardCharsets.UTF_8);
+
+        ex.getResponseHeaders().set("Content-Type", PrometheusWriter.contentType);
+        ex.sendResponseHeaders(200, (bytes.length == 0) ? -1 : bytes.length);
+
+        OutputStream os = ex.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    /**
+     * handlePromote promotes a read-only follower to a leader; responding with
+     * the number of personal messages it put back into their queues.
+     */
+    private void handlePromote(HttpExchange ex) throws IOException {
+        if(!ex.getRequestMethod().equalsIgnoreCase("POST")) {
+            this.error(ex, 400, "400 : BadRequest :: Method is not supported: " + ex.getRequestMethod());
+            return;
+        }
+
+        if(this.replica == null) {
+            this.errorMissingResource(ex, "The server is not a follower.");
+            return;
+        }
+
+        if(this.replica.isPromoted()) {
+            this.respond(ex, 200, "Already promoted to a leader.");
+            return;
+        }
+
+        int restored = this.replica.promote();
+        this.respond(ex, 200, "Promoted to a leader; " + restored + " personal messages restored.");
+    }
+
+    /**
+     * handleCapacity lists, sets or removes the capacities of the personal
+     * queues depending on the request method.
+     */
+    private void handleCapacity(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        Headers headers = ex.getRequestHeaders();
+        QueueCapacities capacities = this.messagingServer.getPersonalCapacities();
+
+        String name = headers.getFirst("Name");
+        String prefix = headers.getFirst("Prefix");
+
+        if(name != null && prefix != null) {
+            this.errorBadHeader(ex, "Only one of 'Name' and 'Prefix' may be provided.");
+            return;
+        }
+
+        if(method.equalsIgnoreCase("GET")) {
+            StringBuilder response = new StringBuilder();
+
+            response.append("default ").append(capacities.getDefaultCapacity()).append('\n');
+            for(Map.Entry<String, Integer> rule : capacities.getPrefixCapacities().entrySet()) {
+                response.append("prefix ").append(rule.getKey()).append(' ').append(rule.getValue()).append('\n');
+            }
+            for(Map.Entry<String, Integer> rule : capacities.getCapacities().entrySet()) {
+                response.append("name ").append(rule.getKey()).append(' ').append(rule.getValue()).append('\n');
+            }
+
+            this.respond(ex, 200, response.toString());
+        } else if(method.equalsIgnoreCase("PUT")) {
+            int capacity;
+            try {
+                capacity = Integer.parseInt(headers.getFirst("Capacity").trim());
+            } catch(NullPointerException | NumberFormatException e) {
+                this.errorBadHeader(ex, "'Capacity' must be provided as a positive integer.");
+                return;
+            }
+
+            if(capacity <= 0) {
+                this.errorBadHeader(ex, "'Capacity' must be provided as a positive integer.");
+                return;
+            }
+
+            String rule;
+            if(name != null) {
+                capacities.setCapacity(name, capacity);
+                rule = "Capacity of '" + name + "'";
+            } else if(prefix != null) {
+                capacities.setPrefixCapacity(prefix, capacity);
+                rule = "Capacity of prefix '" + prefix + "'";
+            } else {
+                capacities.setDefaultCapacity(capacity);
+                rule = "Default capacity";
+            }
+
+            this.respondResized(ex, rule + " set to " + capacity);
+        } else if(method.equalsIgnoreCase("DELETE")) {
+            boolean removed;
+            if(name != null) {
+                removed = capacities.removeCapacity(name);
+            } else if(prefix != null) {
+                removed = capacities.removePrefixCapacity(prefix);
+            } else {
+                this.errorBadHeader(ex, "Either 'Name' or 'Prefix' must be provided.");
+                return;
+            }
+
+            if(!removed) {
+                this.errorMissingResource(ex, "No such capacity rule.");
+                return;
+            }
+
+            this.respondResized(ex, "Capacity rule removed");
+        } else {
+            this.error(ex, 400, "400 : BadRequest :: Method is not supported: " + method);
+        }
+    }
+
+    /**
+     * respondResized resizes the personal queues after a rule was changed; and
+     * responds with the given message and the number of queues resized.
+     */
+    private void respondResized(HttpExchange ex, String message) throws IOException {
+        int resized = this.messagingServer.resizePersonalQueues();
+
+        this.respond(ex, 200, message + "; " + resized + " queues resized.");
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.bajetii.messageserver.server.handlers;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * BufferPool is a bounded pool of reusable byte buffers.
+ * <p>
+ * Buffers are handed out with at least the initial size; callers may grow
+ * them as they please and release the grown buffer back, so that pooled
+ * buffers converge to the size of the requests actually seen. Buffers larger
+ * than the maximum retained size are left to the garbage collector so that
+ * a few huge requests do not pin down memory forever.
+ */
+class BufferPool {
+
+    /**
+     * initialSize is the size of freshly allocated buffers.
+     */
+    private final int initialSize;
+
+    /**
+     * maxRetainedSize is the size above which released buffers are dropped.
+     */
+    private final int maxRetainedSize;
+
+    /**
+     * maxPooled is the maximum number of buffers kept in the pool.
+     */
+    private final int maxPooled;
+
+    /**
+     * buffers holds the pooled buffers; with pooled being their count.
+     */
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * A BufferPool is created provided the initial size of its buffers, the
+     * size above which they are not retained and the maximum number of them
+     * kept around.
+     */
+    BufferPool(int initialSize, int maxRetainedSize, int maxPooled) {
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * acquire returns a pooled buffer; or a freshly allocated one if the pool
+     * is empty.
+     */
+    byte[] acquire() {
+        byte[] buffer = this.buffers.poll();
+
+        if(buffer == null) {
+            return new byte[this.initialSize];
+        }
+
+        this.pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * release returns the given buffer to the pool; unless the pool is full
+     * or the buffer is too large to be retained.
+     */
+    void release(byte[] buffer) {
+        if(buffer.length > this.maxRetainedSize) {
+            return;
+        }
+
+        if(this.pooled.incrementAndGet() > this.maxPooled) {
+            this.pooled.decrementAndGet();
+            return;
+        }
+
+        this.buffers.add(buffer);
+    }
+
+}
@@ -4,12 +4,21 @@ package org.bajetii.messageserver.server.handlers;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
-import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.handlers.exceptions.RequestBodyTooLargeException;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.transport.IBufferedBody;
 
 /**
  * Handler is the handler which deals with deciding which action to take
@@ -20,26 +29,85 @@ import org.bajetii.messageserver.server.MessagingServer;
  */
 public abstract class Handler implements HttpHandler {
 
+    /**
+     * logger is the Logger of the handlers.
+     */
+    private static final Logger logger = Logger.getLogger(Handler.class);
+
     /**
      * badTypeErrorFormat is the String format of the bad type error message.
      */
     protected static final String badTypeErrorFormat = "'Type' must be either 'Topic' or 'Personal'.";
 
+    /**
+     * defaultMaxBodyBytes is the default maximum size of a request body.
+     */
+    public static final long defaultMaxBodyBytes = 16 * 1024 * 1024;
+
+    /**
+     * bodyBuffers is the pool of buffers request bodies are read into; shared
+     * by all the handlers.
+     */
+    protected static final BufferPool bodyBuffers = new BufferPool(16 * 1024, 2 * 1024 * 1024, 64);
+
+    /**
+     * maxBodyBytes is the maximum size of a request body this Handler
+     * accepts; beyond which reading it fails.
+     */
+    protected long maxBodyBytes = defaultMaxBodyBytes;
+
+    /**
+     * defaultStreamBufferBytes is the default size of the send buffer of
+     * every streaming subscription.
+     */
+    public static final long defaultStreamBufferBytes = 256 * 1024;
+
+    /**
+     * streamExecutor is the Executor streaming subscriptions write out their
+     * messages on; or null if streaming is not enabled. With streamBufferBytes
+     * being the size of the send buffer of every streaming subscription.
+     */
+    protected Executor streamExecutor = null;
+    protected long streamBufferBytes = defaultStreamBufferBytes;
+
     /**
      * messagingServer is a reference to the MessagingServer this
      * Handler represents.
      */
-    protected MessagingServer messagingServer;
+    protected IMessagingServer messagingServer;
 
     /**
      * A Handler is created provided the Server is facades.
      * <p>
      * @param   server  the Server which is represented.
      */
-    public Handler(MessagingServer ms) {
+    public Handler(IMessagingServer ms) {
         this.messagingServer = ms;
     }
 
+    /**
+     * setMaxBodyBytes sets the maximum size of a request body this Handler
+     * accepts.
+     * <p>
+     * @param   maxBodyBytes    the maximum size of a body in bytes.
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * setStreaming enables streaming subscriptions; which are to write out
+     * their messages on the given Executor, through send buffers of the given
+     * size.
+     * <p>
+     * @param   executor    the Executor writing out streamed messages.
+     * @param   bufferBytes the size of each subscription's send buffer.
+     */
+    public void setStreaming(Executor executor, long bufferBytes) {
+        this.streamExecutor = executor;
+        this.streamBufferBytes = bufferBytes;
+    }
+
     /**
      * handle is the method in the HttpHandler interface which must be
      * implemented.
@@ -65,6 +133,26 @@ public abstract class Handler implements HttpHandler {
         return true;
     }
 
+    /**
+     * lookupDestination returns the interned name of the destination of the
+     * given RequestType whose id is given by the provided 'To-Id' value; or
+     * null if the value is not the id of any.
+     */
+    protected String lookupDestination(RequestType type, String toId) {
+        int id;
+        try {
+            id = Integer.parseInt(toId.trim());
+        } catch(NumberFormatException e) {
+            return null;
+        }
+
+        if(type.equals(RequestType.TOPIC)) {
+            return this.messagingServer.getTopicName(id);
+        }
+
+        return this.messagingServer.getPersonalName(id);
+    }
+
     /**
      * error is a helper method which returns the given code and message fpr
      * the provided HttpExchange object.
@@ -74,9 +162,8 @@ public abstract class Handler implements HttpHandler {
      * @param   message String message to be returned
      */
     protected void error(HttpExchange ex, int code, String message) throws IOException {
-        System.out.println("error: " + message);
-        ex.sendResponseHeaders(code, message.length() + 1);
-        this.writeToOutputStream(ex.getResponseBody(), message);
+        logger.debug("Request failed.", "status", code, "reason", message);
+        this.respond(ex, code, message);
     }
 
     /**
@@ -88,10 +175,9 @@ public abstract class Handler implements HttpHandler {
      */
     protected void errorBadHeader(HttpExchange ex, String message) throws IOException {
         String response = "400 : BadRequest :: " + message;
-        System.out.println("errorBadHeader: " + response);
+        logger.debug("Request failed.", "status", 400, "reason", message);
 
-        ex.sendResponseHeaders(400, response.length() + 1);
-        this.writeToOutputStream(ex.getResponseBody(), response);
+        this.respond(ex, 400, response);
     }
 
     /**
@@ -103,45 +189,242 @@ public abstract class Handler implements HttpHandler {
      */
     protected void errorMissingResource(HttpExchange ex, String message) throws IOException {
         String response = "404 : ErrorMissing :: " + message;
-        System.out.println("errorMissingResource: " + response);
+        logger.debug("Request failed.", "status", 404, "reason", message);
+
+        this.respond(ex, 404, response);
+    }
+
+    /**
+     * respond is a helper method which sends out the given code alongside
+     * the given String as the UTF-8 encoded response body.
+     * <p>
+     * The response length is that of the encoded bytes; so that the response
+     * is complete as far as the client is concerned, and the connection can
+     * be kept alive.
+     *
+     * @param   ex      HttpExchange to be operated on
+     * @param   code    int http code to be returned
+     * @param   body    String body to be returned
+     */
+    protected void respond(HttpExchange ex, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        // NOTE: a length of 0 would mean a chunked response; -1 means empty:
+        ex.sendResponseHeaders(code, (bytes.length == 0) ? -1 : bytes.length);
+        this.writeToOutputStream(ex.getResponseBody(), bytes);
+    }
+
+    /**
+     * respond is a helper method which sends out the given code alongside
+     * the raw bytes of the given IMessage as the response body.
+     * <p>
+     * The bytes are written out as-is; without being decoded or re-encoded.
+     *
+     * @param   ex      HttpExchange to be operated on
+     * @param   code    int http code to be returned
+     * @param   message IMessage to be returned
+     */
+    protected void respond(HttpExchange ex, int code, IMessage message) throws IOException {
+        int length = message.getByteLength();
+
+        ex.sendResponseHeaders(code, (length == 0) ? -1 : length);
+
+        OutputStream os = ex.getResponseBody();
+        writeMessage(os, message);
+        os.close();
+    }
+
+    /**
+     * respond is a helper method which sends out the given code alongside a
+     * batch of IMessages as the response body.
+     * <p>
+     * Every message is framed as its decimal length in bytes and a newline;
+     * followed by its raw bytes and another newline. The number of messages
+     * is also sent in the 'Message-Count' header.
+     * The length of the whole body is computed upfront; and the frames are
+     * written out one by one through writeMessage, so that the batch is never
+     * assembled by the handler. Whether the bytes of the messages are copied
+     * on their way out is then up to the transport.
+     *
+     * @param   ex          HttpExchange to be operated on
+     * @param   code        int http code to be returned
+     * @param   messages    IMessage[] batch to be returned
+     */
+    protected void respond(HttpExchange ex, int code, IMessage[] messages) throws IOException {
+        byte[][] prefixes = new byte[messages.length][];
+        long length = 0;
+
+        for(int i = 0; i < messages.length; i++) {
+            int size = messages[i].getByteLength();
+
+            prefixes[i] = (size + "\n").getBytes(StandardCharsets.US_ASCII);
+            length += prefixes[i].length + size + 1;
+        }
+
+        ex.getResponseHeaders().set("Message-Count", Integer.toString(messages.length));
+        ex.sendResponseHeaders(code, (length == 0) ? -1 : length);
+
+        OutputStream os = ex.getResponseBody();
+        for(int i = 0; i < messages.length; i++) {
+            os.write(prefixes[i]);
+            writeMessage(os, messages[i]);
+            os.write('\n');
+        }
+        os.close();
+    }
+
+    /**
+     * readMessage is a helper method which reads the whole request body of
+     * the given HttpExchange into a ByteBufferMessage.
+     * <p>
+     * If the transport already holds the body in memory, as an IBufferedBody;
+     * its bytes are taken over as they are and back the message. Otherwise,
+     * if the request declares its 'Content-Length'; the body is read straight
+     * into an array of that exact size which then backs the message, so that
+     * the bytes are copied only once on their way in. Failing that, the body
+     * is read through a pooled buffer and copied out.
+     *
+     * @param   ex          HttpExchange whose body is to be read.
+     * @return  IMessage    the ByteBufferMessage holding the raw body.
+     * @throws  RequestBodyTooLargeException if the body is larger than the
+     *          maximum body size.
+     */
+    protected IMessage readMessage(HttpExchange ex) throws IOException {
+        InputStream is = ex.getRequestBody();
+        String contentLength = ex.getRequestHeaders().getFirst("Content-Length");
+
+        long length = -1;
+        if(contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch(NumberFormatException e) {
+                length = -1;
+            }
+        }
+
+        if(length > this.maxBodyBytes) {
+            is.close();
+            throw new RequestBodyTooLargeException(this.maxBodyBytes);
+        }
+
+        if(is instanceof IBufferedBody) {
+            ByteBuffer body = ((IBufferedBody) is).takeBody();
+            is.close();
+
+            if(body.remaining() > this.maxBodyBytes) {
+                throw new RequestBodyTooLargeException(this.maxBodyBytes);
+            }
+            return new ByteBufferMessage(body);
+        }
+
+        if(length >= 0) {
+            try {
+                byte[] bytes = new byte[(int) length];
+                int read = is.readNBytes(bytes, 0, bytes.length);
+
+                return new ByteBufferMessage(ByteBuffer.wrap(bytes, 0, read));
+            } finally {
+                is.close();
+            }
+        }
 
-        ex.sendResponseHeaders(404, response.length() + 1);
-        this.writeToOutputStream(ex.getResponseBody(), response);
+        return this.readPooled(is, (buffer, read) -> new ByteBufferMessage(Arrays.copyOf(buffer, read)));
     }
 
     /**
      * readInputStream is a helper method which reads the whole contents of the
-     * given InputStream and returns its String.
+     * given InputStream and returns its UTF-8 decoded String.
      * <p>
+     * The stream is read in bulk into a pooled buffer; which is grown as
+     * needed and handed back to the pool afterwards, so that the only
+     * allocation in the common case is that of the resulting String.
+     *
      * @param   is  InputStream to be read.
      * @return  s   resulting String.
+     * @throws  RequestBodyTooLargeException if the contents are larger than
+     *          the maximum body size.
      */
     protected String readInputStream(InputStream is) throws IOException {
-        int i;
-        String buff = "";
+        return this.readPooled(is, (buffer, read) -> new String(buffer, 0, read, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * BodyDecoder turns the bytes read into a pooled buffer into the value
+     * returned by readPooled; before the buffer is handed back to the pool.
+     */
+    private interface BodyDecoder<T> {
+        public T decode(byte[] buffer, int length);
+    }
 
-        while((i = is.read()) != -1) {
-            buff = buff + (char) i;
+    /**
+     * readPooled reads the whole contents of the given InputStream into a
+     * pooled buffer and decodes them with the given BodyDecoder.
+     * <p>
+     * @throws  RequestBodyTooLargeException if the contents are larger than
+     *          the maximum body size.
+     */
+    private <T> T readPooled(InputStream is, BodyDecoder<T> decoder) throws IOException {
+        byte[] buffer = bodyBuffers.acquire();
+        int length = 0;
+
+        try {
+            while(true) {
+                if(length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(2L * buffer.length, this.maxBodyBytes + 1));
+                }
+
+                int read = is.read(buffer, length, buffer.length - length);
+                if(read == -1) {
+                    break;
+                }
+
+                length += read;
+                if(length > this.maxBodyBytes) {
+                    throw new RequestBodyTooLargeException(this.maxBodyBytes);
+                }
+            }
+
+            return decoder.decode(buffer, length);
+        } finally {
+            is.close();
+            bodyBuffers.release(buffer);
         }
+    }
 
-        is.close();
+    /**
+     * writeMessage is a helper method which writes the raw bytes of the given
+     * IMessage to the given response body.
+     * <p>
+     * If the response body is also a WritableByteChannel, as those of the
+     * NioHttpTransport are; the bytes are handed over as a ByteBuffer, which
+     * it may hold on to and write out without copying them. Otherwise they
+     * are written out through IMessage.writeTo.
+     *
+     * @param   os      OutputStream to be written to.
+     * @param   message IMessage to be written out.
+     */
+    protected static void writeMessage(OutputStream os, IMessage message) throws IOException {
+        if(os instanceof WritableByteChannel) {
+            ((WritableByteChannel) os).write(message.getByteValue());
+            return;
+        }
 
-        return  buff;
+        message.writeTo(os);
     }
 
     /**
-     * writeToOutputStream is a helper method which writes the given String
-     * to the given OutputStream.
+     * writeToOutputStream is a helper method which writes the given bytes
+     * to the given OutputStream and closes it.
      * <p>
-     * @param   os  OutputStream to be written to.
-     * @param   s   String to be written out.
+     * @param   os      OutputStream to be written to.
+     * @param   bytes   the bytes to be written out.
      */
-    protected void writeToOutputStream(OutputStream os, String s) throws IOException {
-        System.out.println("Writing to OutputStream: " + s);
+    protected void writeToOutputStream(OutputStream os, byte[] bytes) throws IOException {
+        if(Logger.isPayloadLoggingEnabled()) {
+            logger.debug(() -> "Writing response: " + new String(bytes, StandardCharsets.UTF_8));
+        }
 
-        final PrintStream printStream = new PrintStream(os);
-        printStream.print(s);
-        printStream.close();
+        os.write(bytes);
         os.close();
     }
 
@@ -1,11 +1,18 @@
 package org.bajetii.messageserver.server.handlers;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 
-import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.cluster.ClusterNode;
+import org.bajetii.messageserver.server.cluster.exceptions.MisroutedException;
+import org.bajetii.messageserver.server.cluster.exceptions.PeerUnavailableException;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.metrics.LatencyHistogram;
+import org.bajetii.messageserver.server.replication.exceptions.ReadOnlyReplicaException;
+import org.bajetii.messageserver.server.storage.exceptions.WriteAheadLogException;
 
 
 /**
@@ -14,23 +21,85 @@ import org.bajetii.messageserver.server.MessagingServer;
  * <p>
  * It's only purposes is to smartly switch between the implementations of the
  * handler object depending on the request method.
+ * <p>
+ * The time spent handling every request is recorded by the method and
+ * RequestType of the request; long-polls and streams being timed up until
+ * they are parked, rather than until they complete.
+ * <p>
+ * On a node of a cluster; requests for queues owned by another node which
+ * are not forwarded to it are answered with a 307 TemporaryRedirect to the
+ * same path on the owner, the 'Owner-Node' header naming the owner as
+ * 'name@host:port:clusterPort' for clients to route such requests straight
+ * to it from then on. Requests which could not be forwarded are answered
+ * with a 503 ServiceUnavailable.
+ * <p>
+ * On a read-only follower; every request but the reads of topics is
+ * answered with a 307 TemporaryRedirect to the same path on the leader, the
+ * 'Leader' header holding its address; or with a 503 ServiceUnavailable if
+ * the follower has not reached its leader yet.
+ * <p>
+ * Messages which could not be written to the write-ahead log are answered
+ * with a 500 InternalServerError; the client is left to retry them.
  */
 public class MainHandler extends Handler {
 
+    /**
+     * logger is the Logger of the MainHandler.
+     */
+    private static final Logger logger = Logger.getLogger(MainHandler.class);
+
     /**
      * messageHandler and queryHandler are the two encapsulated HttpHandlers.
      */
-    private HttpHandler messageHandler;
-    private HttpHandler queryHandler;
+    private Handler messageHandler;
+    private Handler queryHandler;
+
+    /**
+     * latencies holds the LatencyHistograms of the requests; by query (GET)
+     * or post (POST or PUT), and by RequestType (or an invalid one).
+     */
+    private LatencyHistogram[][] latencies = new LatencyHistogram[2][3];
 
     /**
      * A MainHandler; like any other Handler, is created given the
      * MessagingServer it represents.
      */
-    public MainHandler(MessagingServer ms) {
+    public MainHandler(IMessagingServer ms) {
         super(ms);
         this.messageHandler = new MessageHandler(ms);
         this.queryHandler = new QueryHandler(ms);
+
+        String[] ops = {"query", "post"};
+        String[] types = {"personal", "topic", "invalid"};
+        for(int op = 0; op < ops.length; op++) {
+            for(int type = 0; type < types.length; type++) {
+                this.latencies[op][type] = ms.getMetrics().histogram("jmqp_request_duration_seconds",
+                    "Time spent handling requests; up until long-polls and streams are parked.",
+                    "op", ops[op], "type", types[type]);
+            }
+        }
+    }
+
+    /**
+     * setMaxBodyBytes sets the maximum size of a request body on both of the
+     * encapsulated handlers.
+     */
+    @Override
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        super.setMaxBodyBytes(maxBodyBytes);
+        this.messageHandler.setMaxBodyBytes(maxBodyBytes);
+        this.queryHandler.setMaxBodyBytes(maxBodyBytes);
+    }
+
+    /**
+     * setStreaming enables streaming subscriptions on both of the
+     * encapsulated handlers.
+     */
+    @Override
+    public void setStreaming(Executor executor, long bufferBytes) {
+        super.setStreaming(executor, bufferBytes);
+        this.messageHandler.setStreaming(executor, bufferBytes);
+        this.queryHandler.setStreaming(executor, bufferBytes);
     }
 
     /**
@@ -42,23 +111,76 @@ public class MainHandler extends Handler {
     @Override
     public void handle(HttpExchange ex) throws IOException {
         String method = ex.getRequestMethod();
+        long start = System.nanoTime();
 
-
+        Handler handler;
+        int op;
         if(method.equalsIgnoreCase("GET")) {
-            System.out.println("Beginning fetching procedure.")
+            logger.trace("Beginning fetching procedure.", "path", ex.getRequestURI());
 
-            this.queryHandler.handle(ex);
-            return;
+            handler = this.queryHandler;
+            op = 0;
         } else if(method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT")) {
-            System.out.println("Beginning posting procedure.")
+            logger.trace("Beginning posting procedure.", "path", ex.getRequestURI());
 
-            this.messageHandler.handle(ex);
-            return;
+            handler = this.messageHandler;
+            op = 1;
         } else {
             this.error(ex, 400, "400 : BadRequest :: Mehod is not supported: " + method);
             return;
         }
+
+        try {
+            handler.handle(ex);
+        } catch(MisroutedException e) {
+            this.redirect(ex, e.getOwner());
+        } catch(PeerUnavailableException e) {
+            this.error(ex, 503, "503 : ServiceUnavailable :: " + e.getMessage());
+        } catch(ReadOnlyReplicaException e) {
+            this.redirect(ex, e);
+        } catch(WriteAheadLogException e) {
+            logger.error("Logging a message failed.", e);
+            this.error(ex, 500, "500 : InternalServerError :: the message could not be logged; it was not accepted.");
+        } finally {
+            String type = ex.getRequestHeaders().getFirst("Type");
+            int index = "Topic".equals(type) ? 1 : "Personal".equals(type) ? 0 : 2;
+
+            this.latencies[op][index].record(System.nanoTime() - start);
+        }
     }
 
-}
+    /**
+     * redirect redirects the request to the given node of the cluster.
+     * <p>
+     * @param   ex      HttpExchange to be operated on
+     * @param   owner   the ClusterNode owning the queue of the request
+     */
+    private void redirect(HttpExchange ex, ClusterNode owner) throws IOException {
+        logger.debug("Redirecting a request.", "node", owner.getName(), "path", ex.getRequestURI());
+
+        ex.getResponseHeaders().set("Location", owner.getHttpAddress() + ex.getRequestURI());
+        ex.getResponseHeaders().set("Owner-Node", owner.toString());
+        this.respond(ex, 307, "307 : TemporaryRedirect :: the queue is owned by cluster node '" + owner.getName() + "'.");
+    }
 
+    /**
+     * redirect redirects the request refused by a read-only follower to its
+     * leader; if it is known.
+     * <p>
+     * @param   ex      HttpExchange to be operated on
+     * @param   e       the ReadOnlyReplicaException refusing the request
+     */
+    private void redirect(HttpExchange ex, ReadOnlyReplicaException e) throws IOException {
+        if(e.getLeader() == null) {
+            this.error(ex, 503, "503 : ServiceUnavailable :: " + e.getMessage());
+            return;
+        }
+
+        logger.debug("Redirecting a request to the leader.", "leader", e.getLeader(), "path", ex.getRequestURI());
+
+        ex.getResponseHeaders().set("Location", e.getLeader() + ex.getRequestURI());
+        ex.getResponseHeaders().set("Leader", e.getLeader());
+        this.respond(ex, 307, "307 : TemporaryRedirect :: the server is a read-only follower of '" + e.getLeader() + "'.");
+    }
+
+}
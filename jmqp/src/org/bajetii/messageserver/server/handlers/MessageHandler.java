@@ -2,8 +2,18 @@ package org.bajetii.messageserver.server.handlers;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.cluster.exceptions.PartialBatchException;
+import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
+import org.bajetii.messageserver.server.handlers.exceptions.MalformedBatchException;
+import org.bajetii.messageserver.server.handlers.exceptions.RequestBodyTooLargeException;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
 import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
 
 import com.sun.net.httpserver.Headers;
@@ -21,31 +31,78 @@ import com.sun.net.httpserver.HttpExchange;
  *              - 'To'      :: the destination of the message be it topic or person
  *              - 'Timeout' :: if a message for a topic; the desired int timeout
  *
- *          The message body: is treated as raw text and can contain anything.
+ *          Instead of 'To'; a 'To-Id' header may give the numeric id of the
+ *          destination, as returned in the 'To-Id' header of the response to
+ *          any earlier post to it. Ids stay valid for as long as the server
+ *          runs; an unknown one is answered with a 400.
+ *
+ *          The message body: is treated as raw bytes and can contain anything;
+ *          it is stored and served back as-is.
  *
  *          To 'send' a message; the aforementioned structure must be PUTed or
  *          POSTed on the specified ip/port of the server.
  *
+ *          Batched Message Composition:
+ *          Many messages of the same 'Type' may be posted at once by providing
+ *          a 'Message-Count' header instead of the 'To' header. The body then
+ *          consists of exactly that many frames of the form:
+ *              '<length in bytes> <to>[ <timeout>]\n<message>\n'
+ *          The optional per-frame timeout overrides the 'Timeout' header; one
+ *          of the two being mandatory for topic messages.
+ *          A malformed batch is rejected whole with a 400; otherwise a 202 is
+ *          returned whose body ends with the status of every message in order:
+ *              - 'A' :: the message was accepted
+ *              - 'F' :: the person's inbox was full
+ *              - 'U' :: the node of the cluster owning the queue failed; the
+ *                       message was most likely not added, and is to be
+ *                       retried, whereas the others are not
+ *
  *          Response Composition:
  *          A reponse message's headers will contain either:
  *              - 400 BadRequest for lacking header fields
  *              - 406 Unnaceptable for writing message to person with full queue
+ *              - 404 NotFound if the topic is gone by the time the message
+ *                is added to it
+ *              - 413 PayloadTooLarge for messages over the maximum body size
+ *              - 307 TemporaryRedirect if another node of the cluster owns
+ *                the queue; or if the server is a read-only follower (see
+ *                MainHandler)
+ *              - 500 InternalServerError if the message could not be written
+ *                to the write-ahead log (see MainHandler)
  *              - 202 Accepted if everything went ok
  *          The body will contain an affirmatory message
  * ### !!!
  */
 public class MessageHandler extends Handler {
 
+    /**
+     * logger is the Logger of the MessageHandler.
+     */
+    private static final Logger logger = Logger.getLogger(MessageHandler.class);
+
     /**
      * acceptedResponseMessageFormat is the format of the response to be sent
      * back when a message is accepted:
      */
-    protected static final String acceptedResponseMessageFormat = "The message was accepted for '%s': '%s'.";
+    protected static final String acceptedResponseMessageFormat = "The message was accepted for '%s': %d bytes.";
+
+    /**
+     * batchAcceptedResponseFormat is the format of the response to be sent
+     * back when a batch of messages is processed; ending with the vector of
+     * per-message statuses.
+     */
+    protected static final String batchAcceptedResponseFormat = "%d of %d messages were accepted: %s";
+
+    /**
+     * minFrameBytes is the size of the smallest possible batch frame; an empty
+     * message for a single-character destination.
+     */
+    static final int minFrameBytes = 5;
 
     /**
      * A MessageHandler is created provided the MessagingServer it represents.
      */
-    public MessageHandler(MessagingServer ms) {
+    public MessageHandler(IMessagingServer ms) {
          super(ms);
     }
 
@@ -59,11 +116,8 @@ public class MessageHandler extends Handler {
     public void handle(HttpExchange ex) throws IOException {
         Headers headers = ex.getRequestHeaders();
 
-        System.out.println("Message handler here!!!");
-        
         // first; check the headers for 'Type':
         RequestType type = RequestType.PERSONAL;
-        System.out.println(headers.containsKey("Type"));
         if(headers.containsKey("Type")) {
             // then; check that it is either 'Topic' or 'Personal':
             String typ = headers.get("Type").get(0);
@@ -86,23 +140,41 @@ public class MessageHandler extends Handler {
             return;
         }
 
-        // then; check for the 'To' field:
+        // batches carry their destinations within the body:
+        if(headers.containsKey("Message-Count")) {
+            this.handleBatch(ex, type);
+            return;
+        }
+
+        // then; check for the 'To' or 'To-Id' field:
         String to = "";
         if(headers.containsKey("To")) {
             to = headers.get("To").get(0);
-            System.out.println("Message to be sent to: " + to);
+        } else if(headers.containsKey("To-Id")) {
+            to = this.lookupDestination(type, headers.getFirst("To-Id"));
+
+            if(to == null) {
+                this.errorBadHeader(ex, "Unknown 'To-Id' value provided.");
+                return;
+            }
         } else {
-            System.out.println("'To' not provided: " + headers.containsKey("To"));
             this.errorBadHeader(ex, "No 'To' header field provided.");
             return;
         }
 
         // now; get the body (aka the message) and do the appropriate action:
-        String message = this.readInputStream(ex.getRequestBody());
+        IMessage message;
+        try {
+            message = this.readMessage(ex);
+        } catch(RequestBodyTooLargeException e) {
+            this.error(ex, 413, "413 : PayloadTooLarge :: the message exceeds " + this.maxBodyBytes + " bytes.");
+            return;
+        }
 
 
+        int id;
         if(type.equals(RequestType.TOPIC)) {
-            System.out.println("Adding topic message \"" + message + "\" for " + to + ".");
+            logger.trace("Adding topic message.", "to", to, "bytes", message.getByteLength());
             // check for the mandatory 'Timeout' header:
             if(!headers.containsKey("Timeout")) {
                 this.errorBadHeader(ex, "No 'Timeout' header provided for topic message.");
@@ -118,14 +190,18 @@ public class MessageHandler extends Handler {
                 return;
             }
 
+            id = this.messagingServer.resolveTopic(to);
             try {
-                this.messagingServer.addTopicMessage(to, message, timeout);
-            } catch(Exception e) {
+                this.messagingServer.addTopicMessage(id, message, timeout);
+            } catch(MessageServerTopicNotFoundException e) {
+                this.errorMissingResource(ex, "Requested Topic is missing: " + to);
+                return;
             }
         } else {    // guaranteed to be a RequestType.PERSONAL; so we can just else:
-            System.out.println("Adding personal message \"" + message + "\" for " + to + ".");
+            logger.trace("Adding personal message.", "to", to, "bytes", message.getByteLength());
+            id = this.messagingServer.resolvePersonal(to);
             try {
-                this.messagingServer.addPersonalMessage(to, message);
+                this.messagingServer.addPersonalMessage(id, message);
             } catch(MessageQueueFullException e) {
                 this.error(ex, 406, "406 : ErrorUnnaceptable :: the person's inbox is full.");
                 return;
@@ -134,11 +210,176 @@ public class MessageHandler extends Handler {
 
         // if here; it means that we're good.
         // send out StatusAccespted and a positive response:
-        String response = "202 : StatusAccepted :: " + String.format(MessageHandler.acceptedResponseMessageFormat, to, message);
-        System.out.println("Message acception response: " + response);
-        ex.sendResponseHeaders(202, response.length() + 1);
+        String response = "202 : StatusAccepted :: " + String.format(MessageHandler.acceptedResponseMessageFormat, to, message.getByteLength());
+        ex.getResponseHeaders().set("To-Id", Integer.toString(id));
+        this.respond(ex, 202, response);
+    }
 
-        this.writeToOutputStream(ex.getResponseBody(),  response);
+    /**
+     * handleBatch handles a request carrying a batch of messages of the given
+     * RequestType.
+     * <p>
+     * The whole batch is parsed before any of it is applied; and the queue of
+     * each distinct destination is only looked up once.
+     *
+     * @param   ex      HttpExchange to be operated on
+     * @param   type    the RequestType of all the messages in the batch
+     */
+    private void handleBatch(HttpExchange ex, RequestType type) throws IOException {
+        Headers headers = ex.getRequestHeaders();
+
+        int count;
+        try {
+            count = Integer.parseInt(headers.getFirst("Message-Count").trim());
+        } catch(NumberFormatException e) {
+            count = -1;
+        }
+
+        if(count <= 0) {
+            this.errorBadHeader(ex, "'Message-Count' must be a positive integer.");
+            return;
+        }
+
+        int defaultTimeout = -1;
+        if(headers.containsKey("Timeout")) {
+            try {
+                defaultTimeout = Integer.parseInt(headers.getFirst("Timeout"));
+            } catch(NumberFormatException e) {
+                this.errorBadHeader(ex, "Could not parse provided 'Timeout' value.");
+                return;
+            }
+        }
+
+        IMessage body;
+        try {
+            body = this.readMessage(ex);
+        } catch(RequestBodyTooLargeException e) {
+            this.error(ex, 413, "413 : PayloadTooLarge :: the batch exceeds " + this.maxBodyBytes + " bytes.");
+            return;
+        }
+
+        if(count > body.getByteLength() / minFrameBytes) {
+            this.errorBadHeader(ex, "'Message-Count' exceeds the number of frames the body could hold.");
+            return;
+        }
+
+        String[] destinations = new String[count];
+        IMessage[] messages = new IMessage[count];
+        int[] timeouts = new int[count];
+
+        try {
+            this.parseBatch(body.getByteValue(), type, defaultTimeout, destinations, messages, timeouts);
+        } catch(MalformedBatchException e) {
+            this.errorBadHeader(ex, e.getMessage());
+            return;
+        }
+
+        logger.trace("Adding a batch of messages.", "count", count);
+
+        boolean[] results;
+        boolean[] failed = null;
+        try {
+            if(type.equals(RequestType.TOPIC)) {
+                this.messagingServer.addTopicMessages(destinations, messages, timeouts);
+
+                results = new boolean[count];
+                Arrays.fill(results, true);
+            } else {
+                results = this.messagingServer.addPersonalMessages(destinations, messages);
+            }
+        } catch(PartialBatchException e) {
+            logger.warn("Part of a batch failed.", e);
+
+            results = e.getAccepted();
+            failed = e.getFailed();
+        }
+
+        StringBuilder statuses = new StringBuilder(count);
+        int accepted = 0;
+        for(int i = 0; i < count; i++) {
+            if(failed != null && failed[i]) {
+                statuses.append('U');
+            } else {
+                statuses.append(results[i] ? 'A' : 'F');
+                accepted += results[i] ? 1 : 0;
+            }
+        }
+
+        String response = "202 : StatusAccepted :: " + String.format(MessageHandler.batchAcceptedResponseFormat, accepted, count, statuses);
+        this.respond(ex, 202, response);
+    }
+
+    /**
+     * parseBatch splits the given batch body into its frames; filling in the
+     * destination, message and timeout of each one.
+     * <p>
+     * The bytes of every message are copied out of the body; so that a single
+     * message left unread does not keep the whole batch in memory.
+     *
+     * @param   body            ByteBuffer holding the batch.
+     * @param   type            the RequestType of all the messages.
+     * @param   defaultTimeout  the timeout of frames which specify none; or -1.
+     * @param   destinations    the Array to be filled with the destinations.
+     * @param   messages        the Array to be filled with the messages.
+     * @param   timeouts        the Array to be filled with the timeouts.
+     * @throws  MalformedBatchException if the body does not hold exactly as
+     *          many well-formed frames as there is room for in the Arrays.
+     */
+    void parseBatch(ByteBuffer body, RequestType type, int defaultTimeout,
+            String[] destinations, IMessage[] messages, int[] timeouts) {
+        int position = body.position();
+        int limit = body.limit();
+
+        for(int i = 0; i < messages.length; i++) {
+            int eol = position;
+            while(eol < limit && body.get(eol) != '\n') {
+                eol++;
+            }
+
+            if(eol == limit) {
+                throw new MalformedBatchException("Frame " + i + " has no header line.");
+            }
+
+            byte[] line = new byte[eol - position];
+            body.duplicate().position(position).get(line);
+            String[] fields = new String(line, StandardCharsets.UTF_8).split(" ");
+
+            if(fields.length < 2 || fields.length > 3 || fields[1].isEmpty()) {
+                throw new MalformedBatchException("Frame " + i + " must start with '<length> <to>[ <timeout>]'.");
+            }
+
+            int length;
+            int timeout = defaultTimeout;
+            try {
+                length = Integer.parseInt(fields[0]);
+                if(fields.length == 3) {
+                    timeout = Integer.parseInt(fields[2]);
+                }
+            } catch(NumberFormatException e) {
+                throw new MalformedBatchException("Could not parse the length or timeout of frame " + i + ".");
+            }
+
+            if(length < 0 || length > limit - eol - 2 || body.get(eol + 1 + length) != '\n') {
+                throw new MalformedBatchException("Frame " + i + " is not " + fields[0] + " bytes long.");
+            }
+
+            if(type.equals(RequestType.TOPIC) && timeout < 0) {
+                throw new MalformedBatchException("No timeout provided for frame " + i + ".");
+            }
+
+            byte[] bytes = new byte[length];
+            body.duplicate().position(eol + 1).get(bytes);
+
+            destinations[i] = fields[1];
+            messages[i] = new ByteBufferMessage(bytes);
+            timeouts[i] = timeout;
+
+            position = eol + 1 + length + 1;
+        }
+
+        if(position != limit) {
+            throw new MalformedBatchException("The body holds more than 'Message-Count' frames.");
+        }
     }
 
 }
@@ -0,0 +1,356 @@
+package org.bajetii.messageserver.server.handlers;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.timers.Timeout;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * MessageStream is the IMessageSink streaming the messages of a subscription
+ * out over a single long-lived response.
+ * <p>
+ * Messages delivered to the stream are held in a send buffer of a bounded
+ * number of bytes; out of which a single writer task at a time writes them to
+ * the response body and flushes it. Whilst the buffer is full, the stream
+ * reports no capacity, so that the subscription leaves the messages in their
+ * queue; and as the writer drains the buffer, it pokes the subscription again.
+ * A slow client thus only ever holds back its own writer task, and never the
+ * Threads posting messages.
+ * <p>
+ * Messages are written out either as Server-Sent Events; one 'data' line per
+ * line of the message, or as '<length in bytes>\n<message>\n' frames just like
+ * batches are. Heartbeats (an SSE comment, or a bare '\n' line) are written
+ * out whenever the stream has been idle for a while; so that a client which
+ * went away gets noticed and its subscription cancelled.
+ */
+class MessageStream implements IMessageSink {
+
+    /**
+     * maxBatch is the maximum number of messages taken off the queue at once.
+     */
+    private static final int maxBatch = 64;
+
+    /**
+     * heartbeatMillis is the interval at which heartbeats are written out.
+     */
+    private static final long heartbeatMillis = 15 * 1000;
+
+    /**
+     * sseHeartbeat and framedHeartbeat are the heartbeats of the two formats.
+     */
+    private static final byte[] sseHeartbeat = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] framedHeartbeat = "\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * ex and os are the exchange being streamed over and its response body.
+     */
+    private final HttpExchange ex;
+    private final OutputStream os;
+
+    /**
+     * sse marks whether the messages are written out as Server-Sent Events.
+     */
+    private final boolean sse;
+
+    /**
+     * writers is the Executor the writer tasks are run on; with timerWheel
+     * being where the heartbeats get scheduled.
+     */
+    private final Executor writers;
+    private final TimerWheel timerWheel;
+
+    /**
+     * maxBufferedBytes is the size of the send buffer.
+     */
+    private final long maxBufferedBytes;
+
+    /**
+     * lock guards the send buffer; that is the pending messages and their
+     * bufferedBytes, alongside the writing and heartbeatDue flags.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<IMessage> pending = new ArrayDeque<IMessage>();
+    private long bufferedBytes = 0;
+
+    /**
+     * writing marks whether a writer task is scheduled or running; with
+     * heartbeatDue marking that it should write a heartbeat.
+     */
+    private boolean writing = false;
+    private boolean heartbeatDue = false;
+
+    /**
+     * lastWriteMillis is the last time anything was written out.
+     */
+    private volatile long lastWriteMillis = System.currentTimeMillis();
+
+    /**
+     * subscription is the MessageSubscription feeding the stream; with
+     * heartbeat being the next scheduled heartbeat.
+     */
+    private volatile MessageSubscription subscription;
+    private volatile Timeout heartbeat;
+
+    /**
+     * closed marks whether the stream was closed; with closedStreams counting
+     * the streams closed.
+     */
+    private volatile boolean closed = false;
+    private final Counter closedStreams;
+
+    /**
+     * A MessageStream is created provided the exchange to stream over, whose
+     * response headers must already have been sent for streaming, alongside
+     * its format and the means to run it.
+     */
+    MessageStream(HttpExchange ex, boolean sse, Executor writers, TimerWheel timerWheel, long maxBufferedBytes, Counter closedStreams) {
+        this.ex = ex;
+        this.os = ex.getResponseBody();
+        this.sse = sse;
+        this.writers = writers;
+        this.timerWheel = timerWheel;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.closedStreams = closedStreams;
+    }
+
+    /**
+     * attach attaches the stream to the subscription feeding it; and starts
+     * the heartbeats.
+     */
+    void attach(MessageSubscription subscription) {
+        this.subscription = subscription;
+        this.scheduleHeartbeat();
+
+        if(this.closed) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        if(this.closed) {
+            return 0;
+        }
+
+        this.lock.lock();
+        try {
+            return (this.bufferedBytes < this.maxBufferedBytes) ? maxBatch : 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void deliver(IMessage[] messages) {
+        boolean schedule = false;
+
+        this.lock.lock();
+        try {
+            for(IMessage message : messages) {
+                this.pending.add(message);
+                this.bufferedBytes += message.getByteLength();
+            }
+
+            if(!this.writing) {
+                this.writing = true;
+                schedule = true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if(schedule) {
+            this.writers.execute(() -> this.write());
+        }
+    }
+
+    /**
+     * close cancels the subscription and completes the response. Only the
+     * first call has any effect.
+     */
+    void close() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.closedStreams.increment();
+
+        Timeout heartbeat = this.heartbeat;
+        if(heartbeat != null) {
+            heartbeat.cancel();
+        }
+
+        MessageSubscription subscription = this.subscription;
+        if(subscription != null) {
+            subscription.cancel();
+        }
+
+        try {
+            this.os.close();
+        } catch(IOException e) {
+            // the client is gone; nothing to be done.
+        }
+        this.ex.close();
+    }
+
+    /**
+     * write is the writer task; it writes out the send buffer until it is
+     * empty, flushing after every batch and poking the subscription for more.
+     */
+    private void write() {
+        while(!this.closed) {
+            IMessage[] batch;
+            boolean heartbeat;
+
+            this.lock.lock();
+            try {
+                if(this.pending.isEmpty() && !this.heartbeatDue) {
+                    this.writing = false;
+                    return;
+                }
+
+                batch = new IMessage[Math.min(this.pending.size(), maxBatch)];
+                for(int i = 0; i < batch.length; i++) {
+                    batch[i] = this.pending.poll();
+                }
+
+                heartbeat = this.heartbeatDue;
+                this.heartbeatDue = false;
+            } finally {
+                this.lock.unlock();
+            }
+
+            long bytes = 0;
+            try {
+                for(IMessage message : batch) {
+                    this.writeMessage(message);
+                    bytes += message.getByteLength();
+                }
+
+                if(heartbeat && batch.length == 0) {
+                    this.os.write(this.sse ? sseHeartbeat : framedHeartbeat);
+                }
+
+                this.os.flush();
+            } catch(IOException e) {
+                this.close();
+                return;
+            }
+
+            this.lastWriteMillis = System.currentTimeMillis();
+
+            this.lock.lock();
+            try {
+                this.bufferedBytes -= bytes;
+            } finally {
+                this.lock.unlock();
+            }
+
+            MessageSubscription subscription = this.subscription;
+            if(subscription != null) {
+                subscription.poke();
+            }
+        }
+    }
+
+    /**
+     * writeMessage writes out a single message in the stream's format.
+     */
+    private void writeMessage(IMessage message) throws IOException {
+        if(!this.sse) {
+            this.os.write((message.getByteLength() + "\n").getBytes(StandardCharsets.US_ASCII));
+            Handler.writeMessage(this.os, message);
+            this.os.write('\n');
+            return;
+        }
+
+        // every line of the message becomes a 'data' line of the event; with
+        // CR, LF and CRLF all being line breaks as far as SSE is concerned:
+        ByteBuffer bytes = message.getByteValue();
+        this.os.write("data: ".getBytes(StandardCharsets.US_ASCII));
+
+        int start = bytes.position();
+        for(int i = bytes.position(); i < bytes.limit(); i++) {
+            byte b = bytes.get(i);
+
+            if(b == '\r' || b == '\n') {
+                this.writeRange(bytes, start, i);
+                this.os.write("\ndata: ".getBytes(StandardCharsets.US_ASCII));
+
+                if(b == '\r' && i + 1 < bytes.limit() && bytes.get(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+
+        this.writeRange(bytes, start, bytes.limit());
+        this.os.write("\n\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * writeRange writes out the given range of the given buffer.
+     */
+    private void writeRange(ByteBuffer bytes, int from, int to) throws IOException {
+        byte[] range = new byte[to - from];
+
+        ByteBuffer view = bytes.duplicate();
+        view.position(from);
+        view.get(range);
+
+        this.os.write(range);
+    }
+
+    /**
+     * scheduleHeartbeat schedules the next heartbeat check on the TimerWheel.
+     */
+    private void scheduleHeartbeat() {
+        if(this.closed) {
+            return;
+        }
+
+        this.heartbeat = this.timerWheel.schedule(System.currentTimeMillis() + heartbeatMillis, () -> this.beat());
+    }
+
+    /**
+     * beat has a heartbeat written out if nothing was written for a while.
+     */
+    private void beat() {
+        boolean schedule = false;
+
+        if(System.currentTimeMillis() - this.lastWriteMillis >= heartbeatMillis) {
+            this.lock.lock();
+            try {
+                this.heartbeatDue = true;
+
+                if(!this.writing) {
+                    this.writing = true;
+                    schedule = true;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        if(schedule) {
+            this.writers.execute(() -> this.write());
+        }
+
+        this.scheduleHeartbeat();
+    }
+
+}
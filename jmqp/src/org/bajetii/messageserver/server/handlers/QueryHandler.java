@@ -2,11 +2,17 @@ package org.bajetii.messageserver.server.handlers;
 
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
-import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
 import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
 import org.bajetii.messageserver.server.exceptions.MessageServerPersonNotFoundException;
 import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
@@ -20,6 +26,24 @@ import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundExc
  *          A query request message's headers must contain the following:
  *              - 'Type' :: the type of the message; either 'Topic' or 'Personal'
  *              - 'To'   :: the name of the person/topic queried
+ *          Or, instead of 'To', a 'To-Id' header holding the numeric id of
+ *          the person/topic; as returned upon posting to it.
+ *          And may optionally contain:
+ *              - 'Max-Messages' :: fetch a batch of at most this many messages
+ *              - 'Wait'         :: if the queue is empty; the number of
+ *                                  milliseconds to wait for messages to arrive
+ *                                  before giving up (long-polling). Waiting on
+ *                                  an inexistent queue creates it.
+ *              - 'Subscriber'   :: for topics only; the name under which the
+ *                                  topic is read. Every subscriber has its own
+ *                                  cursor into the topic, and so gets every
+ *                                  message once; without it, the oldest
+ *                                  messages are returned every time.
+ *              - 'Stream'       :: keep the response open and push the
+ *                                  messages as they arrive; either as 'sse'
+ *                                  (Server-Sent Events; also chosen through
+ *                                  'Accept: text/event-stream') or as
+ *                                  'framed' messages.
  *
  *          To 'query' the server for the given messages; the aforementioned
  *          structure must be GETed from the server.
@@ -27,20 +51,59 @@ import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundExc
  *          Query Response Composition:
  *          A query response's headers will contain either:
  *              - 400 BadRequest for bad header composition.
- *              - 404 NotFound if topic/username is inexistent
+ *              - 404 NotFound if topic/username is inexistent; or if the
+ *                queue is still empty once the 'Wait' is over
+ *              - 307 TemporaryRedirect if another node of the cluster owns
+ *                the queue; or if a read-only follower is asked for a
+ *                personal message, which only its leader serves (see
+ *                MainHandler)
  *              - 200 OK if ok
  *          A query's response body will consist of either:
- *              - the requested message
+ *              - the requested message; as the raw bytes it was posted with
+ *              - a batch of messages; if 'Max-Messages' was provided. Each
+ *                message is framed as '<length in bytes>\n<message>\n', and
+ *                the 'Message-Count' response header holds their number.
+ *                Batches fetched off personal queues are popped; just like
+ *                single messages are.
+ *              - a stream of messages; if 'Stream' was provided. The response
+ *                is chunked and never completes on its own. Server-Sent
+ *                Events carry a message each, one 'data' line per line of the
+ *                message; framed messages are framed just like batches are.
+ *                Idle streams get a heartbeat (an SSE comment, or a bare
+ *                '\n' line) every now and then. A topic is streamed from the
+ *                'Subscriber''s cursor; or from its next message without one.
+ *                Personal messages are popped as they are streamed; those
+ *                still buffered when the client goes away are lost.
  *              - a discriptive error message
  * ### !!!
  */
 public class QueryHandler extends Handler {
 
+    /**
+     * logger is the Logger of the QueryHandler.
+     */
+    private static final Logger logger = Logger.getLogger(QueryHandler.class);
+
+    /**
+     * maxWaitMillis is the longest a long-polling query may be kept waiting.
+     */
+    protected static final long maxWaitMillis = 60 * 1000;
+
+    /**
+     * streamsOpened and streamsClosed count the streaming subscriptions;
+     * the difference being the number of those currently open.
+     */
+    private Counter streamsOpened;
+    private Counter streamsClosed;
+
     /**
      * A QueryHandler is created provided the MessagingServer it represents.
      */
-    public QueryHandler(MessagingServer ms) {
+    public QueryHandler(IMessagingServer ms) {
          super(ms);
+
+         this.streamsOpened = ms.getMetrics().counter("jmqp_streams_opened_total", "Streaming subscriptions opened.");
+         this.streamsClosed = ms.getMetrics().counter("jmqp_streams_closed_total", "Streaming subscriptions closed.");
     }
 
     /**
@@ -55,14 +118,11 @@ public class QueryHandler extends Handler {
     public void handle(HttpExchange ex) throws IOException {
         Headers headers = ex.getRequestHeaders();
 
-        System.out.println("QueryHandler handle() method has been called.");
-        
         // first; check the headers for 'Type':
         RequestType type = RequestType.PERSONAL;
         if(headers.containsKey("Type")) {
             // then; check that it is either 'Topic' or 'Personal':
             String typ = headers.get("Type").get(0);
-            System.out.println("TYP IS ::: " + typ);
             if(!this.checkType(typ)) {
                 this.errorBadHeader(ex, badTypeErrorFormat);
                 return;
@@ -80,31 +140,90 @@ public class QueryHandler extends Handler {
                 return;
             }
         } else {
-            System.out.println("I have no type!!!");
             this.errorBadHeader(ex, "No 'Type' header field provided.");
             return;
         }
 
-        System.out.println("TYPE.toString() IS ::: " + type.toString());
-
-        // then; check for the 'To' field:
+        // then; check for the 'To' or 'To-Id' field:
         String target = "";
         if(headers.containsKey("To")) {
             target = headers.get("To").get(0);
-            System.out.println("Message to be sent to: " + target);
+        } else if(headers.containsKey("To-Id")) {
+            target = this.lookupDestination(type, headers.getFirst("To-Id"));
+
+            if(target == null) {
+                this.errorMissingResource(ex, "No person/topic has the given 'To-Id'.");
+                return;
+            }
         } else {
-            System.out.println("'To' not provided: " + headers.containsKey("To"));
             this.errorBadHeader(ex, "No 'To' header field provided.");
             return;
         }
 
+        // then; check for the optional 'Max-Messages' field:
+        int maxMessages = 0;
+        if(headers.containsKey("Max-Messages")) {
+            try {
+                maxMessages = Integer.parseInt(headers.getFirst("Max-Messages").trim());
+            } catch(NumberFormatException e) {
+                maxMessages = 0;
+            }
+
+            if(maxMessages <= 0) {
+                this.errorBadHeader(ex, "'Max-Messages' must be a positive integer.");
+                return;
+            }
+        }
+
+        // then; check for the optional 'Subscriber' field:
+        String subscriber = null;
+        if(headers.containsKey("Subscriber") && type.equals(RequestType.TOPIC)) {
+            subscriber = headers.getFirst("Subscriber");
+        }
+
+        // then; check for the optional 'Stream' field:
+        String accept = headers.getFirst("Accept");
+        if(headers.containsKey("Stream") || (accept != null && accept.contains("text/event-stream"))) {
+            String format = headers.containsKey("Stream") ? headers.getFirst("Stream").trim() : "sse";
+
+            if(!format.equalsIgnoreCase("sse") && !format.equalsIgnoreCase("framed")) {
+                this.errorBadHeader(ex, "'Stream' must be either 'sse' or 'framed'.");
+                return;
+            }
+
+            this.handleStream(ex, type, target, subscriber, format.equalsIgnoreCase("sse"));
+            return;
+        }
+
+        // then; check for the optional 'Wait' field:
+        if(headers.containsKey("Wait")) {
+            long waitMillis;
+            try {
+                waitMillis = Long.parseLong(headers.getFirst("Wait").trim());
+            } catch(NumberFormatException e) {
+                waitMillis = -1;
+            }
+
+            if(waitMillis < 0) {
+                this.errorBadHeader(ex, "'Wait' must be a non-negative number of milliseconds.");
+                return;
+            }
 
-        String result = "";
+            this.handleWait(ex, type, target, subscriber, maxMessages, Math.min(waitMillis, maxWaitMillis));
+            return;
+        }
+
+        if(maxMessages > 0 || subscriber != null) {
+            this.handleBatch(ex, type, target, subscriber, maxMessages);
+            return;
+        }
+
+        IMessage result;
         // check if the request is for a topic discussion or not:
         if(type.equals(RequestType.TOPIC)) {
-
+            logger.trace("Fetching topic message.", "to", target);
             try {
-                result = this.messagingServer.getTopicMessage(target);
+                result = this.messagingServer.getRawTopicMessage(target);
             } catch(MessageServerTopicNotFoundException e) {
                 this.errorMissingResource(ex, "Requested Topic is missing: " + target);
                 return;
@@ -113,10 +232,10 @@ public class QueryHandler extends Handler {
                 return;
             }
         } else { // NOTE: guaranteed to be RequestType.PERSONAL otherwise.
-            System.out.println("Fetching personal message for " + target);
+            logger.trace("Fetching personal message.", "to", target);
             try {
 
-                result = this.messagingServer.getPersonalMessage(target);
+                result = this.messagingServer.getRawPersonalMessage(target);
             } catch(MessageServerPersonNotFoundException e) {
 
                 this.errorMissingResource(ex, "Requested username is missing: " + target);
@@ -131,7 +250,166 @@ public class QueryHandler extends Handler {
 
 
         // if here; it means the message was succesfully fetched:
-        ex.sendResponseHeaders(200, result.length() + 1);
-        this.writeToOutputStream(ex.getResponseBody(), result);
+        this.respond(ex, 200, result);
+    }
+
+    /**
+     * handleWait serves the messages off the queue of the given target as soon
+     * as there are any; waiting for up to waitMillis for them to arrive.
+     * <p>
+     * The exchange is parked on the queue without holding on to the current
+     * Thread. Whichever Thread delivers the messages (or the TimerWheel's,
+     * once the wait is over) only hands the response over to the
+     * streamExecutor; just like streams write out theirs, so that a slow
+     * client never holds up a producer. Without a streamExecutor, the
+     * response is written out by that Thread itself.
+     *
+     * @param   ex          HttpExchange object to be operated on
+     * @param   type        the RequestType of the query
+     * @param   target      the name of the person/topic queried
+     * @param   subscriber  the name of the topic's subscriber; or null
+     * @param   maxMessages the maximum number of messages to be returned; or
+     *                      0 for a single unframed message
+     * @param   waitMillis  the maximum number of milliseconds to wait for
+     */
+    private void handleWait(HttpExchange ex, RequestType type, String target, String subscriber, int maxMessages, long waitMillis) {
+        Consumer<IMessage[]> respond = (messages) -> {
+            try {
+                if(messages.length == 0) {
+                    String kind = type.equals(RequestType.TOPIC) ? "topic " : "user ";
+                    this.errorMissingResource(ex, "Queue for " + kind + target + " is empty.");
+                } else if(maxMessages > 0) {
+                    this.respond(ex, 200, messages);
+                } else {
+                    this.respond(ex, 200, messages[0]);
+                }
+            } catch(IOException e) {
+                ex.close();
+            }
+        };
+
+        Executor executor = this.streamExecutor;
+        Consumer<IMessage[]> complete = respond;
+        if(executor != null) {
+            complete = (messages) -> {
+                try {
+                    executor.execute(() -> respond.accept(messages));
+                } catch(RejectedExecutionException e) {
+                    // the server is shutting down:
+                    ex.close();
+                }
+            };
+        }
+
+        int count = (maxMessages > 0) ? maxMessages : 1;
+        if(type.equals(RequestType.TOPIC) && subscriber != null) {
+            this.messagingServer.awaitTopicMessages(target, subscriber, count, waitMillis, complete);
+        } else if(type.equals(RequestType.TOPIC)) {
+            this.messagingServer.awaitTopicMessages(target, count, waitMillis, complete);
+        } else {
+            this.messagingServer.awaitPersonalMessages(target, count, waitMillis, complete);
+        }
+    }
+
+    /**
+     * handleStream keeps the response open and pushes the messages of the
+     * given target down it as they arrive.
+     * <p>
+     * No Thread is held whilst the stream is idle: the messages are written
+     * out by the stream's writer tasks on the streamExecutor; and only as fast
+     * as the client reads them, the rest being left in their queue.
+     *
+     * @param   ex          HttpExchange object to be operated on
+     * @param   type        the RequestType of the query
+     * @param   target      the name of the person/topic queried
+     * @param   subscriber  the name of the topic's subscriber; or null
+     * @param   sse         whether to stream Server-Sent Events
+     */
+    private void handleStream(HttpExchange ex, RequestType type, String target, String subscriber, boolean sse) throws IOException {
+        if(this.streamExecutor == null) {
+            this.error(ex, 501, "501 : NotImplemented :: Streaming is not enabled on this server.");
+            return;
+        }
+
+        // NOTE: a stream refused by the server (e.g. to be redirected) must
+        // be refused before the headers are sent:
+        if(type.equals(RequestType.TOPIC)) {
+            this.messagingServer.checkTopicSubscription(target);
+        } else {
+            this.messagingServer.checkPersonalSubscription(target);
+        }
+
+        if(sse) {
+            ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        }
+
+        // NOTE: a length of 0 means a chunked response:
+        ex.sendResponseHeaders(200, 0);
+        ex.getResponseBody().flush();
+
+        MessageStream stream = new MessageStream(ex, sse, this.streamExecutor,
+            this.messagingServer.getTimerWheel(), this.streamBufferBytes, this.streamsClosed);
+        this.streamsOpened.increment();
+
+        if(type.equals(RequestType.TOPIC)) {
+            stream.attach(this.messagingServer.subscribeTopic(target, subscriber, stream));
+        } else {
+            stream.attach(this.messagingServer.subscribePersonal(target, stream));
+        }
+    }
+
+    /**
+     * handleBatch serves a batch of at most maxMessages messages off the queue
+     * of the given target in a single response.
+     * <p>
+     * Topic subscribers read past their own cursor; a subscriber's query
+     * without 'Max-Messages' being served a single unframed message.
+     *
+     * @param   ex          HttpExchange object to be operated on
+     * @param   type        the RequestType of the query
+     * @param   target      the name of the person/topic queried
+     * @param   subscriber  the name of the topic's subscriber; or null
+     * @param   maxMessages the maximum number of messages to be returned; or
+     *                      0 for a single unframed message
+     */
+    private void handleBatch(HttpExchange ex, RequestType type, String target, String subscriber, int maxMessages) throws IOException {
+        IMessage[] result;
+
+        if(type.equals(RequestType.TOPIC)) {
+            try {
+                if(subscriber != null) {
+                    result = this.messagingServer.getRawTopicMessages(target, subscriber, (maxMessages > 0) ? maxMessages : 1);
+                } else {
+                    result = this.messagingServer.getRawTopicMessages(target, maxMessages);
+                }
+            } catch(MessageServerTopicNotFoundException e) {
+                this.errorMissingResource(ex, "Requested Topic is missing: " + target);
+                return;
+            }
+
+            if(result.length == 0) {
+                this.errorMissingResource(ex, "Queue for topic " + target + " is empty.");
+                return;
+            }
+        } else {
+            try {
+                result = this.messagingServer.getRawPersonalMessages(target, maxMessages);
+            } catch(MessageServerPersonNotFoundException e) {
+                this.errorMissingResource(ex, "Requested username is missing: " + target);
+                return;
+            }
+
+            if(result.length == 0) {
+                this.errorMissingResource(ex, "Queue for user " + target + " is empty.");
+                return;
+            }
+        }
+
+        if(maxMessages > 0) {
+            this.respond(ex, 200, result);
+        } else {
+            this.respond(ex, 200, result[0]);
+        }
     }
 }
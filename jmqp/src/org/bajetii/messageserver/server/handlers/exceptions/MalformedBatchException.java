@@ -0,0 +1,21 @@
+package org.bajetii.messageserver.server.handlers.exceptions;
+
+
+/**
+ * MalformedBatchException is thrown whenever the body of a batched request
+ * does not follow the expected framing.
+ * <p>
+ * It extends RuntimeException for the very same reasons all the other
+ * exceptions around here do: nobody likes checked exceptions.
+ */
+public class MalformedBatchException extends RuntimeException {
+
+    public MalformedBatchException() {
+        super();
+    }
+
+    public MalformedBatchException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.bajetii.messageserver.server.handlers.exceptions;
+
+
+/**
+ * RequestBodyTooLargeException is thrown whenever the body of a request is
+ * larger than the configured maximum body size.
+ * <p>
+ * It extends RuntimeException so as to spare all the handlers from declaring
+ * yet another one of Java's checked exceptions.
+ */
+public class RequestBodyTooLargeException extends RuntimeException {
+
+    public RequestBodyTooLargeException() {
+        super();
+    }
+
+    public RequestBodyTooLargeException(long maxBodyBytes) {
+        super("Request body exceeds the maximum of " + maxBodyBytes + " bytes.");
+    }
+
+}
@@ -0,0 +1,258 @@
+package org.bajetii.messageserver.server.logging;
+
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * AsyncAppender hands LogEvents over to a single writer Thread through a
+ * bounded ring buffer; so that the Threads logging never format nor write
+ * anything themselves, and never block.
+ * <p>
+ * The ring works just like the RingBufferMessageQueue's: every slot carries
+ * a sequence number telling whether it is free for writing or ready for
+ * reading, and producers claim slots through a single CAS. As the writer is
+ * the only consumer, it reads slots without any CAS at all.
+ * Whilst the ring is full, events are dropped rather than waited for; the
+ * number of dropped events being logged once there is room again.
+ * <p>
+ * The writer formats all the events available into a single batch, which is
+ * written out and flushed at once; and parks once there are none left, to be
+ * unparked by the next event appended.
+ */
+public class AsyncAppender implements ILogAppender {
+
+    /**
+     * maxParkNanos is the longest the writer parks for; as a safety net for
+     * a wakeup which raced its parking.
+     */
+    private static final long maxParkNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * out is the PrintStream the events are written out to.
+     */
+    private final PrintStream out;
+
+    /**
+     * size is the number of slots of the ring; with events and sequences
+     * holding the events and the sequence numbers of its slots.
+     */
+    private final int size;
+    private final AtomicReferenceArray<LogEvent> events;
+    private final AtomicLongArray sequences;
+
+    /**
+     * enqueuePosition is the position the next event will be appended to; with
+     * dequeuePosition being that of the next event to be written out, which
+     * only the writer ever moves.
+     */
+    private final AtomicLong enqueuePosition = new AtomicLong(0);
+    private volatile long dequeuePosition = 0;
+
+    /**
+     * droppedCount counts the events dropped for the ring being full; with
+     * reportedDrops being those the writer already logged about.
+     */
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private long reportedDrops = 0;
+
+    /**
+     * writer is the writer Thread; with sleeping marking whether it is parked
+     * (or about to be), and closed whether the appender was closed.
+     */
+    private final Thread writer;
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+    /**
+     * An AsyncAppender is created provided the PrintStream to write events
+     * out to and the number of events it may hold pending; its writer Thread
+     * being started straight away.
+     * <p>
+     * @param   out     the PrintStream events are written out to.
+     * @param   size    the number of slots of the ring buffer.
+     */
+    public AsyncAppender(PrintStream out, int size) {
+        if(size <= 0) {
+            throw new IllegalArgumentException("Ring size must be positive: " + size);
+        }
+
+        this.out = out;
+        this.size = size;
+        this.events = new AtomicReferenceArray<LogEvent>(size);
+        this.sequences = new AtomicLongArray(size);
+
+        for(int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+
+        this.writer = new Thread(() -> this.run(), "jmqp-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * getDroppedCount returns the number of events dropped so far.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * append hands the given event over to the writer; or drops it if the
+     * ring is full. Once closed, events are written out straight away.
+     */
+    @Override
+    public void append(LogEvent event) {
+        if(this.closed) {
+            this.writeNow(event);
+            return;
+        }
+
+        long position = this.enqueuePosition.get();
+        int index;
+
+        while(true) {
+            index = (int) (position % this.size);
+            long difference = this.sequences.get(index) - position;
+
+            if(difference == 0) {
+                if(this.enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if(difference < 0) {
+                this.droppedCount.incrementAndGet();
+                return;
+            }
+
+            position = this.enqueuePosition.get();
+        }
+
+        this.events.lazySet(index, event);
+        // NOTE: a full volatile write; so that it cannot be reordered past
+        // the read of sleeping below, and the writer's wakeup is never lost:
+        this.sequences.set(index, position + 1);
+
+        if(this.sleeping) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * close stops the writer once it has written out all the pending events;
+     * waiting for it to do so.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * run is the loop of the writer Thread.
+     */
+    private void run() {
+        StringBuilder batch = new StringBuilder(8192);
+
+        while(true) {
+            if(this.drain(batch)) {
+                continue;
+            }
+
+            if(this.closed) {
+                // one last pass; for the events appended whilst closing:
+                this.drain(batch);
+                return;
+            }
+
+            this.sleeping = true;
+            if(!this.isReady()) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+            this.sleeping = false;
+        }
+    }
+
+    /**
+     * drain formats all the events available into the given batch and
+     * writes it out.
+     * <p>
+     * @return  boolean whether there were any events.
+     */
+    private boolean drain(StringBuilder batch) {
+        long position = this.dequeuePosition;
+        long dropped = this.droppedCount.get();
+
+        while(this.isReady()) {
+            int index = (int) (position % this.size);
+            LogEvent event = this.events.get(index);
+
+            this.events.lazySet(index, null);
+            this.sequences.lazySet(index, position + this.size);
+            this.dequeuePosition = ++position;
+
+            event.format(batch);
+
+            if(batch.length() >= 64 * 1024) {
+                this.write(batch);
+            }
+        }
+
+        if(dropped != this.reportedDrops) {
+            new LogEvent(System.currentTimeMillis(), Level.WARN, "AsyncAppender", "Log events dropped; the ring buffer was full.",
+                new Object[] {"dropped", dropped - this.reportedDrops}, null).format(batch);
+            this.reportedDrops = dropped;
+        }
+
+        if(batch.length() == 0) {
+            return false;
+        }
+
+        this.write(batch);
+        return true;
+    }
+
+    /**
+     * isReady returns whether the event at the dequeue position is ready.
+     */
+    private boolean isReady() {
+        long position = this.dequeuePosition;
+
+        return this.sequences.get((int) (position % this.size)) == position + 1;
+    }
+
+    /**
+     * write writes out and flushes the given batch; emptying it.
+     */
+    private void write(StringBuilder batch) {
+        this.out.print(batch);
+        this.out.flush();
+        batch.setLength(0);
+    }
+
+    /**
+     * writeNow formats and writes out the given event straight away; on the
+     * Thread logging it.
+     */
+    private void writeNow(LogEvent event) {
+        StringBuilder line = new StringBuilder(128);
+        event.format(line);
+
+        synchronized(this.out) {
+            this.out.print(line);
+            this.out.flush();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.bajetii.messageserver.server.logging;
+
+
+import java.io.PrintStream;
+
+
+/**
+ * ConsoleAppender formats and writes out every LogEvent straight away; on the
+ * Thread logging it, and holding the PrintStream's lock whilst doing so.
+ * <p>
+ * It is the way the server used to log; and is only worth it where every
+ * event must be out before carrying on, as when debugging.
+ */
+public class ConsoleAppender implements ILogAppender {
+
+    /**
+     * out is the PrintStream the events are written out to.
+     */
+    private final PrintStream out;
+
+    /**
+     * A ConsoleAppender is created provided the PrintStream to write events
+     * out to.
+     */
+    public ConsoleAppender(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        StringBuilder line = new StringBuilder(128);
+        event.format(line);
+
+        synchronized(this.out) {
+            this.out.print(line);
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.out.flush();
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.bajetii.messageserver.server.logging;
+
+
+/**
+ * ILogAppender is the interface of where the LogEvents of the Loggers end up.
+ */
+public interface ILogAppender {
+
+    /**
+     * append writes out the given LogEvent; or hands it over to be written
+     * out later.
+     * <p>
+     * @param   event   the LogEvent to be written out.
+     */
+    public void append(LogEvent event);
+
+    /**
+     * close writes out whatever is still pending and releases the appender.
+     * LogEvents appended afterwards are still written out; synchronously.
+     */
+    public void close();
+
+}
@@ -0,0 +1,20 @@
+package org.bajetii.messageserver.server.logging;
+
+
+/**
+ * Level is the Enum of the severities of log events; from the most verbose to
+ * the most severe, OFF disabling logging altogether.
+ */
+public enum Level {
+
+    TRACE, DEBUG, INFO, WARN, ERROR, OFF;
+
+    /**
+     * fromString returns the Level of the given (case-insensitive) name.
+     * <p>
+     * @throws  IllegalArgumentException    if there is no such Level.
+     */
+    public static Level fromString(String name) {
+        return Level.valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,130 @@
+package org.bajetii.messageserver.server.logging;
+
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+
+/**
+ * LogEvent is a single event logged by a Logger.
+ * <p>
+ * An event holds its message and fields as they were given; so that they are
+ * only ever formatted by the appender, off the Thread which logged them.
+ * Events are formatted as a single logfmt line:
+ *      ts=<ISO-8601 instant> level=<level> logger=<name> msg="<message>" key=value...
+ * values being quoted whenever they hold spaces, quotes or '='; and an
+ * exception's stack trace following on the lines below.
+ */
+public final class LogEvent {
+
+    /**
+     * timestampMillis is the moment the event was logged at.
+     */
+    private final long timestampMillis;
+
+    /**
+     * level and logger are the Level of the event and the name of the Logger
+     * which logged it.
+     */
+    private final Level level;
+    private final String logger;
+
+    /**
+     * message is the message of the event; with fields holding the names and
+     * values of its fields alternately, and thrown the exception logged with
+     * it, if any.
+     */
+    private final String message;
+    private final Object[] fields;
+    private final Throwable thrown;
+
+    LogEvent(long timestampMillis, Level level, String logger, String message, Object[] fields, Throwable thrown) {
+        this.timestampMillis = timestampMillis;
+        this.level = level;
+        this.logger = logger;
+        this.message = message;
+        this.fields = fields;
+        this.thrown = thrown;
+    }
+
+    public long getTimestampMillis() {
+        return this.timestampMillis;
+    }
+
+    public Level getLevel() {
+        return this.level;
+    }
+
+    public String getLogger() {
+        return this.logger;
+    }
+
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * format appends the logfmt line of the event, and its stack trace if
+     * any, to the given StringBuilder; ending in a newline.
+     */
+    public void format(StringBuilder out) {
+        out.append("ts=");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(this.timestampMillis), out);
+        out.append(" level=").append(this.level.name().toLowerCase());
+        out.append(" logger=").append(this.logger);
+        out.append(" msg=");
+        quote(out, this.message, true);
+
+        if(this.fields != null) {
+            for(int i = 0; i + 1 < this.fields.length; i += 2) {
+                out.append(' ').append(this.fields[i]).append('=');
+                quote(out, String.valueOf(this.fields[i + 1]), false);
+            }
+        }
+
+        out.append('\n');
+
+        if(this.thrown != null) {
+            StringWriter trace = new StringWriter();
+            this.thrown.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+
+    /**
+     * quote appends the given value; within quotes if it must be, or always
+     * if told to, escaping quotes, backslashes and newlines.
+     */
+    private static void quote(StringBuilder out, String value, boolean always) {
+        boolean quoted = always || value.isEmpty();
+
+        for(int i = 0; !quoted && i < value.length(); i++) {
+            char c = value.charAt(i);
+            quoted = (c <= ' ' || c == '"' || c == '=' || c == '\\');
+        }
+
+        if(!quoted) {
+            out.append(value);
+            return;
+        }
+
+        out.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c == '\n') {
+                out.append("\\n");
+            } else if(c == '\r') {
+                out.append("\\r");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.bajetii.messageserver.server.logging;
+
+
+import java.util.function.Supplier;
+
+
+/**
+ * Logger logs structured events, each made of a message and a few named
+ * fields, on behalf of a class of the server.
+ * <p>
+ * The Level, the appender and whether payloads may be logged are shared by
+ * all the Loggers; and read from a volatile field, so that they can be
+ * changed at any time. Logging below the Level costs a single comparison:
+ * there are overloads for up to two fields so that nothing gets allocated,
+ * and messages costly to build are given as a Supplier only called upon
+ * when the Level is enabled.
+ * Enabled events are handed over to the appender as they are; formatting
+ * them being left to it. By default events are written out synchronously to
+ * System.out, until an AsyncAppender is set.
+ * <p>
+ * Payloads (the bodies of messages) are never logged unless enabled through
+ * setPayloadLogging; they may be large, and may hold anything.
+ */
+public final class Logger {
+
+    /**
+     * level is the lowest Level logged.
+     */
+    private static volatile Level level = Level.INFO;
+
+    /**
+     * payloads is whether the payloads of messages may be logged.
+     */
+    private static volatile boolean payloads = false;
+
+    /**
+     * appender is where all the events end up.
+     */
+    private static volatile ILogAppender appender = new ConsoleAppender(System.out);
+
+    /**
+     * name is the name of the Logger; that of the class it logs for.
+     */
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    /**
+     * getLogger returns a Logger for the given class.
+     */
+    public static Logger getLogger(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    /**
+     * getLevel returns the lowest Level logged.
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * setLevel sets the lowest Level logged.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * isPayloadLoggingEnabled returns whether the payloads of messages may be
+     * logged.
+     */
+    public static boolean isPayloadLoggingEnabled() {
+        return payloads;
+    }
+
+    /**
+     * setPayloadLogging sets whether the payloads of messages may be logged.
+     */
+    public static void setPayloadLogging(boolean enabled) {
+        payloads = enabled;
+    }
+
+    /**
+     * getAppender returns where all the events end up.
+     */
+    public static ILogAppender getAppender() {
+        return appender;
+    }
+
+    /**
+     * setAppender sets where all the events end up; returning the previous
+     * appender, which is left to the caller to close.
+     */
+    public static ILogAppender setAppender(ILogAppender newAppender) {
+        ILogAppender previous = appender;
+        appender = newAppender;
+
+        return previous;
+    }
+
+    /**
+     * getName returns the name of the Logger.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * isEnabled returns whether events of the given Level are logged.
+     */
+    public boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) >= 0 && eventLevel != Level.OFF;
+    }
+
+    public boolean isTraceEnabled() {
+        return this.isEnabled(Level.TRACE);
+    }
+
+    public boolean isDebugEnabled() {
+        return this.isEnabled(Level.DEBUG);
+    }
+
+    public void trace(String message) {
+        if(this.isEnabled(Level.TRACE)) {
+            this.log(Level.TRACE, message, null, null);
+        }
+    }
+
+    public void trace(String message, String key, Object value) {
+        if(this.isEnabled(Level.TRACE)) {
+            this.log(Level.TRACE, message, new Object[] {key, value}, null);
+        }
+    }
+
+    public void trace(String message, String key1, Object value1, String key2, Object value2) {
+        if(this.isEnabled(Level.TRACE)) {
+            this.log(Level.TRACE, message, new Object[] {key1, value1, key2, value2}, null);
+        }
+    }
+
+    public void trace(Supplier<String> message) {
+        if(this.isEnabled(Level.TRACE)) {
+            this.log(Level.TRACE, message.get(), null, null);
+        }
+    }
+
+    public void debug(String message) {
+        if(this.isEnabled(Level.DEBUG)) {
+            this.log(Level.DEBUG, message, null, null);
+        }
+    }
+
+    public void debug(String message, String key, Object value) {
+        if(this.isEnabled(Level.DEBUG)) {
+            this.log(Level.DEBUG, message, new Object[] {key, value}, null);
+        }
+    }
+
+    public void debug(String message, String key1, Object value1, String key2, Object value2) {
+        if(this.isEnabled(Level.DEBUG)) {
+            this.log(Level.DEBUG, message, new Object[] {key1, value1, key2, value2}, null);
+        }
+    }
+
+    public void debug(Supplier<String> message) {
+        if(this.isEnabled(Level.DEBUG)) {
+            this.log(Level.DEBUG, message.get(), null, null);
+        }
+    }
+
+    public void info(String message) {
+        if(this.isEnabled(Level.INFO)) {
+            this.log(Level.INFO, message, null, null);
+        }
+    }
+
+    public void info(String message, String key, Object value) {
+        if(this.isEnabled(Level.INFO)) {
+            this.log(Level.INFO, message, new Object[] {key, value}, null);
+        }
+    }
+
+    public void info(String message, String key1, Object value1, String key2, Object value2) {
+        if(this.isEnabled(Level.INFO)) {
+            this.log(Level.INFO, message, new Object[] {key1, value1, key2, value2}, null);
+        }
+    }
+
+    public void info(Supplier<String> message) {
+        if(this.isEnabled(Level.INFO)) {
+            this.log(Level.INFO, message.get(), null, null);
+        }
+    }
+
+    public void warn(String message) {
+        if(this.isEnabled(Level.WARN)) {
+            this.log(Level.WARN, message, null, null);
+        }
+    }
+
+    public void warn(String message, String key, Object value) {
+        if(this.isEnabled(Level.WARN)) {
+            this.log(Level.WARN, message, new Object[] {key, value}, null);
+        }
+    }
+
+    public void warn(String message, String key1, Object value1, String key2, Object value2) {
+        if(this.isEnabled(Level.WARN)) {
+            this.log(Level.WARN, message, new Object[] {key1, value1, key2, value2}, null);
+        }
+    }
+
+    public void warn(String message, Throwable thrown) {
+        if(this.isEnabled(Level.WARN)) {
+            this.log(Level.WARN, message, null, thrown);
+        }
+    }
+
+    public void error(String message) {
+        if(this.isEnabled(Level.ERROR)) {
+            this.log(Level.ERROR, message, null, null);
+        }
+    }
+
+    public void error(String message, String key, Object value) {
+        if(this.isEnabled(Level.ERROR)) {
+            this.log(Level.ERROR, message, new Object[] {key, value}, null);
+        }
+    }
+
+    public void error(String message, Throwable thrown) {
+        if(this.isEnabled(Level.ERROR)) {
+            this.log(Level.ERROR, message, null, thrown);
+        }
+    }
+
+    public void error(String message, String key, Object value, Throwable thrown) {
+        if(this.isEnabled(Level.ERROR)) {
+            this.log(Level.ERROR, message, new Object[] {key, value}, thrown);
+        }
+    }
+
+    /**
+     * log hands the given event over to the appender.
+     */
+    private void log(Level eventLevel, String message, Object[] fields, Throwable thrown) {
+        appender.append(new LogEvent(System.currentTimeMillis(), eventLevel, this.name, message, fields, thrown));
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.bajetii.messageserver.server.messages;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * ByteBufferMessage is an IMessage which holds the raw bytes of the message
+ * within a ByteBuffer; be it a heap or a direct one.
+ * <p>
+ * The bytes flow from the request body to the response as-is; which allows
+ * for binary payloads and spares the server from decoding and re-encoding
+ * them. The String value is only ever decoded (as UTF-8) if asked for, and
+ * is cached afterwards.
+ */
+public class ByteBufferMessage extends Message implements IMessage {
+
+    /**
+     * buffer holds the bytes of the message between its position and limit.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * stringValue is the lazily decoded String value of the message.
+     */
+    private volatile String stringValue = null;
+
+    /**
+     * A ByteBufferMessage is created provided the ByteBuffer holding its bytes.
+     * <p>
+     * The ByteBuffer is not copied; and must thus not be modified afterwards.
+     *
+     * @param   buffer  the ByteBuffer holding the message's bytes.
+     */
+    public ByteBufferMessage(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * A ByteBufferMessage can also be created provided the byte array holding
+     * its bytes; which is wrapped without being copied.
+     */
+    public ByteBufferMessage(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * getStringValue decodes the bytes of the message as UTF-8 the first time
+     * it is called.
+     */
+    @Override
+    public String getStringValue() {
+        String value = this.stringValue;
+
+        if(value == null) {
+            value = StandardCharsets.UTF_8.decode(this.buffer.duplicate()).toString();
+            this.stringValue = value;
+        }
+
+        return value;
+    }
+
+    /**
+     * getByteValue returns a read-only view of the bytes; without copying them.
+     */
+    @Override
+    public ByteBuffer getByteValue() {
+        return this.buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int getByteLength() {
+        return this.buffer.remaining();
+    }
+
+    /**
+     * writeTo writes the bytes straight out of the backing array if there is
+     * one; or copies them out through a small buffer if the ByteBuffer is a
+     * direct one.
+     */
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        if(this.buffer.hasArray()) {
+            os.write(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), this.buffer.remaining());
+            return;
+        }
+
+        ByteBuffer view = this.buffer.duplicate();
+        byte[] chunk = new byte[Math.min(view.remaining(), 8192)];
+        while(view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            os.write(chunk, 0, length);
+        }
+    }
+
+}
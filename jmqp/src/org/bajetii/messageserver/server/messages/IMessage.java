@@ -1,5 +1,12 @@
 package org.bajetii.messageserver.server.messages;
 
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
 /**
  * IMessage represents the properties of the entity which is
  * the main handled object of the MessagingServer.
@@ -18,6 +25,32 @@ public interface IMessage {
      */
     public String getStringValue();
 
+    /**
+     * getByteValue returns a read-only view of the raw bytes of the IMessage.
+     * <p>
+     * By default; this is the UTF-8 encoding of its String value.
+     */
+    public default ByteBuffer getByteValue() {
+        return ByteBuffer.wrap(this.getStringValue().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * getByteLength returns the number of raw bytes of the IMessage.
+     */
+    public default int getByteLength() {
+        return this.getByteValue().remaining();
+    }
+
+    /**
+     * writeTo writes the raw bytes of the IMessage to the given OutputStream.
+     * <p>
+     * Implementations holding the raw bytes should write them out as-is; so
+     * that serving a message involves no transcoding whatsoever.
+     */
+    public default void writeTo(OutputStream os) throws IOException {
+        os.write(this.getStringValue().getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * valuesEqual returns true depending on the whether or not the provided
      * Object implements IMessage and its getStringValue is equal to this
@@ -1,19 +1,33 @@
 package org.bajetii.messageserver.server.messages;
 
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.lang.System;
 
 
 /**
- * TopicMessage is a specialized subtype of StringMessage which also
- * contains an associated timeout moment.
+ * TopicMessage is a specialized IMessage which wraps the actual payload of
+ * the message alongside an associated timeout moment.
  * <p>
- * It implements the IMessage interface
+ * The payload may be any IMessage; all the value accessors simply delegate
+ * to it, so that binary payloads are served as-is.
+ * The timeout moment is held as a primitive deadline in milliseconds since
+ * the epoch; so that expiring messages never involves allocating Dates.
  */
-public class TopicMessage extends StringMessage implements IMessage {
+public class TopicMessage extends Message implements IMessage {
 
-    private Date timeout;
+    /**
+     * payload is the wrapped IMessage holding the contents of the message.
+     */
+    private IMessage payload;
+
+    /**
+     * deadline is the moment of timeout; in milliseconds since the epoch.
+     */
+    private final long deadline;
 
     /**
      * A TopicMessage can be created by providing the String message
@@ -26,9 +40,7 @@ public class TopicMessage extends StringMessage implements IMessage {
      * @param   seconds the number of seconds of timeout.
      */
     public TopicMessage(String message, int seconds) {
-        super(message);
-        Date date = new Date(System.currentTimeMillis());
-        this.timeout = new Date(date.getTime() + 1000 * seconds);
+        this(new StringMessage(message), seconds);
     }
 
     /**
@@ -39,18 +51,89 @@ public class TopicMessage extends StringMessage implements IMessage {
      * @param   timeout the Date object representing the moment of timeout.
      */
     public TopicMessage(String message, Date timeout) {
-        super(message);
-        this.timeout = timeout;
+        this(new StringMessage(message), timeout);
+    }
+
+    /**
+     * A TopicMessage can also be created by providing the IMessage payload
+     * and the desired timeout in Seconds.
+     * <p>
+     * @param   payload the IMessage to be encapsulated.
+     * @param   seconds the number of seconds of timeout.
+     */
+    public TopicMessage(IMessage payload, int seconds) {
+        this(payload, System.currentTimeMillis() + 1000L * seconds);
+    }
+
+    /**
+     * A TopicMessage can also be created by providing the IMessage payload
+     * and the moment of timeout.
+     * <p>
+     * @param   payload the IMessage to be encapsulated.
+     * @param   timeout the Date object representing the moment of timeout.
+     */
+    public TopicMessage(IMessage payload, Date timeout) {
+        this(payload, timeout.getTime());
+    }
+
+    /**
+     * A TopicMessage can also be created by providing the IMessage payload
+     * and the moment of timeout in milliseconds since the epoch.
+     * <p>
+     * @param   payload     the IMessage to be encapsulated.
+     * @param   deadline    the moment of timeout in milliseconds.
+     */
+    public TopicMessage(IMessage payload, long deadline) {
+        this.payload = payload;
+        this.deadline = deadline;
+    }
+
+    /**
+     * getDeadline returns the moment this TopicMessage will timeout; in
+     * milliseconds since the epoch.
+     */
+    public long getDeadline() {
+        return this.deadline;
     }
 
     /**
      * getTimeout returns the Date object representing the moment
      * this TopicMessage will timeout.
      * <p>
+     * A new Date is created on every call; getDeadline should be preferred
+     * wherever the moment is merely compared.
+     *
      * @return  Date    Date object representing moment of timeout.
      */
     public Date getTimeout() {
-        return this.timeout;
+        return new Date(this.deadline);
+    }
+
+    /**
+     * getPayload returns the wrapped IMessage.
+     */
+    public IMessage getPayload() {
+        return this.payload;
+    }
+
+    @Override
+    public String getStringValue() {
+        return this.payload.getStringValue();
+    }
+
+    @Override
+    public ByteBuffer getByteValue() {
+        return this.payload.getByteValue();
+    }
+
+    @Override
+    public int getByteLength() {
+        return this.payload.getByteLength();
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        this.payload.writeTo(os);
     }
 
 }
@@ -0,0 +1,44 @@
+package org.bajetii.messageserver.server.metrics;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counter is a monotonically increasing count; such as the number of messages
+ * added to the queues.
+ * <p>
+ * It is backed by a LongAdder; whose cells are striped across the Threads
+ * updating it, so that concurrent increments do not contend on a single
+ * cache line, and never allocate once the cells are in place.
+ */
+public class Counter {
+
+    /**
+     * adder holds the striped count.
+     */
+    private final LongAdder adder = new LongAdder();
+
+    /**
+     * increment adds one to the count.
+     */
+    public void increment() {
+        this.adder.increment();
+    }
+
+    /**
+     * add adds the given amount to the count.
+     */
+    public void add(long amount) {
+        this.adder.add(amount);
+    }
+
+    /**
+     * get returns the current count; which is only ever a snapshot whilst it
+     * is being updated concurrently.
+     */
+    public long get() {
+        return this.adder.sum();
+    }
+
+}
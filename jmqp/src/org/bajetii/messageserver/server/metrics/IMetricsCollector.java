@@ -0,0 +1,20 @@
+package org.bajetii.messageserver.server.metrics;
+
+
+/**
+ * IMetricsCollector is the interface of anything which computes its metrics
+ * upon being scraped; rather than keeping them up to date as it goes.
+ * <p>
+ * It suits metrics which are either costly to keep up to date, like the depth
+ * of every queue, or whose set of series is not known upfront.
+ */
+public interface IMetricsCollector {
+
+    /**
+     * collect writes out the current metrics of the collector.
+     * <p>
+     * @param   writer  the PrometheusWriter to write the metrics to.
+     */
+    public void collect(PrometheusWriter writer);
+
+}
@@ -0,0 +1,147 @@
+package org.bajetii.messageserver.server.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * LatencyHistogram records durations in nanoseconds into log-linear buckets;
+ * in the manner of HdrHistogram.
+ * <p>
+ * Durations below 2^subBucketBits nanoseconds get a bucket each; every
+ * power of two above is split into 2^subBucketBits linear buckets, so that
+ * any recorded duration is known within about 3% of its value. Durations
+ * past 2^maxExponent nanoseconds (about five hours) land in the last bucket.
+ * <p>
+ * Recording a duration is a single atomic increment on its bucket, plus the
+ * striped count and sum; nothing is ever allocated nor locked. Percentiles
+ * are computed upon reading; from the buckets as they are at the time.
+ */
+public class LatencyHistogram {
+
+    /**
+     * subBucketBits is the log2 of the number of linear buckets within every
+     * power of two.
+     */
+    private static final int subBucketBits = 5;
+    private static final int subBucketCount = 1 << subBucketBits;
+
+    /**
+     * maxExponent is the log2 of the longest duration told apart.
+     */
+    private static final int maxExponent = 44;
+
+    /**
+     * bucketCount is the total number of buckets.
+     */
+    private static final int bucketCount = (maxExponent - subBucketBits + 2) * subBucketCount;
+
+    /**
+     * buckets holds the number of durations recorded in each bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+
+    /**
+     * count and sum are the number of recorded durations and their total.
+     */
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * record records the given duration.
+     * <p>
+     * @param   nanos   the duration in nanoseconds; negative ones count as 0.
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+
+        this.buckets.incrementAndGet(index(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+    }
+
+    /**
+     * getCount returns the number of recorded durations.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * getSum returns the total of the recorded durations in nanoseconds.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * getPercentile returns the duration which the given fraction of the
+     * recorded durations do not exceed; as the highest duration of its
+     * bucket.
+     * <p>
+     * @param   fraction    the fraction; between 0 and 1.
+     * @return  long        the duration in nanoseconds; 0 if none recorded.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        long[] counts = new long[bucketCount];
+
+        for(int i = 0; i < bucketCount; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+
+        if(total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+
+        for(int i = 0; i < bucketCount; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return highestValue(i);
+            }
+        }
+
+        return highestValue(bucketCount - 1);
+    }
+
+    /**
+     * index returns the bucket the given duration is recorded in.
+     */
+    static int index(long value) {
+        if(value < subBucketCount) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > maxExponent) {
+            return bucketCount - 1;
+        }
+
+        int shift = exponent - subBucketBits;
+        int subBucket = (int) (value >>> shift) - subBucketCount;
+
+        return (shift + 1) * subBucketCount + subBucket;
+    }
+
+    /**
+     * highestValue returns the highest duration recorded in the given bucket.
+     */
+    static long highestValue(int index) {
+        if(index < subBucketCount) {
+            return index;
+        }
+
+        int shift = index / subBucketCount - 1;
+        long lowest = (long) (subBucketCount + index % subBucketCount) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+}
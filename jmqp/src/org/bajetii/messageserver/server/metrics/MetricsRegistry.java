@@ -0,0 +1,192 @@
+package org.bajetii.messageserver.server.metrics;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+
+/**
+ * MetricsRegistry holds all the metrics of a server; and writes them out in
+ * the Prometheus text format upon being scraped.
+ * <p>
+ * Counters and LatencyHistograms are registered once, upfront, and then
+ * updated directly by whoever holds them; so that the registry is never
+ * involved on the hot path. Gauges are read from a supplier, and collectors
+ * asked for their metrics, only upon scraping.
+ * Registering the same metric (name and labels) twice returns the one
+ * already registered.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Series is a single metric of a family; alongside its labels.
+     */
+    private static final class Series {
+        final String[] labels;
+        Object metric;
+
+        Series(String[] labels, Object metric) {
+            this.labels = labels;
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * Family is a named family of metrics of a single type.
+     */
+    private static final class Family {
+        final String help;
+        final String type;
+        final LinkedHashMap<String, Series> series = new LinkedHashMap<String, Series>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * lock guards the families; which are kept in order of registration.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+
+    /**
+     * collectors holds the registered IMetricsCollectors.
+     */
+    private final CopyOnWriteArrayList<IMetricsCollector> collectors = new CopyOnWriteArrayList<IMetricsCollector>();
+
+    /**
+     * counter registers a Counter.
+     * <p>
+     * @param   name    the name of the metric; ending in '_total'.
+     * @param   help    the description of the metric.
+     * @param   labels  the names and values of its labels; alternately.
+     * @return  Counter the (possibly pre-existing) Counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) this.register(name, help, "counter", labels, new Counter(), false);
+    }
+
+    /**
+     * histogram registers a LatencyHistogram; which is written out as a
+     * summary in seconds.
+     * <p>
+     * @param   name    the name of the metric; ending in '_seconds'.
+     * @param   help    the description of the metric.
+     * @param   labels  the names and values of its labels; alternately.
+     * @return  LatencyHistogram    the (possibly pre-existing) histogram.
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) this.register(name, help, "summary", labels, new LatencyHistogram(), false);
+    }
+
+    /**
+     * gauge registers a gauge read from the given supplier upon scraping;
+     * replacing the supplier of the same gauge if already registered.
+     * <p>
+     * @param   name        the name of the metric.
+     * @param   help        the description of the metric.
+     * @param   supplier    the supplier of the value of the gauge.
+     * @param   labels      the names and values of its labels; alternately.
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        this.register(name, help, "gauge", labels, supplier, true);
+    }
+
+    /**
+     * register registers the given IMetricsCollector; which is asked for its
+     * metrics upon every scrape, after the registered metrics.
+     */
+    public void register(IMetricsCollector collector) {
+        this.collectors.add(collector);
+    }
+
+    /**
+     * scrape writes out all the metrics in the Prometheus text format.
+     * <p>
+     * @return  String  the metrics of the server.
+     */
+    public String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+        ArrayList<Object[]> snapshot = new ArrayList<Object[]>();
+
+        this.lock.lock();
+        try {
+            for(Map.Entry<String, Family> entry : this.families.entrySet()) {
+                Family family = entry.getValue();
+                for(Series series : family.series.values()) {
+                    snapshot.add(new Object[] {entry.getKey(), family, series.labels, series.metric});
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        for(Object[] series : snapshot) {
+            String name = (String) series[0];
+            Family family = (Family) series[1];
+            String[] labels = (String[]) series[2];
+            Object metric = series[3];
+
+            writer.family(name, family.help, family.type);
+
+            if(metric instanceof Counter) {
+                writer.sample(name, ((Counter) metric).get(), labels);
+            } else if(metric instanceof LatencyHistogram) {
+                writer.summary(name, (LatencyHistogram) metric, labels);
+            } else {
+                writer.sample(name, ((DoubleSupplier) metric).getAsDouble(), labels);
+            }
+        }
+
+        for(IMetricsCollector collector : this.collectors) {
+            collector.collect(writer);
+        }
+
+        return writer.toString();
+    }
+
+    /**
+     * register is the helper method registering the given metric under the
+     * given family; returning the one already there, or replacing it if told
+     * to.
+     */
+    private Object register(String name, String help, String type, String[] labels, Object metric, boolean replace) {
+        if(labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must come as names and values: " + labels.length);
+        }
+
+        String key = String.join("\0", labels);
+
+        this.lock.lock();
+        try {
+            Family family = this.families.get(name);
+            if(family == null) {
+                family = new Family(help, type);
+                this.families.put(name, family);
+            } else if(!family.type.equals(type)) {
+                throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type + ".");
+            }
+
+            Series series = family.series.get(key);
+            if(series == null) {
+                family.series.put(key, new Series(labels.clone(), metric));
+                return metric;
+            }
+
+            if(replace) {
+                series.metric = metric;
+            }
+
+            return series.metric;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.bajetii.messageserver.server.metrics;
+
+
+import java.util.HashSet;
+
+
+/**
+ * PrometheusWriter writes metrics out in the Prometheus text exposition
+ * format (version 0.0.4).
+ * <p>
+ * Every family of metrics is introduced by its HELP and TYPE lines; which are
+ * only ever written once, however many times the family is started. Samples
+ * are written one per line as 'name{label="value",...} value'; labels being
+ * given as alternating names and values.
+ */
+public class PrometheusWriter {
+
+    /**
+     * contentType is the Content-Type of the exposition format.
+     */
+    public static final String contentType = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * out is where the metrics are written to.
+     */
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * families holds the names of the families already started.
+     */
+    private final HashSet<String> families = new HashSet<String>();
+
+    /**
+     * family starts the family of metrics of the given name; unless it was
+     * already started.
+     * <p>
+     * @param   name    the name of the family.
+     * @param   help    the description of the family.
+     * @param   type    the type of the family; 'counter', 'gauge' or 'summary'.
+     */
+    public void family(String name, String help, String type) {
+        if(!this.families.add(name)) {
+            return;
+        }
+
+        this.out.append("# HELP ").append(name).append(' ');
+        for(int i = 0; i < help.length(); i++) {
+            char c = help.charAt(i);
+
+            if(c == '\\') {
+                this.out.append("\\\\");
+            } else if(c == '\n') {
+                this.out.append("\\n");
+            } else {
+                this.out.append(c);
+            }
+        }
+        this.out.append('\n');
+
+        this.out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * sample writes a single sample of the given metric.
+     * <p>
+     * @param   name    the name of the metric.
+     * @param   value   the value of the sample.
+     * @param   labels  the names and values of its labels; alternately.
+     */
+    public void sample(String name, double value, String... labels) {
+        this.out.append(name);
+        this.labels(labels);
+        this.out.append(' ');
+
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            this.out.append((long) value);
+        } else {
+            this.out.append(value);
+        }
+
+        this.out.append('\n');
+    }
+
+    /**
+     * summary writes out the given LatencyHistogram as a summary in seconds;
+     * with its median, 90th, 99th and 99.9th percentiles.
+     * <p>
+     * @param   name        the name of the metric.
+     * @param   histogram   the LatencyHistogram to be written out.
+     * @param   labels      the names and values of its labels; alternately.
+     */
+    public void summary(String name, LatencyHistogram histogram, String... labels) {
+        String[] quantileLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+        quantileLabels[labels.length] = "quantile";
+
+        for(String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+            quantileLabels[labels.length + 1] = quantile;
+            this.sample(name, histogram.getPercentile(Double.parseDouble(quantile)) / 1e9, quantileLabels);
+        }
+
+        this.sample(name + "_sum", histogram.getSum() / 1e9, labels);
+        this.sample(name + "_count", histogram.getCount(), labels);
+    }
+
+    /**
+     * labels writes out the given labels; escaping their values.
+     */
+    private void labels(String[] labels) {
+        if(labels.length == 0) {
+            return;
+        }
+
+        this.out.append('{');
+        for(int i = 0; i + 1 < labels.length; i += 2) {
+            if(i > 0) {
+                this.out.append(',');
+            }
+
+            this.out.append(labels[i]).append("=\"");
+
+            String value = labels[i + 1];
+            for(int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+
+                if(c == '\\' || c == '"') {
+                    this.out.append('\\').append(c);
+                } else if(c == '\n') {
+                    this.out.append("\\n");
+                } else {
+                    this.out.append(c);
+                }
+            }
+
+            this.out.append('"');
+        }
+        this.out.append('}');
+    }
+
+    @Override
+    public String toString() {
+        return this.out.toString();
+    }
+
+}
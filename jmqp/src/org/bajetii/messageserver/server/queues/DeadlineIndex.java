@@ -0,0 +1,132 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import java.util.Arrays;
+
+
+/**
+ * DeadlineIndex is a binary min-heap of the offsets of the messages of a
+ * TopicMessageQueue; ordered by their deadlines.
+ * <p>
+ * Both the deadlines and the offsets are kept in parallel primitive arrays;
+ * so that neither adding nor expiring a message allocates anything. As the
+ * timeouts of topic messages are clamped to the server's maximum, deadlines
+ * mostly come in ascending order; in which case adding one is O(1), as it
+ * never has to be sifted up. Expiring the earliest one is O(log n); the
+ * entries which have not expired yet are never looked at.
+ * <p>
+ * It is not thread-safe; and must be guarded by the lock of its queue.
+ */
+class DeadlineIndex {
+
+    /**
+     * initialCapacity is the capacity the heap starts out with and never
+     * shrinks below.
+     */
+    private static final int initialCapacity = 64;
+
+    /**
+     * deadlines and offsets are the parallel arrays of the heap.
+     */
+    private long[] deadlines = new long[initialCapacity];
+    private long[] offsets = new long[initialCapacity];
+
+    /**
+     * size is the number of entries in the heap.
+     */
+    private int size = 0;
+
+    /**
+     * isEmpty returns whether there are no entries in the heap.
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * size returns the number of entries in the heap.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * peekDeadline returns the earliest deadline in the heap; or
+     * Long.MAX_VALUE if it is empty.
+     */
+    long peekDeadline() {
+        return (this.size == 0) ? Long.MAX_VALUE : this.deadlines[0];
+    }
+
+    /**
+     * add adds the offset of a message alongside its deadline.
+     */
+    void add(long deadline, long offset) {
+        if(this.size == this.deadlines.length) {
+            this.resize(this.size * 2);
+        }
+
+        int i = this.size++;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(this.deadlines[parent] <= deadline) {
+                break;
+            }
+
+            this.deadlines[i] = this.deadlines[parent];
+            this.offsets[i] = this.offsets[parent];
+            i = parent;
+        }
+
+        this.deadlines[i] = deadline;
+        this.offsets[i] = offset;
+    }
+
+    /**
+     * poll removes the entry with the earliest deadline; returning its offset.
+     * It must not be called on an empty heap.
+     */
+    long poll() {
+        long offset = this.offsets[0];
+
+        int last = --this.size;
+        long deadline = this.deadlines[last];
+        long lastOffset = this.offsets[last];
+
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= last) {
+                break;
+            }
+            if(child + 1 < last && this.deadlines[child + 1] < this.deadlines[child]) {
+                child++;
+            }
+            if(deadline <= this.deadlines[child]) {
+                break;
+            }
+
+            this.deadlines[i] = this.deadlines[child];
+            this.offsets[i] = this.offsets[child];
+            i = child;
+        }
+
+        this.deadlines[i] = deadline;
+        this.offsets[i] = lastOffset;
+
+        if(this.deadlines.length > initialCapacity && this.size < this.deadlines.length / 4) {
+            this.resize(this.deadlines.length / 2);
+        }
+
+        return offset;
+    }
+
+    /**
+     * resize moves the heap into arrays of the given capacity.
+     */
+    private void resize(int capacity) {
+        this.deadlines = Arrays.copyOf(this.deadlines, capacity);
+        this.offsets = Arrays.copyOf(this.offsets, capacity);
+    }
+
+}
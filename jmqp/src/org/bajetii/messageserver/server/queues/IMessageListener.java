@@ -0,0 +1,25 @@
+package org.bajetii.messageserver.server.queues;
+
+
+/**
+ * IMessageListener represents anything parked on a queue which is to be
+ * notified whenever messages get added to it.
+ * <p>
+ * Listeners are poked from the Threads adding the messages; they are thus
+ * expected to never block, and to handle concurrent pokes themselves.
+ */
+public interface IMessageListener {
+
+    /**
+     * poke notifies the listener that messages may have been added to its
+     * queue.
+     */
+    public void poke();
+
+    /**
+     * isDone returns whether the listener is no longer interested in its
+     * queue; upon which it gets dropped by the next poke.
+     */
+    public boolean isDone();
+
+}
@@ -9,6 +9,8 @@ import org.bajetii.messageserver.server.messages.IMessage;
  * <p>
  * A messaging queue is expected to provide a thread-safe way of
  * storing and rerieving messages.
+ * Implementations should prefer explicit Locks over the monitor lock; as
+ * virtual Threads blocking on a monitor pin their carrier Thread.
  */
 public interface IMessageQueue {
 
@@ -17,7 +19,8 @@ public interface IMessageQueue {
      * <p>
      * Calls to addMessage actively modify the structure of the queue, and thus
      * cannot be called asynchronously.
-     * It should be implemented as synchronized to ensure thread-safety.
+     * It should be guarded by a lock, or be otherwise lock-free, to
+     * ensure thread-safety.
      */
     public void addMessage(IMessage message);
 
@@ -25,7 +28,8 @@ public interface IMessageQueue {
      * getMessage returns the first message available in the queue.
      * <p>
      * Calls to getMessage may produce side-effects on the queue's structure.
-     * It should be implemented as synchronized to ensure thread-safety.
+     * It should be guarded by a lock, or be otherwise lock-free, to
+     * ensure thread-safety.
      */
     public IMessage getMessage();
 
@@ -33,7 +37,7 @@ public interface IMessageQueue {
      * getMessages returns all the messages available in the queue.
      * <p>
      * Calls to getMessages may produce side-effects on the queue's structure.
-     * It should be implemented as synchronized to ensure thread-safety.
+     * It should be guarded by a lock to ensure thread-safety.
      *
      * @return  IMessage[]  an Array contaning all the IMessages currently in
      *                      the Queue. Care should be taken to ensure that
@@ -42,10 +46,36 @@ public interface IMessageQueue {
      */
     public IMessage[] getMessages();
 
+    /**
+     * getMessages returns at most the given number of messages from the front
+     * of the queue.
+     * <p>
+     * Calls to getMessages may produce side-effects on the queue's structure.
+     * It should be guarded by a lock, or be otherwise lock-free, to
+     * ensure thread-safety.
+     *
+     * @param   maxMessages the maximum number of IMessages to be returned.
+     * @return  IMessage[]  an Array of at most maxMessages IMessages; in the
+     *                      order they were added to the Queue.
+     */
+    public IMessage[] getMessages(int maxMessages);
+
+    /**
+     * peekMessages returns all the messages available in the queue; without
+     * ever removing any of them.
+     * <p>
+     * It should be guarded by a lock, or be otherwise lock-free, to
+     * ensure thread-safety. It is meant for taking snapshots of the queue;
+     * and should thus hold off writers for as little as possible.
+     *
+     * @return  IMessage[]  an Array of the IMessages in the Queue; in order.
+     */
+    public IMessage[] peekMessages();
+
     /**
      * cleanup performs cleanup operations on the queue's contents.
      * <p>
-     * It should be implemented as synchronized to ensure thread-safety.
+     * It should be guarded by a lock to ensure thread-safety.
      */
     public void cleanup();
 
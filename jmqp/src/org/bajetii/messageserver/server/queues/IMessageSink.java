@@ -0,0 +1,31 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import org.bajetii.messageserver.server.messages.IMessage;
+
+
+/**
+ * IMessageSink represents the receiving end of a MessageSubscription; such as
+ * a client connection messages are streamed out to.
+ * <p>
+ * A sink is only ever handed as many messages as it has room for; so that a
+ * slow sink holds messages back in their queue rather than piling them up
+ * in memory.
+ */
+public interface IMessageSink {
+
+    /**
+     * getCapacity returns the number of messages the sink is able to take
+     * right now; 0 meaning that it is full.
+     */
+    public int getCapacity();
+
+    /**
+     * deliver hands the given messages over to the sink.
+     * <p>
+     * It must never block; as it is called from the Threads adding the
+     * messages to the queue.
+     */
+    public void deliver(IMessage[] messages);
+
+}
@@ -2,6 +2,7 @@ package org.bajetii.messageserver.server.queues;
 
 
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.bajetii.messageserver.server.messages.IMessage;
 import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
@@ -21,6 +22,15 @@ public abstract class MessageQueue implements IMessageQueue {
      */
     protected ArrayList<IMessage> messages;
 
+    /**
+     * lock is the Lock inheriting classes must hold whilst operating on the
+     * messages.
+     * <p>
+     * An explicit ReentrantLock is used rather than the monitor lock so that
+     * virtual Threads waiting on it get unmounted rather than pinning their
+     * carrier Thread.
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
 
     /**
      * A MessageQueue's construction involves the instantiation of its
@@ -34,7 +44,7 @@ public abstract class MessageQueue implements IMessageQueue {
      * addMessage adds the given message to the internal message list.
      * <p>
      * It is meant to be used by inheriting classes alongside the respective
-     * addition logic of each queue in a synchronized manner.
+     * addition logic of each queue whilst holding the lock.
      */
     @Override
     public void addMessage(IMessage message) {
@@ -45,7 +55,7 @@ public abstract class MessageQueue implements IMessageQueue {
      * getMessage returns the first message available in the queue.
      * <p>
      * It is meant to be used by inheriting classes alongside the respective
-     * getting logic of each queue type in a synchronized manner.
+     * getting logic of each queue type whilst holding the lock.
      *
      * @throws  MessageQueueEmptyException if the queue is empty.
      */
@@ -70,6 +80,31 @@ public abstract class MessageQueue implements IMessageQueue {
         return this.messages.toArray(new IMessage[this.messages.size()]);
     }
 
+    /**
+     * peekMessages returns a copy of all the messages currently in the queue.
+     * <p>
+     * It is meant to be used by inheriting classes whilst holding the lock;
+     * only the references to the IMessages are copied.
+     */
+    @Override
+    public IMessage[] peekMessages() {
+        return this.messages.toArray(new IMessage[this.messages.size()]);
+    }
+
+    /**
+     * getMessages returns at most the given number of messages from the front
+     * of the queue; within a new Array.
+     * <p>
+     * It is meant to be used by inheriting classes alongside the respective
+     * getting logic of each queue type whilst holding the lock.
+     */
+    @Override
+    public IMessage[] getMessages(int maxMessages) {
+        int count = Math.min(Math.max(maxMessages, 0), this.messages.size());
+
+        return this.messages.subList(0, count).toArray(new IMessage[count]);
+    }
+
     /**
      * cleanup performs cleanup operations on the queue's messages.
      * <p>
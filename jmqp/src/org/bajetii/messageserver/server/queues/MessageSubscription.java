@@ -0,0 +1,150 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+
+
+/**
+ * MessageSubscription is a long-lived consumer parked on a queue; which has
+ * the messages pushed to its IMessageSink as they arrive.
+ * <p>
+ * Whenever it gets poked, the subscription takes at most as many messages off
+ * the queue as its sink has room for and delivers them; for as long as there
+ * are any and the sink is not full. A sink which drains some of its messages
+ * is to poke the subscription again, so that delivery resumes; messages thus
+ * wait in their queue rather than in memory whilst the sink is behind.
+ * Just like with the MessageWaiter; pokes are serialized, and a poke which
+ * came in whilst another was running is replayed by the latter.
+ */
+public class MessageSubscription implements IMessageListener {
+
+    /**
+     * logger is the Logger of the MessageSubscriptions.
+     */
+    private static final Logger logger = Logger.getLogger(MessageSubscription.class);
+
+    /**
+     * take takes at most the given number of messages off the queue;
+     * returning an empty Array if there are none.
+     */
+    private final IntFunction<IMessage[]> take;
+
+    /**
+     * sink is where the messages taken are delivered to.
+     */
+    private final IMessageSink sink;
+
+    /**
+     * onCancel is run once the subscription is cancelled; so that it may be
+     * unregistered from its queue.
+     */
+    private final Runnable onCancel;
+
+    /**
+     * pokes counts the pokes which have yet to be handled; the Thread which
+     * brings it up from zero being the one handling them.
+     */
+    private final AtomicInteger pokes = new AtomicInteger(0);
+
+    /**
+     * cancelled marks whether the subscription was cancelled.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * deliveredCount counts the messages delivered to the sink.
+     */
+    private volatile long deliveredCount = 0;
+
+    /**
+     * A MessageSubscription is created provided the means to take messages off
+     * its queue, the sink to deliver them to and what to run once cancelled.
+     * <p>
+     * @param   take        IntFunction taking at most the given number of
+     *                      messages off the queue.
+     * @param   sink        IMessageSink the messages are delivered to.
+     * @param   onCancel    Runnable to be run once cancelled.
+     */
+    public MessageSubscription(IntFunction<IMessage[]> take, IMessageSink sink, Runnable onCancel) {
+        this.take = take;
+        this.sink = sink;
+        this.onCancel = onCancel;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.cancelled;
+    }
+
+    /**
+     * getDeliveredCount returns the number of messages delivered so far.
+     */
+    public long getDeliveredCount() {
+        return this.deliveredCount;
+    }
+
+    /**
+     * cancel stops any further deliveries and unregisters the subscription.
+     * Only the first call has any effect.
+     */
+    public void cancel() {
+        if(this.cancelled) {
+            return;
+        }
+
+        this.cancelled = true;
+        this.onCancel.run();
+    }
+
+    /**
+     * poke has the subscription deliver as many messages as its sink can take.
+     */
+    @Override
+    public void poke() {
+        if(this.pokes.getAndIncrement() != 0) {
+            // another Thread is delivering; and will replay this poke.
+            return;
+        }
+
+        int missed = 1;
+        while(true) {
+            this.drain();
+
+            missed = this.pokes.addAndGet(-missed);
+            if(missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * drain delivers messages until there are none left or the sink is full.
+     */
+    private void drain() {
+        while(!this.cancelled) {
+            int capacity = this.sink.getCapacity();
+            if(capacity <= 0) {
+                return;
+            }
+
+            IMessage[] messages = this.take.apply(capacity);
+            if(messages.length == 0) {
+                return;
+            }
+
+            this.deliveredCount += messages.length;
+
+            try {
+                this.sink.deliver(messages);
+            } catch(RuntimeException e) {
+                logger.error("Delivering to a subscription failed; cancelling it.", e);
+                this.cancel();
+            }
+        }
+    }
+
+}
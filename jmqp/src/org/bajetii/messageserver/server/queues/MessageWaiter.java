@@ -0,0 +1,155 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.timers.Timeout;
+
+
+/**
+ * MessageWaiter is a consumer parked on a queue which was empty at the time
+ * it asked for messages.
+ * <p>
+ * A MessageWaiter holds no Thread whilst parked. It gets poked whenever a
+ * message is added to its queue, upon which it attempts to take messages off
+ * the queue; and is completed as soon as it gets some, or once it expires.
+ * Pokes may come from any number of Threads at once; they are serialized so
+ * that only one of them ever runs the take at a time, and a poke which came
+ * in whilst another was running is never lost but replayed by the latter.
+ * A MessageWaiter is completed exactly once.
+ */
+public class MessageWaiter implements IMessageListener {
+
+    /**
+     * logger is the Logger of the MessageWaiters.
+     */
+    private static final Logger logger = Logger.getLogger(MessageWaiter.class);
+
+    /**
+     * noMessages is what waiters which expired are completed with.
+     */
+    private static final IMessage[] noMessages = new IMessage[0];
+
+    /**
+     * take attempts to take messages off the queue; returning an empty Array
+     * if there are none.
+     */
+    private final Supplier<IMessage[]> take;
+
+    /**
+     * complete is called exactly once with the messages taken; or an empty
+     * Array if the waiter expired.
+     */
+    private final Consumer<IMessage[]> complete;
+
+    /**
+     * pokes counts the pokes which have yet to be handled; the Thread which
+     * brings it up from zero being the one handling them.
+     */
+    private final AtomicInteger pokes = new AtomicInteger(0);
+
+    /**
+     * done and expired mark whether the waiter was completed, respectively
+     * whether it ran out of time.
+     */
+    private volatile boolean done = false;
+    private volatile boolean expired = false;
+
+    /**
+     * timeout is the expiry of the waiter scheduled on the TimerWheel.
+     */
+    private volatile Timeout timeout;
+
+    /**
+     * A MessageWaiter is created provided the means to take messages off its
+     * queue and the callback to be completed with.
+     * <p>
+     * @param   take        Supplier taking messages off the queue.
+     * @param   complete    Consumer to be called with the messages taken.
+     */
+    public MessageWaiter(Supplier<IMessage[]> take, Consumer<IMessage[]> complete) {
+        this.take = take;
+        this.complete = complete;
+    }
+
+    /**
+     * setTimeout sets the Timeout expiring the waiter; so that it gets
+     * cancelled once the waiter is completed.
+     */
+    public void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+
+        if(this.done) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * isDone returns whether or not the waiter was already completed.
+     */
+    @Override
+    public boolean isDone() {
+        return this.done;
+    }
+
+    /**
+     * expire has the waiter completed with no messages; unless messages can
+     * still be taken off the queue at the very last moment.
+     */
+    public void expire() {
+        this.expired = true;
+        this.poke();
+    }
+
+    /**
+     * poke has the waiter attempt to take messages off its queue.
+     */
+    @Override
+    public void poke() {
+        if(this.pokes.getAndIncrement() != 0) {
+            // another Thread is running the take; and will replay this poke.
+            return;
+        }
+
+        int missed = 1;
+        while(true) {
+            if(!this.done) {
+                IMessage[] messages = this.take.get();
+
+                if(messages.length > 0) {
+                    this.finish(messages);
+                } else if(this.expired) {
+                    this.finish(noMessages);
+                }
+            }
+
+            missed = this.pokes.addAndGet(-missed);
+            if(missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * finish marks the waiter as done and completes it with the given messages.
+     */
+    private void finish(IMessage[] messages) {
+        this.done = true;
+
+        Timeout timeout = this.timeout;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+
+        try {
+            this.complete.accept(messages);
+        } catch(RuntimeException e) {
+            logger.error("Completing a waiter failed.", e);
+        }
+    }
+
+}
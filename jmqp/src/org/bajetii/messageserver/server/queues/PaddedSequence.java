@@ -0,0 +1,62 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+/**
+ * SequenceLeftPadding holds the cache line worth of padding placed before
+ * the value of a PaddedSequence.
+ */
+abstract class SequenceLeftPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * SequenceValue holds the actual value of a PaddedSequence.
+ */
+abstract class SequenceValue extends SequenceLeftPadding {
+    protected volatile long value;
+}
+
+/**
+ * PaddedSequence is a volatile long counter padded on both sides so that it
+ * sits alone on its cache line.
+ * <p>
+ * It is used for the positions of the RingBufferMessageQueue which are
+ * hammered by producers and consumers respectively, and which would otherwise
+ * keep invalidating each other's cache lines (aka false sharing).
+ */
+class PaddedSequence extends SequenceValue {
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    /**
+     * updater is the field updater used for atomically operating on value.
+     */
+    private static final AtomicLongFieldUpdater<SequenceValue> updater =
+        AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    /**
+     * A PaddedSequence is created provided its initial value.
+     */
+    PaddedSequence(long initialValue) {
+        this.value = initialValue;
+    }
+
+    /**
+     * get returns the current value of the sequence.
+     */
+    long get() {
+        return this.value;
+    }
+
+    /**
+     * compareAndSet atomically sets the sequence to the given value if it
+     * currently holds the expected one.
+     */
+    boolean compareAndSet(long expected, long value) {
+        return updater.compareAndSet(this, expected, value);
+    }
+
+}
@@ -36,50 +36,105 @@ public class PersonalMessageQueue extends MessageQueue {
     /**
      * addMessage adds the given IMessage to the queue.
      * <p>
-     * Execution falls under the monitor lock to ensure thread-safety.
+     * Execution falls under the lock to ensure thread-safety.
      * @throws  MessageQueueFullException   if the queue is at maximum capacity
      */
     @Override
-    public synchronized void addMessage(IMessage message) {
-        if(this.messages.size() == this.maxCapacity) {
-            throw new MessageQueueFullException();
+    public void addMessage(IMessage message) {
+        this.lock.lock();
+        try {
+            if(this.messages.size() == this.maxCapacity) {
+                throw new MessageQueueFullException();
+            }
+
+            super.addMessage(message);
+        } finally {
+            this.lock.unlock();
         }
-
-        super.addMessage(message);
     }
 
     /**
      * getMessage returns the first element in the queue and removes it.
      * <p>
-     * Execution falls under the monitor lock to ensure thread-safety.
+     * Execution falls under the lock to ensure thread-safety.
      * @throws  MessageQueueEmptyException  if the MessageQueue has no messages
      *
      * @return  IMessage    the first IMessage in the MessageQueue.
      */
     @Override
-    public synchronized IMessage getMessage() {
-        IMessage message = super.getMessage();
+    public IMessage getMessage() {
+        this.lock.lock();
+        try {
+            IMessage message = super.getMessage();
 
-        this.messages.remove(0);
+            this.messages.remove(0);
 
-        return message;
+            return message;
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
      * getMessages returns the all the messages currently in the queue.
      * <p>
-     * Execution falls under the monitor lock to ensure thread-safety.
+     * Execution falls under the lock to ensure thread-safety.
      * Considering message getting is destructive in the context of
      * PersonalMessagingQueues; it resets the message queue after the fetch.
      *
      * @return  IMessage[]  the Array of all messages contained in the queue.
      */
-    public synchronized IMessage[] getMessages() {
-        IMessage[] messgs = this.messages.toArray(new IMessage[this.messages.size()]);
+    public IMessage[] getMessages() {
+        this.lock.lock();
+        try {
+            IMessage[] messgs = this.messages.toArray(new IMessage[this.messages.size()]);
+
+            this.messages = new ArrayList<IMessage>();
+
+            return messgs;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * getMessages returns at most the given number of messages from the
+     * front of the queue.
+     * <p>
+     * Execution falls under the lock to ensure thread-safety.
+     * Just like with getMessage; all the returned messages are popped.
+     *
+     * @param   maxMessages the maximum number of IMessages to be returned.
+     * @return  IMessage[]  the Array of the popped messages.
+     */
+    @Override
+    public IMessage[] getMessages(int maxMessages) {
+        this.lock.lock();
+        try {
+            IMessage[] messgs = super.getMessages(maxMessages);
+
+            this.messages.subList(0, messgs.length).clear();
 
-        this.messages = new ArrayList<IMessage>();
+            return messgs;
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
-        return messgs;
+    /**
+     * peekMessages returns all the messages currently in the queue; without
+     * popping them.
+     * <p>
+     * Execution falls under the lock to ensure thread-safety.
+     */
+    @Override
+    public IMessage[] peekMessages() {
+        this.lock.lock();
+        try {
+            return super.peekMessages();
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
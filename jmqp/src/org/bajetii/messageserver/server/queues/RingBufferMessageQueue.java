@@ -0,0 +1,349 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+
+
+/**
+ * RingBufferMessageQueue is a lock-free drop-in alternative to the
+ * PersonalMessageQueue.
+ * <p>
+ * It holds its messages within a bounded multi-producer multi-consumer ring
+ * buffer; each slot of which carries its own sequence number which tells
+ * producers and consumers whether the slot is free for writing or ready for
+ * reading.
+ * Both adding and popping a message are O(1) and only ever involve a single
+ * CAS on the padded enqueue or dequeue position; with no monitor locks taken.
+ * A slot which was claimed but not yet published by another Thread is briefly
+ * spun on, so that the queue is never spuriously reported as full or empty.
+ * Like the PersonalMessageQueue; getting messages is destructive.
+ * <p>
+ * The capacity of the queue is a limit on the number of messages producers
+ * may add; which may be lower than the number of slots in the ring, and may be
+ * changed at any time within it. Lowering it below the number of messages
+ * held simply rejects new ones until enough have been popped.
+ */
+public class RingBufferMessageQueue implements IMessageQueue {
+
+    /**
+     * minSlots is the least number of slots of a ring buffer. With a single
+     * slot, the sequence of a slot just written to would equal the next
+     * enqueue position; and read as free for writing all over again.
+     */
+    private static final int minSlots = 2;
+
+    /**
+     * slots is the number of slots in the ring buffer.
+     */
+    private final int slots;
+
+    /**
+     * maxCapacity represents the maximum capacity of the queue; which is at
+     * most the number of slots.
+     */
+    private volatile int maxCapacity;
+
+    /**
+     * messages holds the IMessages in each of the slots of the ring buffer.
+     */
+    private final AtomicReferenceArray<IMessage> messages;
+
+    /**
+     * sequences holds the sequence number of each slot of the ring buffer.
+     * <p>
+     * A slot whose sequence equals the enqueue position is free for writing;
+     * one whose sequence is one past the dequeue position is ready for reading.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * enqueuePosition and dequeuePosition are the positions the next message
+     * will be added to, respectively popped from.
+     */
+    private final PaddedSequence enqueuePosition = new PaddedSequence(0);
+    private final PaddedSequence dequeuePosition = new PaddedSequence(0);
+
+    /**
+     * A RingBufferMessageQueue is created provided the maximum message
+     * capacity it posses.
+     * <p>
+     * @param   maxCapacity the maximum number of elements the queue can hold.
+     */
+    public RingBufferMessageQueue(int maxCapacity) {
+        this(maxCapacity, maxCapacity);
+    }
+
+    /**
+     * A RingBufferMessageQueue is created provided the maximum message
+     * capacity it posses; and the number of slots of its ring, within which
+     * its capacity may later be raised.
+     * <p>
+     * @param   maxCapacity the maximum number of elements the queue can hold.
+     * @param   slots       the number of slots in the ring buffer; raised to
+     *                      minSlots if fewer.
+     */
+    public RingBufferMessageQueue(int maxCapacity, int slots) {
+        if(maxCapacity <= 0 || slots < maxCapacity) {
+            throw new IllegalArgumentException("Queue capacity must be positive and fit the slots: " + maxCapacity + "/" + slots);
+        }
+
+        this.slots = Math.max(slots, minSlots);
+        this.maxCapacity = maxCapacity;
+        this.messages = new AtomicReferenceArray<IMessage>(this.slots);
+        this.sequences = new AtomicLongArray(this.slots);
+
+        for(int i = 0; i < this.slots; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * addMessage adds the given IMessage to the queue.
+     * <p>
+     * @throws  MessageQueueFullException   if the queue is at maximum capacity
+     */
+    @Override
+    public void addMessage(IMessage message) {
+        if(!this.offer(message, this.maxCapacity)) {
+            throw new MessageQueueFullException();
+        }
+    }
+
+    /**
+     * transferMessage adds the given IMessage to the queue regardless of its
+     * capacity; so long as there is a free slot. It is meant for moving the
+     * messages of another queue over, which were already accepted.
+     * <p>
+     * @return  boolean false if every slot was taken.
+     */
+    public boolean transferMessage(IMessage message) {
+        return this.offer(message, this.slots);
+    }
+
+    /**
+     * getMessage returns the first element in the queue and removes it.
+     * <p>
+     * @throws  MessageQueueEmptyException  if the MessageQueue has no messages
+     *
+     * @return  IMessage    the first IMessage in the MessageQueue.
+     */
+    @Override
+    public IMessage getMessage() {
+        IMessage message = this.poll();
+
+        if(message == null) {
+            throw new MessageQueueEmptyException();
+        }
+
+        return message;
+    }
+
+    /**
+     * getMessages returns the all the messages currently in the queue.
+     * <p>
+     * Considering message getting is destructive; it pops all the messages
+     * it returns. Messages added concurrently may or may not be included.
+     *
+     * @return  IMessage[]  the Array of all messages contained in the queue.
+     */
+    @Override
+    public IMessage[] getMessages() {
+        ArrayList<IMessage> result = new ArrayList<IMessage>();
+
+        IMessage message;
+        while((message = this.poll()) != null) {
+            result.add(message);
+        }
+
+        return result.toArray(new IMessage[result.size()]);
+    }
+
+    /**
+     * getMessages pops at most the given number of messages off the front of
+     * the queue.
+     * <p>
+     * @param   maxMessages the maximum number of IMessages to be returned.
+     * @return  IMessage[]  the Array of the popped messages.
+     */
+    @Override
+    public IMessage[] getMessages(int maxMessages) {
+        ArrayList<IMessage> result = new ArrayList<IMessage>(Math.min(Math.max(maxMessages, 0), this.slots));
+
+        IMessage message;
+        while(result.size() < maxMessages && (message = this.poll()) != null) {
+            result.add(message);
+        }
+
+        return result.toArray(new IMessage[result.size()]);
+    }
+
+    /**
+     * peekMessages returns the messages currently in the queue; without
+     * popping them.
+     * <p>
+     * No position is ever claimed; the published slots between the dequeue
+     * and enqueue positions are simply read, and a message whose slot was
+     * popped whilst being read is left out. Messages added or popped
+     * concurrently may thus or may not be included.
+     *
+     * @return  IMessage[]  the Array of the messages in the queue.
+     */
+    @Override
+    public IMessage[] peekMessages() {
+        long start = this.dequeuePosition.get();
+        long end = this.enqueuePosition.get();
+        ArrayList<IMessage> result = new ArrayList<IMessage>((int) Math.max(0, Math.min(end - start, this.slots)));
+
+        for(long position = start; position < end; position++) {
+            int index = (int) (position % this.slots);
+
+            if(this.sequences.get(index) != position + 1) {
+                continue;
+            }
+
+            IMessage message = this.messages.get(index);
+            if(message != null && this.sequences.get(index) == position + 1) {
+                result.add(message);
+            }
+        }
+
+        return result.toArray(new IMessage[result.size()]);
+    }
+
+    /**
+     * getCapacity returns the maximum number of messages the queue can hold.
+     */
+    public int getCapacity() {
+        return this.maxCapacity;
+    }
+
+    /**
+     * setCapacity changes the maximum number of messages the queue can hold;
+     * which cannot be raised past the number of slots.
+     * <p>
+     * @return  boolean false if the capacity does not fit the slots.
+     */
+    public boolean setCapacity(int maxCapacity) {
+        if(maxCapacity <= 0 || maxCapacity > this.slots) {
+            return false;
+        }
+
+        this.maxCapacity = maxCapacity;
+        return true;
+    }
+
+    /**
+     * getSlots returns the number of slots in the ring buffer.
+     */
+    public int getSlots() {
+        return this.slots;
+    }
+
+    /**
+     * size returns the number of messages currently in the queue; which is
+     * only ever a snapshot when messages are added or popped concurrently.
+     */
+    public int size() {
+        long size = this.enqueuePosition.get() - this.dequeuePosition.get();
+
+        return (int) Math.max(0, Math.min(size, this.slots));
+    }
+
+    /**
+     * cleanup is no-op on RingBufferMessageQueues as popped slots are
+     * released on every getMessage(s).
+     */
+    @Override
+    public void cleanup() {}
+
+    /**
+     * offer attempts to claim the slot at the enqueue position and write the
+     * given message inside it; so long as the queue holds fewer messages
+     * than the given limit.
+     * <p>
+     * The limit is checked against the position about to be claimed; as the
+     * dequeue position only ever moves forward, a successful claim can never
+     * take the queue past it.
+     *
+     * @return  boolean false if the queue was full.
+     */
+    private boolean offer(IMessage message, int limit) {
+        long position = this.enqueuePosition.get();
+        int index;
+
+        while(true) {
+            index = (int) (position % this.slots);
+            long difference = this.sequences.get(index) - position;
+
+            if(difference == 0) {
+                if(limit < this.slots && position - this.dequeuePosition.get() >= limit) {
+                    return false;
+                }
+
+                if(this.enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if(difference < 0) {
+                // the slot has yet to be freed from a full lap ago; which means
+                // the queue is full unless a consumer has claimed it already:
+                if(this.dequeuePosition.get() <= position - this.slots) {
+                    return false;
+                }
+
+                Thread.onSpinWait();
+            }
+
+            position = this.enqueuePosition.get();
+        }
+
+        this.messages.lazySet(index, message);
+        this.sequences.lazySet(index, position + 1);
+
+        return true;
+    }
+
+    /**
+     * poll attempts to claim the slot at the dequeue position and pop the
+     * message inside it.
+     * <p>
+     * @return  IMessage    the popped message; or null if the queue was empty.
+     */
+    private IMessage poll() {
+        long position = this.dequeuePosition.get();
+        int index;
+
+        while(true) {
+            index = (int) (position % this.slots);
+            long difference = this.sequences.get(index) - (position + 1);
+
+            if(difference == 0) {
+                if(this.dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if(difference < 0) {
+                // the slot has yet to be written to; which means the queue is
+                // empty unless a producer has claimed it already:
+                if(this.enqueuePosition.get() <= position) {
+                    return null;
+                }
+
+                Thread.onSpinWait();
+            }
+
+            position = this.dequeuePosition.get();
+        }
+
+        IMessage message = this.messages.get(index);
+        this.messages.lazySet(index, null);
+        this.sequences.lazySet(index, position + this.slots);
+
+        return message;
+    }
+
+}
@@ -1,15 +1,16 @@
 package org.bajetii.messageserver.server.queues;
 
 
-import java.lang.Runnable;
 import java.lang.System;
-import java.lang.Thread;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.bajetii.messageserver.server.messages.IMessage;
 import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
 import org.bajetii.messageserver.server.queues.exceptions.MessageQueueInvalidMessageException;
+import org.bajetii.messageserver.server.timers.TimerWheel;
 
 
 /**
@@ -17,52 +18,145 @@ import org.bajetii.messageserver.server.queues.exceptions.MessageQueueInvalidMes
  * type TopicMessage.
  * <p>
  * The messages are persistent up until their timeout moment has come; upon
- * which they get asynchronously garbage collected in a thread-safe manner.
+ * which they get asynchronously removed by the shared TimerWheel in a
+ * thread-safe manner.
+ * <p>
+ * The queue is kept as an append-only log: every message added gets the next
+ * offset, and a single copy of it serves all of the topic's subscribers. Each
+ * subscriber has a cursor, the offset of the next message it is to read, which
+ * is advanced as it reads; so that every subscriber gets every message once.
+ * Expired messages are tombstoned in place and skipped by the head of the log,
+ * which gets compacted once enough of them have piled up. Reads at a cursor
+ * are thus O(1) amortized; and expiring a message O(log n) in the number of
+ * live messages, through the index of deadlines below, regardless of how
+ * many subscribers the topic has.
+ * <p>
+ * The offsets of the messages are also indexed by their deadlines; so that
+ * expiring them, be it from the TimerWheel or through cleanup, only ever
+ * touches the messages which have actually expired. Rather than one Timeout
+ * per message, each queue keeps a single sweep scheduled on the TimerWheel
+ * for its earliest deadline.
  */
 public class TopicMessageQueue extends MessageQueue {
 
     /**
-     * cleanupPeriod represents the period in Seconds at which
-     * the cleanup() method is called.
+     * compactionThreshold is the number of dead entries before the head past
+     * which the log may be compacted.
+     */
+    private static final int compactionThreshold = 1024;
+
+    /**
+     * maxCursors is the number of cursors each queue keeps at most; past
+     * which the one of the subscriber which read the longest ago is dropped.
+     */
+    public static final int maxCursors = 4096;
+
+    /**
+     * timerWheel is the server-wide TimerWheel on which the expiry of every
+     * message added to the queue gets scheduled.
+     */
+    private TimerWheel timerWheel;
+
+    /**
+     * baseOffset is the offset of the first entry in the messages list; head
+     * being the index of the first live one. Entries before the head, and the
+     * tombstones (nulls) after it, are messages which have expired.
+     */
+    private long baseOffset = 0;
+    private int head = 0;
+
+    /**
+     * live is the number of messages in the log which have not yet expired.
+     */
+    private int live = 0;
+
+    /**
+     * expiredCount is the number of messages expired so far.
      */
-    private int cleanupPeriod;
+    private long expiredCount = 0;
 
     /**
-     * A TopicMessageQueue is created provided the number of seconds
-     * representing the period that cleanup()s should be issued.
+     * cursors maps every subscriber to the offset of the next message it is
+     * to read; in the order they last read in. Subscribers without a cursor
+     * read from the head.
      * <p>
-     * @param   cleanupPeriod   the period in Seconds cleanup() is called.
+     * As subscribers are named by their clients, and never have to leave,
+     * the map is capped at maxCursors; so that a topic cannot be made to
+     * hold on to any number of them. A subscriber whose cursor was dropped
+     * reads from the head again; and may thus get some messages twice.
+     */
+    private LinkedHashMap<String, Long> cursors = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return this.size() > maxCursors;
+        }
+    };
+
+    /**
+     * deadlines indexes the offsets of the live messages by their deadlines.
+     */
+    private DeadlineIndex deadlines = new DeadlineIndex();
+
+    /**
+     * nextSweep is the deadline of the earliest sweep scheduled on the
+     * TimerWheel; or Long.MAX_VALUE if there is none.
+     */
+    private long nextSweep = Long.MAX_VALUE;
+
+    /**
+     * A TopicMessageQueue is created provided the TimerWheel on which the
+     * expiry of its messages should be scheduled.
+     * <p>
+     * @param   timerWheel  the TimerWheel scheduling message expiry.
      **/
-    public TopicMessageQueue(int cleanupPeriod) {
+    public TopicMessageQueue(TimerWheel timerWheel) {
         super();
-        this.cleanupPeriod = cleanupPeriod;
-
-        // now; launch the Thread that will handle the queue cleanup:
-        (new Thread(new CleanupRunnable(this, this.cleanupPeriod))).start();
+        this.timerWheel = timerWheel;
     }
 
     /**
-     * addMessage adds the given IMessage to the queue.
+     * addMessage appends the given IMessage to the log.
      * <p>
-     * Execution falls under the monitor lock to ensure thread-safety.
+     * Execution falls under the lock to ensure thread-safety.
+     * A sweep is scheduled on the TimerWheel should the message be due
+     * earlier than the sweep already scheduled; if any.
      * @throws  MessageQueueInvalidMessageException if the provided IMessage is
      *          not a subclass of TopicMessage.
      */
     @Override
-    public synchronized void addMessage(IMessage message) {
+    public void addMessage(IMessage message) {
         if(!(message instanceof TopicMessage)) {
             throw new MessageQueueInvalidMessageException();
         }
 
-        super.addMessage(message);
+        long deadline = ((TopicMessage) message).getDeadline();
+        boolean schedule = false;
+
+        this.lock.lock();
+        try {
+            this.deadlines.add(deadline, this.baseOffset + this.messages.size());
+
+            super.addMessage(message);
+            this.live++;
+
+            if(deadline < this.nextSweep) {
+                this.nextSweep = deadline;
+                schedule = true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if(schedule) {
+            this.timerWheel.schedule(deadline, () -> this.sweep());
+        }
     }
 
     /**
-     * getMessage returns the first element in the queue.
+     * getMessage returns the oldest live message in the queue; leaving it in
+     * place for everyone else.
      * <p>
-     * This method is identical to that of the base MessagingQueue class; we
-     * must however explicitly implement it so as to place the method under the
-     * monitor lock for objects of this class.
+     * Execution falls under the lock to ensure thread-safety.
      * @throws  MessageQueueEmptyException  if the MessageQueue has no messages
      *
      * @return  IMessage    the first IMessage in the MessageQueue.
@@ -70,106 +164,288 @@ public class TopicMessageQueue extends MessageQueue {
      *          to be of type TopicMessage.
      */
     @Override
-    public synchronized IMessage getMessage() {
-        return super.getMessage();
+    public IMessage getMessage() {
+        this.lock.lock();
+        try {
+            if(this.live == 0) {
+                throw new MessageQueueEmptyException();
+            }
+
+            return this.messages.get(this.head);
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
-     * getMessages returns the all the messages currently in the queue.
-     * <p>
-     * This method is identical to that of the base MessagingQueue class; we
-     * must however explicitly implement it so as to place the method under the
-     * monitor lock for objects of this class.
+     * getMessages returns the all the live messages currently in the queue.
      *
      * @return  IMessage[]  the Array of all messages contained in the queue.
      *          In this particular case; the returned IMessages are guaranteed
      *          to be of type TopicMessage.
      */
-    public synchronized IMessage[] getMessages() {
-        return super.getMessages();
+    @Override
+    public IMessage[] getMessages() {
+        return this.getMessages(Integer.MAX_VALUE);
     }
 
     /**
-     * cleanup goes ahead and cleans up all the expired
-     * messages found in the queue.
+     * getMessages returns at most the given number of the oldest live messages
+     * in the queue; leaving them in place and no cursor being moved.
      * <p>
-     * This method is destructive; and thus it can only be called
-     * under the protection of the monitor lock.
+     * Execution falls under the lock to ensure thread-safety.
      *
-     * @throws  MessageQueueInvalidMessageException in the vague case that any
-     *          of the messages contained in the queue are not of type
-     *          TopicMessage.
+     * @param   maxMessages the maximum number of IMessages to be returned.
+     * @return  IMessage[]  the Array of at most maxMessages TopicMessages.
      */
     @Override
-    public synchronized void cleanup() {
-        ArrayList<IMessage> remainingMessages = new ArrayList<IMessage>();
+    public IMessage[] getMessages(int maxMessages) {
+        this.lock.lock();
+        try {
+            ArrayList<IMessage> result = new ArrayList<IMessage>(Math.min(Math.max(maxMessages, 0), this.live));
+            this.read(this.baseOffset + this.head, maxMessages, result);
 
-        for(IMessage message : this.messages) {
-            if(!(message instanceof TopicMessage)) {
-                throw new MessageQueueInvalidMessageException();
+            return result.toArray(new IMessage[result.size()]);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * getMessages returns at most the given number of messages past the given
+     * subscriber's cursor; advancing the cursor past them.
+     * <p>
+     * Execution falls under the lock to ensure thread-safety.
+     * A subscriber reading for the first time, or whose cursor has fallen
+     * behind the head, starts from the oldest live message; the cursor being
+     * dropped should there be nothing past it.
+     *
+     * @param   subscriber  the name of the subscriber reading.
+     * @param   maxMessages the maximum number of IMessages to be returned.
+     * @return  IMessage[]  the Array of at most maxMessages TopicMessages;
+     *          empty if the subscriber has already read them all.
+     */
+    public IMessage[] getMessages(String subscriber, int maxMessages) {
+        this.lock.lock();
+        try {
+            Long cursor = this.cursors.get(subscriber);
+            long from = this.baseOffset + this.head;
+
+            if(cursor != null && cursor > from) {
+                from = cursor;
             }
 
-            TopicMessage topicMessage = (TopicMessage) message;
-            
-            if(!((new Date(System.currentTimeMillis())).after(topicMessage.getTimeout()))) {
-                remainingMessages.add(message);
+            ArrayList<IMessage> result = new ArrayList<IMessage>(Math.min(Math.max(maxMessages, 0), this.live));
+            long end = this.read(from, maxMessages, result);
+
+            if(end != from) {
+                this.cursors.put(subscriber, end);
+            } else if(cursor != null && cursor <= from) {
+                // the head has caught up with it; so it is of no use anymore:
+                this.cursors.remove(subscriber);
             }
+
+            return result.toArray(new IMessage[result.size()]);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * peekMessages returns all the live messages currently in the queue.
+     * <p>
+     * Execution falls under the lock to ensure thread-safety.
+     */
+    @Override
+    public IMessage[] peekMessages() {
+        return this.getMessages();
+    }
+
+    /**
+     * size returns the number of live messages in the queue.
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.live;
+        } finally {
+            this.lock.unlock();
         }
+    }
 
-        this.messages = remainingMessages;
-    }
-
-    /**
-     * CleanupRunnable is an aggregated class which implements Runnable and can be
-     * launched asynchronously to handle the cleanup of the queue's messages.
-     */
-    private class CleanupRunnable implements Runnable {
-
-        /**
-         * queue is the TopicMessageQueue whose cleanup this CleanupRunnable
-         * will handle.
-         */
-        private TopicMessageQueue queue;
-
-        /**
-         * cleanupPeriod is the period in Seconds between cleanup()s issued
-         * on the queue.
-         */
-        private int cleanupPeriod;
-
-        /**
-         * lastCleanupTime saves the moment the last cleanup had occured.
-         */
-        private Date lastCleanupTime;
-        
-        /**
-         * A CleanupRunnable is created provided the managed TopicMessageQueue
-         * and the cleanup period in Seconds.
-         * <p>
-         *
-         * @param   queue           the monitored TopicMessageQueue.
-         * @param   cleanupPeriod   the period in seconds between cleanups.
-         */
-        public CleanupRunnable(TopicMessageQueue queue, int cleanupPeriod) {
-            this.queue = queue;
-            this.cleanupPeriod = cleanupPeriod;
-            this.lastCleanupTime = new Date(System.currentTimeMillis());
-        }
-
-        /**
-         * run is the main method to be run asynchronously for this
-         * CleanupRunnable.
-         * <p>
-         * All it does is attempt to aquire the monitor lock associated to its
-         * queue; call cleanup() on the queue, notify that the lock has been
-         * released and sleep for the given period.
-         */
-        public void run() {
-            while(!(System.currentTimeMillis() > (this.lastCleanupTime.getTime() + 1000 * this.cleanupPeriod))) {
-                this.queue.cleanup();
-                this.lastCleanupTime = new Date(System.currentTimeMillis());
-                continue;
+    /**
+     * getExpiredCount returns the number of messages expired so far.
+     */
+    public long getExpiredCount() {
+        this.lock.lock();
+        try {
+            return this.expiredCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * getSubscriberCount returns the number of subscribers which currently
+     * have a cursor; including those the head has caught up with, until they
+     * next read.
+     */
+    public int getSubscriberCount() {
+        this.lock.lock();
+        try {
+            return this.cursors.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * seekToEnd moves the given subscriber's cursor past all the messages
+     * currently in the queue; so that it only gets to read those to come.
+     */
+    public void seekToEnd(String subscriber) {
+        this.lock.lock();
+        try {
+            this.cursors.put(subscriber, this.baseOffset + this.messages.size());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * removeSubscriber drops the cursor of the given subscriber.
+     */
+    public void removeSubscriber(String subscriber) {
+        this.lock.lock();
+        try {
+            this.cursors.remove(subscriber);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * read collects at most the given number of live messages, starting at the
+     * given offset, into the given list.
+     * <p>
+     * It must be called under the lock.
+     *
+     * @return  long    the offset right past the last entry looked at.
+     */
+    private long read(long from, int maxMessages, ArrayList<IMessage> result) {
+        int size = this.messages.size();
+        int index = (int) (from - this.baseOffset);
+
+        while(index < size && result.size() < maxMessages) {
+            IMessage message = this.messages.get(index++);
+
+            if(message != null) {
+                result.add(message);
+            }
+        }
+
+        return this.baseOffset + index;
+    }
+
+    /**
+     * sweep expires the messages which have timed out; and schedules the next
+     * sweep for the earliest deadline left.
+     * <p>
+     * It is called from the TimerWheel's Thread. Sweeps which were scheduled
+     * for a later deadline still run, but only ever find little to do.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long deadline;
+
+        this.lock.lock();
+        try {
+            this.expire(now);
+
+            if(this.nextSweep <= now) {
+                // this is the sweep which was due next:
+                this.nextSweep = Long.MAX_VALUE;
             }
+
+            deadline = this.deadlines.peekDeadline();
+            if(deadline >= this.nextSweep) {
+                return;
+            }
+
+            this.nextSweep = deadline;
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.timerWheel.schedule(deadline, () -> this.sweep());
+    }
+
+    /**
+     * expire tombstones all the messages whose deadline is no later than the
+     * given moment; through the index of deadlines.
+     * <p>
+     * It must be called under the lock.
+     *
+     * @param   now the moment in milliseconds to expire the messages at.
+     */
+    private void expire(long now) {
+        int expired = 0;
+
+        while(this.deadlines.peekDeadline() <= now) {
+            int index = (int) (this.deadlines.poll() - this.baseOffset);
+
+            this.messages.set(index, null);
+            this.live--;
+            expired++;
+        }
+
+        if(expired > 0) {
+            this.expiredCount += expired;
+            this.trim();
+        }
+    }
+
+    /**
+     * trim moves the head past any expired messages; compacting the log once
+     * enough of them have piled up before it.
+     * <p>
+     * The cursors are left alone; so that expiring a message costs the same
+     * however many subscribers the topic has. Those which the head has caught
+     * up with are dropped as their subscribers next read.
+     * It must be called under the lock.
+     */
+    private void trim() {
+        int size = this.messages.size();
+
+        while(this.head < size && this.messages.get(this.head) == null) {
+            this.head++;
+        }
+
+        if(this.head == size || (this.head >= compactionThreshold && this.head >= size / 2)) {
+            this.messages.subList(0, this.head).clear();
+            this.baseOffset += this.head;
+            this.head = 0;
+        }
+    }
+
+    /**
+     * cleanup goes ahead and tombstones all the expired messages found in the
+     * queue; should the TimerWheel not have gotten to them yet.
+     * <p>
+     * Only the expired messages are ever touched; a cleanup which finds
+     * nothing to expire is O(1) regardless of the depth of the queue.
+     * This method is destructive; and thus it can only be called
+     * under the protection of the lock.
+     */
+    @Override
+    public void cleanup() {
+        long now = System.currentTimeMillis();
+
+        this.lock.lock();
+        try {
+            this.expire(now);
+        } finally {
+            this.lock.unlock();
         }
     }
 }
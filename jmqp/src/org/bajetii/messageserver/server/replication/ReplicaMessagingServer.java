@@ -0,0 +1,323 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.replication.exceptions.ReadOnlyReplicaException;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * ReplicaMessagingServer is a follower's server; which serves the reads of
+ * topics off its local MessagingServer (kept up to date by its
+ * ReplicationFollower), and refuses everything else with a
+ * ReadOnlyReplicaException naming the leader, for the handlers to redirect
+ * the client to it.
+ * <p>
+ * A follower may be promoted to a leader of its own once its leader is gone;
+ * the follower then stops following, puts the personal messages of its
+ * replica back into their queues, and serves every operation from then on.
+ * Writes the old leader accepted but did not stream yet are lost; which
+ * SEMI_SYNC replication narrows down to those which timed out waiting.
+ */
+public class ReplicaMessagingServer implements IMessagingServer {
+
+    /**
+     * logger is the Logger of the ReplicaMessagingServer.
+     */
+    private static final Logger logger = Logger.getLogger(ReplicaMessagingServer.class);
+
+    /**
+     * local is the follower's own server; with follower following the leader
+     * into it.
+     */
+    private final MessagingServer local;
+    private final ReplicationFollower follower;
+
+    /**
+     * promoting is run upon promotion, right before writes are accepted; e.g.
+     * to have the server replicated to followers of its own.
+     */
+    private final Runnable promoting;
+
+    /**
+     * promoted is whether the follower was promoted to a leader.
+     */
+    private volatile boolean promoted = false;
+
+    /**
+     * A ReplicaMessagingServer is created provided the follower's own
+     * MessagingServer, the ReplicationFollower following the leader into it,
+     * and what is to be run upon promotion.
+     */
+    public ReplicaMessagingServer(MessagingServer local, ReplicationFollower follower, Runnable promoting) {
+        this.local = local;
+        this.follower = follower;
+        this.promoting = promoting;
+    }
+
+    /**
+     * getLocal returns the follower's own MessagingServer.
+     */
+    public MessagingServer getLocal() {
+        return this.local;
+    }
+
+    public ReplicationFollower getFollower() {
+        return this.follower;
+    }
+
+    public boolean isPromoted() {
+        return this.promoted;
+    }
+
+    /**
+     * checkWritable checks that the server accepts operations other than the
+     * reads of topics.
+     * <p>
+     * @throws  ReadOnlyReplicaException if it was not promoted.
+     */
+    public void checkWritable() {
+        if(!this.promoted) {
+            throw new ReadOnlyReplicaException(this.follower.getLeaderAddress());
+        }
+    }
+
+    /**
+     * promote promotes the follower to a leader; unless it already was.
+     * <p>
+     * @return  int     the number of personal messages put back into their
+     *                  queues.
+     */
+    public synchronized int promote() {
+        if(this.promoted) {
+            return 0;
+        }
+
+        this.follower.stop();
+
+        int restored = 0;
+        for(Map.Entry<String, List<IMessage>> messages : this.follower.takePersonalMessages().entrySet()) {
+            int count = messages.getValue().size();
+            String[] people = new String[count];
+            Arrays.fill(people, messages.getKey());
+
+            boolean[] accepted = this.local.addPersonalMessages(people, messages.getValue().toArray(new IMessage[count]));
+            int rejected = 0;
+            for(boolean added : accepted) {
+                if(added) {
+                    restored++;
+                } else {
+                    rejected++;
+                }
+            }
+
+            if(rejected > 0) {
+                logger.warn("Dropped personal messages of the replica; their queue is full.", "person", messages.getKey(),
+                    "dropped", rejected);
+            }
+        }
+
+        this.promoting.run();
+        this.promoted = true;
+
+        logger.info("Promoted to a leader.", "next", this.follower.getNextSequence(), "restored", restored);
+
+        return restored;
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return this.local.getMetrics();
+    }
+
+    @Override
+    public void setMaxQueueSeries(int maxQueueSeries) {
+        this.local.setMaxQueueSeries(maxQueueSeries);
+    }
+
+    @Override
+    public TimerWheel getTimerWheel() {
+        return this.local.getTimerWheel();
+    }
+
+    @Override
+    public QueueCapacities getPersonalCapacities() {
+        return this.local.getPersonalCapacities();
+    }
+
+    @Override
+    public int resizePersonalQueues() {
+        return this.local.resizePersonalQueues();
+    }
+
+    @Override
+    public int resolvePersonal(String person) {
+        this.checkWritable();
+        return this.local.resolvePersonal(person);
+    }
+
+    @Override
+    public int resolveTopic(String topic) {
+        return this.local.resolveTopic(topic);
+    }
+
+    @Override
+    public String getPersonalName(int id) {
+        return this.local.getPersonalName(id);
+    }
+
+    @Override
+    public String getTopicName(int id) {
+        return this.local.getTopicName(id);
+    }
+
+    @Override
+    public void addPersonalMessage(String person, IMessage message) {
+        this.checkWritable();
+        this.local.addPersonalMessage(person, message);
+    }
+
+    @Override
+    public void addPersonalMessage(int id, IMessage message) {
+        this.checkWritable();
+        this.local.addPersonalMessage(id, message);
+    }
+
+    @Override
+    public void addTopicMessage(String topic, IMessage message, int timeout) {
+        this.checkWritable();
+        this.local.addTopicMessage(topic, message, timeout);
+    }
+
+    @Override
+    public void addTopicMessage(int id, IMessage message, int timeout) {
+        this.checkWritable();
+        this.local.addTopicMessage(id, message, timeout);
+    }
+
+    @Override
+    public boolean[] addPersonalMessages(String[] people, IMessage[] messages) {
+        this.checkWritable();
+        return this.local.addPersonalMessages(people, messages);
+    }
+
+    @Override
+    public void addTopicMessages(String[] topics, IMessage[] messages, int[] timeouts) {
+        this.checkWritable();
+        this.local.addTopicMessages(topics, messages, timeouts);
+    }
+
+    @Override
+    public IMessage getRawPersonalMessage(String person) {
+        this.checkWritable();
+        return this.local.getRawPersonalMessage(person);
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(String person, int maxMessages) {
+        this.checkWritable();
+        return this.local.getRawPersonalMessages(person, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(int id, int maxMessages) {
+        this.checkWritable();
+        return this.local.getRawPersonalMessages(id, maxMessages);
+    }
+
+    /**
+     * The reads of topics are served off the follower's own queues; the
+     * cursors of named subscribers thus being the follower's own too.
+     */
+    @Override
+    public IMessage getRawTopicMessage(String topic) {
+        return this.local.getRawTopicMessage(topic);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, int maxMessages) {
+        return this.local.getRawTopicMessages(topic, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, int maxMessages) {
+        return this.local.getRawTopicMessages(id, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, String subscriber, int maxMessages) {
+        return this.local.getRawTopicMessages(topic, subscriber, maxMessages);
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, String subscriber, int maxMessages) {
+        return this.local.getRawTopicMessages(id, subscriber, maxMessages);
+    }
+
+    @Override
+    public void awaitPersonalMessages(String person, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.checkWritable();
+        this.local.awaitPersonalMessages(person, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitPersonalMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.checkWritable();
+        this.local.awaitPersonalMessages(id, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.local.awaitTopicMessages(topic, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.local.awaitTopicMessages(id, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.local.awaitTopicMessages(topic, subscriber, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        this.local.awaitTopicMessages(id, subscriber, maxMessages, waitMillis, complete);
+    }
+
+    @Override
+    public void checkPersonalSubscription(String person) {
+        this.checkWritable();
+        this.local.checkPersonalSubscription(person);
+    }
+
+    @Override
+    public void checkTopicSubscription(String topic) {
+        this.local.checkTopicSubscription(topic);
+    }
+
+    @Override
+    public MessageSubscription subscribePersonal(String person, IMessageSink sink) {
+        this.checkWritable();
+        return this.local.subscribePersonal(person, sink);
+    }
+
+    @Override
+    public MessageSubscription subscribeTopic(String topic, String subscriber, IMessageSink sink) {
+        return this.local.subscribeTopic(topic, subscriber, sink);
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.Message;
+
+
+/**
+ * ReplicatedMessage is an IMessage held by the queues of a replicated
+ * MessagingServer; wrapping the actual message alongside the sequence number
+ * of the record which added it to the ReplicationLog.
+ * <p>
+ * All the value accessors simply delegate to the wrapped message; the
+ * sequence number being what its removal is replicated by, just like a
+ * LogMessage is acknowledged in the WriteAheadLog by its offset.
+ */
+public class ReplicatedMessage extends Message implements IMessage {
+
+    /**
+     * payload is the wrapped IMessage.
+     */
+    private final IMessage payload;
+
+    /**
+     * sequence is the sequence number of the record adding the message.
+     */
+    private final long sequence;
+
+    /**
+     * A ReplicatedMessage is created provided the IMessage it wraps and the
+     * sequence number of its record.
+     */
+    public ReplicatedMessage(IMessage payload, long sequence) {
+        this.payload = payload;
+        this.sequence = sequence;
+    }
+
+    /**
+     * getPayload returns the wrapped IMessage.
+     */
+    public IMessage getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * getSequence returns the sequence number of the record adding the
+     * message to the ReplicationLog.
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public String getStringValue() {
+        return this.payload.getStringValue();
+    }
+
+    @Override
+    public ByteBuffer getByteValue() {
+        return this.payload.getByteValue();
+    }
+
+    @Override
+    public int getByteLength() {
+        return this.payload.getByteLength();
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        this.payload.writeTo(os);
+    }
+
+}
@@ -0,0 +1,592 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+
+
+/**
+ * ReplicationFollower follows the ReplicationLog of a leader; applying the
+ * records streamed by its ReplicationServer to the follower's own server.
+ * <p>
+ * Topic messages are added to the local MessagingServer straight away, by
+ * the very deadline they have on the leader; so that followers serve the
+ * reads of topics, and expire them on their own. Personal messages are not
+ * served by followers at all (popping them would have to happen on the
+ * leader anyway); they are only kept in a replica, by the sequence number of
+ * their record, until the follower is promoted and they are put back into
+ * their queues.
+ * <p>
+ * The follower remembers the log it follows and the next record it is yet to
+ * apply; so that it picks up where it left off upon reconnecting, and only
+ * needs a snapshot if the leader no longer holds that record or is following
+ * another log altogether (e.g. it restarted). Topic messages of a snapshot
+ * which the follower already holds are skipped; messages being told apart by
+ * their deadline and bytes.
+ * <p>
+ * The lag is reported both in records and in seconds; the latter being the
+ * age of the last record applied for as long as records remain to be, as
+ * told by the clocks of the leader and follower.
+ */
+public class ReplicationFollower {
+
+    /**
+     * logger is the Logger of the ReplicationFollower.
+     */
+    private static final Logger logger = Logger.getLogger(ReplicationFollower.class);
+
+    /**
+     * reconnectDelayMillis is the time waited before reconnecting to the
+     * leader.
+     */
+    private static final long reconnectDelayMillis = 1000;
+
+    /**
+     * connectTimeoutMillis is the time connecting to the leader may take; and
+     * readTimeoutMillis the time past which a silent leader is given up on.
+     */
+    private static final int connectTimeoutMillis = 1000;
+    private static final int readTimeoutMillis = (int) (3 * ReplicationProtocol.heartbeatMillis);
+
+    /**
+     * bufferBytes is the size of the buffers of the connection's streams.
+     */
+    private static final int bufferBytes = 64 * 1024;
+
+    /**
+     * host and port are the address of the leader's ReplicationServer; with
+     * name being the name the follower goes by on the leader.
+     */
+    private final String host;
+    private final int port;
+    private final String name;
+
+    /**
+     * local is the follower's own server; which the topic messages are added
+     * to.
+     */
+    private final MessagingServer local;
+
+    /**
+     * logId is the id of the log followed; with next being the sequence
+     * number of the next record to be applied, and head that of the next
+     * record of the leader as last heard of. appendedAt is the time the last
+     * record applied was appended at.
+     */
+    private long logId = 0;
+    private volatile long next = 0;
+    private volatile long head = 0;
+    private volatile long appendedAt = 0;
+
+    /**
+     * personal is the replica of the personal messages; by the sequence
+     * number of their record, in the order they were added. snapshot holds
+     * those of the snapshot being received; and seen the topic messages the
+     * follower already held upon receiving it, by topic.
+     */
+    private LinkedHashMap<Long, PersonalMessage> personal = new LinkedHashMap<Long, PersonalMessage>();
+    private LinkedHashMap<Long, PersonalMessage> snapshot = null;
+    private HashMap<String, HashMap<TopicEntry, Integer>> seen = null;
+    private volatile int replicaSize = 0;
+
+    /**
+     * leaderAddress is the HTTP address of the leader; or null until it was
+     * reached.
+     */
+    private volatile String leaderAddress = null;
+
+    /**
+     * thread is the Thread following the leader; and socket the connection
+     * to it, if any.
+     */
+    private final Thread thread;
+    private volatile Socket socket = null;
+    private volatile boolean connected = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * frame is the buffer the frames are read into.
+     */
+    private byte[] frame = new byte[bufferBytes];
+
+    /**
+     * snapshots counts the snapshots received; with receivedBytes counting
+     * the bytes of the frames.
+     */
+    private final Counter snapshots;
+    private final Counter receivedBytes;
+
+    /**
+     * A ReplicationFollower is created provided the address of the leader's
+     * ReplicationServer, the name the follower goes by, and the follower's
+     * own MessagingServer; which its metrics are registered with.
+     */
+    public ReplicationFollower(String host, int port, String name, MessagingServer local) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.local = local;
+
+        this.thread = new Thread(() -> this.follow(), "jmqp-replication-follower");
+        this.thread.setDaemon(true);
+
+        MetricsRegistry metrics = local.getMetrics();
+        metrics.gauge("jmqp_replication_connected", "Whether the follower is connected to its leader.",
+            () -> this.connected ? 1 : 0);
+        metrics.gauge("jmqp_replication_applied_sequence", "Sequence number of the next record the follower is to apply.",
+            () -> this.next);
+        metrics.gauge("jmqp_replication_lag_records", "Records of the leader the follower is yet to apply.",
+            () -> Math.max(0, this.head - this.next));
+        metrics.gauge("jmqp_replication_lag_seconds", "Age of the last record applied; while records remain to be applied.",
+            () -> this.getLagMillis() / 1e3);
+        metrics.gauge("jmqp_replication_replica_messages", "Personal messages held by the follower's replica.",
+            () -> this.replicaSize);
+        this.snapshots = metrics.counter("jmqp_replication_snapshots_received_total", "Snapshots received from the leader.");
+        this.receivedBytes = metrics.counter("jmqp_replication_received_bytes_total", "Bytes received from the leader.");
+    }
+
+    /**
+     * start starts following the leader.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * stop stops following the leader; and waits for the records being
+     * applied to be done with.
+     */
+    public void stop() {
+        this.stopped = true;
+
+        Socket socket = this.socket;
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch(IOException e) {
+            }
+        }
+
+        this.thread.interrupt();
+        try {
+            this.thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * getLeaderAddress returns the HTTP address of the leader (as
+     * 'http://host:port'); or null until it was reached.
+     */
+    public String getLeaderAddress() {
+        return this.leaderAddress;
+    }
+
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    /**
+     * getNextSequence returns the sequence number of the next record to be
+     * applied; 0 meaning none was ever.
+     */
+    public long getNextSequence() {
+        return this.next;
+    }
+
+    /**
+     * takePersonalMessages hands over the replica of the personal messages;
+     * by person, in the order they were added. It is only to be called once
+     * the follower is stopped.
+     */
+    public Map<String, List<IMessage>> takePersonalMessages() {
+        LinkedHashMap<String, List<IMessage>> messages = new LinkedHashMap<String, List<IMessage>>();
+
+        for(PersonalMessage message : this.personal.values()) {
+            messages.computeIfAbsent(message.person, (person) -> new ArrayList<IMessage>()).add(message.message);
+        }
+
+        this.personal = new LinkedHashMap<Long, PersonalMessage>();
+        this.replicaSize = 0;
+
+        return messages;
+    }
+
+    /**
+     * getLagMillis returns the age of the last record applied; or 0 if there
+     * is no record left to be applied.
+     */
+    private long getLagMillis() {
+        if(this.next >= this.head || this.appendedAt == 0) {
+            return 0;
+        }
+
+        return Math.max(0, System.currentTimeMillis() - this.appendedAt);
+    }
+
+    /**
+     * follow follows the leader, reconnecting to it every reconnectDelayMillis
+     * until stopped.
+     */
+    private void follow() {
+        while(!this.stopped) {
+            try {
+                this.connect();
+            } catch(IOException | RuntimeException e) {
+                if(this.stopped) {
+                    return;
+                }
+
+                if(this.connected) {
+                    logger.warn("Lost the leader.", "leader", this.host + ":" + this.port, "reason", e.toString());
+                } else {
+                    logger.debug("Could not reach the leader.", "leader", this.host + ":" + this.port, "reason", e.toString());
+                }
+            } finally {
+                this.connected = false;
+                this.snapshot = null;
+                this.seen = null;
+            }
+
+            try {
+                Thread.sleep(reconnectDelayMillis);
+            } catch(InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * connect connects to the leader, handshakes with it, and applies the
+     * frames it streams until the connection fails or the follower is
+     * stopped.
+     */
+    private void connect() throws IOException {
+        try(Socket socket = new Socket()) {
+            this.socket = socket;
+            if(this.stopped) {
+                return;
+            }
+
+            socket.connect(new InetSocketAddress(this.host, this.port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeoutMillis);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferBytes));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferBytes));
+
+            out.writeInt(ReplicationProtocol.magic);
+            out.writeInt(ReplicationProtocol.version);
+            out.writeUTF(this.name);
+            out.writeLong(this.logId);
+            out.writeLong(this.next);
+            out.flush();
+
+            if(in.readInt() != ReplicationProtocol.magic || in.readInt() != ReplicationProtocol.version) {
+                throw new IOException("Not a leader speaking version " + ReplicationProtocol.version + ".");
+            }
+
+            long leaderLogId = in.readLong();
+            this.leaderAddress = "http://" + this.host + ":" + in.readInt();
+            this.connected = true;
+
+            logger.info("Following the leader.", "leader", this.leaderAddress, "next", this.next);
+
+            while(!this.stopped) {
+                int length = in.readInt();
+                if(length < 1 || length > ReplicationProtocol.maxFrameBytes) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+
+                if(this.frame.length < length - 1) {
+                    this.frame = new byte[Math.max(length - 1, 2 * this.frame.length)];
+                }
+
+                byte type = in.readByte();
+                in.readFully(this.frame, 0, length - 1);
+                this.receivedBytes.add(4 + length);
+
+                ByteBuffer body = ByteBuffer.wrap(this.frame, 0, length - 1);
+                switch(type) {
+                    case ReplicationProtocol.recordsFrame:
+                        this.applyRecords(body);
+                        break;
+                    case ReplicationProtocol.snapshotFrame:
+                        this.applySnapshot(body);
+                        continue;
+                    case ReplicationProtocol.snapshotEndFrame:
+                        this.endSnapshot(body.getLong(), leaderLogId);
+                        break;
+                    case ReplicationProtocol.heartbeatFrame:
+                        this.head = body.getLong();
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type: " + type);
+                }
+
+                out.writeLong(this.next);
+                out.flush();
+            }
+        } finally {
+            this.socket = null;
+        }
+    }
+
+    /**
+     * applyRecords applies the records of a RECORDS frame.
+     */
+    private void applyRecords(ByteBuffer body) throws IOException {
+        long first = body.getLong();
+        long head = body.getLong();
+        long appendedAt = body.getLong();
+        int count = body.getInt();
+
+        if(first != this.next) {
+            throw new IOException("Records out of sequence: expected " + this.next + " but got " + first + ".");
+        }
+
+        long now = System.currentTimeMillis();
+        String[] topics = new String[count];
+        IMessage[] messages = new IMessage[count];
+        long[] deadlines = new long[count];
+        int topicCount = 0;
+
+        for(int i = 0; i < count; i++) {
+            byte type = body.get();
+
+            if(type == ReplicationProtocol.removalRecord) {
+                // NOTE: messages the follower never got need no removing:
+                this.personal.remove(body.getLong());
+            } else if(type == ReplicationProtocol.personalRecord) {
+                String person = readString(body);
+                this.personal.put(first + i, new PersonalMessage(person, readMessage(body)));
+            } else if(type == ReplicationProtocol.topicRecord) {
+                String topic = readString(body);
+                long deadline = body.getLong();
+                IMessage message = readMessage(body);
+
+                if(deadline > now) {
+                    topics[topicCount] = topic;
+                    messages[topicCount] = message;
+                    deadlines[topicCount] = deadline;
+                    topicCount++;
+                }
+            } else {
+                throw new IOException("Unknown record type: " + type);
+            }
+        }
+
+        this.addTopicMessages(topics, messages, deadlines, topicCount);
+
+        this.next = first + count;
+        this.head = head;
+        this.appendedAt = appendedAt;
+        this.replicaSize = this.personal.size();
+    }
+
+    /**
+     * applySnapshot applies the entries of a SNAPSHOT frame; the personal
+     * messages only replacing the replica once the snapshot is over.
+     */
+    private void applySnapshot(ByteBuffer body) throws IOException {
+        if(this.snapshot == null) {
+            this.snapshot = new LinkedHashMap<Long, PersonalMessage>();
+            this.seen = new HashMap<String, HashMap<TopicEntry, Integer>>();
+        }
+
+        long now = System.currentTimeMillis();
+        int count = body.getInt();
+        String[] topics = new String[count];
+        IMessage[] messages = new IMessage[count];
+        long[] deadlines = new long[count];
+        int topicCount = 0;
+
+        for(int i = 0; i < count; i++) {
+            byte type = body.get();
+
+            if(type == ReplicationProtocol.personalRecord) {
+                long sequence = body.getLong();
+                String person = readString(body);
+                this.snapshot.put(sequence, new PersonalMessage(person, readMessage(body)));
+            } else if(type == ReplicationProtocol.topicRecord) {
+                String topic = readString(body);
+                long deadline = body.getLong();
+                IMessage message = readMessage(body);
+
+                if(deadline > now && !this.isSeen(topic, deadline, message)) {
+                    topics[topicCount] = topic;
+                    messages[topicCount] = message;
+                    deadlines[topicCount] = deadline;
+                    topicCount++;
+                }
+            } else {
+                throw new IOException("Unknown snapshot entry type: " + type);
+            }
+        }
+
+        this.addTopicMessages(topics, messages, deadlines, topicCount);
+    }
+
+    /**
+     * endSnapshot swaps the replica of the snapshot in; the follower then
+     * following the given log from the given sequence number on.
+     */
+    private void endSnapshot(long next, long logId) {
+        this.personal = (this.snapshot == null) ? new LinkedHashMap<Long, PersonalMessage>() : this.snapshot;
+        this.snapshot = null;
+        this.seen = null;
+
+        this.logId = logId;
+        this.next = next;
+        this.head = Math.max(this.head, next);
+        this.replicaSize = this.personal.size();
+        this.snapshots.increment();
+
+        logger.info("Received a snapshot from the leader.", "next", next, "personal", this.replicaSize);
+    }
+
+    /**
+     * isSeen returns whether the follower already held the given topic
+     * message upon receiving the snapshot; each message it held only
+     * accounting for a single one of the snapshot.
+     */
+    private boolean isSeen(String topic, long deadline, IMessage message) {
+        HashMap<TopicEntry, Integer> held = this.seen.get(topic);
+
+        if(held == null) {
+            held = new HashMap<TopicEntry, Integer>();
+            this.seen.put(topic, held);
+
+            IMessageQueue queue = this.local.getTopicQueues().get(topic);
+            if(queue != null) {
+                for(IMessage live : queue.peekMessages()) {
+                    TopicMessage topicMessage = (TopicMessage) live;
+                    held.merge(new TopicEntry(topicMessage.getDeadline(), topicMessage.getByteValue()), 1, Integer::sum);
+                }
+            }
+        }
+
+        TopicEntry entry = new TopicEntry(deadline, message.getByteValue());
+        Integer count = held.get(entry);
+        if(count == null) {
+            return false;
+        }
+
+        if(count == 1) {
+            held.remove(entry);
+        } else {
+            held.put(entry, count - 1);
+        }
+
+        return true;
+    }
+
+    /**
+     * addTopicMessages adds the given number of the given topic messages to
+     * the local server; in one go.
+     */
+    private void addTopicMessages(String[] topics, IMessage[] messages, long[] deadlines, int count) {
+        if(count == 0) {
+            return;
+        }
+
+        if(count < topics.length) {
+            topics = Arrays.copyOf(topics, count);
+            messages = Arrays.copyOf(messages, count);
+            deadlines = Arrays.copyOf(deadlines, count);
+        }
+
+        this.local.addTopicMessages(topics, messages, deadlines);
+    }
+
+    /**
+     * readString reads a length-prefixed UTF-8 String off the given frame.
+     */
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+
+        return value;
+    }
+
+    /**
+     * readMessage reads a length-prefixed message off the given frame; into
+     * an array of its own, as the frame's buffer is reused.
+     */
+    private static IMessage readMessage(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+
+        return new ByteBufferMessage(bytes);
+    }
+
+    /**
+     * PersonalMessage is a personal message of the replica; alongside the
+     * person it is for.
+     */
+    private static final class PersonalMessage {
+
+        private final String person;
+        private final IMessage message;
+
+        PersonalMessage(String person, IMessage message) {
+            this.person = person;
+            this.message = message;
+        }
+
+    }
+
+    /**
+     * TopicEntry identifies a topic message by its deadline and bytes.
+     */
+    private static final class TopicEntry {
+
+        private final long deadline;
+        private final ByteBuffer bytes;
+
+        TopicEntry(long deadline, ByteBuffer bytes) {
+            this.deadline = deadline;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof TopicEntry)) {
+                return false;
+            }
+
+            return this.deadline == ((TopicEntry) other).deadline && this.bytes.equals(((TopicEntry) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(this.deadline) + this.bytes.hashCode();
+        }
+
+    }
+
+}
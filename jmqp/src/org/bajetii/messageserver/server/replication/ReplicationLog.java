@@ -0,0 +1,540 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.LatencyHistogram;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+
+
+/**
+ * ReplicationLog is the in-memory log of the mutations of a leader's queues;
+ * which its ReplicationServer streams to the followers.
+ * <p>
+ * Every message added to a queue gets a record of its own (PERSONAL or
+ * TOPIC); and every personal message leaving its queue for good, be it
+ * popped or dropped, a REMOVAL record naming the sequence number of the
+ * record which added it. Queues hold the messages wrapped into
+ * ReplicatedMessages carrying that sequence number; so that removals need
+ * not know where the message came from. Topic messages are never removed:
+ * followers expire them on their own, by the very same deadline.
+ * <p>
+ * Sequence numbers are taken off an atomic counter; a message being added
+ * to its queue while holding the append Lock of its Destination, right after
+ * taking its sequence number, so that the records of every queue are in the
+ * very order the queue saw its messages in. Writers to different queues never
+ * wait on each other; and as the Lock is a ReentrantLock rather than a
+ * monitor, neither does a virtual Thread waiting for it pin its carrier. A record is only published once its message is in
+ * its queue; and the next sequence number only moves past the records all
+ * before it were published. Every message of a record before the next
+ * sequence number is thus known to be in its queue (or already gone); which
+ * is what makes snapshotting the queues while they keep being written to
+ * consistent with the records streamed afterwards.
+ * <p>
+ * The records are kept in a ring of backlogRecords slots; holding references
+ * to the (immutable) messages rather than copies, so that appending costs
+ * no more than storing a few references. The oldest records are overwritten
+ * regardless of the followers: a follower falling that far behind is sent a
+ * snapshot instead, and the leader never waits on its followers. Except in
+ * SEMI_SYNC mode; where writes wait (for up to a timeout) for at least one
+ * follower to have received them.
+ */
+public class ReplicationLog {
+
+    /**
+     * defaultBacklogRecords is the default number of records kept.
+     */
+    public static final int defaultBacklogRecords = 256 * 1024;
+
+    /**
+     * defaultSemiSyncTimeoutMillis is the default time writes wait for a
+     * follower in SEMI_SYNC mode.
+     */
+    public static final long defaultSemiSyncTimeoutMillis = 1000;
+
+    /**
+     * id identifies the log; so that followers tell it apart from any other
+     * log they followed before (e.g. that of a leader which restarted).
+     */
+    private final long id;
+
+    /**
+     * mode and semiSyncTimeoutMillis decide whether, and for how long, writes
+     * wait for a follower.
+     */
+    private final ReplicationMode mode;
+    private final long semiSyncTimeoutMillis;
+
+    /**
+     * The records; the one of every sequence number being held in the slot
+     * of index (sequence & mask) of the parallel arrays. values holds the
+     * deadlines of TOPIC records, and the sequence numbers REMOVAL ones
+     * remove; and appendedAt the time every record was appended at.
+     */
+    private final int mask;
+    private final byte[] types;
+    private final String[] names;
+    private final IMessage[] messages;
+    private final long[] values;
+    private final long[] appendedAt;
+
+    /**
+     * published holds the sequence number of the record of every slot once
+     * it is written out; and 0 while it is being written. Readers copying a
+     * slot check it afterwards, in case the record was overwritten meanwhile.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * sequence is the sequence number the next record to be appended is to
+     * take; the first being 1.
+     */
+    private final AtomicLong sequence = new AtomicLong(1);
+
+    /**
+     * next is the sequence number of the next record to be published; every
+     * record before it having been published.
+     */
+    private final AtomicLong next = new AtomicLong(1);
+
+    /**
+     * lock guards the readers waiting for records to be published; with
+     * appended being signalled upon publishing, should any of them be
+     * waiting.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = this.lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    /**
+     * followers counts the followers being streamed to; with confirmed being
+     * the furthest next sequence number any of them confirmed receiving, and
+     * confirmLock guarding the semi-synchronous writers waiting for it.
+     */
+    private final AtomicInteger followers = new AtomicInteger(0);
+    private volatile long confirmed = 0;
+    private final ReentrantLock confirmLock = new ReentrantLock();
+    private final Condition confirmedCondition = this.confirmLock.newCondition();
+
+    /**
+     * semiSyncWaits records the time writes waited for a follower; with
+     * semiSyncTimeouts counting those which gave up.
+     */
+    private final LatencyHistogram semiSyncWaits;
+    private final Counter semiSyncTimeouts;
+
+    /**
+     * A ReplicationLog is created provided the number of records it keeps
+     * (rounded up to a power of two), whether and for how long writes wait
+     * for a follower, and the MetricsRegistry its metrics are registered with.
+     */
+    public ReplicationLog(int backlogRecords, ReplicationMode mode, long semiSyncTimeoutMillis, MetricsRegistry metrics) {
+        if(backlogRecords <= 0 || backlogRecords > (1 << 30)) {
+            throw new IllegalArgumentException("The backlog must hold between 1 and 2^30 records: " + backlogRecords);
+        }
+
+        int capacity = Integer.highestOneBit(backlogRecords);
+        if(capacity < backlogRecords) {
+            capacity <<= 1;
+        }
+
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while(id == 0);
+
+        this.id = id;
+        this.mode = mode;
+        this.semiSyncTimeoutMillis = semiSyncTimeoutMillis;
+        this.mask = capacity - 1;
+        this.types = new byte[capacity];
+        this.names = new String[capacity];
+        this.messages = new IMessage[capacity];
+        this.values = new long[capacity];
+        this.appendedAt = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+
+        metrics.gauge("jmqp_replication_records", "Records appended to the replication log.",
+            () -> this.next.get() - 1);
+        metrics.gauge("jmqp_replication_backlog_records", "Records held by the replication log for lagging followers.",
+            () -> Math.min(this.next.get() - 1, this.mask + 1));
+        metrics.gauge("jmqp_replication_followers", "Followers being streamed the replication log.",
+            () -> this.followers.get());
+        this.semiSyncWaits = metrics.histogram("jmqp_replication_semisync_wait_seconds",
+            "Time semi-synchronous writes waited for a follower.");
+        this.semiSyncTimeouts = metrics.counter("jmqp_replication_semisync_timeouts_total",
+            "Semi-synchronous writes which gave up waiting for a follower.");
+    }
+
+    /**
+     * getId returns the id of the log.
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    public ReplicationMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * getNextSequence returns the sequence number of the next record; every
+     * message of the records before it being known to be in its queue, or
+     * gone already.
+     */
+    public long getNextSequence() {
+        return this.next.get();
+    }
+
+    /**
+     * appendPersonal adds the given message to the given personal queue, under
+     * the given append Lock of its Destination; and appends its record if it
+     * was accepted.
+     * <p>
+     * @return  ReplicatedMessage   the message as added to the queue.
+     * @throws  MessageQueueFullException   if the queue is at maximum capacity
+     */
+    public ReplicatedMessage appendPersonal(String person, IMessage message, IMessageQueue queue, Lock order) {
+        long sequence;
+        ReplicatedMessage replicated;
+
+        order.lock();
+        try {
+            sequence = this.reserve(1);
+            replicated = new ReplicatedMessage(message, sequence);
+
+            try {
+                queue.addMessage(replicated);
+            } catch(MessageQueueFullException e) {
+                // NOTE: the sequence number is taken regardless; so its record
+                // is the removal of itself, which removes nothing:
+                this.publish(sequence, ReplicationProtocol.removalRecord, null, null, sequence);
+                throw e;
+            }
+        } finally {
+            order.unlock();
+        }
+
+        this.publish(sequence, ReplicationProtocol.personalRecord, person, message, 0);
+
+        return replicated;
+    }
+
+    /**
+     * appendTopic adds the given message to the given topic queue, as a
+     * TopicMessage of the given deadline, under the given append Lock of its
+     * Destination; and appends its record.
+     */
+    public void appendTopic(String topic, IMessage message, long deadline, IMessageQueue queue, Lock order) {
+        long sequence;
+
+        order.lock();
+        try {
+            sequence = this.reserve(1);
+            queue.addMessage(new TopicMessage(new ReplicatedMessage(message, sequence), deadline));
+        } finally {
+            order.unlock();
+        }
+
+        this.publish(sequence, ReplicationProtocol.topicRecord, topic, message, deadline);
+    }
+
+    /**
+     * appendRemoval appends the removal of the given personal message; if it
+     * is a ReplicatedMessage.
+     */
+    public void appendRemoval(IMessage message) {
+        if(!(message instanceof ReplicatedMessage)) {
+            return;
+        }
+
+        long removed = ((ReplicatedMessage) message).getSequence();
+        this.publish(this.reserve(1), ReplicationProtocol.removalRecord, null, null, removed);
+    }
+
+    /**
+     * appendRemovals appends the removals of all the given personal messages
+     * which are ReplicatedMessages; in one go.
+     */
+    public void appendRemovals(IMessage[] messages) {
+        int count = 0;
+        for(IMessage message : messages) {
+            if(message instanceof ReplicatedMessage) {
+                count++;
+            }
+        }
+
+        if(count == 0) {
+            return;
+        }
+
+        long sequence = this.reserve(count);
+        for(IMessage message : messages) {
+            if(message instanceof ReplicatedMessage) {
+                this.publish(sequence++, ReplicationProtocol.removalRecord, null, null, ((ReplicatedMessage) message).getSequence());
+            }
+        }
+    }
+
+    /**
+     * sync waits for at least one follower to have received all the records
+     * appended so far; if the log is SEMI_SYNC and there are followers at
+     * all. It gives up after semiSyncTimeoutMillis.
+     */
+    public void sync() {
+        if(this.mode != ReplicationMode.SEMI_SYNC || this.followers.get() == 0) {
+            return;
+        }
+
+        long target = this.next.get();
+        if(this.confirmed >= target) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        this.confirmLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(this.semiSyncTimeoutMillis);
+            while(this.confirmed < target) {
+                if(nanos <= 0) {
+                    this.semiSyncTimeouts.increment();
+                    break;
+                }
+
+                nanos = this.confirmedCondition.awaitNanos(nanos);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.confirmLock.unlock();
+        }
+
+        this.semiSyncWaits.record(System.nanoTime() - start);
+    }
+
+    /**
+     * isRetained returns whether the records of the given log from the given
+     * sequence number on may still be read; rather than the follower having
+     * to be sent a snapshot.
+     */
+    boolean isRetained(long logId, long from) {
+        long next = this.next.get();
+
+        return logId == this.id && from >= Math.max(1, next - this.mask - 1) && from <= next;
+    }
+
+    /**
+     * read copies the records from the given sequence number on into the
+     * given Batch; as many as it holds, and possibly none.
+     * <p>
+     * @return  int     the number of records read; or -1 if they were
+     *                  already overwritten.
+     */
+    int read(long from, Batch batch) {
+        long next = this.next.get();
+        if(from < Math.max(1, next - this.mask - 1) || from > next) {
+            return -1;
+        }
+
+        int count = (int) Math.min(next - from, batch.types.length);
+        for(int i = 0; i < count; i++) {
+            int slot = (int) ((from + i) & this.mask);
+
+            batch.types[i] = this.types[slot];
+            batch.names[i] = this.names[slot];
+            batch.messages[i] = this.messages[slot];
+            batch.values[i] = this.values[slot];
+            batch.appendedAt[i] = this.appendedAt[slot];
+        }
+
+        // NOTE: the copies are only good if no writer took over their slots
+        // meanwhile; which it would have marked first:
+        VarHandle.acquireFence();
+        for(int i = 0; i < count; i++) {
+            if(this.published.get((int) ((from + i) & this.mask)) != from + i) {
+                return -1;
+            }
+        }
+
+        batch.first = from;
+        batch.count = count;
+        batch.head = next;
+
+        return count;
+    }
+
+    /**
+     * awaitAppended waits for up to the given number of milliseconds for the
+     * record of the given sequence number to be appended.
+     * <p>
+     * @return  boolean whether it was.
+     */
+    boolean awaitAppended(long sequence, long timeoutMillis) throws InterruptedException {
+        if(this.next.get() > sequence) {
+            return true;
+        }
+
+        this.lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            this.waiting.incrementAndGet();
+            try {
+                while(this.next.get() <= sequence && nanos > 0) {
+                    nanos = this.appended.awaitNanos(nanos);
+                }
+            } finally {
+                this.waiting.decrementAndGet();
+            }
+
+            return this.next.get() > sequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * getAppendedAt returns the time the record of the given sequence number
+     * was appended at; or that of the oldest record kept if it was already
+     * overwritten. It is only an estimate should the slot be overwritten
+     * meanwhile.
+     */
+    long getAppendedAt(long sequence) {
+        long oldest = Math.max(1, this.next.get() - this.mask - 1);
+
+        return this.appendedAt[(int) (Math.max(sequence, oldest) & this.mask)];
+    }
+
+    /**
+     * addFollower and removeFollower count the followers being streamed to.
+     */
+    void addFollower() {
+        this.followers.incrementAndGet();
+    }
+
+    void removeFollower() {
+        this.followers.decrementAndGet();
+    }
+
+    /**
+     * confirm records that a follower received all the records before the
+     * given sequence number; waking up the semi-synchronous writers it was
+     * the last to be waited for.
+     */
+    void confirm(long next) {
+        if(next <= this.confirmed) {
+            return;
+        }
+
+        this.confirmLock.lock();
+        try {
+            if(next > this.confirmed) {
+                this.confirmed = next;
+                this.confirmedCondition.signalAll();
+            }
+        } finally {
+            this.confirmLock.unlock();
+        }
+    }
+
+    /**
+     * reserve takes the given number of consecutive sequence numbers.
+     * <p>
+     * @return  long    the first of the sequence numbers.
+     */
+    private long reserve(int count) {
+        return this.sequence.getAndAdd(count);
+    }
+
+    /**
+     * publish stores the given record in the slot of the given sequence
+     * number; once the record the slot held before was published, as it may
+     * only be overwritten past that. It then moves the next sequence number
+     * past every record published in a row from there on.
+     */
+    private void publish(long sequence, byte type, String name, IMessage message, long value) {
+        int slot = (int) (sequence & this.mask);
+
+        // NOTE: only a writer stalled for a whole ring's worth of records
+        // ever keeps the others waiting here:
+        while(sequence - this.mask - 1 >= this.next.get()) {
+            Thread.yield();
+        }
+
+        this.published.set(slot, 0);
+        VarHandle.storeStoreFence();
+
+        this.types[slot] = type;
+        this.names[slot] = name;
+        this.messages[slot] = message;
+        this.values[slot] = value;
+        this.appendedAt[slot] = System.currentTimeMillis();
+
+        this.published.set(slot, sequence);
+
+        // whichever writer published the record next is waiting for moves it
+        // along; as far as the records published after it allow:
+        long next = this.next.get();
+        while(this.published.get((int) (next & this.mask)) == next) {
+            if(this.next.compareAndSet(next, next + 1)) {
+                next++;
+            } else {
+                next = this.next.get();
+            }
+        }
+
+        if(this.waiting.get() > 0) {
+            this.lock.lock();
+            try {
+                this.appended.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Batch holds records read off the log; the copies of their slots.
+     */
+    static final class Batch {
+
+        final byte[] types;
+        final String[] names;
+        final IMessage[] messages;
+        final long[] values;
+        final long[] appendedAt;
+
+        /**
+         * first is the sequence number of the first record; with count being
+         * the number of records, and head the next sequence number of the log
+         * upon reading them.
+         */
+        long first;
+        int count;
+        long head;
+
+        Batch(int capacity) {
+            this.types = new byte[capacity];
+            this.names = new String[capacity];
+            this.messages = new IMessage[capacity];
+            this.values = new long[capacity];
+            this.appendedAt = new long[capacity];
+        }
+
+    }
+
+}
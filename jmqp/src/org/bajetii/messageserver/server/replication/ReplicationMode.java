@@ -0,0 +1,52 @@
+package org.bajetii.messageserver.server.replication;
+
+
+/**
+ * ReplicationMode is the Enum representing whether the writes to a leader
+ * wait for its followers.
+ */
+public enum ReplicationMode {
+
+    /**
+     * ASYNC never waits for the followers; so that whatever they did not
+     * receive yet is lost along with the leader. SEMI_SYNC has every write
+     * wait for at least one follower to have received it before being
+     * acknowledged; for up to a timeout, past which it is acknowledged
+     * regardless, rather than holding the leader up for a follower which is
+     * lagging or gone.
+     */
+    ASYNC("async"), SEMI_SYNC("semi-sync");
+
+    /**
+     * value is the stored String value of the ReplicationMode.
+     */
+    private final String value;
+
+    /**
+     * A ReplicationMode can be constructed from the String representations of
+     * its allowed values.
+     */
+    private ReplicationMode(String value) {
+        this.value = value;
+    }
+
+    /**
+     * fromString returns the ReplicationMode with the given String value.
+     * <p>
+     * @throws  IllegalArgumentException if there is no such ReplicationMode.
+     */
+    public static ReplicationMode fromString(String value) {
+        for(ReplicationMode mode : ReplicationMode.values()) {
+            if(mode.value.equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown replication mode: " + value);
+    }
+
+    @Override
+    public String toString() {
+        return this.value;
+    }
+}
@@ -0,0 +1,93 @@
+package org.bajetii.messageserver.server.replication;
+
+
+/**
+ * ReplicationProtocol holds the constants of the replication stream; spoken
+ * over raw TCP between a leader's ReplicationServer and the
+ * ReplicationFollowers connected to it.
+ * <p>
+ * ### !!!  Stream Composition:
+ *          All integers are big-endian, and signed 32 bits wide unless noted.
+ *          Upon connecting; the follower sends its handshake, which the
+ *          leader answers with its own:
+ *              follower :: <magic> <version> <name:UTF> <logId:64> <next:64>
+ *              leader   :: <magic> <version> <logId:64> <httpPort>
+ *          where logId identifies the ReplicationLog of the leader, and next
+ *          is the sequence number of the first record the follower is yet to
+ *          apply off that log (0 for none at all). A follower which is not
+ *          following the leader's log, or whose next record is no longer
+ *          retained by it, is sent a snapshot first.
+ *
+ *          The leader then streams frames; without ever waiting for the
+ *          follower:
+ *              frame :: <length> <type:8> <body>
+ *          where the length counts the type and body. The frames are:
+ *              - RECORDS  (0x01) :: <first:64> <head:64> <appendedAt:64> <count> <record>*
+ *                                   the records of sequence numbers first to
+ *                                   first + count - 1; head being the next
+ *                                   sequence number of the log, and
+ *                                   appendedAt the time the last record was
+ *                                   appended at.
+ *              - SNAPSHOT (0x02) :: <count> <entry>*
+ *                                   a part of the state of the leader's
+ *                                   queues.
+ *              - SNAPSHOT_END (0x03) :: <next:64>
+ *                                   the end of a snapshot; after which the
+ *                                   records from next on are streamed.
+ *              - HEARTBEAT (0x04) :: <head:64>
+ *                                   sent every heartbeatMillis that there is
+ *                                   nothing to stream.
+ *          Records and entries are:
+ *              - PERSONAL (0x01) :: <nameLength> <name> <length> <message>
+ *              - TOPIC    (0x02) :: <nameLength> <name> <deadline:64> <length> <message>
+ *              - REMOVAL  (0x03) :: <sequence:64>
+ *          names being UTF-8, and the sequence number of a PERSONAL record
+ *          being that of the message it adds; which REMOVAL records remove
+ *          the message by. PERSONAL entries of snapshots are prefixed with
+ *          the <sequence:64> of their message; and there are no REMOVAL ones.
+ *
+ *          The follower sends back the next sequence number it is yet to
+ *          apply, as a lone <next:64>, every time it applied a RECORDS,
+ *          SNAPSHOT_END or HEARTBEAT frame.
+ * ### !!!
+ */
+public final class ReplicationProtocol {
+
+    /**
+     * magic and version identify the replication stream.
+     */
+    public static final int magic = 0x4a4d5152;
+    public static final int version = 1;
+
+    /**
+     * The types of the frames:
+     */
+    public static final byte recordsFrame = 0x01;
+    public static final byte snapshotFrame = 0x02;
+    public static final byte snapshotEndFrame = 0x03;
+    public static final byte heartbeatFrame = 0x04;
+
+    /**
+     * The types of the records and entries:
+     */
+    public static final byte personalRecord = 0x01;
+    public static final byte topicRecord = 0x02;
+    public static final byte removalRecord = 0x03;
+
+    /**
+     * heartbeatMillis is the interval between two heartbeats of an idle
+     * stream.
+     */
+    public static final long heartbeatMillis = 1000;
+
+    /**
+     * targetFrameBytes is the size past which no more records or entries are
+     * added to a frame; which thus only ever grows past it by a single
+     * message. maxFrameBytes is the size past which followers refuse frames.
+     */
+    public static final int targetFrameBytes = 256 * 1024;
+    public static final int maxFrameBytes = 256 * 1024 * 1024;
+
+    private ReplicationProtocol() {}
+
+}
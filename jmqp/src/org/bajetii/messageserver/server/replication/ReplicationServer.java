@@ -0,0 +1,561 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.metrics.Counter;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+
+
+/**
+ * ReplicationServer streams the ReplicationLog of a leader to the followers
+ * connecting to it; over the replication stream (see ReplicationProtocol).
+ * <p>
+ * Every follower is served by a Thread of its own; which reads the records
+ * off the log in batches and writes them out as they come, never waiting for
+ * the follower to confirm them: those confirmations are read on yet another
+ * Thread, and only ever looked at by the semi-synchronous writers and the
+ * metrics. The leader's writers thus never wait on the followers; a
+ * follower which is too slow merely falls behind, until the records it is
+ * yet to receive are overwritten and it is sent a snapshot instead.
+ * <p>
+ * A snapshot is taken off the live queues; while they keep being written to.
+ * It only holds the messages of the records before the next sequence number
+ * upon starting it, the records from then on being streamed right after it;
+ * so that every message is sent once, and those popped whilst it is taken
+ * are removed by the records following it.
+ */
+public class ReplicationServer {
+
+    /**
+     * logger is the Logger of the ReplicationServer.
+     */
+    private static final Logger logger = Logger.getLogger(ReplicationServer.class);
+
+    /**
+     * batchRecords is the maximum number of records read off the log at once.
+     */
+    private static final int batchRecords = 4096;
+
+    /**
+     * bufferBytes is the size of the buffers of the connections' streams.
+     */
+    private static final int bufferBytes = 64 * 1024;
+
+    /**
+     * port is the port the followers connect to; with httpPort being the one
+     * the leader serves HTTP on, which is handed to the followers for them to
+     * redirect writes to.
+     */
+    private final int port;
+    private final int httpPort;
+
+    /**
+     * server is the leader's MessagingServer; whose queues are snapshotted.
+     */
+    private final MessagingServer server;
+
+    /**
+     * log is the ReplicationLog streamed to the followers.
+     */
+    private final ReplicationLog log;
+
+    /**
+     * serverSocket is the socket accepting the followers on the acceptor
+     * Thread; until stopped.
+     */
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile boolean stopped = false;
+
+    /**
+     * sessions holds the connections to the followers; with followers
+     * holding the state of every follower which ever connected, by name.
+     */
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Follower> followers = new ConcurrentHashMap<String, Follower>();
+
+    /**
+     * A ReplicationServer is created provided the port it listens on, the
+     * leader's MessagingServer and the ReplicationLog it is replicated to, and
+     * the port the leader serves HTTP on.
+     */
+    public ReplicationServer(int port, MessagingServer server, ReplicationLog log, int httpPort) {
+        this.port = port;
+        this.server = server;
+        this.log = log;
+        this.httpPort = httpPort;
+    }
+
+    /**
+     * start binds the port and starts accepting followers.
+     */
+    public void start() throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(this.port));
+
+        this.acceptor = new Thread(() -> this.accept(), "jmqp-replication-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * stop stops accepting followers; and closes the connections to them.
+     */
+    public void stop() {
+        this.stopped = true;
+
+        try {
+            this.serverSocket.close();
+        } catch(IOException e) {
+        }
+
+        for(Session session : this.sessions) {
+            session.close(null);
+        }
+    }
+
+    /**
+     * getSessionCount returns the number of followers currently connected.
+     */
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+
+    /**
+     * accept accepts followers, until stopped; serving each on Threads of its
+     * own.
+     */
+    private void accept() {
+        while(!this.stopped) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch(IOException e) {
+                if(!this.stopped) {
+                    logger.error("Accepting followers failed.", e);
+                }
+                return;
+            }
+
+            Session session = new Session(socket);
+            this.sessions.add(session);
+            session.sender.start();
+        }
+    }
+
+    /**
+     * Follower holds the state of a follower; across its connections.
+     */
+    private final class Follower {
+
+        /**
+         * connections counts the follower's live connections; confirmed being
+         * the last next sequence number it confirmed.
+         */
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private volatile long confirmed = 0;
+
+        /**
+         * sentBytes counts the bytes streamed to the follower; with snapshots
+         * counting the snapshots it was sent.
+         */
+        private final Counter sentBytes;
+        private final Counter snapshots;
+
+        Follower(String name) {
+            MetricsRegistry metrics = ReplicationServer.this.server.getMetrics();
+            ReplicationLog log = ReplicationServer.this.log;
+
+            metrics.gauge("jmqp_replication_follower_connected", "Whether each follower is connected.",
+                () -> (this.connections.get() > 0) ? 1 : 0, "follower", name);
+            metrics.gauge("jmqp_replication_follower_lag_records", "Records each follower is yet to confirm.",
+                () -> Math.max(0, log.getNextSequence() - Math.max(this.confirmed, 1)), "follower", name);
+            metrics.gauge("jmqp_replication_follower_lag_seconds", "Age of the oldest record each follower is yet to confirm.",
+                () -> this.getLagMillis() / 1e3, "follower", name);
+            this.sentBytes = metrics.counter("jmqp_replication_sent_bytes_total", "Bytes streamed to each follower.",
+                "follower", name);
+            this.snapshots = metrics.counter("jmqp_replication_snapshots_total", "Snapshots sent to each follower.",
+                "follower", name);
+        }
+
+        /**
+         * getLagMillis returns the age of the oldest record the follower is
+         * yet to confirm; or 0 if there is none.
+         */
+        private long getLagMillis() {
+            long confirmed = Math.max(this.confirmed, 1);
+            if(confirmed >= ReplicationServer.this.log.getNextSequence()) {
+                return 0;
+            }
+
+            return Math.max(0, System.currentTimeMillis() - ReplicationServer.this.log.getAppendedAt(confirmed));
+        }
+
+    }
+
+    /**
+     * Session is a single connection to a follower; streamed to by its sender
+     * Thread, and read the confirmations of by its receiver Thread.
+     */
+    private final class Session {
+
+        private final Socket socket;
+        private final Thread sender;
+        private Thread receiver;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        /**
+         * name and follower are the name and state of the follower; once it
+         * has sent its handshake.
+         */
+        private volatile String name = null;
+        private volatile Follower follower = null;
+
+        /**
+         * streaming is whether the session counts as a follower of the log;
+         * closed whether the session is over. Both are guarded by the
+         * session's monitor.
+         */
+        private boolean streaming = false;
+        private boolean closed = false;
+
+        /**
+         * nameBytes holds the encoded names of the records of a batch.
+         */
+        private final byte[][] nameBytes = new byte[batchRecords][];
+
+        /**
+         * snapshot holds the entries of the snapshot frame being written.
+         */
+        private final ByteArrayOutputStream snapshot = new ByteArrayOutputStream(ReplicationProtocol.targetFrameBytes);
+        private final DataOutputStream entries = new DataOutputStream(this.snapshot);
+        private int entryCount = 0;
+
+        Session(Socket socket) {
+            this.socket = socket;
+            this.sender = new Thread(() -> this.send(), "jmqp-replication-session");
+            this.sender.setDaemon(true);
+        }
+
+        /**
+         * send handshakes with the follower; and streams it the log (after a
+         * snapshot, if need be) until the session is over.
+         */
+        private void send() {
+            try {
+                this.socket.setTcpNoDelay(true);
+                this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), bufferBytes));
+                this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), bufferBytes));
+
+                if(this.in.readInt() != ReplicationProtocol.magic || this.in.readInt() != ReplicationProtocol.version) {
+                    throw new IOException("Not a follower speaking version " + ReplicationProtocol.version + ".");
+                }
+
+                this.name = this.in.readUTF();
+                long logId = this.in.readLong();
+                long from = this.in.readLong();
+
+                this.follower = ReplicationServer.this.followers.computeIfAbsent(this.name, (name) -> new Follower(name));
+                this.follower.connections.incrementAndGet();
+                Thread.currentThread().setName("jmqp-replication-" + this.name);
+
+                this.out.writeInt(ReplicationProtocol.magic);
+                this.out.writeInt(ReplicationProtocol.version);
+                this.out.writeLong(ReplicationServer.this.log.getId());
+                this.out.writeInt(ReplicationServer.this.httpPort);
+                this.out.flush();
+
+                logger.info("A follower connected.", "follower", this.name, "address", this.socket.getRemoteSocketAddress());
+
+                this.receiver = new Thread(() -> this.receive(), "jmqp-replication-" + this.name + "-confirms");
+                this.receiver.setDaemon(true);
+                this.receiver.start();
+
+                this.stream(ReplicationServer.this.log.isRetained(logId, from) ? from : this.sendSnapshot());
+            } catch(IOException | InterruptedException | RuntimeException e) {
+                this.close(e);
+            }
+        }
+
+        /**
+         * stream streams the records from the given sequence number on; until
+         * the session is over.
+         */
+        private void stream(long position) throws IOException, InterruptedException {
+            ReplicationLog log = ReplicationServer.this.log;
+            ReplicationLog.Batch batch = new ReplicationLog.Batch(batchRecords);
+
+            synchronized(this) {
+                if(this.closed) {
+                    return;
+                }
+
+                this.streaming = true;
+                log.addFollower();
+            }
+
+            while(true) {
+                int count = log.read(position, batch);
+
+                if(count < 0) {
+                    logger.warn("A follower fell behind the replication log; sending it a snapshot.", "follower", this.name);
+                    position = this.sendSnapshot();
+                    continue;
+                }
+
+                if(count == 0) {
+                    this.out.flush();
+
+                    if(!log.awaitAppended(position, ReplicationProtocol.heartbeatMillis)) {
+                        this.out.writeInt(1 + 8);
+                        this.out.writeByte(ReplicationProtocol.heartbeatFrame);
+                        this.out.writeLong(log.getNextSequence());
+                        this.out.flush();
+                        this.follower.sentBytes.add(4 + 1 + 8);
+                    }
+                    continue;
+                }
+
+                position += this.writeRecords(batch);
+                Arrays.fill(batch.messages, 0, count, null);
+            }
+        }
+
+        /**
+         * writeRecords writes out a RECORDS frame holding the given records;
+         * or as many of them as fit the target size of frames.
+         * <p>
+         * @return  int     the number of records written.
+         */
+        private int writeRecords(ReplicationLog.Batch batch) throws IOException {
+            long length = 1 + 8 + 8 + 8 + 4;
+            int count = 0;
+
+            while(count < batch.count && length < ReplicationProtocol.targetFrameBytes) {
+                if(batch.types[count] == ReplicationProtocol.removalRecord) {
+                    length += 1 + 8;
+                } else {
+                    this.nameBytes[count] = batch.names[count].getBytes(StandardCharsets.UTF_8);
+                    length += 1 + 4 + this.nameBytes[count].length + 4 + batch.messages[count].getByteLength();
+
+                    if(batch.types[count] == ReplicationProtocol.topicRecord) {
+                        length += 8;
+                    }
+                }
+
+                count++;
+            }
+
+            this.out.writeInt((int) length);
+            this.out.writeByte(ReplicationProtocol.recordsFrame);
+            this.out.writeLong(batch.first);
+            this.out.writeLong(batch.head);
+            this.out.writeLong(batch.appendedAt[count - 1]);
+            this.out.writeInt(count);
+
+            for(int i = 0; i < count; i++) {
+                byte type = batch.types[i];
+                this.out.writeByte(type);
+
+                if(type == ReplicationProtocol.removalRecord) {
+                    this.out.writeLong(batch.values[i]);
+                    continue;
+                }
+
+                this.out.writeInt(this.nameBytes[i].length);
+                this.out.write(this.nameBytes[i]);
+                if(type == ReplicationProtocol.topicRecord) {
+                    this.out.writeLong(batch.values[i]);
+                }
+                this.out.writeInt(batch.messages[i].getByteLength());
+                batch.messages[i].writeTo(this.out);
+
+                this.nameBytes[i] = null;
+            }
+
+            this.follower.sentBytes.add(4 + length);
+
+            return count;
+        }
+
+        /**
+         * sendSnapshot writes out a snapshot of the queues; and returns the
+         * sequence number of the first record to be streamed after it.
+         */
+        private long sendSnapshot() throws IOException {
+            long start = ReplicationServer.this.log.getNextSequence();
+            long now = System.currentTimeMillis();
+            long messages = 0;
+
+            for(Map.Entry<String, IMessageQueue> queue : ReplicationServer.this.server.getPersonalQueues().entrySet()) {
+                byte[] name = null;
+
+                for(IMessage message : queue.getValue().peekMessages()) {
+                    // NOTE: messages of later records are streamed anyway:
+                    if(!(message instanceof ReplicatedMessage) || ((ReplicatedMessage) message).getSequence() >= start) {
+                        continue;
+                    }
+
+                    if(name == null) {
+                        name = queue.getKey().getBytes(StandardCharsets.UTF_8);
+                    }
+
+                    this.entries.writeByte(ReplicationProtocol.personalRecord);
+                    this.entries.writeLong(((ReplicatedMessage) message).getSequence());
+                    this.entries.writeInt(name.length);
+                    this.entries.write(name);
+                    this.entries.writeInt(message.getByteLength());
+                    message.writeTo(this.entries);
+
+                    this.addEntry();
+                    messages++;
+                }
+            }
+
+            for(Map.Entry<String, IMessageQueue> queue : ReplicationServer.this.server.getTopicQueues().entrySet()) {
+                byte[] name = null;
+
+                for(IMessage message : queue.getValue().peekMessages()) {
+                    TopicMessage topicMessage = (TopicMessage) message;
+                    IMessage payload = topicMessage.getPayload();
+
+                    if(topicMessage.getDeadline() <= now
+                            || (payload instanceof ReplicatedMessage && ((ReplicatedMessage) payload).getSequence() >= start)) {
+                        continue;
+                    }
+
+                    if(name == null) {
+                        name = queue.getKey().getBytes(StandardCharsets.UTF_8);
+                    }
+
+                    this.entries.writeByte(ReplicationProtocol.topicRecord);
+                    this.entries.writeInt(name.length);
+                    this.entries.write(name);
+                    this.entries.writeLong(topicMessage.getDeadline());
+                    this.entries.writeInt(payload.getByteLength());
+                    payload.writeTo(this.entries);
+
+                    this.addEntry();
+                    messages++;
+                }
+            }
+
+            this.writeSnapshotFrame();
+
+            this.out.writeInt(1 + 8);
+            this.out.writeByte(ReplicationProtocol.snapshotEndFrame);
+            this.out.writeLong(start);
+            this.out.flush();
+
+            this.follower.sentBytes.add(4 + 1 + 8);
+            this.follower.snapshots.increment();
+            logger.info("Sent a snapshot to a follower.", "follower", this.name, "messages", messages);
+
+            return start;
+        }
+
+        /**
+         * addEntry counts an entry added to the snapshot frame; writing the
+         * frame out once it is large enough.
+         */
+        private void addEntry() throws IOException {
+            this.entryCount++;
+
+            if(this.snapshot.size() >= ReplicationProtocol.targetFrameBytes) {
+                this.writeSnapshotFrame();
+            }
+        }
+
+        /**
+         * writeSnapshotFrame writes out the entries added so far as a SNAPSHOT
+         * frame; if there are any.
+         */
+        private void writeSnapshotFrame() throws IOException {
+            if(this.entryCount == 0) {
+                return;
+            }
+
+            this.out.writeInt(1 + 4 + this.snapshot.size());
+            this.out.writeByte(ReplicationProtocol.snapshotFrame);
+            this.out.writeInt(this.entryCount);
+            this.snapshot.writeTo(this.out);
+
+            this.follower.sentBytes.add(4 + 1 + 4 + this.snapshot.size());
+            this.snapshot.reset();
+            this.entryCount = 0;
+        }
+
+        /**
+         * receive reads the confirmations of the follower; until the session
+         * is over.
+         */
+        private void receive() {
+            try {
+                while(true) {
+                    long next = this.in.readLong();
+
+                    this.follower.confirmed = next;
+                    ReplicationServer.this.log.confirm(next);
+                }
+            } catch(IOException | RuntimeException e) {
+                this.close(e);
+            }
+        }
+
+        /**
+         * close ends the session, if it was not already; the given cause
+         * being logged unless the server is being stopped.
+         */
+        private void close(Exception cause) {
+            synchronized(this) {
+                if(this.closed) {
+                    return;
+                }
+
+                this.closed = true;
+                if(this.streaming) {
+                    ReplicationServer.this.log.removeFollower();
+                }
+            }
+
+            try {
+                this.socket.close();
+            } catch(IOException e) {
+            }
+
+            ReplicationServer.this.sessions.remove(this);
+            if(this.follower != null) {
+                this.follower.connections.decrementAndGet();
+            }
+
+            if(cause != null && !ReplicationServer.this.stopped) {
+                logger.warn("Lost a follower.", "follower", (this.name == null) ? this.socket.getRemoteSocketAddress() : this.name,
+                    "reason", cause.toString());
+            }
+        }
+
+    }
+
+}
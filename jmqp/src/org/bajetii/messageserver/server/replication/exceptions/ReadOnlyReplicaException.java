@@ -0,0 +1,30 @@
+package org.bajetii.messageserver.server.replication.exceptions;
+
+
+/**
+ * ReadOnlyReplicaException is thrown whenever an operation which would modify
+ * the queues is asked of a follower; which only ever serves the reads of
+ * topics. The client is then to be redirected to the leader, if known.
+ * <p>
+ * It extends RuntimeException to avoid Java's amazing checked exceptions.
+ */
+public class ReadOnlyReplicaException extends RuntimeException {
+
+    /**
+     * leader is the HTTP address of the leader; or null if it is not known
+     * yet.
+     */
+    private final String leader;
+
+    public ReadOnlyReplicaException(String leader) {
+        super((leader == null)
+            ? "The server is a read-only replica; and has not reached its leader yet."
+            : "The server is a read-only replica of '" + leader + "'.");
+        this.leader = leader;
+    }
+
+    public String getLeader() {
+        return this.leader;
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.bajetii.messageserver.server.shards;
+
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+
+/**
+ * Mailbox is the unbounded, lock-free, multiple producers single consumer
+ * queue of ShardTasks through which work is handed over to a Shard.
+ * <p>
+ * The tasks form a singly linked list. A producer appends one by swapping it
+ * in as the tail (a single atomic exchange; which never fails nor retries)
+ * and only then linking the previous tail to it. The consumer, being the only
+ * one, follows the links from the head without any atomic operation at all.
+ * The head is always the last task taken (initially a stub); so that the
+ * list is never empty, and producers and the consumer never touch the same
+ * end of it.
+ * <p>
+ * A task whose producer swapped it in but has yet to link it is not visible
+ * to the consumer until it is; the Mailbox thus looks empty for that short
+ * while. The Shard only ever parks after checking the Mailbox is empty; and
+ * the producer checks whether it is parked after linking.
+ */
+final class Mailbox {
+
+    /**
+     * tailUpdater is the field updater used for swapping the tail.
+     */
+    private static final AtomicReferenceFieldUpdater<Mailbox, ShardTask> tailUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(Mailbox.class, ShardTask.class, "tail");
+
+    /**
+     * head is the last task taken; which only the consumer ever touches.
+     */
+    private ShardTask head;
+
+    /**
+     * tail is the last task handed over.
+     */
+    private volatile ShardTask tail;
+
+    /**
+     * A Mailbox is created empty.
+     */
+    Mailbox() {
+        ShardTask stub = new ShardTask() {
+
+            @Override
+            public void run() {
+            }
+
+        };
+
+        this.head = stub;
+        this.tail = stub;
+    }
+
+    /**
+     * offer hands the given task over to the consumer; from any Thread.
+     */
+    void offer(ShardTask task) {
+        ShardTask previous = tailUpdater.getAndSet(this, task);
+        previous.next = task;
+    }
+
+    /**
+     * poll takes the next task; or returns null if there is none. It is only
+     * ever called by the consumer.
+     */
+    ShardTask poll() {
+        ShardTask next = this.head.next;
+
+        if(next == null) {
+            return null;
+        }
+
+        // NOTE: unlinking the previous head, so that it may be collected even
+        // if it was promoted to the old generation:
+        this.head.next = null;
+        this.head = next;
+
+        return next;
+    }
+
+    /**
+     * isEmpty returns whether there is no task to be taken; as far as the
+     * consumer, which is the only one calling it, can tell.
+     */
+    boolean isEmpty() {
+        return this.head.next == null;
+    }
+
+}
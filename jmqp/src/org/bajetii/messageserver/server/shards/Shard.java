@@ -0,0 +1,233 @@
+package org.bajetii.messageserver.server.shards;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.metrics.Counter;
+
+
+/**
+ * Shard is a MessagingServer owning a share of the queues; and the single
+ * event loop Thread all the operations on those queues are carried out on.
+ * <p>
+ * Work is handed over to the loop through the Shard's Mailbox; either to be
+ * waited for (submit and call), or not (execute). As every operation on the
+ * Shard's queues thus comes from the one Thread, the queues' own atomic
+ * operations never contend, and their cache lines stay on the loop's core.
+ * <p>
+ * The loop takes the tasks in the order they were handed over; and parks
+ * once there are none left, to be unparked by the next task handed over.
+ * Work which is not waited for is only handed over as such for as long as
+ * the Mailbox holds fewer than maxPendingTasks; past which it is waited for
+ * all the same, so that producers cannot outrun the loop indefinitely.
+ */
+public class Shard implements Executor {
+
+    /**
+     * logger is the Logger of the Shard.
+     */
+    private static final Logger logger = Logger.getLogger(Shard.class);
+
+    /**
+     * maxParkNanos is the longest the loop parks for; as a safety net for a
+     * wakeup which raced its parking.
+     */
+    private static final long maxParkNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * maxPendingTasks is the number of tasks the Mailbox may hold before work
+     * which is not waited for is waited for anyway.
+     */
+    private static final long maxPendingTasks = 4096;
+
+    /**
+     * index is the index of the Shard among those of its server.
+     */
+    private final int index;
+
+    /**
+     * server is the MessagingServer holding the Shard's queues.
+     */
+    private final MessagingServer server;
+
+    /**
+     * mailbox holds the tasks handed over to the loop.
+     */
+    private final Mailbox mailbox = new Mailbox();
+
+    /**
+     * handedOver counts the tasks handed over; with taken counting those the
+     * loop took, which only the loop ever writes.
+     */
+    private final Counter handedOver;
+    private volatile long taken = 0;
+
+    /**
+     * loop is the event loop Thread; with sleeping marking whether it is
+     * parked (or about to be), and stopped whether the Shard was stopped.
+     */
+    private final Thread loop;
+    private volatile boolean sleeping = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * A Shard is created provided its index and the MessagingServer holding
+     * its queues; its loop being started straight away.
+     * <p>
+     * Its metrics are registered with those of the MessagingServer.
+     */
+    public Shard(int index, MessagingServer server) {
+        this.index = index;
+        this.server = server;
+
+        String shard = Integer.toString(index);
+        this.handedOver = server.getMetrics().counter("jmqp_shard_tasks_total",
+            "Operations handed over to the event loop of each shard.", "shard", shard);
+        server.getMetrics().gauge("jmqp_shard_mailbox_depth", "Operations waiting in the mailbox of each shard.",
+            () -> this.getPendingCount(), "shard", shard);
+
+        this.loop = new Thread(() -> this.run(), "jmqp-shard-" + index);
+        this.loop.setDaemon(true);
+        this.loop.start();
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public MessagingServer getServer() {
+        return this.server;
+    }
+
+    /**
+     * execute hands the given work over to the loop; without waiting for it
+     * unless the loop is too far behind. Whatever it throws is logged.
+     */
+    @Override
+    public void execute(Runnable work) {
+        if(this.getPendingCount() >= maxPendingTasks) {
+            this.call(work);
+            return;
+        }
+
+        this.handOver(new ShardTask() {
+
+            @Override
+            public void run() {
+                work.run();
+            }
+
+        });
+    }
+
+    /**
+     * submit hands the given work over to the loop; returning the ShardCall
+     * its result may be waited for through.
+     * <p>
+     * Calls submitted to several Shards before waiting for any of them are
+     * carried out in parallel.
+     */
+    public <T> ShardCall<T> submit(Supplier<T> work) {
+        ShardCall<T> call = new ShardCall<T>(work);
+
+        if(Thread.currentThread() == this.loop) {
+            call.run();
+        } else {
+            this.handOver(call);
+        }
+
+        return call;
+    }
+
+    /**
+     * call carries out the given work on the loop; waiting for its result.
+     * Whatever it throws is thrown again.
+     */
+    public <T> T call(Supplier<T> work) {
+        if(Thread.currentThread() == this.loop) {
+            return work.get();
+        }
+
+        return this.submit(work).join();
+    }
+
+    /**
+     * call carries out the given work on the loop; waiting for it to be done.
+     * Whatever it throws is thrown again.
+     */
+    public void call(Runnable work) {
+        if(Thread.currentThread() == this.loop) {
+            work.run();
+            return;
+        }
+
+        this.submit(() -> {
+            work.run();
+            return null;
+        }).join();
+    }
+
+    /**
+     * getPendingCount returns the number of tasks handed over which the loop
+     * has yet to take.
+     */
+    public long getPendingCount() {
+        return this.handedOver.get() - this.taken;
+    }
+
+    /**
+     * stop stops the loop once it has carried out the tasks already handed
+     * over.
+     */
+    public void stop() {
+        this.stopped = true;
+        LockSupport.unpark(this.loop);
+    }
+
+    /**
+     * handOver appends the given task to the mailbox; and wakes the loop up
+     * if it is parked.
+     */
+    private void handOver(ShardTask task) {
+        this.handedOver.increment();
+        this.mailbox.offer(task);
+
+        if(this.sleeping) {
+            LockSupport.unpark(this.loop);
+        }
+    }
+
+    /**
+     * run is the event loop.
+     */
+    private void run() {
+        while(true) {
+            ShardTask task;
+            while((task = this.mailbox.poll()) != null) {
+                this.taken++;
+
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    logger.error("A shard task failed.", e);
+                }
+            }
+
+            if(this.stopped) {
+                return;
+            }
+
+            this.sleeping = true;
+            if(this.mailbox.isEmpty() && !this.stopped) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+            this.sleeping = false;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.bajetii.messageserver.server.shards;
+
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+
+/**
+ * ShardCall is a ShardTask whose result the Thread which handed it over
+ * waits for.
+ * <p>
+ * The waiting Thread spins for a little while first; as most calls are done
+ * within a few microseconds, and parking and unparking a Thread costs about
+ * as much. Only then does it park; to be unparked by the Shard once done.
+ * Whatever the work throws is thrown again on the waiting Thread.
+ */
+public final class ShardCall<T> extends ShardTask {
+
+    /**
+     * spins is the number of times the waiting Thread checks whether the
+     * call is done before parking.
+     */
+    private static final int spins = 256;
+
+    /**
+     * work is the work to be carried out.
+     */
+    private final Supplier<T> work;
+
+    /**
+     * waiter is the Thread waiting for the call; set before it parks.
+     */
+    private volatile Thread waiter = null;
+
+    /**
+     * result and failure are the outcome of the work; published by done.
+     */
+    private T result = null;
+    private Throwable failure = null;
+    private volatile boolean done = false;
+
+    ShardCall(Supplier<T> work) {
+        this.work = work;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.result = this.work.get();
+        } catch(Throwable t) {
+            this.failure = t;
+        }
+
+        this.done = true;
+
+        Thread waiter = this.waiter;
+        if(waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * join waits for the call to be done; and returns its result, or throws
+     * whatever it threw.
+     */
+    public T join() {
+        for(int i = 0; i < spins && !this.done; i++) {
+            Thread.onSpinWait();
+        }
+
+        if(!this.done) {
+            this.waiter = Thread.currentThread();
+            while(!this.done) {
+                LockSupport.park(this);
+            }
+        }
+
+        if(this.failure != null) {
+            if(this.failure instanceof RuntimeException) {
+                throw (RuntimeException) this.failure;
+            }
+            if(this.failure instanceof Error) {
+                throw (Error) this.failure;
+            }
+
+            throw new IllegalStateException(this.failure);
+        }
+
+        return this.result;
+    }
+
+}
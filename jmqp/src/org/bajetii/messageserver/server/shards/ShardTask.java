@@ -0,0 +1,24 @@
+package org.bajetii.messageserver.server.shards;
+
+
+/**
+ * ShardTask is a unit of work handed over to a Shard through its Mailbox.
+ * <p>
+ * Tasks are linked to one another directly; so that handing one over never
+ * allocates a node of its own.
+ */
+abstract class ShardTask implements Runnable {
+
+    /**
+     * next is the task handed over right after this one; only ever written
+     * once, by the producer which handed the next one over.
+     */
+    volatile ShardTask next = null;
+
+    /**
+     * run carries out the task on the Shard's event loop.
+     */
+    @Override
+    public abstract void run();
+
+}
@@ -0,0 +1,600 @@
+package org.bajetii.messageserver.server.shards;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.bajetii.messageserver.server.IMessagingServer;
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.bajetii.messageserver.server.exceptions.MessageServerPersonNotFoundException;
+import org.bajetii.messageserver.server.exceptions.MessageServerTopicNotFoundException;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.IMessageSink;
+import org.bajetii.messageserver.server.queues.MessageSubscription;
+import org.bajetii.messageserver.server.storage.LogMessage;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+
+
+/**
+ * ShardedMessagingServer partitions the queues of a messaging server across
+ * several Shards; each a MessagingServer of its own, served by its own event
+ * loop Thread.
+ * <p>
+ * People and topics are hashed onto the Shards by name. Every operation on a
+ * queue is handed over to the loop of the Shard owning it, through the
+ * Shard's lock-free Mailbox; the calling Thread waiting for the outcome when
+ * there is one to report. Operations on unrelated queues thus share no state
+ * at all past the Mailbox they are handed over through; and the server's
+ * throughput grows with the number of Shards, for as long as there are cores
+ * to run their loops on.
+ * <p>
+ * Operations which may not fail (posting to a topic of a server which is not
+ * durable, or waiting on a queue) are handed over without waiting for them.
+ * Posts to a durable server are only appended to the log on the loop; the
+ * calling Thread then waits for them to be synced, so that the loop never
+ * waits on the disk. Batches are split by Shard; the share of every Shard
+ * being carried out in parallel. Looking up the name of an id touches no queue; and is done
+ * straight away on the calling Thread.
+ * <p>
+ * The id of a person or topic is the id it has within its Shard, times the
+ * number of Shards, plus the index of its Shard; so that ids are resolved to
+ * their Shard without any lookup.
+ * <p>
+ * Waits are parked on the loop; but their completions (which write out the
+ * response of a long poll) are handed over to the completion Executor, so
+ * that a slow client never holds up the loop.
+ * <p>
+ * The queues remain thread-safe in their own right: the TimerWheel of every
+ * Shard expires messages and waits on its own Thread, and streaming
+ * subscriptions read their messages on the Thread writing them out.
+ */
+public class ShardedMessagingServer implements IMessagingServer {
+
+    /**
+     * shards holds the Shards of the server.
+     */
+    private final Shard[] shards;
+
+    /**
+     * metrics is the MetricsRegistry the Shards share.
+     */
+    private final MetricsRegistry metrics;
+
+    /**
+     * durable marks whether the Shards log their messages; in which case
+     * posts are only reported once logged.
+     */
+    private final boolean durable;
+
+    /**
+     * completions is the Executor the completions of waits are run on; or
+     * null to have them run on whichever Thread completes them.
+     */
+    private volatile Executor completions = null;
+
+    /**
+     * A ShardedMessagingServer is created provided the number of its Shards
+     * and the maximum timeout in seconds of its topic messages; with the
+     * default settings otherwise, and no log.
+     */
+    public ShardedMessagingServer(int shards, int maxServerTimeout) {
+        this(create(shards, maxServerTimeout, new MetricsRegistry()));
+    }
+
+    /**
+     * A ShardedMessagingServer is created provided the MessagingServers of
+     * its Shards; which must share the same MetricsRegistry and
+     * QueueCapacities, and should label their metrics with their index (as
+     * 'shard').
+     */
+    public ShardedMessagingServer(MessagingServer[] servers) {
+        if(servers.length == 0) {
+            throw new IllegalArgumentException("A sharded server needs at least one shard.");
+        }
+
+        this.shards = new Shard[servers.length];
+        this.metrics = servers[0].getMetrics();
+
+        boolean durable = false;
+        for(int i = 0; i < servers.length; i++) {
+            if(servers[i].getMetrics() != this.metrics) {
+                throw new IllegalArgumentException("The shards must share a single MetricsRegistry.");
+            }
+
+            this.shards[i] = new Shard(i, servers[i]);
+            durable |= servers[i].getLog() != null;
+        }
+
+        this.durable = durable;
+    }
+
+    /**
+     * create creates the given number of in-memory MessagingServers sharing
+     * the given MetricsRegistry.
+     */
+    private static MessagingServer[] create(int shards, int maxServerTimeout, MetricsRegistry metrics) {
+        QueueCapacities capacities = new QueueCapacities(MessagingServer.defaultPersonalCapacity);
+        MessagingServer[] servers = new MessagingServer[shards];
+
+        for(int i = 0; i < shards; i++) {
+            servers[i] = new MessagingServer(maxServerTimeout, capacities, MessagingServer.defaultTimerWheelTickMillis, null,
+                metrics, "shard", Integer.toString(i));
+        }
+
+        return servers;
+    }
+
+    /**
+     * getShards returns the Shards of the server.
+     */
+    public Shard[] getShards() {
+        return this.shards.clone();
+    }
+
+    /**
+     * setCompletionExecutor sets the Executor the completions of waits are
+     * run on; typically the workers of the transport.
+     */
+    public void setCompletionExecutor(Executor completions) {
+        this.completions = completions;
+    }
+
+    /**
+     * stop stops the event loops of all the Shards.
+     */
+    public void stop() {
+        for(Shard shard : this.shards) {
+            shard.stop();
+        }
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public void setMaxQueueSeries(int maxQueueSeries) {
+        for(Shard shard : this.shards) {
+            shard.getServer().setMaxQueueSeries(maxQueueSeries);
+        }
+    }
+
+    /**
+     * getTimerWheel returns the TimerWheel of the first Shard.
+     */
+    @Override
+    public TimerWheel getTimerWheel() {
+        return this.shards[0].getServer().getTimerWheel();
+    }
+
+    @Override
+    public QueueCapacities getPersonalCapacities() {
+        return this.shards[0].getServer().getPersonalCapacities();
+    }
+
+    /**
+     * resizePersonalQueues resizes the personal queues of all the Shards in
+     * parallel; each on its own loop.
+     */
+    @Override
+    public int resizePersonalQueues() {
+        ArrayList<ShardCall<Integer>> calls = new ArrayList<ShardCall<Integer>>(this.shards.length);
+        for(Shard shard : this.shards) {
+            calls.add(shard.submit(() -> shard.getServer().resizePersonalQueues()));
+        }
+
+        int resized = 0;
+        for(ShardCall<Integer> call : calls) {
+            resized += call.join();
+        }
+
+        return resized;
+    }
+
+    @Override
+    public int resolvePersonal(String person) {
+        Shard shard = this.shardOf(person);
+
+        return this.globalId(shard, shard.call(() -> shard.getServer().resolvePersonal(person)));
+    }
+
+    @Override
+    public int resolveTopic(String topic) {
+        Shard shard = this.shardOf(topic);
+
+        return this.globalId(shard, shard.call(() -> shard.getServer().resolveTopic(topic)));
+    }
+
+    @Override
+    public String getPersonalName(int id) {
+        if(id < 0) {
+            return null;
+        }
+
+        return this.shardOf(id).getServer().getPersonalName(this.localId(id));
+    }
+
+    @Override
+    public String getTopicName(int id) {
+        if(id < 0) {
+            return null;
+        }
+
+        return this.shardOf(id).getServer().getTopicName(this.localId(id));
+    }
+
+    @Override
+    public void addPersonalMessage(String person, IMessage message) {
+        Shard shard = this.shardOf(person);
+
+        MessagingServer server = shard.getServer();
+
+        server.awaitDurable(shard.call(() -> server.postPersonalMessage(person, message)));
+    }
+
+    @Override
+    public void addPersonalMessage(int id, IMessage message) {
+        Shard shard = this.personalShardOf(id);
+        int local = this.localId(id);
+
+        MessagingServer server = shard.getServer();
+
+        server.awaitDurable(shard.call(() -> server.postPersonalMessage(local, message)));
+    }
+
+    @Override
+    public void addTopicMessage(String topic, IMessage message, int timeout) {
+        Shard shard = this.shardOf(topic);
+
+        if(this.durable) {
+            MessagingServer server = shard.getServer();
+            server.awaitDurable(shard.call(() -> server.postTopicMessage(topic, message, timeout)));
+        } else {
+            shard.execute(() -> shard.getServer().addTopicMessage(topic, message, timeout));
+        }
+    }
+
+    @Override
+    public void addTopicMessage(int id, IMessage message, int timeout) {
+        Shard shard = this.topicShardOf(id);
+        int local = this.localId(id);
+
+        if(this.durable) {
+            MessagingServer server = shard.getServer();
+            server.awaitDurable(shard.call(() -> server.postTopicMessage(local, message, timeout)));
+        } else {
+            shard.execute(() -> shard.getServer().addTopicMessage(local, message, timeout));
+        }
+    }
+
+    /**
+     * addPersonalMessages splits the batch by Shard; the share of every Shard
+     * being added in parallel.
+     */
+    @Override
+    public boolean[] addPersonalMessages(String[] people, IMessage[] messages) {
+        int[][] indices = this.split(people);
+        ArrayList<ShardCall<LogMessage>> calls = new ArrayList<ShardCall<LogMessage>>(this.shards.length);
+        boolean[][] shareAccepted = new boolean[this.shards.length][];
+
+        for(int s = 0; s < this.shards.length; s++) {
+            int[] share = indices[s];
+            if(share.length == 0) {
+                calls.add(null);
+                continue;
+            }
+
+            String[] sharePeople = new String[share.length];
+            IMessage[] shareMessages = new IMessage[share.length];
+            for(int i = 0; i < share.length; i++) {
+                sharePeople[i] = people[share[i]];
+                shareMessages[i] = messages[share[i]];
+            }
+
+            Shard shard = this.shards[s];
+            boolean[] accepted = shareAccepted[s] = new boolean[share.length];
+            calls.add(shard.submit(() -> shard.getServer().postPersonalMessages(sharePeople, shareMessages, accepted)));
+        }
+
+        // every Shard's share is synced off its loop; in parallel with those
+        // of the others:
+        boolean[] accepted = new boolean[messages.length];
+        for(int s = 0; s < this.shards.length; s++) {
+            if(calls.get(s) == null) {
+                continue;
+            }
+
+            this.shards[s].getServer().awaitDurable(calls.get(s).join());
+            for(int i = 0; i < shareAccepted[s].length; i++) {
+                accepted[indices[s][i]] = shareAccepted[s][i];
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * addTopicMessages splits the batch by Shard; the share of every Shard
+     * being added in parallel.
+     */
+    @Override
+    public void addTopicMessages(String[] topics, IMessage[] messages, int[] timeouts) {
+        int[][] indices = this.split(topics);
+        ArrayList<ShardCall<LogMessage>> calls = new ArrayList<ShardCall<LogMessage>>(this.shards.length);
+
+        for(int s = 0; s < this.shards.length; s++) {
+            int[] share = indices[s];
+            calls.add(null);
+            if(share.length == 0) {
+                continue;
+            }
+
+            String[] shareTopics = new String[share.length];
+            IMessage[] shareMessages = new IMessage[share.length];
+            int[] shareTimeouts = new int[share.length];
+            for(int i = 0; i < share.length; i++) {
+                shareTopics[i] = topics[share[i]];
+                shareMessages[i] = messages[share[i]];
+                shareTimeouts[i] = timeouts[share[i]];
+            }
+
+            Shard shard = this.shards[s];
+            if(this.durable) {
+                calls.set(s, shard.submit(() -> shard.getServer().postTopicMessages(shareTopics, shareMessages, shareTimeouts)));
+            } else {
+                shard.execute(() -> shard.getServer().addTopicMessages(shareTopics, shareMessages, shareTimeouts));
+            }
+        }
+
+        // every Shard's share is synced off its loop; in parallel with those
+        // of the others:
+        for(int s = 0; s < this.shards.length; s++) {
+            if(calls.get(s) != null) {
+                this.shards[s].getServer().awaitDurable(calls.get(s).join());
+            }
+        }
+    }
+
+    @Override
+    public IMessage getRawPersonalMessage(String person) {
+        Shard shard = this.shardOf(person);
+
+        return shard.call(() -> shard.getServer().getRawPersonalMessage(person));
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(String person, int maxMessages) {
+        Shard shard = this.shardOf(person);
+
+        return shard.call(() -> shard.getServer().getRawPersonalMessages(person, maxMessages));
+    }
+
+    @Override
+    public IMessage[] getRawPersonalMessages(int id, int maxMessages) {
+        Shard shard = this.personalShardOf(id);
+        int local = this.localId(id);
+
+        return shard.call(() -> shard.getServer().getRawPersonalMessages(local, maxMessages));
+    }
+
+    @Override
+    public IMessage getRawTopicMessage(String topic) {
+        Shard shard = this.shardOf(topic);
+
+        return shard.call(() -> shard.getServer().getRawTopicMessage(topic));
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, int maxMessages) {
+        Shard shard = this.shardOf(topic);
+
+        return shard.call(() -> shard.getServer().getRawTopicMessages(topic, maxMessages));
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, int maxMessages) {
+        Shard shard = this.topicShardOf(id);
+        int local = this.localId(id);
+
+        return shard.call(() -> shard.getServer().getRawTopicMessages(local, maxMessages));
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(String topic, String subscriber, int maxMessages) {
+        Shard shard = this.shardOf(topic);
+
+        return shard.call(() -> shard.getServer().getRawTopicMessages(topic, subscriber, maxMessages));
+    }
+
+    @Override
+    public IMessage[] getRawTopicMessages(int id, String subscriber, int maxMessages) {
+        Shard shard = this.topicShardOf(id);
+        int local = this.localId(id);
+
+        return shard.call(() -> shard.getServer().getRawTopicMessages(local, subscriber, maxMessages));
+    }
+
+    @Override
+    public void awaitPersonalMessages(String person, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.shardOf(person);
+
+        shard.execute(() -> shard.getServer().awaitPersonalMessages(person, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    @Override
+    public void awaitPersonalMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.personalShardOf(id);
+        int local = this.localId(id);
+
+        shard.execute(() -> shard.getServer().awaitPersonalMessages(local, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.shardOf(topic);
+
+        shard.execute(() -> shard.getServer().awaitTopicMessages(topic, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.topicShardOf(id);
+        int local = this.localId(id);
+
+        shard.execute(() -> shard.getServer().awaitTopicMessages(local, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    @Override
+    public void awaitTopicMessages(String topic, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.shardOf(topic);
+
+        shard.execute(() -> shard.getServer().awaitTopicMessages(topic, subscriber, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    @Override
+    public void awaitTopicMessages(int id, String subscriber, int maxMessages, long waitMillis, Consumer<IMessage[]> complete) {
+        Shard shard = this.topicShardOf(id);
+        int local = this.localId(id);
+
+        shard.execute(() -> shard.getServer().awaitTopicMessages(local, subscriber, maxMessages, waitMillis, this.offLoop(complete)));
+    }
+
+    /**
+     * offLoop returns the given completion of a wait; handed over to the
+     * completion Executor, if any.
+     */
+    private Consumer<IMessage[]> offLoop(Consumer<IMessage[]> complete) {
+        Executor completions = this.completions;
+        if(completions == null) {
+            return complete;
+        }
+
+        return (messages) -> completions.execute(() -> complete.accept(messages));
+    }
+
+    @Override
+    public void checkPersonalSubscription(String person) {
+        this.shardOf(person).getServer().checkPersonalSubscription(person);
+    }
+
+    @Override
+    public void checkTopicSubscription(String topic) {
+        this.shardOf(topic).getServer().checkTopicSubscription(topic);
+    }
+
+    @Override
+    public MessageSubscription subscribePersonal(String person, IMessageSink sink) {
+        Shard shard = this.shardOf(person);
+
+        return shard.call(() -> shard.getServer().subscribePersonal(person, sink));
+    }
+
+    @Override
+    public MessageSubscription subscribeTopic(String topic, String subscriber, IMessageSink sink) {
+        Shard shard = this.shardOf(topic);
+
+        return shard.call(() -> shard.getServer().subscribeTopic(topic, subscriber, sink));
+    }
+
+    /**
+     * shardOf returns the Shard owning the person or topic of the given name.
+     * <p>
+     * The higher bits of the name's hash are folded into the lower ones
+     * first; as the hashes of names differing only in their last characters
+     * otherwise differ only in their lower bits.
+     */
+    private Shard shardOf(String name) {
+        int hash = name.hashCode();
+        hash ^= (hash >>> 16);
+
+        return this.shards[(hash & 0x7fffffff) % this.shards.length];
+    }
+
+    /**
+     * shardOf returns the Shard owning the person or topic of the given
+     * (non-negative) id.
+     */
+    private Shard shardOf(int id) {
+        return this.shards[id % this.shards.length];
+    }
+
+    /**
+     * personalShardOf returns the Shard owning the person of the given id;
+     * checking upfront that there is one, so that operations which are not
+     * waited for are not handed over in vain.
+     * <p>
+     * @throws  MessageServerPersonNotFoundException if no person has the id.
+     */
+    private Shard personalShardOf(int id) {
+        if(this.getPersonalName(id) == null) {
+            throw new MessageServerPersonNotFoundException("#" + id);
+        }
+
+        return this.shardOf(id);
+    }
+
+    /**
+     * topicShardOf returns the Shard owning the topic of the given id;
+     * checking upfront that there is one.
+     * <p>
+     * @throws  MessageServerTopicNotFoundException if no topic has the id.
+     */
+    private Shard topicShardOf(int id) {
+        if(this.getTopicName(id) == null) {
+            throw new MessageServerTopicNotFoundException("#" + id);
+        }
+
+        return this.shardOf(id);
+    }
+
+    /**
+     * localId returns the id the person or topic of the given id has within
+     * its Shard.
+     */
+    private int localId(int id) {
+        return id / this.shards.length;
+    }
+
+    /**
+     * globalId returns the id of the person or topic of the given id within
+     * the given Shard.
+     */
+    private int globalId(Shard shard, int localId) {
+        if(localId > (Integer.MAX_VALUE - shard.getIndex()) / this.shards.length) {
+            throw new IllegalStateException("Ran out of ids: " + localId);
+        }
+
+        return localId * this.shards.length + shard.getIndex();
+    }
+
+    /**
+     * split returns the indices of the given names owned by every Shard; in
+     * order.
+     */
+    private int[][] split(String[] names) {
+        int[] counts = new int[this.shards.length];
+        int[] owners = new int[names.length];
+
+        for(int i = 0; i < names.length; i++) {
+            owners[i] = this.shardOf(names[i]).getIndex();
+            counts[owners[i]]++;
+        }
+
+        int[][] indices = new int[this.shards.length][];
+        for(int s = 0; s < this.shards.length; s++) {
+            indices[s] = new int[counts[s]];
+            counts[s] = 0;
+        }
+
+        for(int i = 0; i < names.length; i++) {
+            indices[owners[i]][counts[owners[i]]++] = i;
+        }
+
+        return indices;
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.bajetii.messageserver.server.storage;
+
+
+/**
+ * FsyncPolicy is the Enum representing when the WriteAheadLog forces the
+ * records appended to it down to the disk.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * ALWAYS has every append wait for a (group) fsync which covers it.
+     * INTERVAL fsyncs in the background every so many milliseconds; so that
+     * at most that much is lost upon a crash of the machine.
+     * NEVER leaves it all up to the operating system.
+     */
+    ALWAYS("always"), INTERVAL("interval"), NEVER("never");
+
+    /**
+     * value is the stored String value of the FsyncPolicy.
+     */
+    private final String value;
+
+    /**
+     * A FsyncPolicy can be constructed from the String representations of
+     * its allowed values.
+     */
+    private FsyncPolicy(String value) {
+        this.value = value;
+    }
+
+    /**
+     * fromString returns the FsyncPolicy with the given String value.
+     * <p>
+     * @throws  IllegalArgumentException if there is no such FsyncPolicy.
+     */
+    public static FsyncPolicy fromString(String value) {
+        for(FsyncPolicy policy : FsyncPolicy.values()) {
+            if(policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown fsync policy: " + value);
+    }
+
+    @Override
+    public String toString() {
+        return this.value;
+    }
+}
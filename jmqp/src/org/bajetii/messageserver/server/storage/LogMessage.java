@@ -0,0 +1,56 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.nio.ByteBuffer;
+
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+
+
+/**
+ * LogMessage is a ByteBufferMessage whose bytes reside within a segment of the
+ * WriteAheadLog.
+ * <p>
+ * Its buffer is a view into the segment's mapping; so queues holding
+ * LogMessages hold offsets into the log rather than copies of the payloads.
+ */
+public class LogMessage extends ByteBufferMessage {
+
+    /**
+     * segment is the LogSegment the message resides in.
+     */
+    final LogSegment segment;
+
+    /**
+     * offset and end are the offsets of the message's record within the log,
+     * and of the byte right past it.
+     */
+    private final long offset;
+    private final long end;
+
+    /**
+     * A LogMessage is created provided the view of its payload, the segment
+     * it resides in and the offsets of its record.
+     */
+    LogMessage(ByteBuffer payload, LogSegment segment, long offset, long end) {
+        super(payload);
+        this.segment = segment;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    /**
+     * getOffset returns the offset of the message's record within the log.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * getEnd returns the offset right past the message's record; which the
+     * log must be synced up to for the message to be durable.
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+}
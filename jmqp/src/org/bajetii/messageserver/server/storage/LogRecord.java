@@ -0,0 +1,54 @@
+package org.bajetii.messageserver.server.storage;
+
+
+/**
+ * LogRecord is a message recovered from the WriteAheadLog upon startup;
+ * alongside the destination it was addressed to.
+ */
+public class LogRecord {
+
+    /**
+     * topic marks whether the message was addressed to a topic rather than
+     * to a person.
+     */
+    private final boolean topic;
+
+    /**
+     * name is the name of the person or topic the message was addressed to.
+     */
+    private final String name;
+
+    /**
+     * deadline is the moment in milliseconds a topic message times out at.
+     */
+    private final long deadline;
+
+    /**
+     * message is the recovered message.
+     */
+    private final LogMessage message;
+
+    LogRecord(boolean topic, String name, long deadline, LogMessage message) {
+        this.topic = topic;
+        this.name = name;
+        this.deadline = deadline;
+        this.message = message;
+    }
+
+    public boolean isTopic() {
+        return this.topic;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    public LogMessage getMessage() {
+        return this.message;
+    }
+
+}
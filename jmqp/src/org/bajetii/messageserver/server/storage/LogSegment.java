@@ -0,0 +1,146 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bajetii.messageserver.server.logging.Logger;
+
+
+/**
+ * LogSegment is a single memory-mapped file of the WriteAheadLog.
+ * <p>
+ * The whole file is mapped upfront; records are appended to the mapping and
+ * an unwritten record size of zero marks the end of the segment's records.
+ * Every offset within the log is the base offset of its segment plus the
+ * position within it.
+ */
+class LogSegment {
+
+    /**
+     * logger is the Logger of the LogSegments.
+     */
+    private static final Logger logger = Logger.getLogger(LogSegment.class);
+
+    /**
+     * fileNameFormat is the format of the segments' file names; the base
+     * offset being zero-padded so that the names sort in log order.
+     */
+    static final String fileNameFormat = "segment-%020d.log";
+
+    /**
+     * base is the offset of the first byte of the segment within the log.
+     */
+    final long base;
+
+    /**
+     * file, channel and buffer are the file of the segment, its channel and
+     * its mapping respectively.
+     */
+    final File file;
+    private final FileChannel channel;
+    final MappedByteBuffer buffer;
+
+    /**
+     * position is the position the next record is to be appended at; only
+     * ever touched under the log's append lock.
+     */
+    int position = 0;
+
+    /**
+     * live counts the records of the segment whose messages have yet to be
+     * acknowledged; with maxDeadline being the latest deadline of its topic
+     * messages.
+     */
+    final AtomicInteger live = new AtomicInteger(0);
+    volatile long maxDeadline = 0;
+
+    /**
+     * A LogSegment is created provided the directory it resides in, its base
+     * offset and the size it is to be mapped with; opening or creating its
+     * file.
+     * <p>
+     * @param   directory   the directory of the log.
+     * @param   base        the offset of the segment within the log.
+     * @param   capacity    the size of the mapping; or 0 to map the existing
+     *                      file whole.
+     */
+    LogSegment(File directory, long base, long capacity) throws IOException {
+        this.base = base;
+        this.file = new File(directory, String.format(fileNameFormat, base));
+        this.channel = FileChannel.open(this.file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if(capacity == 0) {
+            capacity = this.channel.size();
+        }
+
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * getCapacity returns the size of the segment in bytes.
+     */
+    int getCapacity() {
+        return this.buffer.capacity();
+    }
+
+    /**
+     * getEnd returns the offset right past the last record of the segment.
+     */
+    long getEnd() {
+        return this.base + this.position;
+    }
+
+    /**
+     * updateDeadline raises the latest deadline of the segment's messages.
+     */
+    void updateDeadline(long deadline) {
+        if(deadline > this.maxDeadline) {
+            this.maxDeadline = deadline;
+        }
+    }
+
+    /**
+     * isReclaimable returns whether all of the segment's messages have been
+     * acknowledged or have timed out.
+     */
+    boolean isReclaimable(long now) {
+        return this.live.get() == 0 && this.maxDeadline < now;
+    }
+
+    /**
+     * force forces the contents of the mapping down to the disk.
+     */
+    void force() {
+        this.buffer.force();
+    }
+
+    /**
+     * close closes the segment's channel; the mapping itself being released
+     * once it is no longer referenced.
+     */
+    void close() {
+        try {
+            this.channel.close();
+        } catch(IOException e) {
+            logger.warn("Could not close log segment " + this.file + ".", e);
+        }
+    }
+
+    /**
+     * delete closes the segment and removes its file.
+     */
+    void delete() {
+        this.close();
+
+        if(!this.file.delete()) {
+            logger.warn("Could not delete log segment.", "file", this.file);
+        }
+    }
+
+}
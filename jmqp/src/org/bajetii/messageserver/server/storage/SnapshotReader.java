@@ -0,0 +1,191 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+
+
+/**
+ * SnapshotReader loads a snapshot written by a SnapshotWriter back into the
+ * queues of a MessagingServer.
+ * <p>
+ * Every section of the snapshot is memory-mapped and parsed on a Thread of
+ * its own; as sections hold whole queues, they never contend with one another
+ * beyond the registries themselves. Payloads are copied out of the mapping
+ * onto the heap, so that the snapshot file may be replaced afterwards.
+ * A section whose checksum does not match is skipped whole.
+ */
+class SnapshotReader {
+
+    /**
+     * logger is the Logger of the SnapshotReaders.
+     */
+    private static final Logger logger = Logger.getLogger(SnapshotReader.class);
+
+    /**
+     * file is the snapshot file being read.
+     */
+    private final File file;
+
+    /**
+     * messageCount and droppedCount count the messages loaded, respectively
+     * those dropped for having timed out or for not fitting their queue.
+     */
+    private final AtomicLong messageCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    SnapshotReader(File file) {
+        this.file = file;
+    }
+
+    long getMessageCount() {
+        return this.messageCount.get();
+    }
+
+    long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * load loads the whole snapshot into the given MessagingServer using at
+     * most the given number of Threads.
+     * <p>
+     * @return  int     the number of sections loaded.
+     */
+    int load(MessagingServer server, int threads) throws IOException {
+        try(FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < SnapshotWriter.headerBytes + SnapshotWriter.trailerBytes) {
+                throw new IOException("Snapshot " + this.file + " is truncated.");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(SnapshotWriter.headerBytes);
+            ByteBuffer trailer = ByteBuffer.allocate(SnapshotWriter.trailerBytes);
+            channel.read(header, 0);
+            channel.read(trailer, size - SnapshotWriter.trailerBytes);
+
+            if(header.getInt(0) != SnapshotWriter.magic || header.getInt(4) != SnapshotWriter.version
+                    || trailer.getInt(8) != SnapshotWriter.magic) {
+                throw new IOException("Snapshot " + this.file + " is not a valid snapshot.");
+            }
+
+            long indexOffset = trailer.getLong(0);
+            if(indexOffset < SnapshotWriter.headerBytes || indexOffset > size - SnapshotWriter.trailerBytes - 4) {
+                throw new IOException("Snapshot " + this.file + " has a corrupted index.");
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((int) (size - SnapshotWriter.trailerBytes - indexOffset));
+            channel.read(index, indexOffset);
+            index.flip();
+
+            int sectionCount = index.getInt();
+            if(sectionCount < 0 || sectionCount * 20L != index.remaining()) {
+                throw new IOException("Snapshot " + this.file + " has a corrupted index.");
+            }
+
+            ArrayList<long[]> sections = new ArrayList<long[]>(sectionCount);
+            for(int i = 0; i < sectionCount; i++) {
+                sections.add(new long[] {index.getLong(), index.getLong(), index.getInt() & 0xffffffffL});
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sectionCount)));
+            try {
+                ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+                for(long[] section : sections) {
+                    results.add(pool.submit(() -> {
+                        this.loadSection(channel, section, server);
+                        return null;
+                    }));
+                }
+
+                for(Future<?> result : results) {
+                    result.get();
+                }
+            } catch(Exception e) {
+                throw new IOException("Could not load snapshot " + this.file + ".", e);
+            } finally {
+                pool.shutdown();
+            }
+
+            return sectionCount;
+        }
+    }
+
+    /**
+     * loadSection maps and parses a single section of the snapshot.
+     */
+    private void loadSection(FileChannel channel, long[] section, MessagingServer server) throws IOException {
+        if(section[1] > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot section too large: " + section[1] + " bytes.");
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, section[0], section[1]);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if(crc.getValue() != section[2]) {
+            logger.warn("Snapshot section is corrupted; skipping it.", "position", section[0]);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        while(buffer.hasRemaining()) {
+            byte kind = buffer.get();
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            int count = buffer.getInt();
+
+            String queueName = new String(name, StandardCharsets.UTF_8);
+            IMessageQueue queue = (kind == SnapshotWriter.topicQueue)
+                ? server.addTopicQueue(queueName)
+                : server.addPersonalQueue(queueName);
+
+            for(int i = 0; i < count; i++) {
+                long deadline = (kind == SnapshotWriter.topicQueue) ? buffer.getLong() : 0;
+
+                byte[] payload = new byte[buffer.getInt()];
+                buffer.get(payload);
+                IMessage message = new ByteBufferMessage(payload);
+
+                if(kind == SnapshotWriter.topicQueue) {
+                    if(deadline <= now) {
+                        this.droppedCount.incrementAndGet();
+                        continue;
+                    }
+
+                    queue.addMessage(new TopicMessage(message, deadline));
+                } else {
+                    try {
+                        queue.addMessage(message);
+                    } catch(MessageQueueFullException e) {
+                        this.droppedCount.incrementAndGet();
+                        continue;
+                    }
+                }
+
+                this.messageCount.incrementAndGet();
+            }
+        }
+    }
+
+}
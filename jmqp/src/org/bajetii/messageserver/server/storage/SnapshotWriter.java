@@ -0,0 +1,266 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.TopicMessage;
+import org.bajetii.messageserver.server.queues.IMessageQueue;
+
+
+/**
+ * SnapshotWriter writes a single snapshot of the queue registries to a file.
+ * <p>
+ * A snapshot is laid out as:
+ *      [int magic][int version][long createdAt]
+ *      [section]...
+ *      [int sectionCount]([long offset][long length][int crc32])...
+ *      [long indexOffset][int magic]
+ * where every section holds whole queues, each as:
+ *      [byte kind][short nameLength][name][int count][message]...
+ * with personal messages being [int length][payload] and topic messages
+ * [long deadline][int length][payload]. Sections are cut once they grow past
+ * a target size; so that they may be loaded in parallel.
+ * <p>
+ * The queues are copied one at a time through peekMessages; only the
+ * references to the (immutable) messages being copied, so writers are never
+ * held off for longer than it takes to copy a single queue's references.
+ */
+class SnapshotWriter {
+
+    /**
+     * logger is the Logger of the SnapshotWriters.
+     */
+    private static final Logger logger = Logger.getLogger(SnapshotWriter.class);
+
+    /**
+     * magic and version identify the snapshot format.
+     */
+    static final int magic = 0x4a4d5153;
+    static final int version = 1;
+
+    /**
+     * The kinds of queues.
+     */
+    static final byte personalQueue = 1;
+    static final byte topicQueue = 2;
+
+    /**
+     * headerBytes and trailerBytes are the sizes of the snapshot's header and
+     * of its trailer respectively.
+     */
+    static final int headerBytes = 16;
+    static final int trailerBytes = 12;
+
+    /**
+     * sectionTargetBytes is the size past which a new section is started.
+     */
+    private static final long sectionTargetBytes = 8 * 1024 * 1024;
+
+    /**
+     * channel is the channel of the file being written.
+     */
+    private final FileChannel channel;
+
+    /**
+     * buffer is the buffer the snapshot is written out through.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+    /**
+     * crc is the checksum of the current section.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * position is the offset within the file the buffer starts at.
+     */
+    private long position = 0;
+
+    /**
+     * sectionStart is the offset the current section starts at; with the
+     * sections list holding the offset, length and crc of the finished ones.
+     */
+    private long sectionStart = headerBytes;
+    private final ArrayList<long[]> sections = new ArrayList<long[]>();
+
+    /**
+     * messageCount counts the messages written.
+     */
+    private long messageCount = 0;
+
+    /**
+     * A SnapshotWriter is created provided the file to be written; which is
+     * truncated if already existing.
+     */
+    SnapshotWriter(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        this.buffer.putInt(magic).putInt(version).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * getMessageCount returns the number of messages written so far.
+     */
+    long getMessageCount() {
+        return this.messageCount;
+    }
+
+    /**
+     * writeQueues writes all the given queues of the given kind.
+     * <p>
+     * Topic messages which have already timed out are left out; as are
+     * queues which are empty.
+     */
+    void writeQueues(byte kind, Map<String, IMessageQueue> queues) throws IOException {
+        long now = System.currentTimeMillis();
+
+        for(Map.Entry<String, IMessageQueue> entry : queues.entrySet()) {
+            IMessage[] messages = entry.getValue().peekMessages();
+
+            int count = 0;
+            for(IMessage message : messages) {
+                if(kind == personalQueue || ((TopicMessage) message).getDeadline() > now) {
+                    count++;
+                }
+            }
+
+            if(count == 0) {
+                continue;
+            }
+
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if(name.length > 0xffff) {
+                logger.warn("Queue name too long to be snapshotted.", "bytes", name.length);
+                continue;
+            }
+
+            this.ensure(1 + 2 + name.length + 4);
+            this.buffer.put(kind).putShort((short) name.length).put(name).putInt(count);
+
+            for(IMessage message : messages) {
+                if(kind == topicQueue) {
+                    long deadline = ((TopicMessage) message).getDeadline();
+                    if(deadline <= now) {
+                        continue;
+                    }
+
+                    this.ensure(8);
+                    this.buffer.putLong(deadline);
+                }
+
+                ByteBuffer payload = message.getByteValue();
+                this.ensure(4);
+                this.buffer.putInt(payload.remaining());
+
+                if(payload.remaining() <= this.buffer.remaining()) {
+                    this.buffer.put(payload);
+                } else {
+                    this.drain();
+                    this.crc.update(payload.duplicate());
+                    this.position += payload.remaining();
+                    while(payload.hasRemaining()) {
+                        this.channel.write(payload);
+                    }
+                }
+
+                this.messageCount++;
+            }
+
+            if(this.position + this.buffer.position() - this.sectionStart >= sectionTargetBytes) {
+                this.endSection();
+            }
+        }
+    }
+
+    /**
+     * finish ends the last section, writes out the index and trailer and
+     * forces the whole file to disk before closing it.
+     */
+    void finish() throws IOException {
+        this.endSection();
+
+        long indexOffset = this.position + this.buffer.position();
+
+        this.ensure(4);
+        this.buffer.putInt(this.sections.size());
+        for(long[] section : this.sections) {
+            this.ensure(20);
+            this.buffer.putLong(section[0]).putLong(section[1]).putInt((int) section[2]);
+        }
+
+        this.ensure(trailerBytes);
+        this.buffer.putLong(indexOffset).putInt(magic);
+
+        this.drain();
+        this.channel.force(true);
+        this.channel.close();
+    }
+
+    /**
+     * abort closes the file without finishing it.
+     */
+    void abort() {
+        try {
+            this.channel.close();
+        } catch(IOException e) {
+            // nothing to be done.
+        }
+    }
+
+    /**
+     * endSection ends the current section; if there is anything in it.
+     */
+    private void endSection() throws IOException {
+        this.drain();
+
+        if(this.position > this.sectionStart) {
+            this.sections.add(new long[] {this.sectionStart, this.position - this.sectionStart, this.crc.getValue()});
+        }
+
+        this.sectionStart = this.position;
+        this.crc.reset();
+    }
+
+    /**
+     * ensure makes sure there is room in the buffer for the given number of
+     * bytes; draining it if there is not.
+     */
+    private void ensure(int bytes) throws IOException {
+        if(this.buffer.remaining() < bytes) {
+            this.drain();
+        }
+    }
+
+    /**
+     * drain writes out the contents of the buffer; adding those past the
+     * header to the checksum of the current section.
+     */
+    private void drain() throws IOException {
+        this.buffer.flip();
+
+        if(this.position + this.buffer.limit() > this.sectionStart) {
+            ByteBuffer section = this.buffer.duplicate();
+            section.position((int) Math.max(0, this.sectionStart - this.position));
+            this.crc.update(section);
+        }
+
+        this.position += this.buffer.limit();
+        while(this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+
+        this.buffer.clear();
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.logging.Logger;
+
+
+/**
+ * Snapshotter periodically snapshots the queue registries of a MessagingServer
+ * to a file in the background; and loads them back upon startup.
+ * <p>
+ * Snapshots are written to a temporary file which is forced to disk and then
+ * atomically renamed over the previous snapshot; so that a crash mid-way
+ * always leaves the last complete snapshot behind. Writers are never stopped:
+ * the queues are copied one by one whilst they keep being written to, making
+ * every snapshot a fuzzy one; messages added or consumed whilst it is taken
+ * may or may not make it in.
+ * The duration and size of the last snapshot and load are kept for
+ * inspection.
+ */
+public class Snapshotter {
+
+    /**
+     * logger is the Logger of the Snapshotters.
+     */
+    private static final Logger logger = Logger.getLogger(Snapshotter.class);
+
+    /**
+     * server is the MessagingServer being snapshotted.
+     */
+    private final MessagingServer server;
+
+    /**
+     * file and temporaryFile are the snapshot and the file it is written to
+     * before being renamed.
+     */
+    private final File file;
+    private final File temporaryFile;
+
+    /**
+     * intervalMillis is the interval between two background snapshots.
+     */
+    private final long intervalMillis;
+
+    /**
+     * lock ensures only one snapshot is ever being taken at a time.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * thread is the background Thread taking the snapshots; which keeps on
+     * going until the stopped latch is released. It is never interrupted, as
+     * that would close the channel of the snapshot being written.
+     */
+    private Thread thread;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * The instrumentation of the last snapshot and load.
+     */
+    private volatile long snapshotCount = 0;
+    private volatile long lastSnapshotMillis = 0;
+    private volatile long lastSnapshotBytes = 0;
+    private volatile long lastSnapshotMessages = 0;
+    private volatile long lastLoadMillis = 0;
+    private volatile long lastLoadMessages = 0;
+
+    /**
+     * A Snapshotter is created provided the MessagingServer to be
+     * snapshotted, the snapshot file and the interval between snapshots.
+     * <p>
+     * @param   server          the MessagingServer to be snapshotted.
+     * @param   file            the snapshot file.
+     * @param   intervalMillis  the interval between background snapshots.
+     */
+    public Snapshotter(MessagingServer server, File file, long intervalMillis) {
+        this.server = server;
+        this.file = file;
+        this.temporaryFile = new File(file.getPath() + ".tmp");
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * load loads the snapshot file into the server's queues using as many
+     * Threads as there are processors; if there is a snapshot at all.
+     * <p>
+     * @return  boolean whether or not a snapshot was loaded.
+     */
+    public boolean load() throws IOException {
+        if(!this.file.isFile()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        SnapshotReader reader = new SnapshotReader(this.file);
+        int sections = reader.load(this.server, Runtime.getRuntime().availableProcessors());
+
+        this.lastLoadMillis = (System.nanoTime() - start) / 1000000;
+        this.lastLoadMessages = reader.getMessageCount();
+
+        logger.info(() -> "Loaded " + reader.getMessageCount() + " messages (" + reader.getDroppedCount()
+            + " dropped) from " + sections + " snapshot sections in " + this.lastLoadMillis + "ms.");
+
+        return true;
+    }
+
+    /**
+     * start starts taking snapshots in the background.
+     */
+    public void start() {
+        this.thread = new Thread(() -> this.run(), "jmqp-snapshotter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * stop stops taking snapshots in the background; waiting for the one
+     * being taken, if any.
+     */
+    public void stop() {
+        this.stopped.countDown();
+
+        this.lock.lock();
+        this.lock.unlock();
+    }
+
+    /**
+     * snapshot takes a snapshot straight away; waiting for the one being
+     * taken in the background, if any, beforehand.
+     */
+    public void snapshot() throws IOException {
+        this.lock.lock();
+        try {
+            long start = System.nanoTime();
+
+            SnapshotWriter writer = new SnapshotWriter(this.temporaryFile);
+            try {
+                writer.writeQueues(SnapshotWriter.personalQueue, this.server.getPersonalQueues());
+                writer.writeQueues(SnapshotWriter.topicQueue, this.server.getTopicQueues());
+                writer.finish();
+            } catch(IOException e) {
+                writer.abort();
+                throw e;
+            }
+
+            Files.move(this.temporaryFile.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            this.lastSnapshotMillis = (System.nanoTime() - start) / 1000000;
+            this.lastSnapshotBytes = this.file.length();
+            this.lastSnapshotMessages = writer.getMessageCount();
+            this.snapshotCount++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getSnapshotCount() {
+        return this.snapshotCount;
+    }
+
+    public long getLastSnapshotMillis() {
+        return this.lastSnapshotMillis;
+    }
+
+    public long getLastSnapshotBytes() {
+        return this.lastSnapshotBytes;
+    }
+
+    public long getLastSnapshotMessages() {
+        return this.lastSnapshotMessages;
+    }
+
+    public long getLastLoadMillis() {
+        return this.lastLoadMillis;
+    }
+
+    public long getLastLoadMessages() {
+        return this.lastLoadMessages;
+    }
+
+    /**
+     * run is the main loop of the background Thread.
+     */
+    private void run() {
+        while(true) {
+            try {
+                if(this.stopped.await(this.intervalMillis, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            try {
+                this.snapshot();
+                logger.info(() -> "Snapshot of " + this.lastSnapshotMessages + " messages (" + this.lastSnapshotBytes
+                    + " bytes) taken in " + this.lastSnapshotMillis + "ms.");
+            } catch(IOException e) {
+                logger.error("Taking a snapshot failed.", e);
+            }
+        }
+    }
+
+}
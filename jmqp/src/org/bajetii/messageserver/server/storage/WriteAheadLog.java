@@ -0,0 +1,644 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.bajetii.messageserver.server.logging.Logger;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.storage.exceptions.WriteAheadLogException;
+
+
+/**
+ * WriteAheadLog is the append-only log the messages of a durable
+ * MessagingServer are written to before being accepted.
+ * <p>
+ * The log is split into segments; each of which is a memory-mapped file that
+ * gets appended to until full, upon which a new segment is rolled. Every
+ * record is laid out as:
+ *      [int size][int crc32][byte type][body]
+ * where size counts the type and body, and is written last so that a torn
+ * record reads as the end of the log. The bodies are:
+ *      - personal :: [short nameLength][name][payload]
+ *      - topic    :: [short nameLength][name][long deadline][payload]
+ *      - ack      :: [long offset]
+ * Consuming a personal message appends an ack of its offset; topic messages
+ * simply time out and are never acknowledged. A segment is deleted once it
+ * and all the segments before it hold nothing but acknowledged or timed out
+ * messages.
+ * <p>
+ * Appends only ever copy the payload into the mapping; it is up to the
+ * FsyncPolicy when they are forced down to the disk. With ALWAYS, sync waits
+ * for the background flusher Thread, which forces everything appended so far
+ * in one go; so that concurrent appenders share a single fsync (group commit).
+ * Upon opening an existing log; all of its segments are scanned and the
+ * messages which were neither acknowledged nor timed out are recovered.
+ */
+public class WriteAheadLog {
+
+    /**
+     * logger is the Logger of the WriteAheadLogs.
+     */
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+    /**
+     * defaultSegmentBytes is the default size of a segment.
+     */
+    public static final long defaultSegmentBytes = 64 * 1024 * 1024;
+
+    /**
+     * The types of records.
+     */
+    private static final byte personalRecord = 1;
+    private static final byte topicRecord = 2;
+    private static final byte ackRecord = 3;
+
+    /**
+     * recordHeaderBytes is the size of the size and crc fields of a record.
+     */
+    private static final int recordHeaderBytes = 8;
+
+    /**
+     * collectIntervalMillis is how often the flusher attempts to delete
+     * segments whose topic messages have all timed out.
+     */
+    private static final long collectIntervalMillis = 1000;
+
+    /**
+     * directory is the directory holding the segments.
+     */
+    private final File directory;
+
+    /**
+     * segmentBytes is the size new segments are created with.
+     */
+    private final long segmentBytes;
+
+    /**
+     * policy and fsyncIntervalMillis define when appends are forced to disk.
+     */
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMillis;
+
+    /**
+     * segments holds all the live segments by their base offset; active being
+     * the last of them, which is appended to.
+     */
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+    private volatile LogSegment active;
+
+    /**
+     * appendLock guards appending to the active segment and rolling it.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * crc is the CRC32 used for checksumming records under the appendLock.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * written is the offset right past the last appended record; synced the
+     * one up to which all records are known to be on disk.
+     */
+    private volatile long written = 0;
+    private volatile long synced = 0;
+
+    /**
+     * syncLock guards the flusher's handshake with the appenders waiting for
+     * their records to be synced.
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition flushRequested = this.syncLock.newCondition();
+    private final Condition flushed = this.syncLock.newCondition();
+
+    /**
+     * flusher is the background Thread forcing the segments to disk.
+     */
+    private Thread flusher;
+
+    /**
+     * recovered holds the records recovered upon opening the log.
+     */
+    private List<LogRecord> recovered;
+
+    /**
+     * syncCount counts the number of times the log was forced to disk.
+     */
+    private final AtomicLong syncCount = new AtomicLong(0);
+
+    /**
+     * closed marks that the log was closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * A WriteAheadLog is created provided the directory it resides in, the
+     * size of its segments and its FsyncPolicy.
+     * <p>
+     * Any segments already within the directory are scanned straight away;
+     * the messages recovered from them being available through recover.
+     *
+     * @param   directory           the directory of the log; created if missing.
+     * @param   segmentBytes        the size of the log's segments.
+     * @param   policy              the FsyncPolicy of the log.
+     * @param   fsyncIntervalMillis the interval of the INTERVAL policy.
+     */
+    public WriteAheadLog(File directory, long segmentBytes, FsyncPolicy policy, long fsyncIntervalMillis) throws IOException {
+        if(segmentBytes <= recordHeaderBytes || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+        }
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.policy = policy;
+        this.fsyncIntervalMillis = Math.max(1, fsyncIntervalMillis);
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create log directory " + directory + ".");
+        }
+
+        this.recovered = this.scan();
+
+        if(this.active == null) {
+            this.active = new LogSegment(directory, 0, segmentBytes);
+            this.segments.put(0L, this.active);
+        }
+
+        this.written = this.active.getEnd();
+        this.synced = this.written;
+
+        if(policy != FsyncPolicy.NEVER) {
+            this.flusher = new Thread(() -> this.flushLoop(), "jmqp-wal-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /**
+     * recover returns the messages recovered upon opening the log in the
+     * order they were appended; and forgets about them afterwards.
+     */
+    public List<LogRecord> recover() {
+        List<LogRecord> records = this.recovered;
+        this.recovered = new ArrayList<LogRecord>();
+
+        return records;
+    }
+
+    /**
+     * appendPersonal appends the given personal message to the log.
+     * <p>
+     * The message is not necessarily durable until sync is called with it.
+     *
+     * @param   person      the name of the recipient of the message.
+     * @param   message     the IMessage to be appended.
+     * @return  LogMessage  the message as it resides within the log.
+     */
+    public LogMessage appendPersonal(String person, IMessage message) {
+        return this.append(personalRecord, person, 0, message);
+    }
+
+    /**
+     * appendTopic appends the given topic message to the log.
+     * <p>
+     * The message is not necessarily durable until sync is called with it.
+     *
+     * @param   topic       the name of the topic of the message.
+     * @param   message     the IMessage to be appended.
+     * @param   deadline    the moment in milliseconds the message times out.
+     * @return  LogMessage  the message as it resides within the log.
+     */
+    public LogMessage appendTopic(String topic, IMessage message, long deadline) {
+        return this.append(topicRecord, topic, deadline, message);
+    }
+
+    /**
+     * acknowledge appends an ack of the given message; so that it is not
+     * recovered again.
+     * <p>
+     * Acks are not synced; a message consumed right before a crash may thus
+     * be delivered again afterwards.
+     */
+    public void acknowledge(LogMessage message) {
+        byte[] body = new byte[8];
+        ByteBuffer.wrap(body).putLong(message.getOffset());
+
+        this.appendLock.lock();
+        try {
+            this.write(ackRecord, body, null);
+        } finally {
+            this.appendLock.unlock();
+        }
+
+        if(message.segment.live.decrementAndGet() == 0 && message.segment != this.active) {
+            this.collect();
+        }
+    }
+
+    /**
+     * sync waits for the given message to be durable as per the log's
+     * FsyncPolicy; only ALWAYS ever waits.
+     */
+    public void sync(LogMessage message) {
+        if(this.policy != FsyncPolicy.ALWAYS || this.synced >= message.getEnd()) {
+            return;
+        }
+
+        this.syncLock.lock();
+        try {
+            while(this.synced < message.getEnd()) {
+                if(this.closed) {
+                    throw new WriteAheadLogException("The log was closed before the message was synced.");
+                }
+
+                this.flushRequested.signal();
+                this.flushed.awaitUninterruptibly();
+            }
+        } finally {
+            this.syncLock.unlock();
+        }
+    }
+
+    /**
+     * close forces all the segments to disk and closes them.
+     */
+    public void close() {
+        this.closed = true;
+
+        this.syncLock.lock();
+        try {
+            this.flushRequested.signalAll();
+            this.flushed.signalAll();
+        } finally {
+            this.syncLock.unlock();
+        }
+
+        if(this.flusher != null) {
+            try {
+                this.flusher.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.appendLock.lock();
+        try {
+            for(LogSegment segment : this.segments.values()) {
+                segment.force();
+                segment.close();
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * getPolicy returns the FsyncPolicy of the log.
+     */
+    public FsyncPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * getSyncCount returns the number of times the log was forced to disk.
+     */
+    public long getSyncCount() {
+        return this.syncCount.get();
+    }
+
+    /**
+     * getWrittenOffset returns the offset right past the last record.
+     */
+    public long getWrittenOffset() {
+        return this.written;
+    }
+
+    /**
+     * getSyncedOffset returns the offset up to which the log is on disk.
+     */
+    public long getSyncedOffset() {
+        return this.synced;
+    }
+
+    /**
+     * getSegmentCount returns the number of live segments.
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * append appends a personal or topic message to the log.
+     */
+    private LogMessage append(byte type, String name, long deadline, IMessage message) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if(nameBytes.length > Short.MAX_VALUE) {
+            throw new WriteAheadLogException("Destination name too long: " + nameBytes.length + " bytes.");
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(2 + nameBytes.length + ((type == topicRecord) ? 8 : 0));
+        head.putShort((short) nameBytes.length).put(nameBytes);
+        if(type == topicRecord) {
+            head.putLong(deadline);
+        }
+
+        this.appendLock.lock();
+        try {
+            return this.write(type, head.array(), message);
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * write writes a single record made up of the given type, head and
+     * optional payload to the active segment; rolling it if need be.
+     * <p>
+     * It must be called under the appendLock.
+     *
+     * @return  LogMessage  the view of the payload within the log; or null if
+     *                      there was no payload.
+     */
+    private LogMessage write(byte type, byte[] head, IMessage payload) {
+        int payloadLength = (payload == null) ? 0 : payload.getByteLength();
+        long bodyLength = 1L + head.length + payloadLength;
+        long recordLength = recordHeaderBytes + bodyLength;
+
+        if(recordLength > Integer.MAX_VALUE) {
+            throw new WriteAheadLogException("Record too large: " + recordLength + " bytes.");
+        }
+
+        LogSegment segment = this.active;
+        if(segment.position + recordLength > segment.getCapacity()) {
+            segment = this.roll(recordLength);
+        }
+
+        int position = segment.position;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position + recordHeaderBytes);
+        buffer.put(type).put(head);
+
+        int payloadPosition = buffer.position();
+        if(payload != null) {
+            buffer.put(payload.getByteValue());
+        }
+
+        ByteBuffer body = segment.buffer.duplicate();
+        body.position(position + recordHeaderBytes).limit((int) (position + recordLength));
+        this.crc.reset();
+        this.crc.update(body);
+
+        // the size goes in last so that a torn record reads as the end:
+        segment.buffer.putInt(position + 4, (int) this.crc.getValue());
+        segment.buffer.putInt(position, (int) bodyLength);
+        segment.position += (int) recordLength;
+        this.written = segment.getEnd();
+
+        if(payload == null) {
+            return null;
+        }
+
+        if(type == topicRecord) {
+            segment.updateDeadline(ByteBuffer.wrap(head, head.length - 8, 8).getLong());
+        } else {
+            segment.live.incrementAndGet();
+        }
+
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(payloadPosition).limit(payloadPosition + payloadLength);
+
+        return new LogMessage(view, segment, segment.base + position, segment.getEnd());
+    }
+
+    /**
+     * roll forces the active segment to disk and starts a new one large
+     * enough for a record of the given length.
+     * <p>
+     * An active segment holding no records at all, as one whose file was
+     * left empty by a crash, ends where it begins; its file is then mapped
+     * anew, large enough, rather than opened a second time alongside it.
+     * It must be called under the appendLock.
+     */
+    private LogSegment roll(long recordLength) {
+        LogSegment previous = this.active;
+
+        if(previous.position == 0) {
+            previous.close();
+        } else if(this.policy != FsyncPolicy.NEVER) {
+            previous.force();
+        }
+
+        long base = previous.getEnd();
+        try {
+            this.active = new LogSegment(this.directory, base, Math.max(this.segmentBytes, recordLength));
+        } catch(IOException e) {
+            throw new WriteAheadLogException("Could not roll a new log segment.", e);
+        }
+        this.segments.put(base, this.active);
+
+        this.collect();
+
+        return this.active;
+    }
+
+    /**
+     * collect deletes the oldest segments for as long as they are reclaimable;
+     * the active segment never being deleted.
+     * <p>
+     * Segments are only ever deleted oldest first; as the acks of a segment's
+     * messages are always to be found in later segments.
+     */
+    private void collect() {
+        long now = System.currentTimeMillis();
+
+        this.appendLock.lock();
+        try {
+            for(Map.Entry<Long, LogSegment> entry : this.segments.entrySet()) {
+                LogSegment segment = entry.getValue();
+
+                if(segment == this.active || !segment.isReclaimable(now)) {
+                    break;
+                }
+
+                this.segments.remove(entry.getKey());
+                segment.delete();
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * flushLoop is the main loop of the flusher Thread.
+     */
+    private void flushLoop() {
+        long lastCollect = System.currentTimeMillis();
+
+        while(true) {
+            this.syncLock.lock();
+            try {
+                if(this.policy == FsyncPolicy.ALWAYS) {
+                    while(!this.closed && this.written <= this.synced) {
+                        this.flushRequested.await(collectIntervalMillis, TimeUnit.MILLISECONDS);
+
+                        if(System.currentTimeMillis() - lastCollect >= collectIntervalMillis) {
+                            break;
+                        }
+                    }
+                } else if(!this.closed) {
+                    this.flushRequested.await(this.fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                this.syncLock.unlock();
+            }
+
+            if(this.closed) {
+                return;
+            }
+
+            // everything up to written is within the mapping of the active
+            // segment; or of a previous one, which was forced upon rolling:
+            long target = this.written;
+            if(target > this.synced) {
+                this.active.force();
+                this.syncCount.incrementAndGet();
+
+                this.syncLock.lock();
+                try {
+                    this.synced = target;
+                    this.flushed.signalAll();
+                } finally {
+                    this.syncLock.unlock();
+                }
+            }
+
+            if(System.currentTimeMillis() - lastCollect >= collectIntervalMillis) {
+                lastCollect = System.currentTimeMillis();
+                this.collect();
+            }
+        }
+    }
+
+    /**
+     * scan opens all the segments within the directory in log order and scans
+     * their records; returning the messages which were neither acknowledged
+     * nor timed out.
+     * <p>
+     * The scan of a segment stops at the first record which is unwritten,
+     * torn or corrupted; the last segment being appended to from there on.
+     */
+    private List<LogRecord> scan() throws IOException {
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if(files == null) {
+            throw new IOException("Could not list log directory " + this.directory + ".");
+        }
+        Arrays.sort(files);
+
+        LinkedHashMap<Long, LogRecord> records = new LinkedHashMap<Long, LogRecord>();
+        CRC32 checksum = new CRC32();
+
+        for(File file : files) {
+            long base;
+            try {
+                base = Long.parseLong(file.getName().substring(8, file.getName().length() - 4));
+            } catch(NumberFormatException e) {
+                continue;
+            }
+
+            LogSegment segment = new LogSegment(this.directory, base, 0);
+            this.segments.put(base, segment);
+            this.active = segment;
+
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+
+            while(position + recordHeaderBytes < buffer.capacity()) {
+                int bodyLength = buffer.getInt(position);
+                if(bodyLength <= 0 || bodyLength > buffer.capacity() - position - recordHeaderBytes) {
+                    break;
+                }
+
+                int bodyPosition = position + recordHeaderBytes;
+                ByteBuffer body = buffer.duplicate();
+                body.position(bodyPosition).limit(bodyPosition + bodyLength);
+                checksum.reset();
+                checksum.update(body);
+                if((int) checksum.getValue() != buffer.getInt(position + 4)) {
+                    logger.warn("Log segment is corrupted; ignoring the rest of it.", "file", file, "position", position);
+                    break;
+                }
+
+                long offset = base + position;
+                long end = offset + recordHeaderBytes + bodyLength;
+                byte type = buffer.get(bodyPosition);
+
+                if(type == ackRecord) {
+                    LogRecord acked = records.remove(buffer.getLong(bodyPosition + 1));
+                    if(acked != null) {
+                        acked.getMessage().segment.live.decrementAndGet();
+                    }
+                } else if(type == personalRecord || type == topicRecord) {
+                    int nameLength = buffer.getShort(bodyPosition + 1);
+                    byte[] name = new byte[nameLength];
+                    buffer.duplicate().position(bodyPosition + 3).get(name);
+
+                    int payloadPosition = bodyPosition + 3 + nameLength;
+                    long deadline = 0;
+                    if(type == topicRecord) {
+                        deadline = buffer.getLong(payloadPosition);
+                        payloadPosition += 8;
+                    }
+
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(payloadPosition).limit(bodyPosition + bodyLength);
+
+                    LogMessage message = new LogMessage(view, segment, offset, end);
+                    records.put(offset, new LogRecord(type == topicRecord, new String(name, StandardCharsets.UTF_8), deadline, message));
+                    if(type == personalRecord) {
+                        segment.live.incrementAndGet();
+                    }
+                }
+
+                position = (int) (end - base);
+            }
+
+            segment.position = position;
+        }
+
+        // timed out topic messages are not recovered; nor do they hold on to
+        // their segments:
+        long now = System.currentTimeMillis();
+        ArrayList<LogRecord> result = new ArrayList<LogRecord>(records.size());
+
+        for(LogRecord record : records.values()) {
+            if(record.isTopic()) {
+                if(record.getDeadline() <= now) {
+                    continue;
+                }
+
+                record.getMessage().segment.updateDeadline(record.getDeadline());
+            }
+
+            result.add(record);
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.bajetii.messageserver.server.storage.exceptions;
+
+
+/**
+ * WriteAheadLogException is thrown whenever the WriteAheadLog fails to write
+ * to or read from its segments.
+ * <p>
+ * It wraps the underlying IOException into a RuntimeException; as the last
+ * thing the queues need is to start declaring checked exceptions.
+ */
+public class WriteAheadLogException extends RuntimeException {
+
+    public WriteAheadLogException(String message) {
+        super(message);
+    }
+
+    public WriteAheadLogException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
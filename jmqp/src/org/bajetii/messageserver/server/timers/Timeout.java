@@ -0,0 +1,73 @@
+package org.bajetii.messageserver.server.timers;
+
+
+/**
+ * Timeout is the handle of a single task scheduled on a TimerWheel.
+ * <p>
+ * It holds the moment the task is due at alongside the task itself, and
+ * allows for the task to be cancelled before it gets run.
+ */
+public class Timeout {
+
+    /**
+     * deadline is the moment in milliseconds since the epoch at which the
+     * task is due to be run.
+     */
+    private final long deadline;
+
+    /**
+     * task is the Runnable which will be run once the deadline has passed.
+     */
+    private final Runnable task;
+
+    /**
+     * tick is the absolute tick of the owning TimerWheel the Timeout falls
+     * on. It is only ever touched by the thread of the TimerWheel.
+     */
+    long tick;
+
+    /**
+     * cancelled marks whether the Timeout was cancelled before running.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * A Timeout is created provided its deadline and the task to be run.
+     * <p>
+     * @param   deadline    the moment in milliseconds the task is due at.
+     * @param   task        the Runnable to be run upon the deadline.
+     */
+    Timeout(long deadline, Runnable task) {
+        this.deadline = deadline;
+        this.task = task;
+    }
+
+    /**
+     * getDeadline returns the moment in milliseconds the task is due at.
+     */
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * cancel prevents the task from being run if it had not been already.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * isCancelled returns whether or not the Timeout was cancelled.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * getTask returns the Runnable to be run once the deadline has passed.
+     */
+    Runnable getTask() {
+        return this.task;
+    }
+
+}
@@ -0,0 +1,356 @@
+package org.bajetii.messageserver.server.timers;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bajetii.messageserver.server.logging.Logger;
+
+
+/**
+ * TimerWheel is a hierarchical timing wheel which runs scheduled tasks once
+ * their deadline has passed.
+ * <p>
+ * It is meant to be shared server-wide: all of its work is done on a single
+ * daemon Thread no matter how many queues schedule tasks on it.
+ * Scheduling a task only appends it to a lock-free pending queue, which the
+ * wheel's Thread drains on every tick. Placing a task takes a step per level
+ * at most; and tasks due further than a level's span away are cascaded down
+ * the levels as time goes by, at most once per level. Running a task thus
+ * costs O(levels) amortized; that is, a constant. This does not hold for:
+ *  - tasks due past the span of the whole wheel; which are parked on its
+ *    last level, and placed again every time it comes around. They cost an
+ *    extra placement per span of delay.
+ *  - cancelled tasks; which are not unlinked, but keep their slot and get
+ *    cascaded until their deadline. They cost as much as live ones.
+ *  - the wheel's Thread; which advances a tick at a time whether or not any
+ *    task is due, so that catching up after a stall costs a step per tick
+ *    missed.
+ * What the task itself costs is up to it: the sweep of a TopicMessageQueue
+ * costs O(log n) per message it expires (see DeadlineIndex).
+ */
+public class TimerWheel {
+
+    /**
+     * logger is the Logger of the TimerWheels.
+     */
+    private static final Logger logger = Logger.getLogger(TimerWheel.class);
+
+    /**
+     * wheelBits is the number of bits of the tick each level of the wheel
+     * accounts for; with wheelSize being the resulting number of slots.
+     */
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelMask = wheelSize - 1;
+
+    /**
+     * levels is the number of levels of the wheel; with span being the number
+     * of ticks they can cover together.
+     */
+    private static final int levels = 4;
+    private static final long span = 1L << (wheelBits * levels);
+
+    /**
+     * tickMillis is the duration in milliseconds of a single tick.
+     */
+    private final long tickMillis;
+
+    /**
+     * startTime is the moment in milliseconds all ticks are relative to.
+     */
+    private final long startTime;
+
+    /**
+     * currentTick is the last tick which was processed.
+     * It is only ever touched by the wheel's Thread.
+     */
+    private long currentTick = 0;
+
+    /**
+     * slots holds the lists of Timeouts of each slot of each level.
+     * They are only ever touched by the wheel's Thread.
+     */
+    private final ArrayList<ArrayList<Timeout>> slots;
+
+    /**
+     * pending holds all the newly scheduled Timeouts which have yet to be
+     * placed on the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * thread is the Thread which drives the wheel; or null if it is driven
+     * through tick instead.
+     */
+    private final Thread thread;
+
+    /**
+     * running marks whether or not the wheel should keep on ticking.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * expiredCount is the total number of tasks which have been run.
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * expirationsPerSecond is the rate of tasks run over the last second.
+     */
+    private volatile long expirationsPerSecond = 0;
+
+    /**
+     * lastLagMillis and maxLagMillis record how late the wheel's Thread woke
+     * up for the last tick, respectively for the worst tick so far.
+     */
+    private volatile long lastLagMillis = 0;
+    private volatile long maxLagMillis = 0;
+
+    /**
+     * A TimerWheel is created provided the duration of its tick.
+     * <p>
+     * The resolution of all deadlines is that of the tick; tasks are never
+     * run before their deadline, but may be run up to a tick later.
+     *
+     * @param   tickMillis  the duration in milliseconds of a tick.
+     */
+    public TimerWheel(long tickMillis) {
+        this(tickMillis, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * A TimerWheel can also be created provided the moment its ticks are
+     * relative to; and without a Thread of its own, in which case it is only
+     * ever driven through tick.
+     */
+    TimerWheel(long tickMillis, long startTime, boolean threaded) {
+        if(tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+        }
+
+        this.tickMillis = tickMillis;
+        this.startTime = startTime;
+
+        this.slots = new ArrayList<ArrayList<Timeout>>(levels * wheelSize);
+        for(int i = 0; i < levels * wheelSize; i++) {
+            this.slots.add(new ArrayList<Timeout>());
+        }
+
+        if(!threaded) {
+            this.thread = null;
+            return;
+        }
+
+        this.thread = new Thread(new WheelRunnable(), "jmqp-timer-wheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * schedule schedules the given task to be run once the given deadline
+     * has passed.
+     * <p>
+     * The task will be run on the wheel's Thread; and should thus be short.
+     *
+     * @param   deadline    the moment in milliseconds the task is due at.
+     * @param   task        the Runnable to be run.
+     * @return  Timeout     the handle of the scheduled task.
+     */
+    public Timeout schedule(long deadline, Runnable task) {
+        Timeout timeout = new Timeout(deadline, task);
+
+        this.pending.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * stop stops the wheel's Thread. Any tasks not yet run are dropped.
+     */
+    public void stop() {
+        this.running = false;
+
+        if(this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * getTickMillis returns the duration in milliseconds of a tick.
+     */
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+
+    /**
+     * getExpiredCount returns the total number of tasks run so far.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * getExpirationsPerSecond returns the number of tasks run over the
+     * last second.
+     */
+    public long getExpirationsPerSecond() {
+        return this.expirationsPerSecond;
+    }
+
+    /**
+     * getLastLagMillis returns how many milliseconds late the last tick was.
+     */
+    public long getLastLagMillis() {
+        return this.lastLagMillis;
+    }
+
+    /**
+     * getMaxLagMillis returns how many milliseconds late the worst tick was.
+     */
+    public long getMaxLagMillis() {
+        return this.maxLagMillis;
+    }
+
+    /**
+     * tick places all the pending Timeouts and advances the wheel up to the
+     * given moment; expiring whichever Timeouts are due by then.
+     * It is only ever called by the wheel's Thread, if it has one.
+     *
+     * @param   now the current moment in milliseconds.
+     */
+    void tick(long now) {
+        Timeout timeout;
+        while((timeout = this.pending.poll()) != null) {
+            timeout.tick = (timeout.getDeadline() - this.startTime + this.tickMillis - 1) / this.tickMillis;
+            this.place(timeout);
+        }
+
+        // catch up on all the ticks which are due; one at a time:
+        long dueTick = (now - this.startTime) / this.tickMillis;
+        while(this.currentTick < dueTick) {
+            this.advance();
+        }
+    }
+
+    /**
+     * place puts the given Timeout in the appropriate slot of the wheel; or
+     * runs it straight away if it is already due.
+     * <p>
+     * Timeouts which are due further than the whole span of the wheel are
+     * parked on the last level, and get re-placed once cascaded.
+     */
+    private void place(Timeout timeout) {
+        long delta = timeout.tick - this.currentTick;
+
+        if(delta <= 0) {
+            this.expire(timeout);
+            return;
+        }
+
+        long tick = (delta < span) ? timeout.tick : this.currentTick + span - 1;
+        delta = tick - this.currentTick;
+
+        int level = 0;
+        while(delta >= (1L << (wheelBits * (level + 1)))) {
+            level++;
+        }
+
+        int slot = (int) ((tick >> (wheelBits * level)) & wheelMask);
+        this.slots.get(level * wheelSize + slot).add(timeout);
+    }
+
+    /**
+     * expire runs the task of the given Timeout unless it was cancelled.
+     */
+    private void expire(Timeout timeout) {
+        if(timeout.isCancelled()) {
+            return;
+        }
+
+        try {
+            timeout.getTask().run();
+        } catch(RuntimeException e) {
+            logger.error("A timeout's task failed.", e);
+        }
+
+        this.expiredCount.incrementAndGet();
+    }
+
+    /**
+     * advance moves the wheel forward by a single tick; cascading down any
+     * higher level slots which are now due and expiring the Timeouts in the
+     * current slot of the first level.
+     */
+    private void advance() {
+        this.currentTick++;
+
+        for(int level = levels - 1; level > 0; level--) {
+            if((this.currentTick & ((1L << (wheelBits * level)) - 1)) != 0) {
+                continue;
+            }
+
+            int slot = (int) ((this.currentTick >> (wheelBits * level)) & wheelMask);
+            ArrayList<Timeout> cascaded = this.slots.set(level * wheelSize + slot, new ArrayList<Timeout>());
+            for(Timeout timeout : cascaded) {
+                this.place(timeout);
+            }
+        }
+
+        int slot = (int) (this.currentTick & wheelMask);
+        ArrayList<Timeout> due = this.slots.set(slot, new ArrayList<Timeout>());
+        for(Timeout timeout : due) {
+            this.expire(timeout);
+        }
+    }
+
+    /**
+     * WheelRunnable is the Runnable driving the wheel; it sleeps up until
+     * the next tick is due, places all pending Timeouts and advances the
+     * wheel, keeping track of its lag and throughput along the way.
+     */
+    private class WheelRunnable implements Runnable {
+
+        /**
+         * windowStart and windowCount are the moment the current one second
+         * window of expirations started at and the expired count back then.
+         */
+        private long windowStart = System.currentTimeMillis();
+        private long windowCount = 0;
+
+        public void run() {
+            TimerWheel wheel = TimerWheel.this;
+
+            while(wheel.running) {
+                long target = wheel.startTime + (wheel.currentTick + 1) * wheel.tickMillis;
+                long now = System.currentTimeMillis();
+
+                if(now < target) {
+                    try {
+                        Thread.sleep(target - now);
+                    } catch(InterruptedException e) {
+                        continue;
+                    }
+                    now = System.currentTimeMillis();
+                }
+
+                long lag = now - target;
+                wheel.lastLagMillis = lag;
+                if(lag > wheel.maxLagMillis) {
+                    wheel.maxLagMillis = lag;
+                }
+
+                wheel.tick(now);
+
+                if(now - this.windowStart >= 1000) {
+                    long count = wheel.expiredCount.get();
+                    wheel.expirationsPerSecond = (count - this.windowCount) * 1000 / (now - this.windowStart);
+                    this.windowCount = count;
+                    this.windowStart = now;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * IBufferedBody represents a request body which the transport already holds
+ * whole in memory, in an array of its own.
+ * <p>
+ * Handlers finding the request body of an HttpExchange to be one may take
+ * its bytes over as they are; rather than read them through the InputStream,
+ * and copy them all over again.
+ */
+public interface IBufferedBody {
+
+    /**
+     * takeBody returns the bytes of the body which have yet to be read; which
+     * are then marked as read.
+     * <p>
+     * The bytes are not copied; they belong to the caller from then on, and
+     * are not touched by the transport anymore.
+     */
+    public ByteBuffer takeBody();
+
+}
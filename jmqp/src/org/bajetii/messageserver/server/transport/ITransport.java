@@ -0,0 +1,38 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpHandler;
+
+
+/**
+ * ITransport represents the network front end through which the requests
+ * reach the MessagingServer's handlers.
+ * <p>
+ * Transports are free to implement the networking however they please, so
+ * long as they dispatch each request to the HttpHandler registered for the
+ * longest matching path prefix, in the form of an HttpExchange.
+ */
+public interface ITransport {
+
+    /**
+     * createContext registers the given HttpHandler for all the requests
+     * whose path starts with the given prefix.
+     * <p>
+     * Contexts should all be created before the transport is started.
+     */
+    public void createContext(String path, HttpHandler handler);
+
+    /**
+     * start binds the transport to its address and starts serving requests.
+     */
+    public void start() throws IOException;
+
+    /**
+     * stop stops serving requests and releases all of the transport's
+     * resources.
+     */
+    public void stop();
+
+}
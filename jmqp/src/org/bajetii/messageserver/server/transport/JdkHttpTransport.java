@@ -0,0 +1,73 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * JdkHttpTransport is the ITransport backed by the JDK's built-in
+ * com.sun.net.httpserver.HttpServer.
+ * <p>
+ * Requests are handled on a pool of worker Threads; or on virtual Threads;
+ * rather than on the HttpServer's single dispatcher Thread.
+ */
+public class JdkHttpTransport implements ITransport {
+
+    /**
+     * server is the underlying HttpServer.
+     */
+    private HttpServer server;
+
+    /**
+     * executor is the pool of worker Threads running the handlers.
+     */
+    private ExecutorService executor;
+
+    /**
+     * A JdkHttpTransport is created provided the port it should listen on,
+     * the backlog of its listening socket and the number of worker Threads.
+     * <p>
+     * @param   port    the port to be listened on.
+     * @param   backlog the maximum number of pending connections.
+     * @param   workers the number of worker Threads.
+     */
+    public JdkHttpTransport(int port, int backlog, int workers) throws IOException {
+        this(port, backlog, WorkerPools.fixed(workers));
+    }
+
+    /**
+     * A JdkHttpTransport can also be created provided the ExecutorService
+     * the handlers should be run on; such as one of virtual Threads.
+     * <p>
+     * @param   port        the port to be listened on.
+     * @param   backlog     the maximum number of pending connections.
+     * @param   executor    the ExecutorService running the handlers.
+     */
+    public JdkHttpTransport(int port, int backlog, ExecutorService executor) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), backlog);
+        this.executor = executor;
+        this.server.setExecutor(this.executor);
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler) {
+        this.server.createContext(path, handler);
+    }
+
+    @Override
+    public void start() {
+        this.server.start();
+    }
+
+    @Override
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+}
@@ -0,0 +1,602 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+
+/**
+ * NioHttpConnection holds the state of a single keep-alive connection of the
+ * NioHttpTransport.
+ * <p>
+ * All of its methods are called on the transport's selector Thread; save for
+ * respond() and stream(), which hand the response over to the selector Thread.
+ * Pipelined requests are parsed as soon as they arrive and queued; they are
+ * however dispatched to the handlers one at a time, so that the responses are
+ * sent out in the order the requests came in.
+ */
+class NioHttpConnection {
+
+    /**
+     * initialBufferSize is the initial size of the input buffer.
+     */
+    private static final int initialBufferSize = 8192;
+
+    /**
+     * maxHeaderBytes is the maximum size of the request line and headers.
+     */
+    private static final int maxHeaderBytes = 64 * 1024;
+
+    /**
+     * maxPipelined is the maximum number of parsed requests queued up on the
+     * connection; beyond which reading off the socket is paused.
+     */
+    private static final int maxPipelined = 64;
+
+    /**
+     * continueResponse is the interim response sent to clients expecting
+     * a 100-continue before sending the request body.
+     */
+    private static final byte[] continueResponse = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * streamHighWaterBytes is the number of bytes which may be pending on the
+     * connection before a streamed response gets held back.
+     */
+    private static final long streamHighWaterBytes = 64 * 1024;
+
+    /**
+     * maxLingerBytes is the maximum number of bytes of a rejected request
+     * body which are read off the socket, and thrown away, before closing it.
+     */
+    private static final long maxLingerBytes = 1024 * 1024;
+
+    /**
+     * maxGatheredBuffers is the maximum number of pending buffers written to
+     * the socket at once.
+     */
+    private static final int maxGatheredBuffers = 64;
+
+    /**
+     * transport is the NioHttpTransport the connection belongs to.
+     */
+    private final NioHttpTransport transport;
+
+    /**
+     * channel is the SocketChannel of the connection; with key being its
+     * registration on the transport's Selector.
+     */
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    /**
+     * in is the input buffer; holding unparsed bytes between inStart and inEnd.
+     */
+    private byte[] in = new byte[initialBufferSize];
+    private int inStart = 0;
+    private int inEnd = 0;
+
+    /**
+     * continueSent marks whether a 100-continue was sent for the request
+     * currently being read.
+     */
+    private boolean continueSent = false;
+
+    /**
+     * pipeline holds the parsed requests which have yet to be dispatched.
+     */
+    private final ArrayDeque<NioHttpExchange> pipeline = new ArrayDeque<NioHttpExchange>();
+
+    /**
+     * inFlight marks whether a request is currently being handled.
+     */
+    private boolean inFlight = false;
+
+    /**
+     * outbound holds the buffers which have yet to be written to the socket.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * outboundBytes is the number of bytes which have yet to be written to
+     * the socket; it is counted from any Thread, so that streamed responses
+     * can be held back whilst the client is behind.
+     */
+    private final AtomicLong outboundBytes = new AtomicLong(0);
+
+    /**
+     * gathered holds the pending buffers being written to the socket at once.
+     */
+    private final ByteBuffer[] gathered = new ByteBuffer[maxGatheredBuffers];
+
+    /**
+     * drainLock and drained are what the Threads streaming out a response
+     * wait on for the pending output to drain; with streaming marking that
+     * they are to be signalled.
+     */
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = this.drainLock.newCondition();
+    private volatile boolean streaming = false;
+
+    /**
+     * closed marks whether the connection was closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * closing marks that no further requests are to be read and that the
+     * connection should be closed once all responses are written out.
+     */
+    private boolean closing = false;
+
+    /**
+     * lingerBytes is the number of bytes of a rejected request body which
+     * are still to be thrown away once its response is written out; with
+     * lingering marking that this is what the connection is doing.
+     * <p>
+     * Closing the socket with the body still coming in would have it reset;
+     * and the client, still busy writing, would then likely never get to
+     * read why. The output is shut down instead; and the connection is
+     * closed once the body was received, or the client closed its end.
+     */
+    private long lingerBytes = 0;
+    private boolean lingering = false;
+
+    /**
+     * A NioHttpConnection is created provided the transport it belongs to and
+     * its freshly accepted SocketChannel.
+     */
+    NioHttpConnection(NioHttpTransport transport, SocketChannel channel) {
+        this.transport = transport;
+        this.channel = channel;
+    }
+
+    /**
+     * setKey sets the SelectionKey of the connection's registration.
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) this.channel.getRemoteAddress();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) this.channel.getLocalAddress();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * onReadable reads whatever is available off the socket; parses all the
+     * complete requests within and dispatches the next one if possible.
+     */
+    void onReadable() throws IOException {
+        if(this.lingering) {
+            this.discard();
+            return;
+        }
+
+        if(this.inEnd == this.in.length) {
+            this.makeRoom();
+        }
+
+        int read = this.channel.read(ByteBuffer.wrap(this.in, this.inEnd, this.in.length - this.inEnd));
+        if(read < 0) {
+            this.close();
+            return;
+        }
+        this.inEnd += read;
+
+        this.parseRequests();
+        this.dispatchNext();
+        this.flush();
+    }
+
+    /**
+     * onWritable writes out as much of the pending output as possible.
+     */
+    void onWritable() throws IOException {
+        this.flush();
+    }
+
+    /**
+     * respond hands the serialized response of the given exchange over to the
+     * selector Thread; it may be called from any Thread.
+     */
+    void respond(NioHttpExchange exchange, ByteBuffer[] response) {
+        this.transport.runOnSelector(() -> {
+            if(!this.channel.isOpen()) {
+                return;
+            }
+
+            for(ByteBuffer buffer : response) {
+                this.enqueue(buffer);
+            }
+
+            if(!exchange.isKeepAlive()) {
+                this.closing = true;
+                this.pipeline.clear();
+            }
+
+            this.inFlight = false;
+
+            try {
+                this.parseRequests();
+                this.dispatchNext();
+                this.flush();
+            } catch(IOException e) {
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * stream hands a part of a streamed response over to the selector Thread;
+     * it may be called from any Thread.
+     * <p>
+     * The calling Thread is held back for as long as more than
+     * streamHighWaterBytes are pending on the connection; so that a client
+     * which does not keep up applies backpressure all the way to the
+     * streaming handler, rather than have its response piled up in memory.
+     *
+     * @throws  IOException if the connection is, or gets, closed.
+     */
+    void stream(ByteBuffer[] chunk) throws IOException {
+        if(this.closed) {
+            throw new IOException("The connection was closed.");
+        }
+
+        long bytes = 0;
+        for(ByteBuffer buffer : chunk) {
+            bytes += buffer.remaining();
+        }
+
+        this.streaming = true;
+        this.outboundBytes.addAndGet(bytes);
+
+        this.transport.runOnSelector(() -> {
+            if(!this.channel.isOpen()) {
+                return;
+            }
+
+            for(ByteBuffer buffer : chunk) {
+                this.outbound.add(buffer);
+            }
+
+            try {
+                this.flush();
+            } catch(IOException e) {
+                this.close();
+            }
+        });
+
+        this.drainLock.lock();
+        try {
+            while(!this.closed && this.outboundBytes.get() > streamHighWaterBytes) {
+                this.drained.await();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst streaming.");
+        } finally {
+            this.drainLock.unlock();
+        }
+
+        if(this.closed) {
+            throw new IOException("The connection was closed.");
+        }
+    }
+
+    /**
+     * close closes the connection straight away.
+     */
+    void close() {
+        if(this.key != null) {
+            this.key.cancel();
+        }
+
+        try {
+            this.channel.close();
+        } catch(IOException e) {
+            // nothing to be done.
+        }
+
+        this.closed = true;
+        this.signalDrained();
+    }
+
+    /**
+     * dispatchNext dispatches the next pipelined request; unless a request is
+     * already being handled.
+     */
+    private void dispatchNext() {
+        if(this.inFlight || this.pipeline.isEmpty()) {
+            return;
+        }
+
+        this.inFlight = true;
+        this.transport.dispatch(this.pipeline.poll());
+    }
+
+    /**
+     * flush writes out as much of the pending output as the socket accepts;
+     * updating the connection's interest set accordingly.
+     * <p>
+     * The pending buffers are written out up to maxGatheredBuffers at a time
+     * in a gathering write; so that a response made up of many parts takes
+     * no more system calls than one held in a single buffer.
+     */
+    private void flush() throws IOException {
+        while(!this.outbound.isEmpty()) {
+            int count = 0;
+            for(ByteBuffer buffer : this.outbound) {
+                this.gathered[count++] = buffer;
+                if(count == maxGatheredBuffers) {
+                    break;
+                }
+            }
+
+            this.outboundBytes.addAndGet(-this.channel.write(this.gathered, 0, count));
+            Arrays.fill(this.gathered, 0, count, null);
+
+            int written = 0;
+            while(!this.outbound.isEmpty() && !this.outbound.peek().hasRemaining()) {
+                this.outbound.poll();
+                written++;
+            }
+
+            if(written < count) {
+                break;
+            }
+        }
+
+        if(this.streaming && this.outboundBytes.get() <= streamHighWaterBytes) {
+            this.signalDrained();
+        }
+
+        if(this.outbound.isEmpty() && this.closing && !this.inFlight) {
+            if(this.lingerBytes <= 0) {
+                this.close();
+                return;
+            }
+
+            this.linger();
+        }
+
+        int ops = 0;
+        if(this.lingering || (!this.closing && this.pipeline.size() < maxPipelined)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if(!this.outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        if(this.key.isValid()) {
+            this.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * linger shuts down the output of the connection; which then goes on to
+     * throw away the rest of the rejected request body.
+     */
+    private void linger() throws IOException {
+        if(this.lingering) {
+            return;
+        }
+
+        this.lingering = true;
+        this.inStart = 0;
+        this.inEnd = 0;
+        this.channel.shutdownOutput();
+    }
+
+    /**
+     * discard reads whatever is available off the socket and throws it away;
+     * closing the connection once the rejected request body is all read, or
+     * the client closed its end.
+     */
+    private void discard() throws IOException {
+        int read = this.channel.read(ByteBuffer.wrap(this.in, 0, (int) Math.min(this.in.length, this.lingerBytes)));
+
+        if(read < 0 || (this.lingerBytes -= read) <= 0) {
+            this.close();
+        }
+    }
+
+    /**
+     * enqueue adds the given buffer to the pending output.
+     */
+    private void enqueue(ByteBuffer buffer) {
+        this.outboundBytes.addAndGet(buffer.remaining());
+        this.outbound.add(buffer);
+    }
+
+    /**
+     * signalDrained wakes up the Threads waiting for the pending output of a
+     * streamed response to drain.
+     */
+    private void signalDrained() {
+        if(!this.streaming) {
+            return;
+        }
+
+        this.drainLock.lock();
+        try {
+            this.drained.signalAll();
+        } finally {
+            this.drainLock.unlock();
+        }
+    }
+
+    /**
+     * makeRoom compacts the input buffer; or grows it if it is full of a
+     * single partially received request.
+     */
+    private void makeRoom() {
+        if(this.inStart > 0) {
+            System.arraycopy(this.in, this.inStart, this.in, 0, this.inEnd - this.inStart);
+            this.inEnd -= this.inStart;
+            this.inStart = 0;
+        } else {
+            this.in = Arrays.copyOf(this.in, this.in.length * 2);
+        }
+    }
+
+    /**
+     * parseRequests parses all the complete requests currently buffered and
+     * queues them up on the pipeline.
+     */
+    private void parseRequests() {
+        while(!this.closing && this.pipeline.size() < maxPipelined) {
+            NioHttpExchange exchange = this.parseRequest();
+
+            if(exchange == null) {
+                break;
+            }
+
+            this.pipeline.add(exchange);
+            if(!exchange.isKeepAlive()) {
+                this.closing = true;
+            }
+        }
+    }
+
+    /**
+     * parseRequest attempts to parse a single request off the input buffer.
+     * <p>
+     * @return  NioHttpExchange the parsed request; or null if the request is
+     *          not yet fully received.
+     */
+    private NioHttpExchange parseRequest() {
+        int headerEnd = this.indexOfHeaderEnd();
+
+        if(headerEnd < 0) {
+            if(this.inEnd - this.inStart > maxHeaderBytes) {
+                return new NioHttpExchange(this, 431, "431 : RequestHeaderFieldsTooLarge :: Request headers too large.");
+            }
+            return null;
+        }
+
+        String head = new String(this.in, this.inStart, headerEnd - this.inStart, StandardCharsets.ISO_8859_1);
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+
+        if(requestLine.length != 3) {
+            return new NioHttpExchange(this, 400, "400 : BadRequest :: Malformed request line.");
+        }
+
+        Headers headers = new Headers();
+        for(int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if(colon <= 0) {
+                return new NioHttpExchange(this, 400, "400 : BadRequest :: Malformed header line.");
+            }
+
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+
+        if(headers.containsKey("Transfer-Encoding")) {
+            return new NioHttpExchange(this, 411, "411 : LengthRequired :: Chunked request bodies are not supported.");
+        }
+
+        long contentLength = 0;
+        if(headers.containsKey("Content-Length")) {
+            try {
+                contentLength = Long.parseLong(headers.getFirst("Content-Length"));
+            } catch(NumberFormatException e) {
+                return new NioHttpExchange(this, 400, "400 : BadRequest :: Could not parse 'Content-Length'.");
+            }
+        }
+
+        int bodyStart = headerEnd + 4;
+        String expect = headers.getFirst("Expect");
+        boolean expectsContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+
+        if(contentLength < 0 || contentLength > this.transport.getMaxBodyBytes()) {
+            // a client waiting for a 100-continue never sends the body; any
+            // other one is likely sending it already:
+            if(!expectsContinue) {
+                this.lingerBytes = Math.min(contentLength, maxLingerBytes) - (this.inEnd - bodyStart);
+            }
+            return new NioHttpExchange(this, 413, "413 : PayloadTooLarge :: Request body too large.");
+        }
+
+        if(this.inEnd - bodyStart < contentLength) {
+            // the body has yet to be received whole; send a 100-continue if
+            // the client is waiting for one. The input buffer is grown as the
+            // body comes in, rather than to the announced length up front:
+            if(!this.continueSent && expectsContinue) {
+                this.continueSent = true;
+                this.enqueue(ByteBuffer.wrap(continueResponse));
+            }
+            return null;
+        }
+
+        // the body is copied out of the input buffer, which is reused for
+        // the requests pipelined after it; this is the only copy it takes, as
+        // handlers may take the copy over as it is through IBufferedBody:
+        byte[] body = Arrays.copyOfRange(this.in, bodyStart, bodyStart + (int) contentLength);
+        this.inStart = bodyStart + (int) contentLength;
+        this.continueSent = false;
+
+        if(this.inStart == this.inEnd) {
+            this.inStart = 0;
+            this.inEnd = 0;
+        }
+
+        String connection = headers.getFirst("Connection");
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1")
+            ? (connection == null || !connection.equalsIgnoreCase("close"))
+            : (connection != null && connection.equalsIgnoreCase("keep-alive"));
+
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch(URISyntaxException e) {
+            return new NioHttpExchange(this, 400, "400 : BadRequest :: Malformed request URI.");
+        }
+
+        HttpHandler handler = this.transport.findHandler(uri.getPath());
+
+        return new NioHttpExchange(this, handler, requestLine[0], uri, requestLine[2], headers, body, keepAlive);
+    }
+
+    /**
+     * indexOfHeaderEnd returns the index of the CRLFCRLF ending the headers of
+     * the buffered request; or -1 if they have not been received whole yet.
+     */
+    private int indexOfHeaderEnd() {
+        for(int i = this.inStart; i + 3 < this.inEnd; i++) {
+            if(this.in[i] == '\r' && this.in[i + 1] == '\n' && this.in[i + 2] == '\r' && this.in[i + 3] == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,618 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+
+/**
+ * NioHttpExchange is the HttpExchange implementation handed to the handlers
+ * by the NioHttpTransport.
+ * <p>
+ * The whole request body is already in memory by the time the exchange is
+ * dispatched, and is an IBufferedBody the handler may take over; and the
+ * response body is buffered up until it is closed, upon
+ * which the complete response is handed back to the connection's selector
+ * Thread for writing.
+ * The response body is also a WritableByteChannel: the ByteBuffers written
+ * to it through that are held on to as they are rather than copied, and
+ * written out alongside the rest of the response in a gathering write.
+ * Just like with the JDK's HttpServer; the response may be completed from any
+ * Thread, and long after the handler has returned.
+ * <p>
+ * Responses whose headers are sent with a length of 0 are streamed instead:
+ * they are sent out with a chunked Transfer-Encoding, every flush of the
+ * response body sending out what was written so far as a chunk; and the
+ * exchange only being completed once the response body is closed.
+ */
+class NioHttpExchange extends HttpExchange {
+
+    /**
+     * connection is the NioHttpConnection the request was read from.
+     */
+    private final NioHttpConnection connection;
+
+    /**
+     * handler is the HttpHandler the request should be dispatched to; or null
+     * if the request is to be answered straight away with the errorCode.
+     */
+    private final HttpHandler handler;
+
+    /**
+     * errorCode and errorMessage are the response to be sent for requests
+     * which could not be parsed or routed.
+     */
+    private final int errorCode;
+    private final String errorMessage;
+
+    /**
+     * method, uri and protocol are the contents of the request line.
+     */
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+
+    /**
+     * requestHeaders and responseHeaders are the headers of the request and
+     * the response respectively.
+     */
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+
+    /**
+     * keepAlive marks whether the connection is to be kept alive after the
+     * response is sent.
+     */
+    private boolean keepAlive;
+
+    /**
+     * attributes holds the attributes set on the exchange.
+     */
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    /**
+     * requestBody and responseBody are the streams of the exchange; which may
+     * be overridden through setStreams.
+     */
+    private InputStream requestBody;
+    private OutputStream responseBody;
+
+    /**
+     * buffer holds the bytes of the response body written so far.
+     */
+    private final ResponseBuffer buffer = new ResponseBuffer();
+
+    /**
+     * responseCode is the code of the response; or -1 if the response
+     * headers have not been sent yet.
+     */
+    private int responseCode = -1;
+
+    /**
+     * committed marks whether the response was handed back to the connection.
+     */
+    private boolean committed = false;
+
+    /**
+     * streaming marks whether the response is streamed out in chunks; with
+     * headersSent marking whether its head was already sent out.
+     */
+    private boolean streaming = false;
+    private boolean headersSent = false;
+
+    /**
+     * crlf and lastChunk are the delimiter of chunks and the chunk ending a
+     * streamed response respectively.
+     */
+    private static final byte[] crlf = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] lastChunk = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * A NioHttpExchange is created provided the connection it was read from,
+     * the HttpHandler it is to be dispatched to and the parsed request; whose
+     * body is not copied, and may be taken over by the handler.
+     */
+    NioHttpExchange(NioHttpConnection connection, HttpHandler handler, String method, URI uri,
+            String protocol, Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.handler = handler;
+        this.errorCode = 404;
+        this.errorMessage = "404 : ErrorMissing :: No context found for request.";
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.requestBody = new RequestBody(body);
+        this.responseBody = this.buffer;
+    }
+
+    /**
+     * A NioHttpExchange can also be created for a request which is to be
+     * answered with the given error straight away; after which the connection
+     * is closed.
+     */
+    NioHttpExchange(NioHttpConnection connection, int errorCode, String errorMessage) {
+        this.connection = connection;
+        this.handler = null;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+        this.method = "";
+        this.uri = URI.create("/");
+        this.protocol = "HTTP/1.1";
+        this.requestHeaders = new Headers();
+        this.keepAlive = false;
+        this.requestBody = new RequestBody(new byte[0]);
+        this.responseBody = this.buffer;
+    }
+
+    /**
+     * getHandler returns the HttpHandler the exchange is to be dispatched to.
+     */
+    HttpHandler getHandler() {
+        return this.handler;
+    }
+
+    /**
+     * isKeepAlive returns whether the connection is to be kept alive after
+     * the response of this exchange.
+     */
+    boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * isStreaming returns whether the response is streamed out in chunks.
+     */
+    synchronized boolean isStreaming() {
+        return this.streaming;
+    }
+
+    /**
+     * respondWithError sends out the error this exchange was created with.
+     */
+    void respondWithError() {
+        try {
+            byte[] bytes = this.errorMessage.getBytes(StandardCharsets.UTF_8);
+            this.sendResponseHeaders(this.errorCode, bytes.length);
+            this.buffer.write(bytes);
+        } catch(IOException e) {
+            // cannot happen; the response is buffered in memory.
+        }
+
+        this.close();
+    }
+
+    /**
+     * fail is called whenever the handler has thrown; it sends out a 500 if
+     * the response was not yet committed and has the connection closed.
+     */
+    synchronized void fail() {
+        this.keepAlive = false;
+
+        if(this.committed) {
+            return;
+        }
+
+        if(this.headersSent) {
+            // part of a streamed response is already out; all that can be
+            // done is to cut the connection short:
+            this.committed = true;
+            this.connection.respond(this, new ByteBuffer[0]);
+            return;
+        }
+
+        if(this.responseCode == -1) {
+            byte[] bytes = "500 : InternalServerError :: the request could not be handled.".getBytes(StandardCharsets.UTF_8);
+            this.responseCode = 500;
+            this.buffer.reset();
+            this.buffer.write(bytes, 0, bytes.length);
+        }
+
+        this.commit();
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return this.requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return this.responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return this.uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return this.method;
+    }
+
+    /**
+     * getHttpContext returns null as exchanges of the NioHttpTransport are
+     * not backed by any of the HttpServer's HttpContexts.
+     */
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    /**
+     * close completes the exchange; committing the response if it was not
+     * already committed by closing the response body.
+     */
+    @Override
+    public void close() {
+        this.commit();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return this.requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return this.responseBody;
+    }
+
+    /**
+     * sendResponseHeaders sets the response code of the exchange.
+     * <p>
+     * As the response body is buffered whole; the response is always sent
+     * with the actual length of the body written, regardless of the given
+     * length, and a length of -1 denotes an empty body. A length of 0 has the
+     * response streamed out in chunks instead.
+     */
+    @Override
+    public synchronized void sendResponseHeaders(int code, long length) throws IOException {
+        if(this.responseCode != -1) {
+            throw new IOException("Response headers have already been sent.");
+        }
+
+        this.responseCode = code;
+        this.streaming = (length == 0);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return this.connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return this.responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return this.connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return this.attributes.get(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        this.attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if(i != null) {
+            this.requestBody = i;
+        }
+
+        if(o != null) {
+            this.responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * commit serializes the whole response and hands it back to the
+     * connection for writing. Only the first call has any effect.
+     */
+    private synchronized void commit() {
+        if(this.committed) {
+            return;
+        }
+
+        if(this.streaming) {
+            try {
+                this.sendChunk(true);
+            } catch(IOException e) {
+                // the connection is gone; there is nothing left to complete.
+            }
+            return;
+        }
+
+        this.committed = true;
+
+        if(this.responseCode == -1) {
+            this.responseCode = 500;
+        }
+
+        ByteBuffer head = this.head(this.buffer.size());
+        ByteBuffer[] body = this.buffer.drain();
+
+        ByteBuffer[] response = new ByteBuffer[body.length + 1];
+        response[0] = head;
+        System.arraycopy(body, 0, response, 1, body.length);
+
+        this.connection.respond(this, response);
+    }
+
+    /**
+     * sendChunk sends out whatever was written to the body of a streamed
+     * response so far as a single chunk; preceded by the head of the response
+     * if it was not sent yet, and followed by the last chunk if asked to.
+     * <p>
+     * The calling Thread is held back whilst the client is behind.
+     *
+     * @param   last    whether the response is to be completed.
+     * @throws  IOException if the response was already completed or the
+     *          connection was closed.
+     */
+    private void sendChunk(boolean last) throws IOException {
+        ArrayList<ByteBuffer> chunk = new ArrayList<ByteBuffer>(8);
+
+        synchronized(this) {
+            if(this.committed) {
+                if(last) {
+                    return;
+                }
+                throw new IOException("The response was already completed.");
+            }
+
+            if(!this.headersSent) {
+                this.headersSent = true;
+                chunk.add(this.head(-1));
+            }
+
+            if(this.buffer.size() > 0) {
+                chunk.add(ByteBuffer.wrap((Integer.toHexString(this.buffer.size()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                for(ByteBuffer part : this.buffer.drain()) {
+                    chunk.add(part);
+                }
+                chunk.add(ByteBuffer.wrap(crlf));
+            }
+
+            if(last) {
+                this.committed = true;
+                chunk.add(ByteBuffer.wrap(lastChunk));
+            }
+        }
+
+        if(last) {
+            this.connection.respond(this, chunk.toArray(new ByteBuffer[chunk.size()]));
+        } else if(!chunk.isEmpty()) {
+            this.connection.stream(chunk.toArray(new ByteBuffer[chunk.size()]));
+        }
+    }
+
+    /**
+     * head serializes the status line and headers of the response; with the
+     * given Content-Length, or a chunked Transfer-Encoding if it is -1.
+     */
+    private ByteBuffer head(long contentLength) {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(this.responseCode).append(' ')
+            .append(reasonPhrase(this.responseCode)).append("\r\n");
+
+        for(Map.Entry<String, List<String>> header : this.responseHeaders.entrySet()) {
+            if(header.getKey().equalsIgnoreCase("Content-Length") || header.getKey().equalsIgnoreCase("Connection")
+                    || header.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+                continue;
+            }
+
+            for(String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+
+        if(contentLength < 0) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        head.append("Connection: ").append(this.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * reasonPhrase returns the reason phrase of the given status code.
+     */
+    private static String reasonPhrase(int code) {
+        switch(code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 307: return "Temporary Redirect";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 406: return "Not Acceptable";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default:  return "Status";
+        }
+    }
+
+    /**
+     * RequestBody is the in-memory request body; whose bytes may be taken
+     * over as they are, rather than be read through.
+     */
+    private static class RequestBody extends ByteArrayInputStream implements IBufferedBody {
+
+        RequestBody(byte[] body) {
+            super(body);
+        }
+
+        @Override
+        public synchronized ByteBuffer takeBody() {
+            ByteBuffer body = ByteBuffer.wrap(this.buf, this.pos, this.count - this.pos);
+            this.pos = this.count;
+
+            return body;
+        }
+    }
+
+    /**
+     * ResponseBuffer is the in-memory response body; which commits the
+     * exchange when closed, and sends out a chunk of a streamed response
+     * when flushed.
+     * <p>
+     * Bytes written to it as an OutputStream are copied into its buffer.
+     * ByteBuffers written to it as a WritableByteChannel are instead held on
+     * to as they are; save for small ones, which are cheaper to copy than to
+     * write out on their own. They must thus not be modified afterwards.
+     */
+    private class ResponseBuffer extends ByteArrayOutputStream implements WritableByteChannel {
+
+        /**
+         * minHeldBytes is the size from which ByteBuffers are held on to
+         * rather than copied.
+         */
+        private static final int minHeldBytes = 512;
+
+        /**
+         * parts holds the body written so far; save for the bytes of the
+         * buffer past sealed, which have yet to be added to it. With
+         * heldBytes being the number of bytes of the ByteBuffers held on to.
+         */
+        private final ArrayList<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+        private int sealed = 0;
+        private long heldBytes = 0;
+
+        @Override
+        public synchronized int write(ByteBuffer src) {
+            int length = src.remaining();
+
+            if(length < minHeldBytes) {
+                if(src.hasArray()) {
+                    this.write(src.array(), src.arrayOffset() + src.position(), length);
+                    src.position(src.limit());
+                } else {
+                    byte[] bytes = new byte[length];
+                    src.get(bytes);
+                    this.write(bytes, 0, length);
+                }
+                return length;
+            }
+
+            this.seal();
+            this.parts.add(src.slice());
+            this.heldBytes += length;
+            src.position(src.limit());
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        /**
+         * size returns the number of bytes of the body written so far.
+         */
+        @Override
+        public synchronized int size() {
+            return (int) (this.count + this.heldBytes);
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            this.parts.clear();
+            this.sealed = 0;
+            this.heldBytes = 0;
+        }
+
+        @Override
+        public void close() {
+            NioHttpExchange.this.commit();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(NioHttpExchange.this.isStreaming()) {
+                NioHttpExchange.this.sendChunk(false);
+            }
+        }
+
+        /**
+         * drain returns the body written so far and empties the buffer.
+         * <p>
+         * The bytes copied into the buffer are wrapped rather than copied out
+         * again; the buffer then moving on to a fresh array, as the wrapped
+         * one may still be being written out.
+         */
+        synchronized ByteBuffer[] drain() {
+            this.seal();
+            ByteBuffer[] drained = this.parts.toArray(new ByteBuffer[this.parts.size()]);
+
+            if(this.count > 0) {
+                this.buf = new byte[32];
+            }
+            this.reset();
+
+            return drained;
+        }
+
+        /**
+         * seal adds the bytes copied into the buffer since the last seal to
+         * the parts of the body; ahead of a ByteBuffer held on to.
+         * <p>
+         * The buffer's array may be grown afterwards; the part keeps on
+         * wrapping the former one, whose bytes are never touched again.
+         */
+        private void seal() {
+            if(this.count > this.sealed) {
+                this.parts.add(ByteBuffer.wrap(this.buf, this.sealed, this.count - this.sealed));
+                this.sealed = this.count;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import org.bajetii.messageserver.server.logging.Logger;
+
+
+/**
+ * NioHttpTransport is a non-blocking HTTP/1.1 ITransport built directly on top
+ * of java.nio.channels.
+ * <p>
+ * A single selector Thread accepts connections, reads and parses requests and
+ * writes out responses; all without ever blocking. Parsed requests are handed
+ * to the registered HttpHandlers on a pool of worker Threads in the form of
+ * NioHttpExchanges; so that the existing handlers' logic is run unchanged.
+ * Connections are kept alive as per HTTP/1.1, and pipelined requests are
+ * answered in order.
+ */
+public class NioHttpTransport implements ITransport {
+
+    /**
+     * logger is the Logger of the NioHttpTransports.
+     */
+    private static final Logger logger = Logger.getLogger(NioHttpTransport.class);
+
+    /**
+     * defaultMaxBodyBytes is the default maximum size of a request body.
+     */
+    private static final long defaultMaxBodyBytes = 16 * 1024 * 1024;
+
+    /**
+     * port and backlog are the port listened on and the maximum number of
+     * pending connections.
+     */
+    private final int port;
+    private final int backlog;
+
+    /**
+     * maxBodyBytes is the maximum size of a request body; beyond which
+     * requests are rejected with a 413.
+     */
+    private long maxBodyBytes = defaultMaxBodyBytes;
+
+    /**
+     * contexts holds the registered path prefixes and their HttpHandlers.
+     */
+    private final ArrayList<String> contextPaths = new ArrayList<String>();
+    private final ArrayList<HttpHandler> contextHandlers = new ArrayList<HttpHandler>();
+
+    /**
+     * executor is the pool of worker Threads running the handlers.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * selector and serverChannel are the Selector and listening channel of
+     * the transport; with selectorThread being the Thread driving them.
+     */
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+
+    /**
+     * tasks holds the Runnables posted by other Threads which are to be run
+     * on the selector Thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * running marks whether the selector Thread should keep on going.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * A NioHttpTransport is created provided the port it should listen on,
+     * the backlog of its listening socket and the number of worker Threads.
+     * <p>
+     * @param   port    the port to be listened on.
+     * @param   backlog the maximum number of pending connections.
+     * @param   workers the number of worker Threads.
+     */
+    public NioHttpTransport(int port, int backlog, int workers) {
+        this(port, backlog, WorkerPools.fixed(workers));
+    }
+
+    /**
+     * A NioHttpTransport can also be created provided the ExecutorService
+     * the handlers should be run on; such as one of virtual Threads.
+     * <p>
+     * @param   port        the port to be listened on.
+     * @param   backlog     the maximum number of pending connections.
+     * @param   executor    the ExecutorService running the handlers.
+     */
+    public NioHttpTransport(int port, int backlog, ExecutorService executor) {
+        this.port = port;
+        this.backlog = backlog;
+        this.executor = executor;
+    }
+
+    /**
+     * setMaxBodyBytes sets the maximum size of a request body.
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * getMaxBodyBytes returns the maximum size of a request body.
+     */
+    long getMaxBodyBytes() {
+        return this.maxBodyBytes;
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler) {
+        this.contextPaths.add(path);
+        this.contextHandlers.add(handler);
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.selector = Selector.open();
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.bind(new InetSocketAddress(this.port), this.backlog);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        this.running = true;
+        this.selectorThread = new Thread(() -> this.run(), "jmqp-nio-selector");
+        this.selectorThread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+
+        if(this.selector != null) {
+            this.selector.wakeup();
+        }
+
+        this.executor.shutdown();
+    }
+
+    /**
+     * findHandler returns the HttpHandler registered for the longest prefix
+     * of the given path; or null if there is none.
+     */
+    HttpHandler findHandler(String path) {
+        HttpHandler handler = null;
+        int longest = -1;
+
+        if(path == null) {
+            return null;
+        }
+
+        for(int i = 0; i < this.contextPaths.size(); i++) {
+            String prefix = this.contextPaths.get(i);
+
+            if(path.startsWith(prefix) && prefix.length() > longest) {
+                handler = this.contextHandlers.get(i);
+                longest = prefix.length();
+            }
+        }
+
+        return handler;
+    }
+
+    /**
+     * runOnSelector posts the given task to be run on the selector Thread.
+     */
+    void runOnSelector(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * dispatch hands the given exchange over to its HttpHandler on the worker
+     * pool; or answers it straight away if it has no handler.
+     */
+    void dispatch(NioHttpExchange exchange) {
+        if(exchange.getHandler() == null) {
+            exchange.respondWithError();
+            return;
+        }
+
+        this.executor.execute(() -> {
+            try {
+                exchange.getHandler().handle(exchange);
+            } catch(Exception e) {
+                logger.error("Handling a request failed.", e);
+                exchange.fail();
+            }
+        });
+    }
+
+    /**
+     * run is the main loop of the selector Thread.
+     */
+    private void run() {
+        while(this.running) {
+            try {
+                this.selector.select();
+            } catch(IOException e) {
+                logger.error("Selecting failed; stopping the selector.", e);
+                break;
+            }
+
+            Runnable task;
+            while((task = this.tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if(!key.isValid()) {
+                    continue;
+                }
+
+                if(key.isAcceptable()) {
+                    this.accept();
+                    continue;
+                }
+
+                NioHttpConnection connection = (NioHttpConnection) key.attachment();
+                try {
+                    if(key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch(IOException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        for(SelectionKey key : this.selector.keys()) {
+            try {
+                key.channel().close();
+            } catch(IOException e) {
+                // nothing to be done.
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch(IOException e) {
+            logger.warn("Could not close the selector.", e);
+        }
+    }
+
+    /**
+     * accept accepts all pending connections and registers them for reading.
+     */
+    private void accept() {
+        SocketChannel channel;
+
+        try {
+            while((channel = this.serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                NioHttpConnection connection = new NioHttpConnection(this, channel);
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+            }
+        } catch(IOException e) {
+            logger.warn("Accepting connections failed.", e);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bajetii.messageserver.server.config.exceptions.ConfigurationException;
+
+
+/**
+ * WorkerPools creates the ExecutorServices the transports run the handlers on.
+ * <p>
+ * Handlers do blocking stream I/O; so they may either be run on a fixed pool
+ * of platform Threads, or on a fresh virtual Thread per exchange. The latter
+ * allows for tens of thousands of slow clients to be served concurrently, as a
+ * virtual Thread blocked on I/O or on a Lock is unmounted from its carrier.
+ * <p>
+ * NOTE: up to Java 23, a virtual Thread blocked within a synchronized block
+ * stays pinned to its carrier; which the JDK's own HttpServer does whilst
+ * reading request bodies. On those JVMs, the JdkHttpTransport thus serves no
+ * more slow clients at once than there are carriers (one per core, unless
+ * 'jdk.virtualThreadScheduler.parallelism' says otherwise). The
+ * NioHttpTransport reads the bodies before handing the exchanges over; and
+ * is not affected.
+ */
+public final class WorkerPools {
+
+    private WorkerPools() {}
+
+    /**
+     * fixed returns a pool of the given number of platform Threads.
+     */
+    public static ExecutorService fixed(int workers) {
+        return Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * virtual returns an ExecutorService running each task on its own
+     * virtual Thread.
+     * <p>
+     * Virtual Threads are only available from Java 21 onwards; the executor
+     * is thus looked up reflectively so that the server still builds and runs
+     * on older JDKs. There it is refused outright: the only stand-in, an
+     * unbounded pool of platform Threads, would spawn a Thread per slow client
+     * until the JVM runs out of memory.
+     *
+     * @throws  ConfigurationException if the JVM has no virtual Threads.
+     */
+    public static ExecutorService virtual() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            throw new ConfigurationException("Virtual Threads need Java 21 or later; this JVM is Java "
+                + System.getProperty("java.specification.version") + ".");
+        }
+    }
+
+    /**
+     * isVirtualSupported returns whether the running JVM has virtual Threads.
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+package org.bajetii.messageserver.server.binary;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * BinaryHandlerTest covers the requests of the binary protocol as carried out
+ * by the BinaryHandler; their validation, their responses, and the tallies
+ * of the silent ones.
+ * <p>
+ * Frames are handed to the handler straight away; the connection they are
+ * received on never touching its socket for any but waiting FETCHes.
+ */
+class BinaryHandlerTest {
+
+    private final MessagingServer server = new MessagingServer(30);
+    private final BinaryHandler handler = new BinaryHandler(this.server);
+    private final BinaryConnection connection = new BinaryConnection(null, null);
+
+    @Test
+    void publishesAndFetchesThroughInternedIds() {
+        List<Response> responses = this.handle(
+            intern(1, 7, BinaryProtocol.personalType, "alice"),
+            publish(2, 7, 0, "hello"),
+            publish(3, 7, 0, "world"),
+            fetch(4, 7, 10, 0));
+
+        assertEquals(4, responses.size());
+        assertEquals(BinaryProtocol.statusOk, responses.get(0).status);
+        assertEquals(this.server.resolvePersonal("alice"), responses.get(0).body.getInt());
+        assertEquals(BinaryProtocol.statusOk, responses.get(1).status);
+        assertEquals(BinaryProtocol.statusOk, responses.get(2).status);
+
+        Response fetched = responses.get(3);
+        assertEquals(BinaryProtocol.fetchOpcode, fetched.opcode);
+        assertEquals(4, fetched.requestId);
+        assertArrayEquals(new String[] {"hello", "world"}, fetched.messages());
+    }
+
+    @Test
+    void rejectsMalformedInterns() {
+        byte[] invalidName = {(byte) 0xc3, (byte) 0x28};
+        byte[][] frames = {
+            intern(1, -1, BinaryProtocol.personalType, "alice"),
+            intern(2, BinaryProtocol.maxDestinations, BinaryProtocol.personalType, "alice"),
+            intern(3, 0, BinaryProtocol.personalType, ""),
+            intern(4, 0, (byte) 2, "alice"),
+            frame(BinaryProtocol.internOpcode, 5, ByteBuffer.allocate(7 + 3)
+                .putInt(0).put(BinaryProtocol.personalType).putShort((short) 4).put(bytes("bob")).array()),
+            frame(BinaryProtocol.internOpcode, 6, ByteBuffer.allocate(7 + invalidName.length)
+                .putInt(0).put(BinaryProtocol.personalType).putShort((short) invalidName.length).put(invalidName).array()),
+            frame(BinaryProtocol.internOpcode, 7, new byte[3]),
+        };
+
+        List<Response> responses = this.handle(frames);
+        assertEquals(frames.length, responses.size());
+        for(Response response : responses) {
+            assertEquals(BinaryProtocol.statusMalformed, response.status, "request " + response.requestId);
+        }
+        assertNull(this.connection.getDestination(0));
+    }
+
+    @Test
+    void answersRequestsForUnknownIds() {
+        List<Response> responses = this.handle(
+            publish(1, 3, 0, "hello"),
+            fetch(2, 3, 10, 0),
+            frame(BinaryProtocol.fetchOpcode, 3, ByteBuffer.allocate(12).putInt(-1).putInt(1).putInt(0).array()));
+
+        for(Response response : responses) {
+            assertEquals(BinaryProtocol.statusUnknownDestination, response.status, "request " + response.requestId);
+        }
+    }
+
+    @Test
+    void validatesPublishesAndFetches() {
+        List<Response> responses = this.handle(
+            intern(1, 0, BinaryProtocol.topicType, "news"),
+            publish(2, 0, -1, "no timeout"),
+            fetch(3, 0, 0, 0),
+            frame(BinaryProtocol.fetchOpcode, 4, new byte[8]),
+            frame((byte) 0x7f, 5, new byte[0]));
+
+        assertEquals(BinaryProtocol.statusOk, responses.get(0).status);
+        assertEquals(BinaryProtocol.statusMalformed, responses.get(1).status);
+        assertEquals(BinaryProtocol.statusMalformed, responses.get(2).status);
+        assertEquals(BinaryProtocol.statusMalformed, responses.get(3).status);
+        assertEquals(BinaryProtocol.statusUnsupported, responses.get(4).status);
+        assertEquals(0, this.server.getTopicMessages("news").length);
+    }
+
+    @Test
+    void reportsTheStatusOfEveryMessageOfABatch() {
+        this.handle(
+            intern(1, 0, BinaryProtocol.personalType, "alice"),
+            intern(2, 1, BinaryProtocol.topicType, "news"));
+
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for(int i = 0; i < MessagingServer.defaultPersonalCapacity + 1; i++) {
+            entries.add(entry(0, 0, "alice-" + i));
+        }
+        entries.add(entry(1, 60, "headline"));
+        entries.add(entry(1, -1, "no timeout"));
+        entries.add(entry(9, 0, "nobody"));
+
+        Response response = this.handle(batch(3, entries)).get(0);
+        assertEquals(BinaryProtocol.statusOk, response.status);
+        assertEquals(entries.size(), response.body.getInt());
+
+        byte[] statuses = new byte[entries.size()];
+        response.body.get(statuses);
+        for(int i = 0; i < MessagingServer.defaultPersonalCapacity; i++) {
+            assertEquals(BinaryProtocol.statusOk, statuses[i]);
+        }
+        assertEquals(BinaryProtocol.statusFull, statuses[MessagingServer.defaultPersonalCapacity]);
+        assertEquals(BinaryProtocol.statusOk, statuses[MessagingServer.defaultPersonalCapacity + 1]);
+        assertEquals(BinaryProtocol.statusMalformed, statuses[MessagingServer.defaultPersonalCapacity + 2]);
+        assertEquals(BinaryProtocol.statusUnknownDestination, statuses[MessagingServer.defaultPersonalCapacity + 3]);
+
+        assertArrayEquals(new String[] {"headline"}, this.server.getTopicMessages("news"));
+    }
+
+    @Test
+    void rejectsMalformedBatchesWhole() {
+        this.handle(intern(1, 0, BinaryProtocol.personalType, "alice"));
+        byte[] entry = entry(0, 0, "hello");
+
+        byte[][] frames = {
+            // no messages:
+            frame(BinaryProtocol.batchOpcode, 2, ByteBuffer.allocate(4).putInt(0).array()),
+            // more messages than there is room for:
+            frame(BinaryProtocol.batchOpcode, 3, ByteBuffer.allocate(4 + entry.length).putInt(2).put(entry).array()),
+            // a message longer than the rest of the frame:
+            frame(BinaryProtocol.batchOpcode, 4, ByteBuffer.allocate(4 + 12 + 2).putInt(1)
+                .putInt(0).putInt(0).putInt(3).put(bytes("hi")).array()),
+            // bytes past the last message:
+            frame(BinaryProtocol.batchOpcode, 5, ByteBuffer.allocate(4 + entry.length + 1).putInt(1).put(entry).array()),
+        };
+
+        List<Response> responses = this.handle(frames);
+        assertEquals(frames.length, responses.size());
+        for(Response response : responses) {
+            assertEquals(BinaryProtocol.statusMalformed, response.status, "request " + response.requestId);
+        }
+        assertEquals(0, this.server.getPersonalMessages("alice").length);
+    }
+
+    @Test
+    void talliesSilentRequestsUntilTheNextAck() {
+        List<byte[]> entries = new ArrayList<byte[]>();
+        entries.add(entry(0, 0, "batched"));
+        entries.add(entry(5, 0, "unknown"));
+
+        List<Response> responses = this.handle(
+            intern(BinaryProtocol.silentRequestId, 0, BinaryProtocol.personalType, "alice"),
+            intern(BinaryProtocol.silentRequestId, -1, BinaryProtocol.personalType, "alice"),
+            publish(BinaryProtocol.silentRequestId, 0, 0, "hello"),
+            publish(BinaryProtocol.silentRequestId, 5, 0, "unknown"),
+            batch(BinaryProtocol.silentRequestId, entries),
+            frame(BinaryProtocol.ackOpcode, 1, new byte[0]),
+            frame(BinaryProtocol.ackOpcode, 2, new byte[0]));
+
+        // silent requests get no response; only the ACKs do:
+        assertEquals(2, responses.size());
+        assertEquals(BinaryProtocol.ackOpcode, responses.get(0).opcode);
+        assertEquals(3, responses.get(0).body.getInt());
+        assertEquals(3, responses.get(0).body.getInt());
+
+        // which reset the tallies:
+        assertEquals(0, responses.get(1).body.getInt());
+        assertEquals(0, responses.get(1).body.getInt());
+
+        assertArrayEquals(new String[] {"hello", "batched"}, this.server.getPersonalMessages("alice"));
+    }
+
+    /**
+     * handle has the handler carry out the given frames as a single burst;
+     * returning their responses.
+     */
+    private List<Response> handle(byte[]... frames) {
+        int length = 0;
+        for(byte[] frame : frames) {
+            length += frame.length;
+        }
+
+        ByteBuffer burst = ByteBuffer.allocate(length);
+        for(byte[] frame : frames) {
+            burst.put(frame);
+        }
+
+        ByteBuffer out = this.handler.handle(this.connection, burst.array()).toByteBuffer();
+        List<Response> responses = new ArrayList<Response>();
+        while(out.hasRemaining()) {
+            responses.add(new Response(out));
+        }
+
+        return responses;
+    }
+
+    private static byte[] intern(int requestId, int id, byte type, String name) {
+        byte[] bytes = bytes(name);
+        return frame(BinaryProtocol.internOpcode, requestId, ByteBuffer.allocate(7 + bytes.length)
+            .putInt(id).put(type).putShort((short) bytes.length).put(bytes).array());
+    }
+
+    private static byte[] publish(int requestId, int id, int timeout, String message) {
+        byte[] bytes = bytes(message);
+        return frame(BinaryProtocol.publishOpcode, requestId, ByteBuffer.allocate(8 + bytes.length)
+            .putInt(id).putInt(timeout).put(bytes).array());
+    }
+
+    private static byte[] fetch(int requestId, int id, int maxMessages, int waitMillis) {
+        return frame(BinaryProtocol.fetchOpcode, requestId, ByteBuffer.allocate(12)
+            .putInt(id).putInt(maxMessages).putInt(waitMillis).array());
+    }
+
+    private static byte[] batch(int requestId, List<byte[]> entries) {
+        int length = 4;
+        for(byte[] entry : entries) {
+            length += entry.length;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length).putInt(entries.size());
+        for(byte[] entry : entries) {
+            body.put(entry);
+        }
+
+        return frame(BinaryProtocol.batchOpcode, requestId, body.array());
+    }
+
+    /**
+     * entry serializes a single message of a BATCH.
+     */
+    private static byte[] entry(int id, int timeout, String message) {
+        byte[] bytes = bytes(message);
+        return ByteBuffer.allocate(12 + bytes.length).putInt(id).putInt(timeout).putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] frame(byte opcode, int requestId, byte[] body) {
+        return ByteBuffer.allocate(BinaryProtocol.requestHeaderBytes + body.length)
+            .putInt(BinaryProtocol.requestHeaderBytes - BinaryProtocol.lengthBytes + body.length)
+            .put(opcode)
+            .putInt(requestId)
+            .put(body)
+            .array();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Response is a single response frame; its body lying between the
+     * position and limit of body.
+     */
+    private static final class Response {
+
+        final byte opcode;
+        final int requestId;
+        final byte status;
+        final ByteBuffer body;
+
+        Response(ByteBuffer in) {
+            int end = in.position() + BinaryProtocol.lengthBytes + in.getInt();
+            this.opcode = in.get();
+            this.requestId = in.getInt();
+            this.status = in.get();
+            this.body = in.duplicate().limit(end).slice();
+
+            assertTrue(end <= in.limit());
+            in.position(end);
+        }
+
+        /**
+         * messages returns the messages of a FETCH response.
+         */
+        String[] messages() {
+            String[] messages = new String[this.body.getInt()];
+            for(int i = 0; i < messages.length; i++) {
+                byte[] bytes = new byte[this.body.getInt()];
+                this.body.get(bytes);
+                messages[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            return messages;
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * HashRingTest covers the ownership of names by the nodes of a HashRing; how
+ * evenly it spreads them, and how few of them move as a node joins.
+ */
+class HashRingTest {
+
+    /**
+     * names is the number of names whose owners are looked up.
+     */
+    private static final int names = 100000;
+
+    @Test
+    void ownsNamesRegardlessOfTheOrderOfItsNodes() {
+        ClusterNode[] nodes = nodes(5);
+        ClusterNode[] reversed = new ClusterNode[nodes.length];
+        for(int i = 0; i < nodes.length; i++) {
+            reversed[i] = nodes[nodes.length - 1 - i];
+        }
+
+        HashRing ring = new HashRing(nodes, HashRing.defaultVirtualNodes);
+        HashRing again = new HashRing(nodes, HashRing.defaultVirtualNodes);
+        HashRing other = new HashRing(reversed, HashRing.defaultVirtualNodes);
+
+        for(int i = 0; i < names; i++) {
+            String name = "person-" + i;
+            int owner = ring.ownerOf(name);
+
+            assertEquals(owner, again.ownerOf(name));
+            assertEquals(nodes[owner].getName(), reversed[other.ownerOf(name)].getName());
+        }
+    }
+
+    @Test
+    void spreadsNamesEvenly() {
+        for(int n = 2; n <= 8; n++) {
+            HashRing ring = new HashRing(nodes(n), HashRing.defaultVirtualNodes);
+            int[] owned = new int[n];
+            for(int i = 0; i < names; i++) {
+                owned[ring.ownerOf("person-" + i)]++;
+            }
+
+            double total = 0;
+            for(int node = 0; node < n; node++) {
+                double share = ring.getShare(node);
+                total += share;
+
+                assertTrue(Math.abs(share * n - 1) < 0.25, n + " nodes; node " + node + " owns " + share);
+                assertEquals(share, owned[node] / (double) names, 0.01);
+            }
+            assertEquals(1, total, 1e-9);
+        }
+    }
+
+    @Test
+    void movesAboutOneNthOfTheNamesWhenANodeJoins() {
+        for(int n = 2; n <= 8; n++) {
+            HashRing before = new HashRing(nodes(n), HashRing.defaultVirtualNodes);
+            HashRing after = new HashRing(nodes(n + 1), HashRing.defaultVirtualNodes);
+
+            int moved = 0;
+            for(int i = 0; i < names; i++) {
+                String name = "person-" + i;
+                int owner = after.ownerOf(name);
+
+                // names only ever move to the node which joined:
+                if(owner != before.ownerOf(name)) {
+                    assertEquals(n, owner);
+                    moved++;
+                }
+            }
+
+            double fraction = moved / (double) names;
+            assertTrue(Math.abs(fraction * (n + 1) - 1) < 0.25, n + " to " + (n + 1) + " nodes moved " + fraction);
+            assertEquals(after.getShare(n), fraction, 0.01);
+        }
+    }
+
+    @Test
+    void ownsEverythingWithASingleNode() {
+        HashRing ring = new HashRing(nodes(1), 1);
+
+        assertEquals(1, ring.getShare(0));
+        assertEquals(0, ring.ownerOf("alice"));
+        assertEquals(0, ring.indexOf("node-0"));
+        assertEquals(-1, ring.indexOf("node-1"));
+    }
+
+    @Test
+    void needsANodeAndAPoint() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(new ClusterNode[0], 1));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(nodes(1), 0));
+    }
+
+    /**
+     * nodes returns the given number of nodes; named by their index, so that
+     * those of a smaller cluster are also part of any larger one.
+     */
+    private static ClusterNode[] nodes(int count) {
+        ClusterNode[] nodes = new ClusterNode[count];
+        for(int i = 0; i < count; i++) {
+            nodes[i] = new ClusterNode("node-" + i, "127.0.0.1", 8989 + i, 9989 + i);
+        }
+
+        return nodes;
+    }
+
+}
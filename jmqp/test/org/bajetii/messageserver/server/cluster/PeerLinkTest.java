@@ -0,0 +1,233 @@
+package org.bajetii.messageserver.server.cluster;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bajetii.messageserver.server.binary.BinaryProtocol;
+import org.bajetii.messageserver.server.cluster.exceptions.PeerUnavailableException;
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.timers.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * PeerLinkTest covers a PeerLink forwarding to a fake peer over localhost;
+ * one which answers, and ones which do not.
+ */
+class PeerLinkTest {
+
+    /**
+     * timerWheel runs the watchdogs of the links.
+     */
+    private final TimerWheel timerWheel = new TimerWheel(10);
+
+    @AfterEach
+    void stopTimerWheel() {
+        this.timerWheel.stop();
+    }
+
+    @Test
+    void recyclesTheConnectionOnceItsDestinationsRunOut() throws Exception {
+        try(FakePeer peer = new FakePeer(true, true)) {
+            PeerLink link = new PeerLink(peer.getNode(), PeerLink.defaultRequestTimeoutMillis, this.timerWheel);
+            int perBatch = 4096;
+
+            for(int b = 0; b < BinaryProtocol.maxDestinations / perBatch; b++) {
+                String[] names = new String[perBatch];
+                IMessage[] messages = new IMessage[perBatch];
+                for(int i = 0; i < perBatch; i++) {
+                    names[i] = "person-" + (b * perBatch + i);
+                    messages[i] = message("hello");
+                }
+
+                assertEquals(BinaryProtocol.statusOk, link.await(link.batch(false, names, messages, null), 0).get());
+            }
+            assertEquals(1, peer.accepted.get());
+
+            // the table is full; so the next destination goes out over a
+            // fresh connection rather than being redirected:
+            ByteBuffer response = link.await(link.publish(false, "one-too-many", message("hello"), 0), 0);
+            assertEquals(BinaryProtocol.statusOk, response.get());
+            assertEquals(2, peer.accepted.get());
+
+            // as do the destinations interned on the retired one:
+            response = link.await(link.publish(false, "person-0", message("hello"), 0), 0);
+            assertEquals(BinaryProtocol.statusOk, response.get());
+            assertEquals(2, peer.accepted.get());
+
+            // which is closed once it is drained:
+            long deadline = System.currentTimeMillis() + 10000;
+            while(peer.closed.get() < 1) {
+                assertTrue(System.currentTimeMillis() < deadline, "The retired connection was not closed.");
+                Thread.sleep(10);
+            }
+            assertTrue(link.isConnected());
+
+            link.close();
+        }
+    }
+
+    @Test
+    void forgetsResponsesWhichDoNotComeInTime() throws Exception {
+        try(FakePeer peer = new FakePeer(true, false)) {
+            PeerLink link = new PeerLink(peer.getNode(), 100, this.timerWheel);
+
+            for(int i = 0; i < 3; i++) {
+                CompletableFuture<ByteBuffer> response = link.publish(false, "alice", message("hello"), 0);
+                assertThrows(PeerUnavailableException.class, () -> link.await(response, 0));
+            }
+
+            assertEquals(0, link.getPendingCount());
+            assertTrue(link.isConnected());
+
+            link.close();
+        }
+    }
+
+    @Test
+    void failsWritesStuckOnAPeerWhichStopsReading() throws Exception {
+        try(FakePeer peer = new FakePeer(false, false)) {
+            PeerLink link = new PeerLink(peer.getNode(), 300, this.timerWheel);
+            IMessage large = new ByteBufferMessage(new byte[1024 * 1024]);
+
+            // the socket's buffers fill up; and the write stuck past them is
+            // failed by the watchdog rather than blocking for good:
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                assertThrows(PeerUnavailableException.class, () -> {
+                    while(true) {
+                        link.publish(false, "alice", large, 0);
+                    }
+                });
+            });
+
+            // the watchdog forgets the connection once the writer let go:
+            long deadline = System.currentTimeMillis() + 10000;
+            while(link.isConnected()) {
+                assertTrue(System.currentTimeMillis() < deadline, "The stuck connection was not forgotten.");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static IMessage message(String value) {
+        return new StringMessage(value);
+    }
+
+    /**
+     * FakePeer is the cluster port of a peer which answers requests with an
+     * OK; and counts the connections it accepted, and those closed.
+     * <p>
+     * It may also stop short of reading the requests at all; or of answering
+     * any but INTERNs.
+     */
+    private static final class FakePeer implements AutoCloseable {
+
+        final ServerSocket server;
+        final boolean reading;
+        final boolean answering;
+        final AtomicInteger accepted = new AtomicInteger(0);
+        final AtomicInteger closed = new AtomicInteger(0);
+
+        FakePeer(boolean reading, boolean answering) throws IOException {
+            this.server = new ServerSocket(0);
+            this.reading = reading;
+            this.answering = answering;
+
+            Thread acceptor = new Thread(() -> this.accept(), "fake-peer");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        ClusterNode getNode() {
+            return new ClusterNode("peer", "127.0.0.1", 0, this.server.getLocalPort());
+        }
+
+        private void accept() {
+            try {
+                while(true) {
+                    Socket socket = this.server.accept();
+                    this.accepted.incrementAndGet();
+
+                    Thread connection = new Thread(() -> this.serve(socket), "fake-peer-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch(IOException e) {
+                // closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try(Socket s = socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+                while(!this.reading) {
+                    Thread.sleep(1000);
+                }
+
+                while(true) {
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    ByteBuffer request = ByteBuffer.wrap(frame);
+                    byte opcode = request.get();
+                    int requestId = request.getInt();
+
+                    if(opcode == BinaryProtocol.internOpcode) {
+                        respond(out, opcode, requestId, 4);
+                        out.writeInt(request.getInt());
+                    } else if(opcode == BinaryProtocol.batchOpcode) {
+                        int count = request.getInt();
+                        respond(out, opcode, requestId, 4 + count);
+                        out.writeInt(count);
+                        out.write(new byte[count]);
+                    } else if(this.answering) {
+                        respond(out, opcode, requestId, 0);
+                    }
+
+                    if(in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch(IOException | InterruptedException e) {
+                this.closed.incrementAndGet();
+            }
+        }
+
+        /**
+         * respond writes the header of an OK response of the given body
+         * length.
+         */
+        private static void respond(DataOutputStream out, byte opcode, int requestId, int bodyLength) throws IOException {
+            out.writeInt(BinaryProtocol.responseHeaderBytes - BinaryProtocol.lengthBytes + bodyLength);
+            out.writeByte(opcode);
+            out.writeInt(requestId);
+            out.writeByte(BinaryProtocol.statusOk);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.server.close();
+        }
+
+    }
+
+}
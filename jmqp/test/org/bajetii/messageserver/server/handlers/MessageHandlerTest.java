@@ -0,0 +1,311 @@
+package org.bajetii.messageserver.server.handlers;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.cluster.exceptions.PartialBatchException;
+import org.bajetii.messageserver.server.handlers.exceptions.MalformedBatchException;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * MessageHandlerTest covers the batches of the MessageHandler; the parsing of
+ * their frames, '<length> <to>[ <timeout>]\n<message>\n', and the statuses
+ * reported back for their messages.
+ */
+class MessageHandlerTest {
+
+    private final MessageHandler handler = new MessageHandler(new MessagingServer(30));
+
+    @Test
+    void parsesFramesWithAndWithoutTimeouts() {
+        String body = "5 news 60\nhello\n5 sports\nworld\n3 news 0\nbye\n";
+        Frames frames = this.parse(body, RequestType.TOPIC, 30, 3);
+
+        assertArrayEquals(new String[] {"news", "sports", "news"}, frames.destinations);
+        assertArrayEquals(new String[] {"hello", "world", "bye"}, frames.values());
+        assertArrayEquals(new int[] {60, 30, 0}, frames.timeouts);
+    }
+
+    @Test
+    void parsesMessagesHoldingAnything() {
+        // empty messages; and ones holding the very delimiters of the frames:
+        String body = "0 alice\n\n4 bob\n1\n2\n\n0 carol\n\n";
+        Frames frames = this.parse(body, RequestType.PERSONAL, -1, 3);
+
+        assertArrayEquals(new String[] {"alice", "bob", "carol"}, frames.destinations);
+        assertArrayEquals(new String[] {"", "1\n2\n", ""}, frames.values());
+        assertArrayEquals(new int[] {-1, -1, -1}, frames.timeouts);
+    }
+
+    @Test
+    void rejectsMalformedHeaderLines() {
+        String[] bodies = {
+            "5alice\nhello\n",
+            "5 alice 60 extra\nhello\n",
+            "5 \nhello\n",
+            "five alice\nhello\n",
+            "5 news soon\nhello\n",
+            "-1 alice\nhello\n",
+        };
+
+        for(String body : bodies) {
+            assertThrows(MalformedBatchException.class, () -> this.parse(body, RequestType.PERSONAL, -1, 1), body);
+        }
+    }
+
+    @Test
+    void rejectsTruncatedFrames() {
+        String[] bodies = {
+            "",
+            "5 alice",
+            "5 alice\nhel",
+            "5 alice\nhello",
+            "4 alice\nhello\n",
+            "6 alice\nhello\n",
+        };
+
+        for(String body : bodies) {
+            assertThrows(MalformedBatchException.class, () -> this.parse(body, RequestType.PERSONAL, -1, 1), body);
+        }
+
+        // a second frame missing altogether:
+        assertThrows(MalformedBatchException.class, () -> this.parse("5 alice\nhello\n", RequestType.PERSONAL, -1, 2));
+    }
+
+    @Test
+    void rejectsFramesPastTheCount() {
+        assertThrows(MalformedBatchException.class,
+            () -> this.parse("5 alice\nhello\n5 alice\nworld\n", RequestType.PERSONAL, -1, 1));
+        assertThrows(MalformedBatchException.class, () -> this.parse("5 alice\nhello\n\n", RequestType.PERSONAL, -1, 1));
+    }
+
+    @Test
+    void rejectsTopicFramesWithoutATimeout() {
+        assertThrows(MalformedBatchException.class,
+            () -> this.parse("5 news 60\nhello\n5 news\nworld\n", RequestType.TOPIC, -1, 2));
+    }
+
+    @Test
+    void rejectsCountsTheBodyCannotHold() throws IOException {
+        // the smallest frame there is; which a count of one fits, but no more:
+        String frame = "0 a\n\n";
+        assertEquals(MessageHandler.minFrameBytes, frame.length());
+
+        FakeExchange accepted = post(this.handler, 1, frame);
+        assertEquals(202, accepted.getResponseCode());
+
+        FakeExchange rejected = post(this.handler, 2, frame);
+        assertEquals(400, rejected.getResponseCode());
+        assertTrue(rejected.response().contains("'Message-Count'"));
+
+        assertEquals(400, post(this.handler, 0, frame).getResponseCode());
+    }
+
+    @Test
+    void reportsTheStatusOfEveryMessage() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i <= MessagingServer.defaultPersonalCapacity; i++) {
+            body.append("1 alice\n").append(i % 10).append('\n');
+        }
+        body.append("1 bob\nx\n");
+
+        // alice's inbox holds one message too few:
+        FakeExchange ex = post(this.handler, MessagingServer.defaultPersonalCapacity + 2, body.toString());
+        assertEquals(202, ex.getResponseCode());
+        assertTrue(ex.response().endsWith("11 of 12 messages were accepted: AAAAAAAAAAFA"), ex.response());
+    }
+
+    @Test
+    void reportsTheMessagesOfFailedNodes() throws IOException {
+        MessageHandler handler = new MessageHandler(new MessagingServer(30) {
+            @Override
+            public boolean[] addPersonalMessages(String[] people, IMessage[] messages) {
+                throw new PartialBatchException(new boolean[] {true, false, false}, new boolean[] {false, false, true},
+                    new IOException("the node owning carol is down."));
+            }
+        });
+
+        FakeExchange ex = post(handler, 3, "1 alice\na\n1 bob\nb\n1 carol\nc\n");
+        assertEquals(202, ex.getResponseCode());
+        assertTrue(ex.response().endsWith("1 of 3 messages were accepted: AFU"), ex.response());
+    }
+
+    /**
+     * parse has the handler parse the given body into the given number of
+     * frames.
+     */
+    private Frames parse(String body, RequestType type, int defaultTimeout, int count) {
+        Frames frames = new Frames(count);
+        this.handler.parseBatch(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)), type, defaultTimeout,
+            frames.destinations, frames.messages, frames.timeouts);
+
+        return frames;
+    }
+
+    /**
+     * post has the given handler handle a batch of personal messages.
+     */
+    private static FakeExchange post(MessageHandler handler, int count, String body) throws IOException {
+        Headers headers = new Headers();
+        headers.add("Type", "Personal");
+        headers.add("Message-Count", Integer.toString(count));
+
+        FakeExchange ex = new FakeExchange(headers, body);
+        handler.handle(ex);
+
+        return ex;
+    }
+
+    /**
+     * Frames holds the destinations, messages and timeouts of a parsed batch.
+     */
+    private static final class Frames {
+
+        final String[] destinations;
+        final IMessage[] messages;
+        final int[] timeouts;
+
+        Frames(int count) {
+            this.destinations = new String[count];
+            this.messages = new IMessage[count];
+            this.timeouts = new int[count];
+        }
+
+        String[] values() {
+            String[] values = new String[this.messages.length];
+            for(int i = 0; i < values.length; i++) {
+                values[i] = this.messages[i].getStringValue();
+            }
+
+            return values;
+        }
+
+    }
+
+    /**
+     * FakeExchange is a POST to the handler held in memory; which keeps the
+     * response for the test to look at.
+     */
+    private static final class FakeExchange extends HttpExchange {
+
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final InputStream requestBody;
+        private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        private int responseCode = -1;
+
+        FakeExchange(Headers requestHeaders, String body) {
+            this.requestHeaders = requestHeaders;
+            this.requestBody = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String response() {
+            return this.responseBody.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return this.requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return this.responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/bajetii/jmqp");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return this.requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return this.responseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) {
+            this.responseCode = code;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return this.responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * DeadlineIndexTest covers the ordering of the DeadlineIndex; with deadlines
+ * coming in ascending, descending and random order, and as it grows and
+ * shrinks.
+ */
+class DeadlineIndexTest {
+
+    @Test
+    void startsEmpty() {
+        DeadlineIndex index = new DeadlineIndex();
+
+        assertTrue(index.isEmpty());
+        assertEquals(0, index.size());
+        assertEquals(Long.MAX_VALUE, index.peekDeadline());
+    }
+
+    @Test
+    void pollsInTheOrderOfDeadlines() {
+        DeadlineIndex index = new DeadlineIndex();
+        index.add(300, 0);
+        index.add(100, 1);
+        index.add(200, 2);
+
+        assertEquals(3, index.size());
+        assertEquals(100, index.peekDeadline());
+        assertEquals(1, index.poll());
+        assertEquals(200, index.peekDeadline());
+        assertEquals(2, index.poll());
+        assertEquals(0, index.poll());
+        assertTrue(index.isEmpty());
+        assertEquals(Long.MAX_VALUE, index.peekDeadline());
+    }
+
+    @Test
+    void keepsEveryOffsetOfEqualDeadlines() {
+        DeadlineIndex index = new DeadlineIndex();
+        for(int offset = 0; offset < 10; offset++) {
+            index.add(1000, offset);
+        }
+
+        List<Long> offsets = new ArrayList<Long>();
+        while(!index.isEmpty()) {
+            assertEquals(1000, index.peekDeadline());
+            offsets.add(index.poll());
+        }
+
+        Collections.sort(offsets);
+        for(int offset = 0; offset < 10; offset++) {
+            assertEquals(offset, offsets.get(offset));
+        }
+    }
+
+    @Test
+    void ordersDeadlinesWhicheverWayTheyCome() {
+        int count = 1000;
+        long[][] orders = new long[3][count];
+        Random random = new Random(42);
+        for(int i = 0; i < count; i++) {
+            orders[0][i] = i;
+            orders[1][i] = count - i;
+            orders[2][i] = random.nextInt(count / 10);
+        }
+
+        for(long[] deadlines : orders) {
+            DeadlineIndex index = new DeadlineIndex();
+            for(int offset = 0; offset < count; offset++) {
+                index.add(deadlines[offset], offset);
+            }
+
+            // the offsets come out by deadline; each with its own deadline:
+            long last = Long.MIN_VALUE;
+            while(!index.isEmpty()) {
+                long deadline = index.peekDeadline();
+                long offset = index.poll();
+
+                assertTrue(deadline >= last);
+                assertEquals(deadlines[(int) offset], deadline);
+                last = deadline;
+            }
+        }
+    }
+
+    @Test
+    void keepsItsOrderAsItGrowsAndShrinks() {
+        DeadlineIndex index = new DeadlineIndex();
+        long next = 0;
+        long expected = 0;
+
+        // deadlines in ascending order, as topic timeouts mostly come;
+        // polled in bursts, so that the heap keeps growing and shrinking:
+        for(int round = 0; round < 20; round++) {
+            for(int i = 0; i < 500; i++) {
+                index.add(next, next);
+                next++;
+            }
+            while(index.size() > (round % 2 == 0 ? 10 : 300)) {
+                assertEquals(expected, index.peekDeadline());
+                assertEquals(expected, index.poll());
+                expected++;
+            }
+        }
+
+        while(!index.isEmpty()) {
+            assertEquals(expected++, index.poll());
+        }
+        assertEquals(next, expected);
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.bajetii.messageserver.server.queues;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueEmptyException;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * RingBufferMessageQueueTest covers the ordering and capacity of the
+ * RingBufferMessageQueue; alone and under concurrent producers and consumers.
+ */
+class RingBufferMessageQueueTest {
+
+    @Test
+    void popsInOrderAcrossWrapAround() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(4);
+
+        for(int round = 0; round < 10; round++) {
+            queue.addMessage(message("a" + round));
+            queue.addMessage(message("b" + round));
+            queue.addMessage(message("c" + round));
+
+            assertEquals("a" + round, queue.getMessage().getStringValue());
+            assertArrayEquals(new String[] {"b" + round, "c" + round}, values(queue.getMessages()));
+        }
+
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void rejectsMessagesPastItsCapacity() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(2);
+        queue.addMessage(message("one"));
+        queue.addMessage(message("two"));
+
+        assertThrows(MessageQueueFullException.class, () -> queue.addMessage(message("three")));
+
+        queue.getMessage();
+        queue.addMessage(message("three"));
+        assertArrayEquals(new String[] {"two", "three"}, values(queue.getMessages()));
+    }
+
+    @Test
+    void holdsASingleMessage() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(1);
+        queue.addMessage(message("one"));
+
+        assertThrows(MessageQueueFullException.class, () -> queue.addMessage(message("two")));
+        assertEquals("one", queue.getMessage().getStringValue());
+
+        queue.addMessage(message("three"));
+        assertArrayEquals(new String[] {"three"}, values(queue.getMessages()));
+    }
+
+    @Test
+    void throwsWhenEmpty() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(2);
+
+        assertThrows(MessageQueueEmptyException.class, () -> queue.getMessage());
+        assertEquals(0, queue.getMessages().length);
+    }
+
+    @Test
+    void changesCapacityWithinItsSlots() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(2, 8);
+        queue.addMessage(message("one"));
+        queue.addMessage(message("two"));
+
+        assertTrue(queue.setCapacity(4));
+        queue.addMessage(message("three"));
+        assertFalse(queue.setCapacity(9));
+        assertFalse(queue.setCapacity(0));
+
+        // lowering it below the messages held keeps them; rejecting new ones:
+        assertTrue(queue.setCapacity(1));
+        assertThrows(MessageQueueFullException.class, () -> queue.addMessage(message("four")));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    void transfersRegardlessOfCapacity() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(1, 2);
+        queue.addMessage(message("one"));
+
+        assertTrue(queue.transferMessage(message("two")));
+        assertFalse(queue.transferMessage(message("three")));
+        assertArrayEquals(new String[] {"one", "two"}, values(queue.getMessages()));
+    }
+
+    @Test
+    void peeksWithoutPopping() {
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(4);
+        queue.addMessage(message("one"));
+        queue.addMessage(message("two"));
+
+        assertArrayEquals(new String[] {"one", "two"}, values(queue.peekMessages()));
+        assertArrayEquals(new String[] {"one"}, values(queue.getMessages(1)));
+        assertArrayEquals(new String[] {"two"}, values(queue.peekMessages()));
+    }
+
+    @Test
+    void deliversEveryMessageOnceUnderContention() throws InterruptedException {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 20000;
+        final RingBufferMessageQueue queue = new RingBufferMessageQueue(64);
+        final ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<String>();
+        final AtomicInteger remaining = new AtomicInteger(producers * perProducer);
+        final AtomicInteger reordered = new AtomicInteger(0);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < perProducer; i++) {
+                    IMessage message = message(producer + ":" + i);
+                    while(true) {
+                        try {
+                            queue.addMessage(message);
+                            break;
+                        } catch(MessageQueueFullException e) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        for(int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                // every consumer sees each producer's messages in order:
+                int[] last = new int[producers];
+                Arrays.fill(last, -1);
+
+                while(remaining.get() > 0) {
+                    for(IMessage message : queue.getMessages(8)) {
+                        String[] parts = message.getStringValue().split(":");
+                        int producer = Integer.parseInt(parts[0]);
+                        int index = Integer.parseInt(parts[1]);
+
+                        if(index <= last[producer]) {
+                            reordered.incrementAndGet();
+                        }
+                        last[producer] = index;
+                        received.add(message.getStringValue());
+                        remaining.decrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join(60000);
+        }
+
+        assertEquals(0, reordered.get());
+        assertEquals(producers * perProducer, received.size());
+        assertEquals(producers * perProducer, received.stream().distinct().count());
+        assertEquals(0, queue.size());
+    }
+
+    private static IMessage message(String value) {
+        return new StringMessage(value);
+    }
+
+    private static String[] values(IMessage[] messages) {
+        String[] values = new String[messages.length];
+        for(int i = 0; i < messages.length; i++) {
+            values[i] = messages[i].getStringValue();
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * ReplicationFollowerTest covers a follower catching up with a leader over
+ * localhost; first through a snapshot, then through the log.
+ */
+class ReplicationFollowerTest {
+
+    @Test
+    void replicatesAdditionsAndRemovals() throws Exception {
+        MessagingServer leader = new MessagingServer(30);
+        ReplicationLog log = new ReplicationLog(ReplicationLog.defaultBacklogRecords, ReplicationMode.ASYNC,
+            ReplicationLog.defaultSemiSyncTimeoutMillis, leader.getMetrics());
+        leader.replicate(log);
+
+        // written before the follower joins; so sent to it as a snapshot:
+        leader.addPersonalMessage("alice", "one");
+        leader.addPersonalMessage("alice", "two");
+        leader.addTopicMessage("news", "three", 30);
+        leader.getPersonalMessage("alice");
+
+        int port = freePort();
+        ReplicationServer server = new ReplicationServer(port, leader, log, 0);
+        server.start();
+
+        MessagingServer local = new MessagingServer(30);
+        ReplicationFollower follower = new ReplicationFollower("127.0.0.1", port, "test", local);
+        follower.start();
+
+        try {
+            awaitCaughtUp(follower, log);
+
+            // written after it joined; so streamed to it as records:
+            leader.addPersonalMessage("alice", "four");
+            leader.addPersonalMessage("bob", "five");
+            leader.addPersonalMessage("alice", "six");
+            leader.addTopicMessage("news", "seven", 30);
+            leader.getPersonalMessages("bob");
+            leader.getPersonalMessage("alice");
+
+            awaitCaughtUp(follower, log);
+        } finally {
+            follower.stop();
+            server.stop();
+        }
+
+        assertArrayEquals(new String[] {"three", "seven"}, local.getTopicMessages("news"));
+
+        Map<String, List<IMessage>> replica = follower.takePersonalMessages();
+        assertEquals(1, replica.size());
+        assertEquals(2, replica.get("alice").size());
+        assertEquals("four", replica.get("alice").get(0).getStringValue());
+        assertEquals("six", replica.get("alice").get(1).getStringValue());
+        assertArrayEquals(new String[] {"four", "six"}, leader.getPersonalMessages("alice"));
+    }
+
+    /**
+     * awaitCaughtUp waits for the follower to have applied every record of
+     * the log appended so far.
+     */
+    private static void awaitCaughtUp(ReplicationFollower follower, ReplicationLog log) throws InterruptedException {
+        long head = log.getNextSequence();
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while(follower.getNextSequence() < head) {
+            assertTrue(System.currentTimeMillis() < deadline, "The follower did not catch up.");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * freePort returns a port which was free a moment ago.
+     */
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
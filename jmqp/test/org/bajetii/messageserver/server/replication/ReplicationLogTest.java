@@ -0,0 +1,216 @@
+package org.bajetii.messageserver.server.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.bajetii.messageserver.server.messages.StringMessage;
+import org.bajetii.messageserver.server.metrics.MetricsRegistry;
+import org.bajetii.messageserver.server.queues.RingBufferMessageQueue;
+import org.bajetii.messageserver.server.queues.exceptions.MessageQueueFullException;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * ReplicationLogTest covers the sequence numbers and records a ReplicationLog
+ * hands out; alone and with concurrent writers.
+ */
+class ReplicationLogTest {
+
+    @Test
+    void numbersRecordsConsecutively() {
+        ReplicationLog log = log(16);
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(8);
+        Lock order = new ReentrantLock();
+
+        assertEquals(1, log.appendPersonal("alice", message("one"), queue, order).getSequence());
+        assertEquals(2, log.appendPersonal("alice", message("two"), queue, order).getSequence());
+        log.appendTopic("news", message("three"), 1234, queue, order);
+        assertEquals(4, log.getNextSequence());
+
+        ReplicationLog.Batch batch = new ReplicationLog.Batch(16);
+        assertEquals(3, log.read(1, batch));
+        assertEquals(1, batch.first);
+        assertEquals(4, batch.head);
+        assertArrayEquals(new byte[] {ReplicationProtocol.personalRecord, ReplicationProtocol.personalRecord,
+            ReplicationProtocol.topicRecord}, Arrays.copyOf(batch.types, 3));
+        assertEquals("alice", batch.names[0]);
+        assertEquals("two", batch.messages[1].getStringValue());
+        assertEquals("news", batch.names[2]);
+        assertEquals(1234, batch.values[2]);
+    }
+
+    @Test
+    void recordsTheRemovalOfPoppedMessages() {
+        ReplicationLog log = log(16);
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(8);
+        Lock order = new ReentrantLock();
+        log.appendPersonal("alice", message("one"), queue, order);
+        log.appendPersonal("alice", message("two"), queue, order);
+        log.appendPersonal("alice", message("three"), queue, order);
+
+        log.appendRemoval(queue.getMessage());
+        log.appendRemovals(queue.getMessages());
+        // messages which were never replicated have nothing to remove:
+        log.appendRemoval(message("four"));
+        log.appendRemovals(new IMessage[] {message("five")});
+
+        ReplicationLog.Batch batch = new ReplicationLog.Batch(16);
+        assertEquals(3, log.read(4, batch));
+        for(int i = 0; i < 3; i++) {
+            assertEquals(ReplicationProtocol.removalRecord, batch.types[i]);
+            assertEquals(i + 1, batch.values[i]);
+        }
+        assertEquals(7, log.getNextSequence());
+    }
+
+    @Test
+    void fillsTheNumberOfRejectedMessages() {
+        ReplicationLog log = log(16);
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(1);
+        Lock order = new ReentrantLock();
+        log.appendPersonal("alice", message("one"), queue, order);
+
+        assertThrows(MessageQueueFullException.class, () -> log.appendPersonal("alice", message("two"), queue, order));
+
+        // the rejected message took a number regardless; its record removes
+        // itself, so that followers find nothing to apply:
+        ReplicationLog.Batch batch = new ReplicationLog.Batch(16);
+        assertEquals(2, log.read(1, batch));
+        assertEquals(ReplicationProtocol.removalRecord, batch.types[1]);
+        assertEquals(2, batch.values[1]);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void forgetsRecordsPastItsBacklog() {
+        ReplicationLog log = log(4);
+        RingBufferMessageQueue queue = new RingBufferMessageQueue(16);
+        Lock order = new ReentrantLock();
+        for(int i = 0; i < 10; i++) {
+            log.appendPersonal("alice", message("message-" + i), queue, order);
+        }
+
+        ReplicationLog.Batch batch = new ReplicationLog.Batch(16);
+        assertEquals(-1, log.read(1, batch));
+        assertFalse(log.isRetained(log.getId(), 6));
+        assertTrue(log.isRetained(log.getId(), 7));
+        assertFalse(log.isRetained(log.getId() + 1, 7));
+
+        assertEquals(4, log.read(7, batch));
+        assertEquals("message-6", batch.messages[0].getStringValue());
+        assertEquals(0, log.read(11, batch));
+        assertEquals(-1, log.read(12, batch));
+    }
+
+    @Test
+    void keepsTheOrderOfEveryQueueUnderConcurrentWriters() throws InterruptedException {
+        final int writers = 4;
+        final int perWriter = 20000;
+        final ReplicationLog log = log(writers * perWriter * 2);
+        final RingBufferMessageQueue[] queues = new RingBufferMessageQueue[2];
+        final Lock[] orders = new Lock[queues.length];
+        for(int q = 0; q < queues.length; q++) {
+            queues[q] = new RingBufferMessageQueue(64);
+            orders[q] = new ReentrantLock();
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < perWriter; i++) {
+                    // every writer shares each queue with another:
+                    RingBufferMessageQueue queue = queues[(writer + i) % queues.length];
+                    Lock order = orders[(writer + i) % queues.length];
+                    try {
+                        log.appendPersonal("queue-" + ((writer + i) % queues.length), message(writer + ":" + i), queue, order);
+                    } catch(MessageQueueFullException e) {
+                        // its record removes itself.
+                    }
+
+                    if(i % 2 == 1) {
+                        log.appendRemovals(queue.getMessages(1));
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        long next = log.getNextSequence();
+        ReplicationLog.Batch batch = new ReplicationLog.Batch((int) next);
+        assertEquals(next - 1, log.read(1, batch));
+
+        // replaying the records as a follower would must leave every queue
+        // with what the leader's holds; in the same order:
+        List<List<Long>> replayed = new ArrayList<List<Long>>();
+        for(int q = 0; q < queues.length; q++) {
+            replayed.add(new ArrayList<Long>());
+        }
+        for(int i = 0; i < batch.count; i++) {
+            if(batch.types[i] == ReplicationProtocol.personalRecord) {
+                replayed.get(Integer.parseInt(batch.names[i].substring(6))).add(batch.first + i);
+            } else {
+                for(List<Long> queue : replayed) {
+                    queue.remove(Long.valueOf(batch.values[i]));
+                }
+            }
+        }
+
+        for(int q = 0; q < queues.length; q++) {
+            List<Long> held = new ArrayList<Long>();
+            for(IMessage message : queues[q].peekMessages()) {
+                held.add(((ReplicatedMessage) message).getSequence());
+            }
+
+            assertEquals(held, replayed.get(q));
+        }
+    }
+
+    @Test
+    void wakesUpReadersWaitingForRecords() throws InterruptedException {
+        final ReplicationLog log = log(16);
+        final RingBufferMessageQueue queue = new RingBufferMessageQueue(8);
+        final Lock order = new ReentrantLock();
+
+        assertFalse(log.awaitAppended(1, 10));
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch(InterruptedException e) {
+                return;
+            }
+            log.appendPersonal("alice", message("one"), queue, order);
+        });
+        writer.start();
+
+        assertTrue(log.awaitAppended(1, 10000));
+        writer.join();
+    }
+
+    private static ReplicationLog log(int backlogRecords) {
+        return new ReplicationLog(backlogRecords, ReplicationMode.ASYNC, ReplicationLog.defaultSemiSyncTimeoutMillis,
+            new MetricsRegistry());
+    }
+
+    private static IMessage message(String value) {
+        return new StringMessage(value);
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.bajetii.messageserver.server.shards;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * MailboxTest covers the ordering of the Mailbox; alone and with concurrent
+ * producers.
+ */
+class MailboxTest {
+
+    @Test
+    void startsEmpty() {
+        Mailbox mailbox = new Mailbox();
+
+        assertTrue(mailbox.isEmpty());
+        assertNull(mailbox.poll());
+    }
+
+    @Test
+    void pollsInOrder() {
+        Mailbox mailbox = new Mailbox();
+        Task first = new Task(0, 0);
+        Task second = new Task(0, 1);
+        Task third = new Task(0, 2);
+
+        mailbox.offer(first);
+        mailbox.offer(second);
+        assertSame(first, mailbox.poll());
+
+        mailbox.offer(third);
+        assertSame(second, mailbox.poll());
+        assertSame(third, mailbox.poll());
+        assertNull(mailbox.poll());
+        assertTrue(mailbox.isEmpty());
+    }
+
+    @Test
+    void unlinksTakenTasks() {
+        Mailbox mailbox = new Mailbox();
+        Task first = new Task(0, 0);
+        Task second = new Task(0, 1);
+
+        mailbox.offer(first);
+        mailbox.offer(second);
+        mailbox.poll();
+        mailbox.poll();
+
+        assertNull(first.next);
+    }
+
+    @Test
+    void keepsTheOrderOfEveryProducer() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final Mailbox mailbox = new Mailbox();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < perProducer; i++) {
+                    mailbox.offer(new Task(producer, i));
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+
+        int[] next = new int[producers];
+        int taken = 0;
+        int reordered = 0;
+        long deadline = System.currentTimeMillis() + 60000;
+
+        while(taken < producers * perProducer && System.currentTimeMillis() < deadline) {
+            Task task = (Task) mailbox.poll();
+            if(task == null) {
+                Thread.yield();
+                continue;
+            }
+
+            if(task.index != next[task.producer]) {
+                reordered++;
+            }
+            next[task.producer] = task.index + 1;
+            taken++;
+        }
+
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, reordered);
+        assertEquals(producers * perProducer, taken);
+        int[] expected = new int[producers];
+        Arrays.fill(expected, perProducer);
+        assertArrayEquals(expected, next);
+        assertTrue(mailbox.isEmpty());
+    }
+
+    /**
+     * Task is a ShardTask telling which producer handed it over, and when.
+     */
+    private static final class Task extends ShardTask {
+
+        final int producer;
+        final int index;
+
+        Task(int producer, int index) {
+            this.producer = producer;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bajetii.messageserver.server.MessagingServer;
+import org.bajetii.messageserver.server.config.QueueCapacities;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * SnapshotterTest covers the round trip of the queues of a MessagingServer
+ * through a snapshot file.
+ */
+class SnapshotterTest {
+
+    /**
+     * directory is the scratch directory of every test's snapshot.
+     */
+    @TempDir
+    File directory;
+
+    @Test
+    void restoresPersonalAndTopicQueues() throws IOException {
+        MessagingServer server = new MessagingServer(30);
+        server.addPersonalMessage("alice", "one");
+        server.addPersonalMessage("alice", "two");
+        server.addPersonalMessage("alice", "three");
+        server.addPersonalMessage("bob", "four");
+        server.addTopicMessage("news", "five", 30);
+        server.addTopicMessage("news", "six", 30);
+
+        Snapshotter snapshotter = new Snapshotter(server, this.file(), 60000);
+        snapshotter.snapshot();
+        assertEquals(6, snapshotter.getLastSnapshotMessages());
+        assertFalse(new File(this.file().getPath() + ".tmp").exists());
+
+        MessagingServer restored = new MessagingServer(30);
+        Snapshotter loader = new Snapshotter(restored, this.file(), 60000);
+
+        assertTrue(loader.load());
+        assertEquals(6, loader.getLastLoadMessages());
+        assertArrayEquals(new String[] {"one", "two", "three"}, restored.getPersonalMessages("alice"));
+        assertArrayEquals(new String[] {"four"}, restored.getPersonalMessages("bob"));
+        assertArrayEquals(new String[] {"five", "six"}, restored.getTopicMessages("news"));
+    }
+
+    @Test
+    void replacesThePreviousSnapshot() throws IOException {
+        MessagingServer server = new MessagingServer(30);
+        Snapshotter snapshotter = new Snapshotter(server, this.file(), 60000);
+
+        server.addPersonalMessage("alice", "one");
+        snapshotter.snapshot();
+        server.getPersonalMessage("alice");
+        server.addPersonalMessage("alice", "two");
+        snapshotter.snapshot();
+        assertEquals(2, snapshotter.getSnapshotCount());
+
+        MessagingServer restored = new MessagingServer(30);
+        new Snapshotter(restored, this.file(), 60000).load();
+
+        assertArrayEquals(new String[] {"two"}, restored.getPersonalMessages("alice"));
+    }
+
+    @Test
+    void dropsMessagesNotFittingTheirQueue() throws IOException {
+        MessagingServer server = new MessagingServer(30);
+        for(int i = 0; i < 5; i++) {
+            server.addPersonalMessage("alice", "message-" + i);
+        }
+        new Snapshotter(server, this.file(), 60000).snapshot();
+
+        MessagingServer restored = new MessagingServer(30, new QueueCapacities(2), MessagingServer.defaultTimerWheelTickMillis);
+        Snapshotter loader = new Snapshotter(restored, this.file(), 60000);
+        loader.load();
+
+        assertEquals(2, loader.getLastLoadMessages());
+        assertArrayEquals(new String[] {"message-0", "message-1"}, restored.getPersonalMessages("alice"));
+    }
+
+    @Test
+    void loadsNothingWithoutASnapshot() throws IOException {
+        MessagingServer server = new MessagingServer(30);
+
+        assertFalse(new Snapshotter(server, this.file(), 60000).load());
+        assertTrue(server.getPersonalQueues().isEmpty());
+    }
+
+    /**
+     * file returns the snapshot file within the scratch directory.
+     */
+    private File file() {
+        return new File(this.directory, "queues.snapshot");
+    }
+
+}
@@ -0,0 +1,153 @@
+package org.bajetii.messageserver.server.storage;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.bajetii.messageserver.server.messages.ByteBufferMessage;
+import org.bajetii.messageserver.server.messages.IMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * WriteAheadLogTest covers the recovery of a WriteAheadLog's messages upon
+ * reopening it.
+ */
+class WriteAheadLogTest {
+
+    /**
+     * directory is the scratch directory of every test's log.
+     */
+    @TempDir
+    File directory;
+
+    @Test
+    void recoversUnacknowledgedMessages() throws IOException {
+        WriteAheadLog log = this.open(WriteAheadLog.defaultSegmentBytes);
+        LogMessage first = log.appendPersonal("alice", message("one"));
+        log.appendPersonal("alice", message("two"));
+        log.appendTopic("news", message("three"), System.currentTimeMillis() + 60000);
+        log.acknowledge(first);
+        log.close();
+
+        List<LogRecord> records = this.open(WriteAheadLog.defaultSegmentBytes).recover();
+
+        assertEquals(2, records.size());
+        assertFalse(records.get(0).isTopic());
+        assertEquals("alice", records.get(0).getName());
+        assertEquals("two", records.get(0).getMessage().getStringValue());
+        assertTrue(records.get(1).isTopic());
+        assertEquals("news", records.get(1).getName());
+        assertEquals("three", records.get(1).getMessage().getStringValue());
+    }
+
+    @Test
+    void dropsTimedOutTopicMessages() throws IOException {
+        WriteAheadLog log = this.open(WriteAheadLog.defaultSegmentBytes);
+        log.appendTopic("news", message("stale"), System.currentTimeMillis() - 1);
+        log.appendTopic("news", message("fresh"), System.currentTimeMillis() + 60000);
+        log.close();
+
+        List<LogRecord> records = this.open(WriteAheadLog.defaultSegmentBytes).recover();
+
+        assertEquals(1, records.size());
+        assertEquals("fresh", records.get(0).getMessage().getStringValue());
+    }
+
+    @Test
+    void stopsAtCorruptedRecord() throws IOException {
+        WriteAheadLog log = this.open(WriteAheadLog.defaultSegmentBytes);
+        log.appendPersonal("alice", message("one"));
+        LogMessage second = log.appendPersonal("alice", message("two"));
+        log.appendPersonal("alice", message("three"));
+        log.close();
+
+        try(RandomAccessFile file = new RandomAccessFile(segment(0), "rw")) {
+            file.seek(second.getEnd() - 1);
+            file.write('X');
+        }
+
+        WriteAheadLog reopened = this.open(WriteAheadLog.defaultSegmentBytes);
+        List<LogRecord> records = reopened.recover();
+
+        assertEquals(1, records.size());
+        assertEquals("one", records.get(0).getMessage().getStringValue());
+        assertEquals(second.getOffset(), reopened.getWrittenOffset());
+    }
+
+    @Test
+    void recoversAcrossSegments() throws IOException {
+        WriteAheadLog log = this.open(256);
+        for(int i = 0; i < 100; i++) {
+            log.appendPersonal("person-" + (i % 4), message("message-" + i));
+        }
+        assertTrue(log.getSegmentCount() > 1);
+        log.close();
+
+        List<LogRecord> records = this.open(256).recover();
+
+        assertEquals(100, records.size());
+        for(int i = 0; i < 100; i++) {
+            assertEquals("person-" + (i % 4), records.get(i).getName());
+            assertEquals("message-" + i, records.get(i).getMessage().getStringValue());
+        }
+    }
+
+    @Test
+    void reclaimsAcknowledgedSegments() throws IOException {
+        WriteAheadLog log = this.open(256);
+        for(int i = 0; i < 100; i++) {
+            log.acknowledge(log.appendPersonal("alice", message("message-" + i)));
+        }
+
+        assertTrue(log.getSegmentCount() <= 2);
+        log.close();
+
+        assertTrue(this.open(256).recover().isEmpty());
+    }
+
+    @Test
+    void reusesEmptyLastSegment() throws IOException {
+        // as left behind by a crash right after a segment's file was created:
+        assertTrue(segment(0).createNewFile());
+
+        WriteAheadLog log = this.open(WriteAheadLog.defaultSegmentBytes);
+        assertTrue(log.recover().isEmpty());
+        log.appendPersonal("alice", message("one"));
+        assertEquals(1, log.getSegmentCount());
+        log.close();
+
+        List<LogRecord> records = this.open(WriteAheadLog.defaultSegmentBytes).recover();
+
+        assertEquals(1, records.size());
+        assertEquals("one", records.get(0).getMessage().getStringValue());
+        assertEquals(1, this.directory.list().length);
+    }
+
+    /**
+     * open opens the log within the scratch directory.
+     */
+    private WriteAheadLog open(long segmentBytes) throws IOException {
+        return new WriteAheadLog(this.directory, segmentBytes, FsyncPolicy.NEVER, 0);
+    }
+
+    /**
+     * segment returns the file of the segment of the given base offset.
+     */
+    private File segment(long base) {
+        return new File(this.directory, String.format(LogSegment.fileNameFormat, base));
+    }
+
+    private static IMessage message(String value) {
+        return new ByteBufferMessage(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.bajetii.messageserver.server.timers;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * TimerWheelTest covers the placement of tasks on the levels of a TimerWheel
+ * and their cascading down; on a wheel driven tick by tick, save for the one
+ * test of its own Thread.
+ */
+class TimerWheelTest {
+
+    /**
+     * span is the number of ticks covered by the whole wheel.
+     */
+    private static final long span = 1L << 24;
+
+    @Test
+    void runsEveryTaskOnTheTickOfItsDeadline() {
+        TimerWheel wheel = new TimerWheel(1, 0, false);
+
+        // on either side of the span of every level; and past the whole wheel:
+        long[] deadlines = {1, 2, 63, 64, 65, 4095, 4096, 4097, 5000, 262143, 262144, 262145, 300000,
+            span - 1, span, span + 5, 2 * span + 64};
+        List<Long> ran = new ArrayList<Long>();
+        for(long deadline : deadlines) {
+            wheel.schedule(deadline, () -> ran.add(deadline));
+        }
+        wheel.tick(0);
+
+        for(int i = 0; i < deadlines.length; i++) {
+            wheel.tick(deadlines[i] - 1);
+            assertEquals(i, ran.size(), "ran ahead of " + deadlines[i]);
+
+            wheel.tick(deadlines[i]);
+            assertEquals(i + 1, ran.size(), "did not run at " + deadlines[i]);
+            assertEquals(deadlines[i], ran.get(i));
+        }
+        assertEquals(deadlines.length, wheel.getExpiredCount());
+    }
+
+    @Test
+    void runsTasksScheduledMidwayOnTheirOwnTick() {
+        TimerWheel wheel = new TimerWheel(1, 0, false);
+        wheel.tick(100000);
+
+        // placed relative to the current tick; not to the start of the wheel:
+        List<Long> ran = new ArrayList<Long>();
+        for(long deadline : new long[] {100001, 100064, 104096, 400000}) {
+            wheel.schedule(deadline, () -> ran.add(deadline));
+        }
+        wheel.tick(100000);
+
+        for(long deadline : new long[] {100001, 100064, 104096, 400000}) {
+            wheel.tick(deadline - 1);
+            assertFalse(ran.contains(deadline));
+            wheel.tick(deadline);
+            assertTrue(ran.contains(deadline));
+        }
+    }
+
+    @Test
+    void runsTasksWhichAreAlreadyDue() {
+        TimerWheel wheel = new TimerWheel(1, 0, false);
+        wheel.tick(1000);
+
+        AtomicBoolean ran = new AtomicBoolean(false);
+        wheel.schedule(500, () -> ran.set(true));
+        wheel.tick(1000);
+
+        assertTrue(ran.get());
+    }
+
+    @Test
+    void roundsDeadlinesUpToTheNextTick() {
+        TimerWheel wheel = new TimerWheel(10, 0, false);
+
+        AtomicBoolean ran = new AtomicBoolean(false);
+        wheel.schedule(15, () -> ran.set(true));
+
+        wheel.tick(19);
+        assertFalse(ran.get());
+        wheel.tick(20);
+        assertTrue(ran.get());
+    }
+
+    @Test
+    void neverRunsCancelledTasks() {
+        TimerWheel wheel = new TimerWheel(1, 0, false);
+        List<String> ran = new ArrayList<String>();
+
+        // cancelled before being placed; and after, on a higher level:
+        Timeout pending = wheel.schedule(10, () -> ran.add("pending"));
+        pending.cancel();
+        Timeout placed = wheel.schedule(5000, () -> ran.add("placed"));
+        wheel.schedule(5000, () -> ran.add("live"));
+        wheel.tick(100);
+        placed.cancel();
+
+        wheel.tick(10000);
+        assertEquals(List.of("live"), ran);
+        assertEquals(1, wheel.getExpiredCount());
+    }
+
+    @Test
+    void keepsOnTickingPastAFailingTask() {
+        TimerWheel wheel = new TimerWheel(1, 0, false);
+        AtomicBoolean ran = new AtomicBoolean(false);
+
+        wheel.schedule(10, () -> {
+            throw new IllegalStateException("failing on purpose.");
+        });
+        wheel.schedule(10, () -> ran.set(true));
+        wheel.tick(10);
+
+        assertTrue(ran.get());
+    }
+
+    @Test
+    void runsTasksOnItsOwnThreadNoEarlierThanTheirDeadline() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5);
+        try {
+            long deadline = System.currentTimeMillis() + 50;
+            AtomicLong ranAt = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(1);
+
+            wheel.schedule(deadline, () -> {
+                ranAt.set(System.currentTimeMillis());
+                done.countDown();
+            });
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(ranAt.get() >= deadline, "ran " + (deadline - ranAt.get()) + "ms early");
+        } finally {
+            wheel.stop();
+        }
+    }
+
+}
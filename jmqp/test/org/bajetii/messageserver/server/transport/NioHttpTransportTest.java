@@ -0,0 +1,274 @@
+package org.bajetii.messageserver.server.transport;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * NioHttpTransportTest covers the request parsing of the NioHttpTransport
+ * over localhost; with requests pipelined, received in parts, or rejected.
+ */
+class NioHttpTransportTest {
+
+    /**
+     * maxBodyBytes is the maximum size of a request body of the transport.
+     */
+    private static final int maxBodyBytes = 1024;
+
+    private NioHttpTransport transport;
+    private int port;
+
+    @BeforeEach
+    void startTransport() throws IOException {
+        this.port = freePort();
+        this.transport = new NioHttpTransport(this.port, 16, 2);
+        this.transport.setMaxBodyBytes(maxBodyBytes);
+        this.transport.createContext("/echo", (ex) -> echo(ex));
+        this.transport.start();
+    }
+
+    @AfterEach
+    void stopTransport() {
+        this.transport.stop();
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws IOException {
+        try(Socket socket = this.connect()) {
+            write(socket, request("one") + request("two") + request("three"));
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            assertEquals("one", read(in).text());
+            assertEquals("two", read(in).text());
+            assertEquals("three", read(in).text());
+        }
+    }
+
+    @Test
+    void waitsForRequestsReceivedInParts() throws Exception {
+        try(Socket socket = this.connect()) {
+            String request = request("hello world");
+            int headerEnd = request.indexOf("\r\n\r\n");
+
+            // cut within the request line, the headers and the body:
+            int[] cuts = {5, headerEnd - 10, headerEnd + 2, headerEnd + 4, headerEnd + 9, request.length()};
+            int from = 0;
+            for(int cut : cuts) {
+                write(socket, request.substring(from, cut));
+                from = cut;
+                Thread.sleep(50);
+            }
+
+            Response response = read(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(200, response.status);
+            assertEquals("hello world", response.text());
+        }
+    }
+
+    @Test
+    void sendsAContinueBeforeTheBody() throws IOException {
+        try(Socket socket = this.connect()) {
+            write(socket, "POST /echo HTTP/1.1\r\nHost: test\r\nExpect: 100-continue\r\nContent-Length: 5\r\n\r\n");
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            assertEquals("HTTP/1.1 100 Continue", readLine(in));
+            assertEquals("", readLine(in));
+
+            write(socket, "hello");
+            Response response = read(in);
+            assertEquals(200, response.status);
+            assertEquals("hello", response.text());
+        }
+    }
+
+    @Test
+    void rejectsChunkedBodies() throws IOException {
+        try(Socket socket = this.connect()) {
+            write(socket, "POST /echo HTTP/1.1\r\nHost: test\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Response response = read(in);
+            assertEquals(411, response.status);
+            assertTrue(response.text().startsWith("411 : LengthRequired"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void rejectsHeadersPastTheirLimit() throws IOException {
+        try(Socket socket = this.connect()) {
+            // a single header one byte too many; with the head never ending:
+            StringBuilder request = new StringBuilder("GET /echo HTTP/1.1\r\nX-Padding: ");
+            while(request.length() <= 64 * 1024) {
+                request.append('x');
+            }
+            write(socket, request.toString());
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Response response = read(in);
+            assertEquals(431, response.status);
+            assertTrue(response.text().startsWith("431 : RequestHeaderFieldsTooLarge"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void rejectsBodiesPastTheirLimitAndLingers() throws Exception {
+        try(Socket socket = this.connect()) {
+            // the client is still busy sending the body when the rejection
+            // comes in; which it must get to read regardless:
+            byte[] body = new byte[256 * 1024];
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("POST /echo HTTP/1.1\r\nHost: test\r\nContent-Length: " + body.length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(body);
+                    out.flush();
+                } catch(IOException e) {
+                    // the body was cut short; which the reader tells apart.
+                }
+            });
+            writer.start();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Response response = read(in);
+            assertEquals(413, response.status);
+            assertTrue(response.text().startsWith("413 : PayloadTooLarge"));
+
+            // the connection is only closed once the whole body was thrown
+            // away; rather than reset underneath the writer:
+            assertEquals(-1, in.read());
+            writer.join(10000);
+            assertTrue(!writer.isAlive());
+        }
+    }
+
+    @Test
+    void rejectsBodiesPastTheirLimitWithoutWaitingForThem() throws IOException {
+        try(Socket socket = this.connect()) {
+            write(socket, "POST /echo HTTP/1.1\r\nHost: test\r\nExpect: 100-continue\r\nContent-Length: "
+                + (maxBodyBytes + 1) + "\r\n\r\n");
+
+            // a client waiting for a 100-continue gets the rejection instead;
+            // and never sends the body, so the connection is closed at once:
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            assertEquals(413, read(in).status);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", this.port);
+        socket.setSoTimeout(10000);
+
+        return socket;
+    }
+
+    /**
+     * echo answers a request with its own body.
+     */
+    private static void echo(HttpExchange ex) throws IOException {
+        byte[] body = ex.getRequestBody().readAllBytes();
+
+        ex.sendResponseHeaders(200, (body.length == 0) ? -1 : body.length);
+        try(OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * request serializes a POST to the echo context of the given body.
+     */
+    private static String request(String body) {
+        return "POST /echo HTTP/1.1\r\nHost: test\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    private static void write(Socket socket, String data) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(data.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * read reads a single Content-Length delimited response.
+     */
+    private static Response read(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        Response response = new Response(Integer.parseInt(statusLine.substring(9, 12)));
+
+        String line;
+        while(!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        String length = response.headers.get("content-length");
+        response.body = in.readNBytes((length == null) ? 0 : Integer.parseInt(length));
+
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int b;
+        while((b = in.read()) != '\n') {
+            if(b < 0) {
+                throw new IOException("Connection closed mid-line.");
+            }
+            if(b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * freePort returns a port which was free a moment ago.
+     */
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Response is a parsed response; its headers keyed in lower case.
+     */
+    private static final class Response {
+
+        final int status;
+        final Map<String, String> headers = new HashMap<String, String>();
+        byte[] body = new byte[0];
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        String text() {
+            return new String(this.body, StandardCharsets.UTF_8);
+        }
+
+    }
+
+}